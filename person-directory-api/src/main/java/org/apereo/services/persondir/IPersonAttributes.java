@@ -56,4 +56,17 @@ public interface IPersonAttributes extends Principal, Serializable {
      * @return All values for the attribute
      */
     public List<Object> getAttributeValues(String name);
+
+    /**
+     * If the attribute has the value, for example to test group membership. Implementations holding many values
+     * for an attribute should override this or return values with an efficient {@link List#contains(Object)}.
+     *
+     * @param name The name of the attribute to test
+     * @param value The value to look for
+     * @return true if one of the values of the attribute equals the value
+     */
+    default boolean hasAttributeValue(final String name, final Object value) {
+        final List<Object> values = this.getAttributeValues(name);
+        return values != null && values.contains(value);
+    }
 }
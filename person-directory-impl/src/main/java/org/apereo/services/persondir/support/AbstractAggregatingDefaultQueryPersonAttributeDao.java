@@ -24,13 +24,33 @@ import org.apereo.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.merger.IAttributeMerger;
+import org.apereo.services.persondir.support.merger.IPeopleMergeBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.dao.QueryTimeoutException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 
 /**
@@ -85,12 +105,88 @@ import java.util.Set;
  *         <td valign="top">No</td>
  *         <td valign="top">false</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">adaptiveOrdering</td>
+ *         <td>
+ *             If true and <b>stopOnSuccess</b> is set the child DAOs are queried in order of their expected time to
+ *             a successful answer, based on the recent latency and success rate of each child, instead of the
+ *             configured order.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pinnedPersonAttributeDaos</td>
+ *         <td>
+ *             Child DAOs that keep their configured position when <b>adaptiveOrdering</b> is set, for sources
+ *             whose precedence matters.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">empty</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryTimeout</td>
+ *         <td>
+ *             Time budget for each query in milliseconds, bound to the calling thread as a {@link QueryDeadline}
+ *             that child DAOs map onto their own timeouts. Children are not queried once it has passed.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryTimeoutExecutor</td>
+ *         <td>
+ *             If set and a query deadline is bound each child DAO is called on this executor and waited for no
+ *             longer than the deadline allows. Without it the children run on the calling thread and the deadline
+ *             is only checked between children, so a child that ignores the deadline can overrun it.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">memoizeQueries</td>
+ *         <td>
+ *             If true each query opens a {@link QueryMemoizationScope} unless the caller already bound one, so
+ *             identical backend queries made by DAOs shared between several children only run once per lookup.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">returnPartialResults</td>
+ *         <td>
+ *             If true the results of the children that completed before the query deadline are returned without
+ *             an error and flagged with {@link QueryDeadline#isPartialResults()}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">routeByQueryAttributes</td>
+ *         <td>
+ *             If true child DAOs are only queried if they list at least one of the query keys in
+ *             {@link IPersonAttributeDao#getAvailableQueryAttributes()}. Children that return null or an
+ *             empty set are always queried.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreakerSettings</td>
+ *         <td>
+ *             If set each child DAO gets a {@link CircuitBreaker} with these settings. Children whose circuit is open
+ *             are skipped without being called until the circuit lets a probe call through.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
  *
  * @author Eric Dalquist
  * @version $Revision$
  */
-public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao
+        implements IReloadablePersonAttributeDao {
     /**
      * A List of child IPersonAttributeDao instances which we will poll in order.
      */
@@ -109,6 +205,55 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
 
     protected boolean stopOnSuccess = false;
 
+    /**
+     * Settings for the per child circuit breakers, null if circuit breaking is disabled.
+     */
+    private CircuitBreakerSettings circuitBreakerSettings = null;
+
+    private final ConcurrentMap<IPersonAttributeDao, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    private long queryTimeout = 0;
+
+    private ExecutorService queryTimeoutExecutor = null;
+
+    private boolean returnPartialResults = false;
+
+    private boolean memoizeQueries = false;
+
+    /**
+     * If children are only queried when they can use at least one of the query keys.
+     */
+    private boolean routeByQueryAttributes = false;
+
+    private volatile Generational<Map<IPersonAttributeDao, Set<String>>> queryRoutingIndex = null;
+
+    /**
+     * Cached results of {@link #getPossibleUserAttributeNames()} and {@link #getAvailableQueryAttributes()}, null if
+     * not yet computed.
+     */
+    private volatile Generational<Set<String>> possibleUserAttributeNames = null;
+
+    private volatile Generational<Set<String>> availableQueryAttributes = null;
+
+    private final AtomicLong routedChildQueries = new AtomicLong();
+
+    private final AtomicLong skippedChildQueries = new AtomicLong();
+
+    private final AtomicLong completedRequestedAttributesQueries = new AtomicLong();
+
+    private final AtomicLong skippedRequestedAttributesQueries = new AtomicLong();
+
+    /**
+     * If stopOnSuccess queries the children in order of their expected cost instead of the configured order.
+     */
+    private boolean adaptiveOrdering = false;
+
+    private Set<IPersonAttributeDao> pinnedPersonAttributeDaos = Collections.emptySet();
+
+    private final ConcurrentMap<IPersonAttributeDao, ChildQueryStatistics> childQueryStatistics = new ConcurrentHashMap<>();
+
+    protected final Logger statsLogger = LoggerFactory.getLogger(this.getClass().getName() + ".statistics");
+
 
     /**
      * Iterates through the configured {@link java.util.List} of {@link IPersonAttributeDao}
@@ -121,8 +266,49 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
         Validate.notNull(query, "query may not be null.");
 
-        //Initialize null, so that if none of the sub-DAOs find any people null is returned appropriately
+        //Only the outermost aggregating DAO of a lookup opens the memoization scope
+        if (!this.memoizeQueries || QueryMemoizationScope.current() != null) {
+            return this.getPeopleWithDeadline(query);
+        }
+
+        final QueryMemoizationScope memoizationScope = QueryMemoizationScope.start();
+        try {
+            return this.getPeopleWithDeadline(query);
+        } finally {
+            memoizationScope.close();
+        }
+    }
+
+    private Set<IPersonAttributes> getPeopleWithDeadline(final Map<String, List<Object>> query) {
+        if (this.queryTimeout <= 0) {
+            return this.getPeopleFromChildDaos(query);
+        }
+
+        final QueryDeadline deadline = QueryDeadline.start(this.queryTimeout);
+        try {
+            return this.getPeopleFromChildDaos(query);
+        } finally {
+            deadline.close();
+        }
+    }
+
+    /**
+     * Queries the child DAOs in order and merges their results, called with the query deadline already bound to the
+     * current thread.
+     *
+     * @param query The query
+     * @return The merged results, null if no child returned results
+     */
+    protected Set<IPersonAttributes> getPeopleFromChildDaos(final Map<String, List<Object>> query) {
+        //Accumulates the results of all sub-DAOs, if none of the sub-DAOs find any people null is returned
+        final IPeopleMergeBuilder mergedPeople = this.attrMerger.newPeopleMergeBuilder();
+
+        //The attributes the caller needs, if set children are only queried while some of them are missing
+        final Set<String> requestedAttributes = RequestedAttributes.currentAttributeNames();
+
+        //The merged results so far, only built for subclasses that use them or to find missing requested attributes
         Set<IPersonAttributes> resultPeople = null;
+        final boolean requiresResultPeople = this.requiresResultPeople() || requestedAttributes != null;
 
         //Denotes that this is the first time we are running a query and the original seed should be used
         boolean isFirstQuery = true;
@@ -131,12 +317,66 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             throw new IllegalStateException("personAttributeDaos must be set");
         }
 
+        final boolean recordChildQueries = this.isAdaptiveOrderingActive();
+
         //Iterate through the configured IPersonAttributeDaos, querying each.
-        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+        final List<IPersonAttributeDao> childDaos = this.getChildDaoQueryOrder();
+        for (int childIndex = 0; childIndex < childDaos.size(); childIndex++) {
+            final IPersonAttributeDao currentlyConsidering = childDaos.get(childIndex);
+            if (!this.checkDeadline(currentlyConsidering)) {
+                break;
+            }
+
+            if (requiresResultPeople && resultPeople == null && mergedPeople.hasResults()) {
+                resultPeople = mergedPeople.build();
+            }
+
+            Set<String> childRequestedAttributes = null;
+            if (requestedAttributes != null) {
+                final Set<String> missingAttributes = getMissingAttributes(requestedAttributes, resultPeople);
+                if (missingAttributes.isEmpty()) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("All requested attributes " + requestedAttributes + " are populated, stopping iteration of child DAOs");
+                    }
+                    this.completedRequestedAttributesQueries.incrementAndGet();
+                    break;
+                }
+
+                final List<IPersonAttributeDao> laterDaos = childDaos.subList(childIndex + 1, childDaos.size());
+                childRequestedAttributes = this.getChildRequestedAttributes(currentlyConsidering, missingAttributes, laterDaos);
+                if (!canProvideAttributes(currentlyConsidering, childRequestedAttributes)) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Skipping '" + currentlyConsidering + "' since it can't provide any of the missing requested attributes " + missingAttributes);
+                    }
+                    this.skippedRequestedAttributesQueries.incrementAndGet();
+                    continue;
+                }
+            }
+
+            //The child queries are only built up front for routing, they are passed on so they are not built twice
+            Collection<Map<String, List<Object>>> childQueries = null;
+            if (this.routeByQueryAttributes) {
+                childQueries = this.getChildQueries(query, isFirstQuery, currentlyConsidering, resultPeople);
+                if (!this.canQueryDao(currentlyConsidering, getQueryKeys(childQueries))) {
+                    continue;
+                }
+            }
+
+            final CircuitBreaker circuitBreaker = this.getCircuitBreaker(currentlyConsidering);
+            if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+                //Skipping an open circuit counts as a failure so stopOnSuccess moves on to the next child
+                this.handleOpenCircuit(currentlyConsidering, circuitBreaker);
+                continue;
+            }
+
             boolean handledException = false;
             Set<IPersonAttributes> currentPeople = null;
+            final long start = System.currentTimeMillis();
+            boolean failed = true;
+            final RequestedAttributes childScope = startChildScope(requestedAttributes, childRequestedAttributes);
             try {
-                currentPeople = this.getAttributesFromDao(query, isFirstQuery, currentlyConsidering, resultPeople);
+                currentPeople = this.queryChildDao(query, isFirstQuery, currentlyConsidering, resultPeople, childQueries);
+                failed = false;
                 isFirstQuery = false;
 
                 if (this.logger.isDebugEnabled()) {
@@ -146,16 +386,25 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
                 }
             } catch (final RuntimeException rte) {
                 handledException |= handleRuntimeException(currentlyConsidering, rte);
+            } finally {
+                if (childScope != null) {
+                    childScope.close();
+                }
+
+                final long elapsed = System.currentTimeMillis() - start;
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordCall(elapsed, failed);
+                }
+                if (recordChildQueries) {
+                    this.childQueryStatistics.computeIfAbsent(currentlyConsidering, key -> new ChildQueryStatistics())
+                            .record(elapsed, !failed);
+                }
             }
 
             if (currentPeople != null) {
-                if (resultPeople == null) {
-                    //If this is the first valid result set just use it.
-                    resultPeople = new LinkedHashSet<>(currentPeople);
-                } else {
-                    //Merge the Sets of IPersons
-                    resultPeople = this.attrMerger.mergeResults(resultPeople, currentPeople);
-                }
+                //Merge the Sets of IPersons
+                mergedPeople.add(currentPeople);
+                resultPeople = null;
             }
 
             if (this.stopOnSuccess && !handledException) {
@@ -167,10 +416,12 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             }
         }
 
-        if (resultPeople == null) {
+        if (!mergedPeople.hasResults()) {
             return null;
         }
 
+        resultPeople = mergedPeople.build();
+
         if (this.logger.isDebugEnabled()) {
             this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
         }
@@ -178,7 +429,96 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
         return Collections.unmodifiableSet(resultPeople);
     }
 
-    private boolean handleRuntimeException(IPersonAttributeDao currentlyConsidering, RuntimeException rte) {
+    /**
+     * @param requestedAttributes The attribute names the caller needs
+     * @param resultPeople The merged results so far, may be null
+     * @return The requested attribute names that at least one of the people has no value for, all of them if there
+     * are no people yet
+     */
+    private static Set<String> getMissingAttributes(final Set<String> requestedAttributes, final Set<IPersonAttributes> resultPeople) {
+        if (resultPeople == null || resultPeople.isEmpty()) {
+            return requestedAttributes;
+        }
+
+        final Set<String> missingAttributes = new LinkedHashSet<>();
+        for (final IPersonAttributes person : resultPeople) {
+            for (final String attributeName : requestedAttributes) {
+                final List<Object> values = person.getAttributeValues(attributeName);
+                if (values == null || values.isEmpty()) {
+                    missingAttributes.add(attributeName);
+                }
+            }
+        }
+        return missingAttributes;
+    }
+
+    /**
+     * Determines the attributes requested from a child DAO while some of the {@link RequestedAttributes} are still
+     * missing. The child is queried with these attributes bound as its {@link RequestedAttributes} and skipped if its
+     * {@link IPersonAttributeDao#getPossibleUserAttributeNames()} contains none of them.
+     *
+     * @param dao The child DAO
+     * @param missingAttributes The requested attribute names that are still missing
+     * @param laterDaos The child DAOs that will be considered after this one
+     * @return The attribute names to request from the child, null if all of its attributes are needed
+     */
+    protected Set<String> getChildRequestedAttributes(final IPersonAttributeDao dao, final Set<String> missingAttributes,
+                                                      final List<IPersonAttributeDao> laterDaos) {
+        return missingAttributes;
+    }
+
+    /**
+     * Children that return null or an empty set from {@link IPersonAttributeDao#getPossibleUserAttributeNames()} are
+     * always queried.
+     */
+    private static boolean canProvideAttributes(final IPersonAttributeDao dao, final Set<String> attributeNames) {
+        if (attributeNames == null) {
+            return true;
+        }
+
+        final Set<String> possibleUserAttributeNames = dao.getPossibleUserAttributeNames();
+        if (possibleUserAttributeNames == null || possibleUserAttributeNames.isEmpty()) {
+            return true;
+        }
+
+        for (final String attributeName : attributeNames) {
+            if (possibleUserAttributeNames.contains(attributeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The scope for the child query, null if the caller didn't request attributes
+     */
+    private static RequestedAttributes startChildScope(final Set<String> requestedAttributes, final Set<String> childRequestedAttributes) {
+        if (requestedAttributes == null) {
+            return null;
+        }
+
+        return childRequestedAttributes != null ? RequestedAttributes.start(childRequestedAttributes) : RequestedAttributes.clear();
+    }
+
+    /**
+     * If {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)} uses the results of the previous
+     * child DAOs. If false the merged results are only built once after all children have been queried and null is
+     * passed as resultPeople.
+     *
+     * @return true if the results of the previous child DAOs are needed to query the next one, defaults to true
+     */
+    protected boolean requiresResultPeople() {
+        return true;
+    }
+
+    /**
+     * Logs the exception thrown by the child DAO and either swallows or re-throws it depending on recoverExceptions.
+     *
+     * @param currentlyConsidering The child DAO that threw the exception
+     * @param rte The exception
+     * @return true if the exception was recovered from
+     */
+    protected final boolean handleRuntimeException(final IPersonAttributeDao currentlyConsidering, final RuntimeException rte) {
         if (this.recoverExceptions) {
             this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
             return true;
@@ -189,6 +529,268 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     }
 
 
+    /**
+     * Calls {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set, Collection)}, on the
+     * queryTimeoutExecutor if one is set and a {@link QueryDeadline} is bound so the call is given up on once the
+     * deadline passes.
+     */
+    private Set<IPersonAttributes> queryChildDao(final Map<String, List<Object>> seed, final boolean isFirstQuery,
+                                                 final IPersonAttributeDao currentlyConsidering,
+                                                 final Set<IPersonAttributes> resultPeople,
+                                                 final Collection<Map<String, List<Object>>> childQueries) {
+        if (this.queryTimeoutExecutor == null || QueryDeadline.current() == null) {
+            return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, childQueries);
+        }
+
+        //Submitted as a task so cancelling the late child interrupts it
+        final Supplier<Set<IPersonAttributes>> childQuery = QueryContext.propagate(
+                () -> this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, childQueries));
+        final Future<Set<IPersonAttributes>> future = this.queryTimeoutExecutor.submit(childQuery::get);
+        try {
+            return this.awaitChildResult(currentlyConsidering, future);
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for '" + currentlyConsidering + "'", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Query against '" + currentlyConsidering + "' failed", cause);
+        }
+    }
+
+    /**
+     * Checks the {@link QueryDeadline} bound to the current thread before querying a child DAO. If the deadline has
+     * passed the results are flagged as partial and, unless returnPartialResults is true, a
+     * {@link QueryTimeoutException} for the child is handled like any other exception from a child.
+     *
+     * @param currentlyConsidering The child DAO about to be queried
+     * @return true if the child can be queried, false if the deadline has passed
+     */
+    protected final boolean checkDeadline(final IPersonAttributeDao currentlyConsidering) {
+        final QueryDeadline deadline = QueryDeadline.current();
+        if (deadline == null || !deadline.isExpired()) {
+            return true;
+        }
+
+        deadline.markPartialResults();
+        if (this.returnPartialResults) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Query deadline passed, returning partial results without querying '" + currentlyConsidering + "'");
+            }
+        } else {
+            this.handleRuntimeException(currentlyConsidering,
+                    new QueryTimeoutException("Query deadline passed before querying '" + currentlyConsidering + "'"));
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the result of a child query running on another thread, no longer than the {@link QueryDeadline} bound
+     * to the current thread allows. If the deadline passes the child query is cancelled and the results are flagged as
+     * partial.
+     *
+     * @param currentlyConsidering The child DAO running the query
+     * @param future The running query
+     * @param <T> The result type
+     * @return The result of the query, null if the deadline passed and returnPartialResults is true
+     * @throws QueryTimeoutException If the deadline passed and returnPartialResults is false
+     * @throws InterruptedException If interrupted while waiting
+     * @throws ExecutionException If the query failed
+     */
+    protected final <T> T awaitChildResult(final IPersonAttributeDao currentlyConsidering, final Future<T> future) throws InterruptedException, ExecutionException {
+        final QueryDeadline deadline = QueryDeadline.current();
+        if (deadline == null) {
+            return future.get();
+        }
+
+        try {
+            return future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            deadline.markPartialResults();
+            if (this.returnPartialResults) {
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Query deadline passed, returning partial results without waiting for '" + currentlyConsidering + "'");
+                }
+                return null;
+            }
+            throw new QueryTimeoutException("Query deadline passed while waiting for '" + currentlyConsidering + "'");
+        }
+    }
+
+    /**
+     * Handles a child DAO being skipped because its circuit is open. If recoverExceptions is true a rate limited
+     * warning is logged, otherwise an {@link IllegalStateException} is thrown.
+     *
+     * @param currentlyConsidering The child DAO that was skipped
+     * @param circuitBreaker The open circuit breaker of the child DAO
+     */
+    protected final void handleOpenCircuit(final IPersonAttributeDao currentlyConsidering, final CircuitBreaker circuitBreaker) {
+        if (!this.recoverExceptions) {
+            throw new IllegalStateException("Circuit for '" + currentlyConsidering + "' is open, not querying it. " + circuitBreaker);
+        }
+
+        final long rejections = circuitBreaker.shouldLogRejection();
+        if (rejections > 0) {
+            this.logger.warn("Skipped " + rejections + " queries to '" + currentlyConsidering + "' since the circuit is open. " + circuitBreaker);
+        } else if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Skipping '" + currentlyConsidering + "' since the circuit is open");
+        }
+    }
+
+    /**
+     * @param dao The child DAO
+     * @return The circuit breaker for the child DAO, null if circuitBreakerSettings is not set
+     */
+    protected final CircuitBreaker getCircuitBreaker(final IPersonAttributeDao dao) {
+        if (this.circuitBreakerSettings == null) {
+            return null;
+        }
+
+        return this.circuitBreakers.computeIfAbsent(dao, key -> new CircuitBreaker(this.circuitBreakerSettings));
+    }
+
+    /**
+     * The order the child DAOs are queried in. With adaptiveOrdering and stopOnSuccess set the children that are not
+     * pinned are sorted by their expected cost to the first success, their average latency divided by their success
+     * rate. Children that have not been queried yet come first so each child gets measured, children with the same
+     * cost keep their configured order.
+     *
+     * @return The child DAOs in the order they are queried in
+     */
+    @JsonIgnore
+    public List<IPersonAttributeDao> getChildDaoQueryOrder() {
+        final List<IPersonAttributeDao> daos = this.personAttributeDaos;
+        if (!this.isAdaptiveOrderingActive() || daos == null || daos.size() < 2) {
+            return daos;
+        }
+
+        //Snapshot the costs so concurrent updates can't change them during the sort
+        final Map<IPersonAttributeDao, Double> costs = new IdentityHashMap<>(daos.size());
+        final List<IPersonAttributeDao> reordered = new ArrayList<>(daos.size());
+        for (final IPersonAttributeDao dao : daos) {
+            if (!this.pinnedPersonAttributeDaos.contains(dao)) {
+                final ChildQueryStatistics statistics = this.childQueryStatistics.get(dao);
+                costs.put(dao, statistics != null ? statistics.getExpectedCost() : 0.0);
+                reordered.add(dao);
+            }
+        }
+        reordered.sort(Comparator.comparing(costs::get));
+
+        //Pinned children keep their position, the others fill the remaining positions in cost order
+        final List<IPersonAttributeDao> order = new ArrayList<>(daos.size());
+        final Iterator<IPersonAttributeDao> reorderedIterator = reordered.iterator();
+        for (final IPersonAttributeDao dao : daos) {
+            order.add(this.pinnedPersonAttributeDaos.contains(dao) ? dao : reorderedIterator.next());
+        }
+        return order;
+    }
+
+    private boolean isAdaptiveOrderingActive() {
+        return this.adaptiveOrdering && this.stopOnSuccess;
+    }
+
+    /**
+     * Checks the query routing index to see if the child DAO can use any of the query keys. Children that don't
+     * report their available query attributes, or report an empty set, can always be queried. Updates the routing
+     * statistics.
+     *
+     * @param dao The child DAO
+     * @param queryKeys The attribute names in the query that would be sent to the child
+     * @return true if the child should be queried
+     */
+    protected final boolean canQueryDao(final IPersonAttributeDao dao, final Set<String> queryKeys) {
+        final Set<String> availableQueryAttributes = this.getQueryRoutingIndex().get(dao);
+        if (availableQueryAttributes == null || !Collections.disjoint(availableQueryAttributes, queryKeys)) {
+            this.routedChildQueries.incrementAndGet();
+            return true;
+        }
+
+        final long skipped = this.skippedChildQueries.incrementAndGet();
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Skipping '" + dao + "', none of its query attributes " + availableQueryAttributes
+                    + " are in the query keys " + queryKeys);
+        }
+        if (this.statsLogger.isDebugEnabled()) {
+            this.statsLogger.debug("Routing Stats: routed=" + this.routedChildQueries.get() + ", skipped=" + skipped);
+        }
+        return false;
+    }
+
+    /**
+     * The queries the child DAO would be called with, used for query routing and then passed to
+     * {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set, Collection)}. Defaults to the seed.
+     *
+     * @param seed The seed for the original query.
+     * @param isFirstQuery If this is the first query
+     * @param currentlyConsidering The child DAO that would be queried
+     * @param resultPeople The results from all previous queries, may be null.
+     * @return The queries for the child DAO
+     */
+    protected Collection<Map<String, List<Object>>> getChildQueries(final Map<String, List<Object>> seed, final boolean isFirstQuery,
+                                                                    final IPersonAttributeDao currentlyConsidering,
+                                                                    final Set<IPersonAttributes> resultPeople) {
+        return Collections.singleton(seed);
+    }
+
+    private static Set<String> getQueryKeys(final Collection<Map<String, List<Object>>> queries) {
+        if (queries.size() == 1) {
+            return queries.iterator().next().keySet();
+        }
+
+        final Set<String> queryKeys = new HashSet<>();
+        for (final Map<String, List<Object>> query : queries) {
+            queryKeys.addAll(query.keySet());
+        }
+        return queryKeys;
+    }
+
+    /**
+     * @return Map of child DAO to its available query attributes, children that can be sent any query are not included
+     */
+    private Map<IPersonAttributeDao, Set<String>> getQueryRoutingIndex() {
+        final long generation = this.getGeneration();
+        final Generational<Map<IPersonAttributeDao, Set<String>>> cachedIndex = this.queryRoutingIndex;
+        if (cachedIndex != null && cachedIndex.generation == generation) {
+            return cachedIndex.value;
+        }
+
+        final Map<IPersonAttributeDao, Set<String>> index = this.buildQueryRoutingIndex();
+        this.queryRoutingIndex = new Generational<>(generation, index);
+        return index;
+    }
+
+    private Map<IPersonAttributeDao, Set<String>> buildQueryRoutingIndex() {
+        final Map<IPersonAttributeDao, Set<String>> index = new IdentityHashMap<>();
+        if (this.personAttributeDaos == null) {
+            return index;
+        }
+
+        for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+            try {
+                final Set<String> availableQueryAttributes = dao.getAvailableQueryAttributes();
+                if (availableQueryAttributes != null && !availableQueryAttributes.isEmpty()) {
+                    index.put(dao, Collections.unmodifiableSet(new HashSet<>(availableQueryAttributes)));
+                }
+            } catch (final RuntimeException rte) {
+                //The DAO will be queried and can fail there
+                this.logger.warn("Failed to get available query attributes from '" + dao + "', it will receive all queries", rte);
+            }
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Built query routing index " + index);
+        }
+
+        return index;
+    }
+
     /**
      * Call to execute the appropriate query on the current {@link IPersonAttributeDao}. Provides extra information
      * beyond the seed for the state of the query chain and previous results.
@@ -203,18 +805,46 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
                                                                    IPersonAttributeDao currentlyConsidering,
                                                                    Set<IPersonAttributes> resultPeople);
 
+    /**
+     * Variant of {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)} that gets the child queries if
+     * they were already built by {@link #getChildQueries(Map, boolean, IPersonAttributeDao, Set)} for query routing.
+     * Defaults to ignoring them.
+     *
+     * @param seed The seed for the original query.
+     * @param isFirstQuery If this is the first query
+     * @param currentlyConsidering The IPersonAttributeDao to execute the query on.
+     * @param resultPeople The Map of results from all previous queries, may be null.
+     * @param childQueries The queries built for the child, null if they were not built yet.
+     * @return The results from the call to the DAO, follows the same rules as {@link IPersonAttributeDao#getUserAttributes(Map)}.
+     */
+    protected Set<IPersonAttributes> getAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery,
+                                                          final IPersonAttributeDao currentlyConsidering,
+                                                          final Set<IPersonAttributes> resultPeople,
+                                                          final Collection<Map<String, List<Object>>> childQueries) {
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople);
+    }
+
 
     /**
      * Merges the results of calling {@link IPersonAttributeDao#getPossibleUserAttributeNames()} on each child dao using
      * the configured {@link IAttributeMerger#mergePossibleUserAttributeNames(Set, Set)}. If all children return null
-     * this method returns null as well. If any child does not return null this method will not return null.
+     * this method returns null as well. If any child does not return null this method will not return null. The result
+     * is cached until {@link #refreshAttributeNames()} is called, the configuration changes or a child
+     * {@link IReloadablePersonAttributeDao} reloads.
      *
      * @see IPersonAttributeDao#getPossibleUserAttributeNames()
      */
     @Override
     @JsonIgnore
     public final Set<String> getPossibleUserAttributeNames() {
+        final long generation = this.getGeneration();
+        final Generational<Set<String>> cachedAttrNames = this.possibleUserAttributeNames;
+        if (cachedAttrNames != null && cachedAttrNames.generation == generation) {
+            return cachedAttrNames.value;
+        }
+
         Set<String> attrNames = null;
+        boolean cacheable = true;
 
         for (final IPersonAttributeDao currentDao : this.personAttributeDaos) {
             boolean handledException = false;
@@ -227,6 +857,7 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
                 }
             } catch (final RuntimeException rte) {
                 handledException |= handleRuntimeException(currentDao, rte);
+                cacheable = false;
             }
 
             if (currentDaoAttrNames != null) {
@@ -250,24 +881,33 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             this.logger.debug("Aggregated possible attribute names '" + attrNames + "'");
         }
 
-        if (attrNames == null) {
-            return null;
+        final Set<String> result = attrNames == null ? null : Collections.unmodifiableSet(attrNames);
+        if (cacheable) {
+            this.possibleUserAttributeNames = new Generational<>(generation, result);
         }
-
-        return Collections.unmodifiableSet(attrNames);
+        return result;
     }
 
     /**
      * Merges the results of calling {@link IPersonAttributeDao#getAvailableQueryAttributes()} on each child dao using
      * the configured {@link IAttributeMerger#mergeAvailableQueryAttributes(Set, Set)}. If all children return null this
-     * method returns null as well. If any child does not return null this method will not return null.
+     * method returns null as well. If any child does not return null this method will not return null. The result is
+     * cached until {@link #refreshAttributeNames()} is called, the configuration changes or a child
+     * {@link IReloadablePersonAttributeDao} reloads.
      *
      * @see IPersonAttributeDao#getAvailableQueryAttributes()
      */
     @JsonIgnore
     @Override
     public Set<String> getAvailableQueryAttributes() {
+        final long generation = this.getGeneration();
+        final Generational<Set<String>> cachedQueryAttrs = this.availableQueryAttributes;
+        if (cachedQueryAttrs != null && cachedQueryAttrs.generation == generation) {
+            return cachedQueryAttrs.value;
+        }
+
         Set<String> queryAttrs = null;
+        boolean cacheable = true;
 
         for (final IPersonAttributeDao currentDao : this.personAttributeDaos) {
             boolean handledException = false;
@@ -280,6 +920,7 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
                 }
             } catch (final RuntimeException rte) {
                 handledException |= handleRuntimeException(currentDao, rte);
+                cacheable = false;
             }
 
             if (currentDaoQueryAttrs != null) {
@@ -304,11 +945,11 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             this.logger.debug("Aggregated possible query attributes '" + queryAttrs + "'");
         }
 
-        if (queryAttrs == null) {
-            return null;
+        final Set<String> result = queryAttrs == null ? null : Collections.unmodifiableSet(queryAttrs);
+        if (cacheable) {
+            this.availableQueryAttributes = new Generational<>(generation, result);
         }
-
-        return Collections.unmodifiableSet(queryAttrs);
+        return result;
     }
 
     /**
@@ -330,6 +971,7 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public final void setMerger(final IAttributeMerger merger) {
         Validate.notNull(merger, "The IAttributeMerger cannot be null");
         this.attrMerger = merger;
+        this.refreshAttributeNames();
     }
 
     /**
@@ -351,6 +993,158 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public final void setPersonAttributeDaos(final List<IPersonAttributeDao> daos) {
         Validate.notNull(daos, "The IPersonAttributeDao List cannot be null");
         this.personAttributeDaos = Collections.unmodifiableList(daos);
+        this.childQueryStatistics.clear();
+        this.refreshAttributeNames();
+    }
+
+    public long getQueryTimeout() {
+        return this.queryTimeout;
+    }
+
+    /**
+     * Time budget for each query in milliseconds. The deadline is bound to the calling thread with
+     * {@link QueryDeadline} so child DAOs see it as well, backend DAOs map the remaining time onto their own timeouts.
+     * If the caller already bound an earlier deadline that deadline is used.
+     *
+     * @param queryTimeout The query time budget in milliseconds, 0 to only use a deadline set by the caller
+     */
+    public void setQueryTimeout(final long queryTimeout) {
+        Validate.isTrue(queryTimeout >= 0, "queryTimeout must not be negative");
+        this.queryTimeout = queryTimeout;
+    }
+
+    @JsonIgnore
+    public ExecutorService getQueryTimeoutExecutor() {
+        return this.queryTimeoutExecutor;
+    }
+
+    /**
+     * Executor to call the child DAOs on while a {@link QueryDeadline} is bound, so the query returns once the
+     * deadline passes even if a child is still running. The late child is cancelled and its results are dropped.
+     * Without an executor the children run on the calling thread and the deadline is only checked before each child.
+     * The executor is not shut down by this class.
+     *
+     * @param queryTimeoutExecutor The executor, null to call the child DAOs on the calling thread
+     */
+    @JsonIgnore
+    public void setQueryTimeoutExecutor(final ExecutorService queryTimeoutExecutor) {
+        this.queryTimeoutExecutor = queryTimeoutExecutor;
+    }
+
+    public boolean isMemoizeQueries() {
+        return this.memoizeQueries;
+    }
+
+    /**
+     * If true each query binds a {@link QueryMemoizationScope} to the calling thread unless the caller already bound
+     * one, so backend DAOs configured under several aggregating DAOs run identical queries only once per lookup.
+     *
+     * @param memoizeQueries If identical backend queries should be collapsed within one query, defaults to false
+     */
+    public void setMemoizeQueries(final boolean memoizeQueries) {
+        this.memoizeQueries = memoizeQueries;
+    }
+
+    public boolean isReturnPartialResults() {
+        return this.returnPartialResults;
+    }
+
+    /**
+     * If true and the query deadline passes the results of the children that completed in time are returned without
+     * an error, otherwise a {@link QueryTimeoutException} is handled for the first child that could not be queried
+     * (see recoverExceptions). In both cases {@link QueryDeadline#isPartialResults()} is set.
+     *
+     * @param returnPartialResults If partial results should be returned when the deadline passes, defaults to false
+     */
+    public void setReturnPartialResults(final boolean returnPartialResults) {
+        this.returnPartialResults = returnPartialResults;
+    }
+
+    public boolean isRouteByQueryAttributes() {
+        return this.routeByQueryAttributes;
+    }
+
+    /**
+     * If true a child DAO is only queried if at least one of the keys of its query is in the child's
+     * {@link IPersonAttributeDao#getAvailableQueryAttributes()}. Children that return null or an empty set are always
+     * queried. The available query attributes are read once into a routing index that is rebuilt when a child
+     * {@link IReloadablePersonAttributeDao} reloads, call {@link #refreshQueryRouting()} if they change otherwise.
+     *
+     * @param routeByQueryAttributes If queries should be routed by the available query attributes, defaults to false
+     */
+    public void setRouteByQueryAttributes(final boolean routeByQueryAttributes) {
+        this.routeByQueryAttributes = routeByQueryAttributes;
+    }
+
+    /**
+     * Discards the query routing index, it is rebuilt from the children on the next query.
+     */
+    public void refreshQueryRouting() {
+        this.queryRoutingIndex = null;
+    }
+
+    /**
+     * Discards the cached results of {@link #getPossibleUserAttributeNames()} and {@link #getAvailableQueryAttributes()}
+     * along with the query routing index. The results are cached after the first call where no child DAO failed and
+     * are read again when a child {@link IReloadablePersonAttributeDao} reloads, call this if the attribute names of
+     * another child DAO change at runtime.
+     */
+    public void refreshAttributeNames() {
+        this.possibleUserAttributeNames = null;
+        this.availableQueryAttributes = null;
+        this.refreshQueryRouting();
+    }
+
+    /**
+     * @return The sum of the generations of the child {@link IReloadablePersonAttributeDao}s, it changes when any of
+     * them reloads
+     */
+    @JsonIgnore
+    @Override
+    public long getGeneration() {
+        long generation = 0;
+        if (this.personAttributeDaos == null) {
+            return generation;
+        }
+        for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+            if (dao instanceof IReloadablePersonAttributeDao) {
+                generation += ((IReloadablePersonAttributeDao) dao).getGeneration();
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * @return The number of child queries that were sent because the routing index allowed them
+     */
+    @JsonIgnore
+    public long getRoutedChildQueries() {
+        return this.routedChildQueries.get();
+    }
+
+    /**
+     * @return The number of child queries that were skipped because the child could not use any of the query keys
+     */
+    @JsonIgnore
+    public long getSkippedChildQueries() {
+        return this.skippedChildQueries.get();
+    }
+
+    /**
+     * @return The number of queries that stopped early because all {@link RequestedAttributes} were populated
+     */
+    @JsonIgnore
+    public long getCompletedRequestedAttributesQueries() {
+        return this.completedRequestedAttributesQueries.get();
+    }
+
+    /**
+     * @return The number of child queries that were skipped because the child couldn't provide any of the missing
+     * {@link RequestedAttributes}
+     */
+    @JsonIgnore
+    public long getSkippedRequestedAttributesQueries() {
+        return this.skippedRequestedAttributesQueries.get();
     }
 
     /**
@@ -377,6 +1171,74 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
         this.recoverExceptions = recover;
     }
 
+    @JsonIgnore
+    public CircuitBreakerSettings getCircuitBreakerSettings() {
+        return this.circuitBreakerSettings;
+    }
+
+    /**
+     * Enables a circuit breaker per child DAO with the specified settings. While a child's circuit is open it is
+     * skipped without being called, as if it had thrown an exception, and a warning is logged at most once per
+     * rejectionLogInterval. Changing the settings resets all circuits.
+     *
+     * @param circuitBreakerSettings The settings, null to disable circuit breaking
+     */
+    @JsonIgnore
+    public void setCircuitBreakerSettings(final CircuitBreakerSettings circuitBreakerSettings) {
+        this.circuitBreakerSettings = circuitBreakerSettings;
+        this.circuitBreakers.clear();
+    }
+
+    /**
+     * @return The state of the circuit breaker of each child DAO that has been queried, for monitoring
+     */
+    @JsonIgnore
+    public Map<IPersonAttributeDao, CircuitBreaker.State> getCircuitBreakerStates() {
+        final Map<IPersonAttributeDao, CircuitBreaker.State> states = new LinkedHashMap<>();
+        if (this.personAttributeDaos != null) {
+            for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+                final CircuitBreaker circuitBreaker = this.circuitBreakers.get(dao);
+                if (circuitBreaker != null) {
+                    states.put(dao, circuitBreaker.getState());
+                }
+            }
+        }
+        return states;
+    }
+
+    public boolean isAdaptiveOrdering() {
+        return this.adaptiveOrdering;
+    }
+
+    /**
+     * If true and stopOnSuccess is set the child DAOs are queried in order of their expected time to a successful
+     * answer instead of the configured order, see {@link #getChildDaoQueryOrder()}. A child counts as successful if it
+     * returns without throwing an exception, the same as for stopOnSuccess. Children whose precedence matters can be
+     * kept in place with pinnedPersonAttributeDaos.
+     *
+     * @param adaptiveOrdering If the child DAOs should be reordered by their expected cost, defaults to false
+     */
+    public void setAdaptiveOrdering(final boolean adaptiveOrdering) {
+        this.adaptiveOrdering = adaptiveOrdering;
+        this.childQueryStatistics.clear();
+    }
+
+    @JsonIgnore
+    public Set<IPersonAttributeDao> getPinnedPersonAttributeDaos() {
+        return this.pinnedPersonAttributeDaos;
+    }
+
+    /**
+     * @param pinnedPersonAttributeDaos Child DAOs that keep their configured position when adaptiveOrdering is set
+     */
+    @JsonIgnore
+    public void setPinnedPersonAttributeDaos(final Set<IPersonAttributeDao> pinnedPersonAttributeDaos) {
+        Validate.notNull(pinnedPersonAttributeDaos, "pinnedPersonAttributeDaos cannot be null");
+        final Set<IPersonAttributeDao> pinned = Collections.newSetFromMap(new IdentityHashMap<>());
+        pinned.addAll(pinnedPersonAttributeDaos);
+        this.pinnedPersonAttributeDaos = Collections.unmodifiableSet(pinned);
+    }
+
     public boolean isStopOnSuccess() {
         return stopOnSuccess;
     }
@@ -390,5 +1252,58 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
      */
     public void setStopOnSuccess(final boolean stopOnSuccess) {
         this.stopOnSuccess = stopOnSuccess;
+        this.refreshAttributeNames();
+    }
+
+    /**
+     * Moving averages of the latency and success rate of a child DAO used for adaptive ordering.
+     */
+    private static final class ChildQueryStatistics {
+        /**
+         * Weight of the latest query in the moving averages.
+         */
+        private static final double WEIGHT = 0.2;
+
+        /**
+         * Lower bound of the success rate so children that always fail still get a finite cost.
+         */
+        private static final double MIN_SUCCESS_RATE = 0.01;
+
+        private double latency = 0;
+        private double successRate = 1;
+        private boolean queried = false;
+
+        synchronized void record(final long latencyMillis, final boolean success) {
+            final double successValue = success ? 1 : 0;
+            if (this.queried) {
+                this.latency += WEIGHT * (latencyMillis - this.latency);
+                this.successRate += WEIGHT * (successValue - this.successRate);
+            } else {
+                this.latency = latencyMillis;
+                this.successRate = successValue;
+                this.queried = true;
+            }
+        }
+
+        /**
+         * @return The expected time spent on this child per successful answer, one millisecond is added so fast
+         * children are still ordered by their success rate
+         */
+        synchronized double getExpectedCost() {
+            return (this.latency + 1) / Math.max(this.successRate, MIN_SUCCESS_RATE);
+        }
+    }
+
+    /**
+     * A cached value with the generation of the children it was computed from.
+     */
+    private static final class Generational<T> {
+        private final long generation;
+        private final T value;
+
+        private Generational(final long generation, final T value) {
+            this.generation = generation;
+            this.value = value;
+        }
     }
 }
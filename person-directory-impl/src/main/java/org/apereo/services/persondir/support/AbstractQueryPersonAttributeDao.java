@@ -23,13 +23,13 @@ import com.google.common.collect.ImmutableSet;
 import org.apache.commons.lang3.Validate;
 import org.apereo.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.AttributeValueInterner;
 import org.apereo.services.persondir.util.CaseCanonicalizationMode;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -91,6 +91,24 @@ import java.util.Set;
  *         <td valign="top">No</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">lazyPersonAttributes</td>
+ *         <td>
+ *             If true the returned people are {@link LazyMappedPersonImpl}s that only map and canonicalize an
+ *             attribute when it is first read.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">attributeValueInterner</td>
+ *         <td>
+ *             The {@link AttributeValueInterner} the mapped attribute values are interned with before the person is
+ *             built. If null the values are not interned.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
  *
  * @author Eric Dalquist 
@@ -108,9 +126,12 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     private CaseCanonicalizationMode usernameCaseCanonicalizationMode = DEFAULT_USERNAME_CASE_CANONICALIZATION_MODE;
     private Locale caseCanonicalizationLocale = Locale.getDefault();
     private Set<String> possibleUserAttributes;
+    private Set<String> availableQueryAttributes = Collections.emptySet();
     private boolean requireAllQueryAttributes = false;
     private boolean useAllQueryAttributes = true;
     private String unmappedUsernameAttribute = null;
+    private boolean lazyPersonAttributes = false;
+    private AttributeValueInterner attributeValueInterner = null;
 
 
     public AbstractQueryPersonAttributeDao() {
@@ -156,6 +177,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         }
 
         this.queryAttributeMapping = parsedQueryAttributeMapping;
+        this.availableQueryAttributes = Collections.unmodifiableSet(new LinkedHashSet<>(parsedQueryAttributeMapping.keySet()));
     }
 
     /**
@@ -187,7 +209,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         final Collection<String> userAttributes = MultivaluedPersonAttributeUtils.flattenCollection(parsedResultAttributeMapping.values());
 
         this.resultAttributeMapping = parsedResultAttributeMapping;
-        this.possibleUserAttributes = new LinkedHashSet<>(userAttributes);
+        this.possibleUserAttributes = Collections.unmodifiableSet(new LinkedHashSet<>(userAttributes));
     }
 
     /**
@@ -225,6 +247,37 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         this.unmappedUsernameAttribute = userNameAttribute;
     }
 
+    public boolean isLazyPersonAttributes() {
+        return this.lazyPersonAttributes;
+    }
+
+    /**
+     * If true the returned people wrap the attributes read by the subclass and only map and canonicalize an attribute
+     * when it is first read, see {@link LazyMappedPersonImpl}. Subclasses that build their people with
+     * {@link #createCaseInsensitivePerson(String, String, Map)} don't copy the attributes at all. Useful when callers
+     * only read a few of many attributes. Defaults to false.
+     *
+     * @param lazyPersonAttributes If attributes should be mapped when they are first read
+     */
+    public void setLazyPersonAttributes(final boolean lazyPersonAttributes) {
+        this.lazyPersonAttributes = lazyPersonAttributes;
+    }
+
+    @JsonIgnore
+    public AttributeValueInterner getAttributeValueInterner() {
+        return this.attributeValueInterner;
+    }
+
+    /**
+     * Pool the mapped attribute values are interned with before the people are built, the values are interned by
+     * their mapped attribute names. Defaults to null, values are not interned.
+     *
+     * @param attributeValueInterner The interner to use, null to not intern values
+     */
+    public void setAttributeValueInterner(final AttributeValueInterner attributeValueInterner) {
+        this.attributeValueInterner = attributeValueInterner;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
@@ -232,6 +285,22 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     public final Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
         Validate.notNull(query, "query may not be null.");
 
+        //Collapse identical queries within one lookup into one backend query
+        final QueryMemoizationScope memoizationScope = QueryMemoizationScope.current();
+        if (memoizationScope != null) {
+            return memoizationScope.memoize(this, query, () -> this.queryBackend(query));
+        }
+
+        return this.queryBackend(query);
+    }
+
+    /**
+     * Generates the query builder, runs the query in the subclass and maps the found people.
+     *
+     * @param query The query
+     * @return The mapped people, null if no query could be generated or the subclass returned null
+     */
+    private Set<IPersonAttributes> queryBackend(final Map<String, List<Object>> query) {
         //Generate the query to pass to the subclass
         final QB queryBuilder = this.generateQuery(query);
         if (queryBuilder == null && (this.queryAttributeMapping != null || this.useAllQueryAttributes == true)) {
@@ -266,12 +335,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     @Override
     @JsonIgnore
     public Set<String> getAvailableQueryAttributes() {
-        if (this.queryAttributeMapping == null) {
-            return new HashSet<>();
-        }
-
-        final Set list = new HashSet(this.queryAttributeMapping.keySet());
-        return list;
+        return this.availableQueryAttributes;
     }
 
     /* (non-Javadoc)
@@ -402,16 +466,30 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
      * @return A copy of the IPersonAttributes with mapped attributes, the original IPersonAttributes if resultAttributeMapping is null.
      */
     protected final IPersonAttributes mapPersonAttributes(final IPersonAttributes person) {
+        if (this.lazyPersonAttributes) {
+            //People built by createCaseInsensitivePerson are mapped already
+            if (person instanceof LazyMappedPersonImpl) {
+                return person;
+            }
+            return new LazyMappedPersonImpl(person.getName(), null, person.getAttributes(), false, this.createLazyAttributeMapper());
+        }
+
+        //Only the requested attributes and the username attribute are mapped if the caller requested attributes
+        final Set<String> requestedAttributes = RequestedAttributes.currentAttributeNames();
+        final String requestedUserNameAttribute = requestedAttributes != null ? this.getConfiguredUserNameAttribute() : null;
+
         final Map<String, List<Object>> personAttributes = person.getAttributes();
 
-        final Map<String, List<Object>> mappedAttributes;
+        Map<String, List<Object>> mappedAttributes;
         //If no mapping just use the attributes as-is
         if (this.resultAttributeMapping == null) {
-            if (caseInsensitiveResultAttributes != null && !(caseInsensitiveResultAttributes.isEmpty())) {
+            if (requestedAttributes != null || (caseInsensitiveResultAttributes != null && !(caseInsensitiveResultAttributes.isEmpty()))) {
                 mappedAttributes = new LinkedHashMap<>();
                 for (final Map.Entry<String, List<Object>> attribute : personAttributes.entrySet()) {
                     final String attributeName = attribute.getKey();
-                    mappedAttributes.put(attributeName, canonicalizeAttribute(attributeName, attribute.getValue(), caseInsensitiveResultAttributes));
+                    if (requestedAttributes == null || isRequestedAttribute(attributeName, requestedAttributes, requestedUserNameAttribute)) {
+                        mappedAttributes.put(attributeName, canonicalizeAttribute(attributeName, attribute.getValue(), caseInsensitiveResultAttributes));
+                    }
                 }
             } else {
                 mappedAttributes = personAttributes;
@@ -439,6 +517,10 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
                     //possibly canonicalizing casing for each value
                     List<Object> value = personAttributes.get(dataKey);
                     for (final String resultKey : resultKeys) {
+                        if (requestedAttributes != null
+                                && !isRequestedAttribute(resultKey != null ? resultKey : dataKey, requestedAttributes, requestedUserNameAttribute)) {
+                            continue;
+                        }
                         value = canonicalizeAttribute(resultKey, value, caseInsensitiveResultAttributes);
                         if (resultKey == null) {
                             //TODO is this possible?
@@ -451,6 +533,10 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
             }
         }
 
+        if (this.attributeValueInterner != null) {
+            mappedAttributes = this.attributeValueInterner.intern(mappedAttributes);
+        }
+
         final IPersonAttributes newPerson;
 
         final String name = person.getName();
@@ -465,6 +551,208 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         return newPerson;
     }
 
+    /**
+     * Builds the person for one result read by the subclass, looking up attribute names ignoring case. If
+     * lazyPersonAttributes is set the attributes are wrapped as they are and mapped when they are read, they are
+     * copied into a {@link CaseInsensitiveNamedPersonImpl} or {@link CaseInsensitiveAttributeNamedPersonImpl} otherwise.
+     *
+     * @param name The name of the person, null to take it from userNameAttribute
+     * @param userNameAttribute The attribute to take the name from if name is null
+     * @param attributes The attributes read from the backend, not modified afterwards
+     * @return The person to return from {@link #getPeopleForQuery(Object, String)}
+     */
+    protected final IPersonAttributes createCaseInsensitivePerson(final String name, final String userNameAttribute,
+                                                                  final Map<String, List<Object>> attributes) {
+        if (this.lazyPersonAttributes) {
+            return new LazyMappedPersonImpl(name, name == null ? userNameAttribute : null, attributes, true, this.createLazyAttributeMapper());
+        }
+
+        if (name != null) {
+            return new CaseInsensitiveNamedPersonImpl(name, attributes);
+        }
+        return new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, attributes);
+    }
+
+    private LazyAttributeMapper createLazyAttributeMapper() {
+        //Only the requested attributes and the username attribute are mapped if the caller requested attributes
+        final Set<String> requestedAttributes = RequestedAttributes.currentAttributeNames();
+        return new LazyAttributeMapper(requestedAttributes, this.getConfiguredUserNameAttribute(), this.resultAttributeMapping,
+                this.caseInsensitiveResultAttributes, this.defaultCaseCanonicalizationMode, this.caseCanonicalizationLocale,
+                this.usernameCaseCanonicalizationMode, this.attributeValueInterner);
+    }
+
+    /**
+     * Maps single attributes the same way {@link #mapPersonAttributes(IPersonAttributes)} maps all of them, for
+     * {@link LazyMappedPersonImpl}. Holds the mapping configuration of the DAO as it was when the person was read,
+     * the setters replace these maps instead of modifying them.
+     */
+    private static final class LazyAttributeMapper implements LazyMappedPersonImpl.AttributeMapper {
+        private final Set<String> requestedAttributes;
+        private final String userNameAttribute;
+        private final Map<String, Set<String>> resultAttributeMapping;
+        private final Map<String, CaseCanonicalizationMode> caseInsensitiveResultAttributes;
+        private final CaseCanonicalizationMode defaultCaseCanonicalizationMode;
+        private final Locale caseCanonicalizationLocale;
+        private final CaseCanonicalizationMode usernameCaseCanonicalizationMode;
+        private final AttributeValueInterner attributeValueInterner;
+
+        private LazyAttributeMapper(final Set<String> requestedAttributes, final String userNameAttribute,
+                                    final Map<String, Set<String>> resultAttributeMapping,
+                                    final Map<String, CaseCanonicalizationMode> caseInsensitiveResultAttributes,
+                                    final CaseCanonicalizationMode defaultCaseCanonicalizationMode,
+                                    final Locale caseCanonicalizationLocale,
+                                    final CaseCanonicalizationMode usernameCaseCanonicalizationMode,
+                                    final AttributeValueInterner attributeValueInterner) {
+            this.requestedAttributes = requestedAttributes;
+            this.userNameAttribute = userNameAttribute;
+            this.resultAttributeMapping = resultAttributeMapping;
+            this.caseInsensitiveResultAttributes = caseInsensitiveResultAttributes;
+            this.defaultCaseCanonicalizationMode = defaultCaseCanonicalizationMode;
+            this.caseCanonicalizationLocale = caseCanonicalizationLocale;
+            this.usernameCaseCanonicalizationMode = usernameCaseCanonicalizationMode;
+            this.attributeValueInterner = attributeValueInterner;
+        }
+
+        @Override
+        public Set<String> getAttributeNames(final Map<String, List<Object>> sourceAttributes) {
+            final Map<String, Set<String>> resultAttributeMapping = this.resultAttributeMapping;
+            if (resultAttributeMapping == null) {
+                if (this.requestedAttributes == null) {
+                    return sourceAttributes.keySet();
+                }
+
+                final Set<String> attributeNames = new LinkedHashSet<>();
+                for (final String attributeName : sourceAttributes.keySet()) {
+                    if (this.isRequested(attributeName)) {
+                        attributeNames.add(attributeName);
+                    }
+                }
+                return attributeNames;
+            }
+
+            final Set<String> attributeNames = new LinkedHashSet<>();
+            for (final Map.Entry<String, Set<String>> resultAttrEntry : resultAttributeMapping.entrySet()) {
+                final String dataKey = resultAttrEntry.getKey();
+                if (sourceAttributes.containsKey(dataKey)) {
+                    for (final String resultKey : getResultKeys(resultAttrEntry)) {
+                        final String attributeName = resultKey != null ? resultKey : dataKey;
+                        if (this.isRequested(attributeName)) {
+                            attributeNames.add(attributeName);
+                        }
+                    }
+                }
+            }
+            return attributeNames;
+        }
+
+        @Override
+        public List<Object> getAttributeValues(final Map<String, List<Object>> sourceAttributes, final String name) {
+            final List<Object> mappedValue = this.mapAttributeValues(sourceAttributes, name);
+
+            return this.attributeValueInterner != null ? this.attributeValueInterner.intern(name, mappedValue) : mappedValue;
+        }
+
+        private List<Object> mapAttributeValues(final Map<String, List<Object>> sourceAttributes, final String name) {
+            final Map<String, Set<String>> resultAttributeMapping = this.resultAttributeMapping;
+            if (!this.isRequested(name)) {
+                return null;
+            }
+
+            if (resultAttributeMapping == null) {
+                return this.canonicalize(name, sourceAttributes.get(name));
+            }
+
+            //The last data attribute mapped to the name wins, as in mapPersonAttributes
+            List<Object> mappedValue = null;
+            for (final Map.Entry<String, Set<String>> resultAttrEntry : resultAttributeMapping.entrySet()) {
+                final String dataKey = resultAttrEntry.getKey();
+                if (!sourceAttributes.containsKey(dataKey)) {
+                    continue;
+                }
+
+                //Values are canonicalized for each requested result key in turn
+                List<Object> value = sourceAttributes.get(dataKey);
+                for (final String resultKey : getResultKeys(resultAttrEntry)) {
+                    final String attributeName = resultKey != null ? resultKey : dataKey;
+                    if (!this.isRequested(attributeName)) {
+                        continue;
+                    }
+                    value = this.canonicalize(resultKey, value);
+                    if (attributeName.equals(name)) {
+                        mappedValue = value;
+                        break;
+                    }
+                }
+            }
+            return mappedValue;
+        }
+
+        @Override
+        public String getName(final String sourceName, final IPersonAttributes mappedPerson) {
+            if (sourceName != null) {
+                return this.usernameCaseCanonicalizationMode.canonicalize(sourceName);
+            }
+
+            final Object userName = mappedPerson.getAttributeValue(this.userNameAttribute);
+            return this.usernameCaseCanonicalizationMode.canonicalize(userName != null ? userName.toString() : null);
+        }
+
+        private List<Object> canonicalize(final String key, final List<Object> value) {
+            return canonicalizeAttribute(key, value, this.caseInsensitiveResultAttributes, this.defaultCaseCanonicalizationMode,
+                    this.caseCanonicalizationLocale);
+        }
+
+        private boolean isRequested(final String attributeName) {
+            return this.requestedAttributes == null
+                    || isRequestedAttribute(attributeName, this.requestedAttributes, this.userNameAttribute);
+        }
+    }
+
+    private static Set<String> getResultKeys(final Map.Entry<String, Set<String>> resultAttrEntry) {
+        //If dataKey has no mapped resultKeys just use the dataKey
+        final Set<String> resultKeys = resultAttrEntry.getValue();
+        return resultKeys != null ? resultKeys : ImmutableSet.of(resultAttrEntry.getKey());
+    }
+
+    /**
+     * The data attributes to fetch for the {@link RequestedAttributes} bound to the current thread: the keys of
+     * resultAttributeMapping that are mapped to a requested attribute or to the username attribute. Subclasses use
+     * this to only fetch these attributes from the backend.
+     *
+     * @return The data attribute names to fetch, null if all attributes are needed or resultAttributeMapping is not set
+     */
+    @JsonIgnore
+    protected final Set<String> getRequestedDataAttributes() {
+        final Set<String> requestedAttributes = RequestedAttributes.currentAttributeNames();
+        if (requestedAttributes == null || this.resultAttributeMapping == null) {
+            return null;
+        }
+
+        final String userNameAttribute = this.getConfiguredUserNameAttribute();
+        final Set<String> dataAttributes = new LinkedHashSet<>();
+        for (final Map.Entry<String, Set<String>> resultAttrEntry : this.resultAttributeMapping.entrySet()) {
+            final String dataKey = resultAttrEntry.getKey();
+            final Set<String> resultKeys = resultAttrEntry.getValue();
+            if (dataKey.equals(userNameAttribute) || resultKeys == null) {
+                if (isRequestedAttribute(dataKey, requestedAttributes, userNameAttribute)) {
+                    dataAttributes.add(dataKey);
+                }
+            } else {
+                for (final String resultKey : resultKeys) {
+                    if (isRequestedAttribute(resultKey != null ? resultKey : dataKey, requestedAttributes, userNameAttribute)) {
+                        dataAttributes.add(dataKey);
+                        break;
+                    }
+                }
+            }
+        }
+        return dataAttributes;
+    }
+
+    private static boolean isRequestedAttribute(final String attributeName, final Set<String> requestedAttributes, final String userNameAttribute) {
+        return requestedAttributes.contains(attributeName) || attributeName.equals(userNameAttribute);
+    }
+
     /**
      * Canonicalize the attribute values if they are present in the config map.
      * @param key attribute key
@@ -473,6 +761,12 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
      * @return if configured to do so, returns a canonicalized list of values.
      */
     protected List<Object> canonicalizeAttribute(final String key, final List<Object> value, final Map<String, CaseCanonicalizationMode> config) {
+        return canonicalizeAttribute(key, value, config, this.defaultCaseCanonicalizationMode, this.caseCanonicalizationLocale);
+    }
+
+    private static List<Object> canonicalizeAttribute(final String key, final List<Object> value, final Map<String, CaseCanonicalizationMode> config,
+                                                      final CaseCanonicalizationMode defaultCaseCanonicalizationMode,
+                                                      final Locale caseCanonicalizationLocale) {
         if (value == null || value.isEmpty() || config == null || !(config.containsKey(key))) {
             return value;
         }
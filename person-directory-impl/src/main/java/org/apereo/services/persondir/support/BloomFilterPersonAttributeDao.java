@@ -0,0 +1,418 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.BackgroundExecutor;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a Bloom filter of the usernames known to a wrapped {@link IPersonAttributeDao} and returns null without
+ * querying it for usernames that are definitely not in the filter. Meant for expensive sources that are often asked
+ * for people they don't have, such as guests that are not in the HR database.
+ * <br>
+ * The filter is built from a bulk scan of the source's usernames by an {@link IUsernameScanner} and rebuilt every
+ * <b>refreshInterval</b>, people added to the source in between are not found until the next refresh. Queries without
+ * a username, wildcard queries and all queries before the first successful scan go to the wrapped DAO.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">filteredPersonAttributeDao</td>
+ *         <td>
+ *             The {@link IPersonAttributeDao} to query for usernames that may be in the filter.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">usernameScanner</td>
+ *         <td>
+ *             Lists the usernames of the filtered source.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">falsePositiveProbability</td>
+ *         <td>
+ *             Probability that a username the source doesn't know passes the filter.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0.01</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxFilterBytes</td>
+ *         <td>
+ *             Memory budget of the filter in bytes, if the configured false positive probability needs more memory
+ *             for the number of scanned usernames the probability is raised to fit. 0 for no limit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">expectedUsernames</td>
+ *         <td>
+ *             Number of usernames the first filter is sized for, later filters are sized for the previous scan.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">10000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshInterval</td>
+ *         <td>
+ *             Milliseconds after which the filter is rebuilt, 0 to only build it on startup and on
+ *             {@link #refresh()}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshExecutor</td>
+ *         <td>
+ *             Runs the periodic rebuilds while queries keep using the old filter. If not set they run on the shared
+ *             {@link BackgroundExecutor}. A rebuild is a full username scan, twice if the source outgrew the filter.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">{@link BackgroundExecutor}</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">ignoreUsernameCase</td>
+ *         <td>
+ *             If true usernames are compared case insensitively, for sources that match them that way.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ * </table>
+ */
+public class BloomFilterPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean {
+    private IPersonAttributeDao filteredPersonAttributeDao = null;
+    private IUsernameScanner usernameScanner = null;
+    private double falsePositiveProbability = 0.01;
+    private long maxFilterBytes = 0;
+    private long expectedUsernames = 10000;
+    private long refreshInterval = 0;
+    private Executor refreshExecutor = null;
+    private boolean ignoreUsernameCase = false;
+
+    /*
+     * The filter of the last successful scan, null until the first scan completed.
+     */
+    private volatile BloomFilter<CharSequence> usernameFilter = null;
+    private volatile long scannedUsernames = 0;
+    private volatile long lastRefresh = 0;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong filteredQueries = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.filteredPersonAttributeDao == null) {
+            throw new IllegalStateException("filteredPersonAttributeDao must be set");
+        }
+        if (this.usernameScanner == null) {
+            throw new IllegalStateException("usernameScanner must be set");
+        }
+
+        this.refresh();
+    }
+
+    /**
+     * Returns null for usernames that are definitely not in the filtered source, queries the source otherwise.
+     *
+     * @see IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        if (this.filteredPersonAttributeDao == null) {
+            throw new IllegalStateException("filteredPersonAttributeDao must be set");
+        }
+
+        this.queries.incrementAndGet();
+        this.refreshIfDue();
+
+        final BloomFilter<CharSequence> filter = this.usernameFilter;
+        if (filter != null) {
+            final String username = this.getUsernameAttributeProvider().getUsernameFromQuery(query);
+            if (username != null && !username.contains(IPersonAttributeDao.WILDCARD)
+                    && !filter.mightContain(this.normalizeUsername(username))) {
+                this.filteredQueries.incrementAndGet();
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Username '" + username + "' is not known to '" + this.filteredPersonAttributeDao
+                            + "', returning null without querying it");
+                }
+                return null;
+            }
+        }
+
+        return this.filteredPersonAttributeDao.getPeopleWithMultivaluedAttributes(query);
+    }
+
+    /**
+     * Scans the usernames of the filtered source and replaces the filter. If the scan fails the previous filter is
+     * kept.
+     */
+    public void refresh() {
+        this.lastRefresh = System.currentTimeMillis();
+        try {
+            long expected = Math.max(this.expectedUsernames, this.scannedUsernames);
+            BloomFilter<CharSequence> filter = this.createFilter(expected);
+            long count = this.scanUsernames(filter);
+
+            //A filter holding more usernames than it was sized for has a higher false positive probability
+            if (count > expected) {
+                this.logger.info("Scanned " + count + " usernames from '" + this.usernameScanner + "' but the filter was sized for "
+                        + expected + ", scanning again");
+                expected = count;
+                filter = this.createFilter(expected);
+                count = this.scanUsernames(filter);
+            }
+
+            this.usernameFilter = filter;
+            this.scannedUsernames = count;
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Built username filter of " + count + " usernames from '" + this.usernameScanner
+                        + "', expected false positive probability " + filter.expectedFpp());
+            }
+        } catch (final RuntimeException e) {
+            this.logger.warn("Failed to scan usernames from '" + this.usernameScanner + "', keeping the previous username filter", e);
+        }
+    }
+
+    private void refreshIfDue() {
+        if (this.refreshInterval <= 0 || System.currentTimeMillis() - this.lastRefresh < this.refreshInterval) {
+            return;
+        }
+
+        //Only one refresh at a time, other queries keep using the current filter
+        //The scan never runs on the query thread
+        try {
+            BackgroundExecutor.executeExclusively(this.refreshing, this.refreshExecutor, this::refresh);
+        } catch (final RuntimeException e) {
+            this.logger.warn("Failed to schedule the username filter refresh", e);
+        }
+    }
+
+    private long scanUsernames(final BloomFilter<CharSequence> filter) {
+        final AtomicLong count = new AtomicLong();
+        this.usernameScanner.scanUsernames(username -> {
+            filter.put(this.normalizeUsername(username));
+            count.incrementAndGet();
+        });
+        return count.get();
+    }
+
+    private BloomFilter<CharSequence> createFilter(final long expected) {
+        final long insertions = Math.max(expected, 1);
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), insertions,
+                this.getFalsePositiveProbability(insertions));
+    }
+
+    /**
+     * @param insertions The number of usernames the filter is sized for
+     * @return The configured false positive probability, raised if a filter with it would exceed maxFilterBytes
+     */
+    double getFalsePositiveProbability(final long insertions) {
+        if (this.maxFilterBytes <= 0) {
+            return this.falsePositiveProbability;
+        }
+
+        //An optimal Bloom filter with m bits for n entries has a false positive probability of e^(-m/n * ln(2)^2)
+        final double bits = this.maxFilterBytes * 8d;
+        final double budgetProbability = Math.exp(-bits / insertions * Math.log(2) * Math.log(2));
+        if (budgetProbability <= this.falsePositiveProbability) {
+            return this.falsePositiveProbability;
+        }
+
+        this.logger.warn("Username filter for " + insertions + " usernames does not fit in " + this.maxFilterBytes
+                + " bytes with a false positive probability of " + this.falsePositiveProbability + ", using " + budgetProbability);
+        return Math.min(budgetProbability, 0.99);
+    }
+
+    private String normalizeUsername(final String username) {
+        return this.ignoreUsernameCase ? username.toLowerCase(Locale.ROOT) : username;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    @Override
+    @JsonIgnore
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.filteredPersonAttributeDao.getPossibleUserAttributeNames();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    @Override
+    @JsonIgnore
+    public Set<String> getAvailableQueryAttributes() {
+        return this.filteredPersonAttributeDao.getAvailableQueryAttributes();
+    }
+
+    public IPersonAttributeDao getFilteredPersonAttributeDao() {
+        return this.filteredPersonAttributeDao;
+    }
+
+    /**
+     * @param filteredPersonAttributeDao The DAO to query for usernames that may be in the filter
+     */
+    @Required
+    public void setFilteredPersonAttributeDao(final IPersonAttributeDao filteredPersonAttributeDao) {
+        Validate.notNull(filteredPersonAttributeDao, "filteredPersonAttributeDao cannot be null");
+        this.filteredPersonAttributeDao = filteredPersonAttributeDao;
+    }
+
+    @JsonIgnore
+    public IUsernameScanner getUsernameScanner() {
+        return this.usernameScanner;
+    }
+
+    /**
+     * @param usernameScanner Lists the usernames of the filtered source
+     */
+    @Required
+    @JsonIgnore
+    public void setUsernameScanner(final IUsernameScanner usernameScanner) {
+        Validate.notNull(usernameScanner, "usernameScanner cannot be null");
+        this.usernameScanner = usernameScanner;
+    }
+
+    public double getFalsePositiveProbability() {
+        return this.falsePositiveProbability;
+    }
+
+    /**
+     * @param falsePositiveProbability Probability that an unknown username passes the filter, between 0 and 1
+     */
+    public void setFalsePositiveProbability(final double falsePositiveProbability) {
+        Validate.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1, "falsePositiveProbability must be in (0, 1)");
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    public long getMaxFilterBytes() {
+        return this.maxFilterBytes;
+    }
+
+    /**
+     * @param maxFilterBytes Memory budget of the filter in bytes, 0 for no limit
+     */
+    public void setMaxFilterBytes(final long maxFilterBytes) {
+        Validate.isTrue(maxFilterBytes >= 0, "maxFilterBytes must not be negative");
+        this.maxFilterBytes = maxFilterBytes;
+    }
+
+    public long getExpectedUsernames() {
+        return this.expectedUsernames;
+    }
+
+    /**
+     * @param expectedUsernames Number of usernames the first filter is sized for
+     */
+    public void setExpectedUsernames(final long expectedUsernames) {
+        Validate.isTrue(expectedUsernames > 0, "expectedUsernames must be positive");
+        this.expectedUsernames = expectedUsernames;
+    }
+
+    public long getRefreshInterval() {
+        return this.refreshInterval;
+    }
+
+    /**
+     * @param refreshInterval Milliseconds after which the filter is rebuilt, 0 to never rebuild it automatically
+     */
+    public void setRefreshInterval(final long refreshInterval) {
+        Validate.isTrue(refreshInterval >= 0, "refreshInterval must not be negative");
+        this.refreshInterval = refreshInterval;
+    }
+
+    @JsonIgnore
+    public Executor getRefreshExecutor() {
+        return this.refreshExecutor;
+    }
+
+    /**
+     * @param refreshExecutor Runs the periodic rebuilds, if null they run on the shared {@link BackgroundExecutor}
+     */
+    @JsonIgnore
+    public void setRefreshExecutor(final Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public boolean isIgnoreUsernameCase() {
+        return this.ignoreUsernameCase;
+    }
+
+    /**
+     * @param ignoreUsernameCase If usernames are compared case insensitively, defaults to false
+     */
+    public void setIgnoreUsernameCase(final boolean ignoreUsernameCase) {
+        this.ignoreUsernameCase = ignoreUsernameCase;
+    }
+
+    /**
+     * @return The number of usernames in the current filter
+     */
+    @JsonIgnore
+    public long getScannedUsernames() {
+        return this.scannedUsernames;
+    }
+
+    /**
+     * @return The number of queries
+     */
+    @JsonIgnore
+    public long getQueries() {
+        return this.queries.get();
+    }
+
+    /**
+     * @return The number of queries answered with null without querying the filtered DAO
+     */
+    @JsonIgnore
+    public long getFilteredQueries() {
+        return this.filteredQueries.get();
+    }
+}
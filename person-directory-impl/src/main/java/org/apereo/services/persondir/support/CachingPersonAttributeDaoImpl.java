@@ -32,11 +32,18 @@ import org.springmodules.cache.key.CacheKeyGenerator;
 import java.io.Serializable;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A configurable caching implementation of {@link IPersonAttributeDao}
@@ -99,6 +106,24 @@ import java.util.Set;
  *         <td valign="top">No</td>
  *         <td valign="top">{@link CachingPersonAttributeDaoImpl#NULL_RESULTS_OBJECT}</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">compactCachedPeople</td>
+ *         <td>
+ *             If true the people are copied into {@link CompactPersonImpl}s before they are stored in the cache,
+ *             lowering the memory used by large caches.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">sortedValuesThreshold</td>
+ *         <td>
+ *             If compactCachedPeople is true, attributes with at least this many String values are cached as sorted,
+ *             front coded lists with a binary search membership test. 0 keeps the order of all values.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
  * </table>
  *
  *
@@ -106,9 +131,12 @@ import java.util.Set;
  * @author Eric Dalquist
  * @version $Id
  */
-public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, BeanNameAware {
+public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao
+        implements IReloadablePersonAttributeDao, InitializingBean, BeanNameAware {
     protected static final Set<IPersonAttributes> NULL_RESULTS_OBJECT;
 
+    private static final int MIN_REQUESTED_ATTRIBUTES_SWEEP_SIZE = 1024;
+
     protected Log statsLogger = LogFactory.getLog(this.getClass().getName() + ".statistics");
 
     private long queries = 0;
@@ -149,6 +177,23 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
      */
     private Set<IPersonAttributes> nullResultsObject = NULL_RESULTS_OBJECT;
 
+    /*
+     * If people are copied into CompactPersonImpls before they are cached
+     */
+    private boolean compactCachedPeople = false;
+
+    /*
+     * Number of String values from which compacted people store the values of an attribute sorted
+     */
+    private int sortedValuesThreshold = 0;
+
+    /*
+     * The keys results for requested attributes are cached under by the key of the complete results, so they are
+     * removed together. Keys that expired from the cache are swept once the index has grown past the sweep size.
+     */
+    private final ConcurrentMap<Serializable, Set<Serializable>> requestedAttributesCacheKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger requestedAttributesCacheKeysSweepSize = new AtomicInteger(MIN_REQUESTED_ATTRIBUTES_SWEEP_SIZE);
+
     private String beanName;
 
     /**
@@ -228,6 +273,38 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         this.cacheNullResults = cacheNullResults;
     }
 
+    public boolean isCompactCachedPeople() {
+        return this.compactCachedPeople;
+    }
+
+    /**
+     * If people should be copied into {@link CompactPersonImpl}s before they are cached, storing their attributes in
+     * less memory. Defaults to false.
+     *
+     * @param compactCachedPeople If cached people should be compacted
+     */
+    public void setCompactCachedPeople(final boolean compactCachedPeople) {
+        this.compactCachedPeople = compactCachedPeople;
+    }
+
+    public int getSortedValuesThreshold() {
+        return this.sortedValuesThreshold;
+    }
+
+    /**
+     * Number of String values from which the values of an attribute are stored sorted in a
+     * {@link org.apereo.services.persondir.util.FrontCodedStringList} when people are compacted, see
+     * {@link #setCompactCachedPeople(boolean)}. Large multivalued attributes like group memberships take less memory
+     * and {@link IPersonAttributes#hasAttributeValue(String, Object)} does a binary search, but their values are
+     * returned sorted. Defaults to 0, the order of all values is kept.
+     *
+     * @param sortedValuesThreshold The number of values from which values are stored sorted, 0 to disable
+     */
+    public void setSortedValuesThreshold(final int sortedValuesThreshold) {
+        Validate.isTrue(sortedValuesThreshold >= 0, "sortedValuesThreshold must be 0 or more");
+        this.sortedValuesThreshold = sortedValuesThreshold;
+    }
+
     /**
      * @return the nullResultsObject
      */
@@ -324,9 +401,14 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         //Get the cache key
         final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
         final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
+        final Serializable resultsKey = getRequestedAttributesCacheKey(cacheKey);
 
         if (cacheKey != null) {
+            //Complete results also answer a query for requested attributes
             Set<IPersonAttributes> cacheResults = this.userInfoCache.get(cacheKey);
+            if (cacheResults == null && resultsKey != cacheKey) {
+                cacheResults = this.userInfoCache.get(resultsKey);
+            }
             if (cacheResults != null) {
                 //If the returned object is the null results object, set the cache results to null
                 if (this.nullResultsObject.equals(cacheResults)) {
@@ -346,17 +428,38 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
             }
         }
 
-        final Set<IPersonAttributes> queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+        //Results cut short by a query deadline are incomplete and must not be cached, the flag is tracked around the
+        //call since an aggregating DAO with its own queryTimeout closes its deadline before returning
+        Set<IPersonAttributes> queryResults;
+        final boolean partialResults;
+        final QueryContext previousContext = QueryContext.trackPartialResults();
+        try {
+            queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+            partialResults = QueryContext.isPartialResults();
+        } finally {
+            QueryContext.bind(previousContext);
+        }
 
-        if (cacheKey != null) {
+        if (cacheKey != null && partialResults) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Not caching partial results from wrapped IPersonAttributeDao for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
+            }
+        } else if (cacheKey != null) {
             if (queryResults != null) {
-                this.userInfoCache.put(cacheKey, queryResults);
+                if (this.compactCachedPeople) {
+                    queryResults = compactPeople(queryResults, this.sortedValuesThreshold);
+                }
+                this.userInfoCache.put(resultsKey, queryResults);
             } else if (this.cacheNullResults) {
-                this.userInfoCache.put(cacheKey, this.nullResultsObject);
+                this.userInfoCache.put(resultsKey, this.nullResultsObject);
+            }
+
+            if (resultsKey != cacheKey && (queryResults != null || this.cacheNullResults)) {
+                this.trackRequestedAttributesCacheKey(cacheKey, resultsKey);
             }
 
             if (logger.isDebugEnabled()) {
-                logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
+                logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + resultsKey + "', results='" + queryResults + "'");
             }
 
             this.queries++;
@@ -369,6 +472,57 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         return queryResults;
     }
 
+    /**
+     * Results queried with {@link RequestedAttributes} bound to the thread can lack the attributes that were not
+     * requested, so they are cached under a key that includes the requested attribute names. These keys are tracked
+     * by the key of the complete results so the removeUserAttributes methods remove them as well.
+     *
+     * @param cacheKey The key generated for the query
+     * @return The key to cache the results under
+     */
+    private static Serializable getRequestedAttributesCacheKey(final Serializable cacheKey) {
+        final Set<String> requestedAttributes = RequestedAttributes.currentAttributeNames();
+        if (cacheKey == null || requestedAttributes == null) {
+            return cacheKey;
+        }
+
+        final ArrayList<Serializable> requestedAttributesKey = new ArrayList<>(2);
+        requestedAttributesKey.add(cacheKey);
+        requestedAttributesKey.add(new TreeSet<>(requestedAttributes));
+        return requestedAttributesKey;
+    }
+
+    private void trackRequestedAttributesCacheKey(final Serializable cacheKey, final Serializable resultsKey) {
+        this.requestedAttributesCacheKeys.compute(cacheKey, (key, resultsKeys) -> {
+            final Set<Serializable> keys = resultsKeys != null ? resultsKeys : new HashSet<>();
+            keys.add(resultsKey);
+            return keys;
+        });
+
+        //Keys whose entries expired from the cache are only dropped from the index here, once it has doubled in size
+        final int sweepSize = this.requestedAttributesCacheKeysSweepSize.get();
+        if (this.requestedAttributesCacheKeys.size() <= sweepSize
+                || !this.requestedAttributesCacheKeysSweepSize.compareAndSet(sweepSize, Integer.MAX_VALUE)) {
+            return;
+        }
+
+        for (final Serializable key : this.requestedAttributesCacheKeys.keySet()) {
+            this.requestedAttributesCacheKeys.computeIfPresent(key, (k, resultsKeys) -> {
+                resultsKeys.removeIf(resultsKeyToCheck -> !this.userInfoCache.containsKey(resultsKeyToCheck));
+                return resultsKeys.isEmpty() ? null : resultsKeys;
+            });
+        }
+        this.requestedAttributesCacheKeysSweepSize.set(Math.max(MIN_REQUESTED_ATTRIBUTES_SWEEP_SIZE, this.requestedAttributesCacheKeys.size() * 2));
+    }
+
+    private static Set<IPersonAttributes> compactPeople(final Set<IPersonAttributes> people, final int sortedValuesThreshold) {
+        final Set<IPersonAttributes> compactPeople = new LinkedHashSet<>(people.size() * 4 / 3 + 1);
+        for (final IPersonAttributes person : people) {
+            compactPeople.add(CompactPersonImpl.valueOf(person, sortedValuesThreshold));
+        }
+        return Collections.unmodifiableSet(compactPeople);
+    }
+
     public void removeUserAttributes(final String uid) {
         Validate.notNull(uid, "uid may not be null.");
         final Map<String, List<Object>> seed = this.toSeedMap(uid);
@@ -384,6 +538,15 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
         final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
         this.userInfoCache.remove(cacheKey);
+
+        if (cacheKey != null) {
+            final Set<Serializable> resultsKeys = this.requestedAttributesCacheKeys.remove(cacheKey);
+            if (resultsKeys != null) {
+                for (final Serializable resultsKey : resultsKeys) {
+                    this.userInfoCache.remove(resultsKey);
+                }
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -404,6 +567,17 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         return this.cachedPersonAttributesDao.getAvailableQueryAttributes();
     }
 
+    /**
+     * @return The generation of the cached DAO if it is an {@link IReloadablePersonAttributeDao}, 0 otherwise
+     */
+    @Override
+    @JsonIgnore
+    public long getGeneration() {
+        final IPersonAttributeDao cachedPersonAttributesDao = this.cachedPersonAttributesDao;
+        return cachedPersonAttributesDao instanceof IReloadablePersonAttributeDao
+                ? ((IReloadablePersonAttributeDao) cachedPersonAttributesDao).getGeneration() : 0;
+    }
+
     private static class PersonAttributeDaoMethodInvocation implements MethodInvocation {
         private final static Method getPeopleWithMultivaluedAttributesMethod;
 
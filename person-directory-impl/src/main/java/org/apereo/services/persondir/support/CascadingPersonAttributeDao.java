@@ -18,15 +18,26 @@
  */
 package org.apereo.services.persondir.support;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.support.merger.IPeopleMergeBuilder;
 import org.apereo.services.persondir.support.merger.ReplacingAttributeAdder;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 
 /**
@@ -61,6 +72,15 @@ import java.util.Set;
  * It is <u>highly</u> recommended that the first DAO on the list for this class is
  * the {@link EchoPersonAttributeDaoImpl}
  * to ensure the seed gets placed into the general result map.
+ * <br>
+ * When the previous DAOs found more than one person (e.g. a wildcard search) the query for each person is built
+ * first and identical queries are only run once per DAO. If a <code>childQueryExecutor</code> is configured the
+ * distinct queries are run concurrently on it, the results are merged in query order either way.
+ * <br>
+ * By default every attribute of the previous results is forwarded into the query for the next DAO. Setting
+ * <code>forwardAvailableQueryAttributesOnly</code> limits this to the attributes each DAO reports through
+ * {@link IPersonAttributeDao#getAvailableQueryAttributes()}, <code>queryAttributeForwarding</code> sets the list
+ * explicitly per DAO. The username is always forwarded.
  *
  * @author Eric Dalquist
 
@@ -79,6 +99,86 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
         this.stopIfFirstDaoReturnsNull = stopIfFirstDaoReturnsNull;
     }
 
+    /**
+     * Optional executor used to run the per-person queries of a cascade stage concurrently. The bound on
+     * concurrency is the bound of the executor. Default: null, queries are run on the calling thread.
+     * @since 1.8.2
+     */
+    private ExecutorService childQueryExecutor = null;
+
+    @JsonIgnore
+    public ExecutorService getChildQueryExecutor() {
+        return this.childQueryExecutor;
+    }
+
+    /**
+     * Executor to run the queries for each person found by the previous DAOs against the next DAO. Only used when a
+     * stage has more than one distinct query, e.g. after a wildcard search. Use a bounded pool to limit the number of
+     * concurrent backend queries. The executor is not shut down by this class.
+     *
+     * @param childQueryExecutor The executor, null to run child queries on the calling thread
+     */
+    @JsonIgnore
+    public void setChildQueryExecutor(final ExecutorService childQueryExecutor) {
+        this.childQueryExecutor = childQueryExecutor;
+    }
+
+    /**
+     * If true only the attributes a DAO reports from getAvailableQueryAttributes are forwarded to it.
+     * Default: false, all attributes of the previous results are forwarded.
+     * @since 1.8.2
+     */
+    private boolean forwardAvailableQueryAttributesOnly = false;
+
+    /**
+     * Explicit per DAO list of the attributes to forward, takes precedence over forwardAvailableQueryAttributesOnly.
+     * @since 1.8.2
+     */
+    private Map<IPersonAttributeDao, Set<String>> queryAttributeForwarding = Collections.emptyMap();
+
+    public boolean isForwardAvailableQueryAttributesOnly() {
+        return this.forwardAvailableQueryAttributesOnly;
+    }
+
+    /**
+     * If true the query for each child DAO after the first only contains the username and the attributes returned
+     * by the child's {@link IPersonAttributeDao#getAvailableQueryAttributes()}. Children that return null or an empty
+     * set still get all attributes. Keeping the queries minimal avoids huge multi-valued attributes ending up in SQL or
+     * LDAP filters and lets caches further down the tree reuse their keys.
+     *
+     * @param forwardAvailableQueryAttributesOnly If only the available query attributes should be forwarded, defaults to false
+     */
+    public void setForwardAvailableQueryAttributesOnly(final boolean forwardAvailableQueryAttributesOnly) {
+        this.forwardAvailableQueryAttributesOnly = forwardAvailableQueryAttributesOnly;
+    }
+
+    @JsonIgnore
+    public Map<IPersonAttributeDao, Set<String>> getQueryAttributeForwarding() {
+        return this.queryAttributeForwarding;
+    }
+
+    /**
+     * Map of child DAO to the attribute names that should be forwarded to it from the previous results, in addition
+     * to the username. DAOs without an entry follow <code>forwardAvailableQueryAttributesOnly</code>.
+     *
+     * @param queryAttributeForwarding Map of child DAO to forwarded attribute names, null to clear
+     */
+    @JsonIgnore
+    public void setQueryAttributeForwarding(final Map<IPersonAttributeDao, ? extends Collection<String>> queryAttributeForwarding) {
+        if (queryAttributeForwarding == null) {
+            this.queryAttributeForwarding = Collections.emptyMap();
+            return;
+        }
+
+        final Map<IPersonAttributeDao, Set<String>> forwarding = new IdentityHashMap<>(queryAttributeForwarding.size());
+        for (final Map.Entry<IPersonAttributeDao, ? extends Collection<String>> forwardingEntry : queryAttributeForwarding.entrySet()) {
+            final Collection<String> attributeNames = forwardingEntry.getValue();
+            Validate.notNull(attributeNames, "The forwarded attribute names for '" + forwardingEntry.getKey() + "' cannot be null");
+            forwarding.put(forwardingEntry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(attributeNames)));
+        }
+        this.queryAttributeForwarding = Collections.unmodifiableMap(forwarding);
+    }
+
     public CascadingPersonAttributeDao() {
         this.attrMerger = new ReplacingAttributeAdder();
     }
@@ -94,39 +194,204 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
      */
     @Override
     protected Set<IPersonAttributes> getAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery, final IPersonAttributeDao currentlyConsidering, final Set<IPersonAttributes> resultPeople) {
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, null);
+    }
+
+    /**
+     * Reuses the child queries if they were already built for query routing.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, IPersonAttributeDao, java.util.Set, java.util.Collection)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery,
+                                                          final IPersonAttributeDao currentlyConsidering,
+                                                          final Set<IPersonAttributes> resultPeople,
+                                                          final Collection<Map<String, List<Object>>> builtChildQueries) {
         if (isFirstQuery || (!stopIfFirstDaoReturnsNull && (resultPeople == null || resultPeople.size() == 0))) {
             return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
         } else if (stopIfFirstDaoReturnsNull && !isFirstQuery && (resultPeople == null || resultPeople.size() == 0)) {
             return null;
         }
 
-        Set<IPersonAttributes> mergedPeopleResults = null;
+        final Collection<Map<String, List<Object>>> childQueries = builtChildQueries != null
+                ? builtChildQueries : this.getChildQueries(seed, isFirstQuery, currentlyConsidering, resultPeople);
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Built " + childQueries.size() + " distinct child queries from " + resultPeople.size()
+                    + " people for '" + currentlyConsidering + "'");
+        }
+
+        final List<Set<IPersonAttributes>> childResults = this.runChildQueries(currentlyConsidering, childQueries);
+
+        final IPeopleMergeBuilder mergedPeopleResults = this.attrMerger.newPeopleMergeBuilder();
+        for (final Set<IPersonAttributes> newResults : childResults) {
+            if (newResults != null) {
+                mergedPeopleResults.add(newResults);
+            }
+        }
+
+        if (!mergedPeopleResults.hasResults()) {
+            return null;
+        }
+
+        return mergedPeopleResults.build();
+    }
+
+    /**
+     * After the first query the child DAO is queried with the username and the forwarded attributes of each person
+     * found so far, identical queries are only run once.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#getChildQueries(java.util.Map, boolean, IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected Collection<Map<String, List<Object>>> getChildQueries(final Map<String, List<Object>> seed, final boolean isFirstQuery,
+                                                                    final IPersonAttributeDao currentlyConsidering,
+                                                                    final Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || resultPeople == null || resultPeople.isEmpty()) {
+            return Collections.singleton(seed);
+        }
+
+        final Set<Map<String, List<Object>>> childQueries = new LinkedHashSet<>();
         for (final IPersonAttributes person : resultPeople) {
-            final Map<String, List<Object>> queryAttributes = new LinkedHashMap<>();
+            childQueries.add(this.buildChildQuery(currentlyConsidering, person));
+        }
+        return childQueries;
+    }
 
-            //Add the userName into the query map
-            final String userName = person.getName();
-            if (userName != null) {
-                final Map<String, List<Object>> userNameMap = this.toSeedMap(userName);
-                queryAttributes.putAll(userNameMap);
+    /**
+     * The results of a DAO feed the queries of the DAOs after it, so the attributes later DAOs query by are requested
+     * along with the missing attributes. If a later DAO doesn't report the attributes it queries by all attributes
+     * are requested.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#getChildRequestedAttributes(IPersonAttributeDao, Set, List)
+     */
+    @Override
+    protected Set<String> getChildRequestedAttributes(final IPersonAttributeDao dao, final Set<String> missingAttributes,
+                                                      final List<IPersonAttributeDao> laterDaos) {
+        final Set<String> neededAttributes = new LinkedHashSet<>(missingAttributes);
+        for (final IPersonAttributeDao laterDao : laterDaos) {
+            Set<String> queryAttributes = this.getForwardedQueryAttributes(laterDao);
+            if (queryAttributes == null) {
+                queryAttributes = laterDao.getAvailableQueryAttributes();
+            }
+            if (queryAttributes == null || queryAttributes.isEmpty()) {
+                return null;
             }
+            neededAttributes.addAll(queryAttributes);
+        }
 
-            //Add the rest of the attributes into the query map
-            final Map<String, List<Object>> personAttributes = person.getAttributes();
-            queryAttributes.putAll(personAttributes);
+        return neededAttributes;
+    }
 
-            final Set<IPersonAttributes> newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(queryAttributes);
-            if (newResults != null) {
-                if (mergedPeopleResults == null) {
-                    //If this is the first valid result set just use it.
-                    mergedPeopleResults = new LinkedHashSet<>(newResults);
-                } else {
-                    //Merge the Sets of IPersons
-                    mergedPeopleResults = this.attrMerger.mergeResults(mergedPeopleResults, newResults);
+    /**
+     * Builds the query for the next DAO from a person found by the previous DAOs. The person's userName is added using
+     * the configured username attribute followed by the person's attributes that are forwarded to the DAO, see
+     * {@link #getForwardedQueryAttributes(IPersonAttributeDao)}.
+     *
+     * @param currentlyConsidering The DAO the query will be run against
+     * @param person The person to build the query from
+     * @return The query to run against the next DAO
+     */
+    protected Map<String, List<Object>> buildChildQuery(final IPersonAttributeDao currentlyConsidering, final IPersonAttributes person) {
+        final Map<String, List<Object>> queryAttributes = new LinkedHashMap<>();
+
+        //Add the userName into the query map
+        final String userName = person.getName();
+        if (userName != null) {
+            final Map<String, List<Object>> userNameMap = this.toSeedMap(userName);
+            queryAttributes.putAll(userNameMap);
+        }
+
+        //Add the rest of the attributes into the query map
+        final Map<String, List<Object>> personAttributes = person.getAttributes();
+        final Set<String> forwardedAttributes = this.getForwardedQueryAttributes(currentlyConsidering);
+        if (forwardedAttributes == null) {
+            queryAttributes.putAll(personAttributes);
+        } else {
+            for (final String forwardedAttribute : forwardedAttributes) {
+                final List<Object> values = personAttributes.get(forwardedAttribute);
+                if (values != null) {
+                    queryAttributes.put(forwardedAttribute, values);
                 }
             }
         }
 
-        return mergedPeopleResults;
+        return queryAttributes;
+    }
+
+    /**
+     * Determines which attributes of the previous results are put into the query for the DAO. An explicit entry in
+     * queryAttributeForwarding is used first. If there is none and forwardAvailableQueryAttributesOnly is true the
+     * DAO's {@link IPersonAttributeDao#getAvailableQueryAttributes()} are used as long as they are known and not empty.
+     *
+     * @param currentlyConsidering The DAO the query will be run against
+     * @return The names of the attributes to forward, null if all attributes should be forwarded
+     */
+    protected Set<String> getForwardedQueryAttributes(final IPersonAttributeDao currentlyConsidering) {
+        final Set<String> forwardedAttributes = this.queryAttributeForwarding.get(currentlyConsidering);
+        if (forwardedAttributes != null) {
+            return forwardedAttributes;
+        }
+
+        if (this.forwardAvailableQueryAttributesOnly) {
+            //null means the DAO doesn't know and empty means it uses whatever is in the query, forward everything for both
+            final Set<String> availableQueryAttributes = currentlyConsidering.getAvailableQueryAttributes();
+            if (availableQueryAttributes != null && !availableQueryAttributes.isEmpty()) {
+                return availableQueryAttributes;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Runs each of the queries against the DAO. If a childQueryExecutor is configured and there is more than one
+     * query they are submitted to it, otherwise they are run in order on the calling thread.
+     *
+     * @param currentlyConsidering The DAO to query
+     * @param childQueries The distinct queries to run
+     * @return The results of each query in the iteration order of childQueries, entries may be null
+     */
+    private List<Set<IPersonAttributes>> runChildQueries(final IPersonAttributeDao currentlyConsidering, final Collection<Map<String, List<Object>>> childQueries) {
+        final List<Set<IPersonAttributes>> childResults = new ArrayList<>(childQueries.size());
+
+        if (this.childQueryExecutor == null || childQueries.size() < 2) {
+            for (final Map<String, List<Object>> childQuery : childQueries) {
+                childResults.add(currentlyConsidering.getPeopleWithMultivaluedAttributes(childQuery));
+            }
+
+            return childResults;
+        }
+
+        final List<Future<Set<IPersonAttributes>>> futures = new ArrayList<>(childQueries.size());
+        try {
+            for (final Map<String, List<Object>> childQuery : childQueries) {
+                final Supplier<Set<IPersonAttributes>> childTask = QueryContext.propagate(
+                        () -> currentlyConsidering.getPeopleWithMultivaluedAttributes(childQuery));
+                futures.add(this.childQueryExecutor.submit(childTask::get));
+            }
+
+            for (final Future<Set<IPersonAttributes>> future : futures) {
+                childResults.add(this.awaitChildResult(currentlyConsidering, future));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for child queries against '" + currentlyConsidering + "'", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Child query against '" + currentlyConsidering + "' failed", cause);
+        } finally {
+            for (final Future<Set<IPersonAttributes>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return childResults;
     }
 }
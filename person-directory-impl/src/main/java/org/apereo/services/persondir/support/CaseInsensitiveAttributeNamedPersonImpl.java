@@ -19,10 +19,10 @@
 package org.apereo.services.persondir.support;
 
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.CaseInsensitiveMap;
 
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * Custom IPersonAttributes that uses a case insensitive Map to hide attribute name case.  The attribute names
@@ -45,6 +45,6 @@ public class CaseInsensitiveAttributeNamedPersonImpl extends AttributeNamedPerso
 
     @Override
     protected Map<String, List<Object>> createImmutableAttributeMap(int size) {
-        return new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        return new CaseInsensitiveMap<>(size);
     }
 }
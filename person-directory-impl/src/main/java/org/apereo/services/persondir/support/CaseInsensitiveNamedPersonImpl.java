@@ -18,9 +18,10 @@
  */
 package org.apereo.services.persondir.support;
 
+import org.apereo.services.persondir.util.CaseInsensitiveMap;
+
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * Custom IPersonAttributes that uses a case insensitive Map to hide attribute name case.  The attribute names
@@ -36,9 +37,8 @@ public class CaseInsensitiveNamedPersonImpl extends NamedPersonImpl {
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.BasePersonImpl#createImmutableAttributeMap(int)
      */
-    @SuppressWarnings("unchecked")
     @Override
     protected Map<String, List<Object>> createImmutableAttributeMap(final int size) {
-        return new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        return new CaseInsensitiveMap<>(size);
     }
 }
@@ -0,0 +1,242 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the outcome of recent calls to a single attribute source and stops calls to it while it is failing.
+ * <ul>
+ *  <li>CLOSED: calls are allowed and their outcome recorded. Once at least minimumNumberOfCalls are recorded and the
+ *  failure rate or slow call rate over the last slidingWindowSize calls reaches its threshold the circuit opens.</li>
+ *  <li>OPEN: calls are rejected until waitDurationInOpenState has passed, then the circuit becomes half-open.</li>
+ *  <li>HALF_OPEN: a single probe call is allowed. If it succeeds and isn't slow the circuit closes with an empty
+ *  window, otherwise it opens again.</li>
+ * </ul>
+ * Instances are thread-safe.
+ *
+ * @see CircuitBreakerSettings
+ * @since 1.8.2
+ */
+public class CircuitBreaker {
+    /**
+     * The states of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final CircuitBreakerSettings settings;
+
+    //Ring buffer of the outcomes of the most recent calls
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int nextCall = 0;
+    private int recordedCalls = 0;
+    private int failedCallCount = 0;
+    private int slowCallCount = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private boolean probeInFlight = false;
+
+    private long rejectedCalls = 0;
+    private long suppressedRejections = 0;
+    private long lastRejectionLog = 0;
+    private boolean rejectionLogged = false;
+
+    public CircuitBreaker(final CircuitBreakerSettings settings) {
+        Validate.notNull(settings, "settings cannot be null");
+        this.settings = settings;
+        this.failedCalls = new boolean[settings.getSlidingWindowSize()];
+        this.slowCalls = new boolean[settings.getSlidingWindowSize()];
+    }
+
+    /**
+     * Checks if a call may be made. Must be followed by a call to {@link #recordCall(long, boolean)} if true is
+     * returned.
+     *
+     * @return true if the call may be made, false if the circuit is open
+     */
+    public synchronized boolean tryAcquirePermission() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (this.now() - this.openedAt >= TimeUnit.MILLISECONDS.toNanos(this.settings.getWaitDurationInOpenState())) {
+                    this.state = State.HALF_OPEN;
+                    this.probeInFlight = true;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                if (!this.probeInFlight) {
+                    this.probeInFlight = true;
+                    return true;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown state " + this.state);
+        }
+
+        this.rejectedCalls++;
+        return false;
+    }
+
+    /**
+     * Records the outcome of a call allowed by {@link #tryAcquirePermission()}.
+     *
+     * @param durationMillis How long the call took
+     * @param failed If the call threw an exception
+     */
+    public synchronized void recordCall(final long durationMillis, final boolean failed) {
+        final long slowCallDurationThreshold = this.settings.getSlowCallDurationThreshold();
+        final boolean slow = slowCallDurationThreshold > 0 && durationMillis >= slowCallDurationThreshold;
+
+        if (this.state == State.HALF_OPEN) {
+            this.probeInFlight = false;
+            if (failed || slow) {
+                this.open();
+            } else {
+                this.close();
+            }
+            return;
+        }
+
+        if (this.recordedCalls == this.failedCalls.length) {
+            //Window is full, drop the oldest outcome
+            if (this.failedCalls[this.nextCall]) {
+                this.failedCallCount--;
+            }
+            if (this.slowCalls[this.nextCall]) {
+                this.slowCallCount--;
+            }
+        } else {
+            this.recordedCalls++;
+        }
+
+        this.failedCalls[this.nextCall] = failed;
+        this.slowCalls[this.nextCall] = slow;
+        this.nextCall = (this.nextCall + 1) % this.failedCalls.length;
+        if (failed) {
+            this.failedCallCount++;
+        }
+        if (slow) {
+            this.slowCallCount++;
+        }
+
+        if (this.state == State.CLOSED && this.recordedCalls >= this.settings.getMinimumNumberOfCalls()
+                && (this.getFailureRate() >= this.settings.getFailureRateThreshold()
+                || this.getSlowCallRate() >= this.settings.getSlowCallRateThreshold())) {
+            this.open();
+        }
+    }
+
+    /**
+     * Called for a rejected call to decide if it should be logged, at most one rejection is logged per
+     * rejectionLogInterval.
+     *
+     * @return The number of rejections since the last logged one including this one, 0 if this rejection should not
+     *         be logged
+     */
+    public synchronized long shouldLogRejection() {
+        this.suppressedRejections++;
+
+        final long now = this.now();
+        if (!this.rejectionLogged || now - this.lastRejectionLog >= TimeUnit.MILLISECONDS.toNanos(this.settings.getRejectionLogInterval())) {
+            this.rejectionLogged = true;
+            this.lastRejectionLog = now;
+            final long rejections = this.suppressedRejections;
+            this.suppressedRejections = 0;
+            return rejections;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return The current state, an open circuit whose wait duration passed is reported as OPEN until a call is attempted
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return Fraction of failed calls in the window
+     */
+    public synchronized double getFailureRate() {
+        if (this.recordedCalls == 0) {
+            return 0;
+        }
+        return (double) this.failedCallCount / this.recordedCalls;
+    }
+
+    /**
+     * @return Fraction of slow calls in the window
+     */
+    public synchronized double getSlowCallRate() {
+        if (this.recordedCalls == 0) {
+            return 0;
+        }
+        return (double) this.slowCallCount / this.recordedCalls;
+    }
+
+    /**
+     * @return Total number of calls rejected because the circuit was open
+     */
+    public synchronized long getRejectedCalls() {
+        return this.rejectedCalls;
+    }
+
+    /**
+     * Closes the circuit and clears the recorded calls.
+     */
+    public synchronized void reset() {
+        this.close();
+    }
+
+    /**
+     * @return Current time in nanoseconds, overridable for testing
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.openedAt = this.now();
+    }
+
+    private void close() {
+        this.state = State.CLOSED;
+        this.probeInFlight = false;
+        this.recordedCalls = 0;
+        this.nextCall = 0;
+        this.failedCallCount = 0;
+        this.slowCallCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker[state=" + this.state + ", failureRate=" + this.getFailureRate()
+                + ", slowCallRate=" + this.getSlowCallRate() + ", rejectedCalls=" + this.rejectedCalls + "]";
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Configuration for the {@link CircuitBreaker}s an {@link AbstractAggregatingDefaultQueryPersonAttributeDao} keeps
+ * for each of its child DAOs. Each child gets its own breaker, they all share these settings.
+ *
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">failureRateThreshold</td>
+ *         <td>
+ *             Fraction of the calls in the window that have to fail (throw a {@link RuntimeException}) to open the circuit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0.5</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slowCallDurationThreshold</td>
+ *         <td>
+ *             Milliseconds after which a call is considered slow, 0 disables slow call tracking.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slowCallRateThreshold</td>
+ *         <td>
+ *             Fraction of the calls in the window that have to be slow to open the circuit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">1.0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slidingWindowSize</td>
+ *         <td>
+ *             Number of most recent calls the rates are calculated over.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">20</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">minimumNumberOfCalls</td>
+ *         <td>
+ *             Number of calls that have to be recorded before the circuit can open.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">10</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">waitDurationInOpenState</td>
+ *         <td>
+ *             Milliseconds an open circuit rejects calls before a single probe call is let through (half-open).
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">rejectionLogInterval</td>
+ *         <td>
+ *             Minimum milliseconds between log messages about calls rejected by an open circuit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ * </table>
+ *
+ * @since 1.8.2
+ */
+public class CircuitBreakerSettings {
+    private double failureRateThreshold = 0.5;
+    private long slowCallDurationThreshold = 0;
+    private double slowCallRateThreshold = 1.0;
+    private int slidingWindowSize = 20;
+    private int minimumNumberOfCalls = 10;
+    private long waitDurationInOpenState = 30000;
+    private long rejectionLogInterval = 60000;
+
+    public double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+
+    /**
+     * @param failureRateThreshold Fraction of failed calls that opens the circuit, greater than 0 and at most 1
+     */
+    public void setFailureRateThreshold(final double failureRateThreshold) {
+        Validate.isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1, "failureRateThreshold must be in (0, 1]");
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public long getSlowCallDurationThreshold() {
+        return this.slowCallDurationThreshold;
+    }
+
+    /**
+     * @param slowCallDurationThreshold Milliseconds after which a call is slow, 0 to not track slow calls
+     */
+    public void setSlowCallDurationThreshold(final long slowCallDurationThreshold) {
+        Validate.isTrue(slowCallDurationThreshold >= 0, "slowCallDurationThreshold cannot be negative");
+        this.slowCallDurationThreshold = slowCallDurationThreshold;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return this.slowCallRateThreshold;
+    }
+
+    /**
+     * @param slowCallRateThreshold Fraction of slow calls that opens the circuit, greater than 0 and at most 1
+     */
+    public void setSlowCallRateThreshold(final double slowCallRateThreshold) {
+        Validate.isTrue(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1, "slowCallRateThreshold must be in (0, 1]");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public int getSlidingWindowSize() {
+        return this.slidingWindowSize;
+    }
+
+    /**
+     * @param slidingWindowSize Number of recent calls the rates are calculated over
+     */
+    public void setSlidingWindowSize(final int slidingWindowSize) {
+        Validate.isTrue(slidingWindowSize > 0, "slidingWindowSize must be positive");
+        this.slidingWindowSize = slidingWindowSize;
+    }
+
+    public int getMinimumNumberOfCalls() {
+        return this.minimumNumberOfCalls;
+    }
+
+    /**
+     * @param minimumNumberOfCalls Number of recorded calls needed before the circuit can open
+     */
+    public void setMinimumNumberOfCalls(final int minimumNumberOfCalls) {
+        Validate.isTrue(minimumNumberOfCalls > 0, "minimumNumberOfCalls must be positive");
+        this.minimumNumberOfCalls = minimumNumberOfCalls;
+    }
+
+    public long getWaitDurationInOpenState() {
+        return this.waitDurationInOpenState;
+    }
+
+    /**
+     * @param waitDurationInOpenState Milliseconds before an open circuit lets a probe call through
+     */
+    public void setWaitDurationInOpenState(final long waitDurationInOpenState) {
+        Validate.isTrue(waitDurationInOpenState >= 0, "waitDurationInOpenState cannot be negative");
+        this.waitDurationInOpenState = waitDurationInOpenState;
+    }
+
+    public long getRejectionLogInterval() {
+        return this.rejectionLogInterval;
+    }
+
+    /**
+     * @param rejectionLogInterval Minimum milliseconds between log messages about rejected calls
+     */
+    public void setRejectionLogInterval(final long rejectionLogInterval) {
+        Validate.isTrue(rejectionLogInterval >= 0, "rejectionLogInterval cannot be negative");
+        this.rejectionLogInterval = rejectionLogInterval;
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.FrontCodedStringList;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Memory efficient {@link IPersonAttributes} for people that are kept around, for example in a cache. The attribute
+ * names are kept in a {@link PersonAttributeSchema} shared by all people with the same names and the values in a
+ * flat array indexed by the schema slot, single values are stored without a List around them. The hash code is
+ * computed once.
+ * <br>
+ * It behaves like {@link NamedPersonImpl}, or {@link CaseInsensitiveNamedPersonImpl} if created with case insensitive
+ * attribute names. {@link #getAttributes()} returns a read-only view and single valued attributes return a new
+ * singleton List from {@link #getAttributeValues(String)}.
+ * <br>
+ * If created with a sorted values threshold, attributes with at least that many String values are stored sorted in
+ * a {@link FrontCodedStringList}, taking less memory and making {@link #hasAttributeValue(String, Object)} a binary
+ * search. The values of those attributes are returned in sorted order.
+ */
+public class CompactPersonImpl implements IPersonAttributes {
+    private static final long serialVersionUID = 1L;
+
+    private static final Marker NULL_VALUES = Marker.NULL_VALUES;
+    private static final Marker NULL_VALUE = Marker.NULL_VALUE;
+
+    private final String userName;
+    private final PersonAttributeSchema schema;
+    private final Object[] values;
+    private final int hashCode;
+
+    public CompactPersonImpl(final String userName, final Map<String, List<Object>> attributes) {
+        this(userName, attributes, false);
+    }
+
+    /**
+     * @param userName The name of the person
+     * @param attributes The attributes of the person
+     * @param caseInsensitiveNames If attribute names are looked up ignoring their case
+     */
+    public CompactPersonImpl(final String userName, final Map<String, List<Object>> attributes, final boolean caseInsensitiveNames) {
+        this(userName, attributes, caseInsensitiveNames, 0);
+    }
+
+    /**
+     * @param userName The name of the person
+     * @param attributes The attributes of the person
+     * @param caseInsensitiveNames If attribute names are looked up ignoring their case
+     * @param sortedValuesThreshold Number of String values from which the values of an attribute are stored sorted,
+     *                              0 to keep the order of all values
+     */
+    public CompactPersonImpl(final String userName, final Map<String, List<Object>> attributes, final boolean caseInsensitiveNames,
+                             final int sortedValuesThreshold) {
+        Validate.notNull(attributes, "attributes can not be null");
+
+        this.userName = userName;
+        this.schema = PersonAttributeSchema.valueOf(attributes.keySet(), caseInsensitiveNames);
+        this.values = new Object[this.schema.size()];
+
+        for (final Map.Entry<String, List<Object>> attrEntry : attributes.entrySet()) {
+            this.values[this.schema.getSlot(attrEntry.getKey())] = compactValues(attrEntry.getValue(), sortedValuesThreshold);
+        }
+
+        this.hashCode = new HashCodeBuilder(1574945487, 827742191)
+                .append(userName)
+                .toHashCode();
+    }
+
+    /**
+     * @param person The person to copy
+     * @return A compact copy of the person, the person itself if it already is a CompactPersonImpl
+     */
+    public static CompactPersonImpl valueOf(final IPersonAttributes person) {
+        return valueOf(person, 0);
+    }
+
+    /**
+     * @param person The person to copy
+     * @param sortedValuesThreshold Number of String values from which the values of an attribute are stored sorted,
+     *                              0 to keep the order of all values
+     * @return A compact copy of the person, the person itself if it already is a CompactPersonImpl
+     */
+    public static CompactPersonImpl valueOf(final IPersonAttributes person, final int sortedValuesThreshold) {
+        Validate.notNull(person, "person can not be null");
+        if (person instanceof CompactPersonImpl) {
+            return (CompactPersonImpl) person;
+        }
+
+        final boolean caseInsensitiveNames = person instanceof CaseInsensitiveNamedPersonImpl
+                || person instanceof CaseInsensitiveAttributeNamedPersonImpl;
+        return new CompactPersonImpl(person.getName(), person.getAttributes(), caseInsensitiveNames, sortedValuesThreshold);
+    }
+
+    private static Object compactValues(final List<Object> values, final int sortedValuesThreshold) {
+        if (values == null) {
+            return NULL_VALUES;
+        }
+
+        if (sortedValuesThreshold > 0 && values.size() >= sortedValuesThreshold && FrontCodedStringList.isEncodable(values)) {
+            return FrontCodedStringList.valueOf(values);
+        }
+
+        if (values.size() == 1) {
+            final Object value = values.get(0);
+            if (value == null) {
+                return NULL_VALUE;
+            }
+            if (!(value instanceof ValueList) && !(value instanceof FrontCodedStringList) && !(value instanceof Marker)) {
+                return value;
+            }
+        }
+
+        return new ValueList(values.toArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> expandValues(final Object slotValue) {
+        if (slotValue == NULL_VALUES) {
+            return null;
+        }
+        if (slotValue == NULL_VALUE) {
+            return Collections.singletonList(null);
+        }
+        if (slotValue instanceof ValueList || slotValue instanceof FrontCodedStringList) {
+            return (List<Object>) slotValue;
+        }
+        return Collections.singletonList(slotValue);
+    }
+
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    @Override
+    public String getName() {
+        return this.userName;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValue(java.lang.String)
+     */
+    @Override
+    public Object getAttributeValue(final String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+
+        final Object slotValue = this.values[slot];
+        if (slotValue == NULL_VALUES || slotValue == NULL_VALUE) {
+            return null;
+        }
+        if (slotValue instanceof ValueList || slotValue instanceof FrontCodedStringList) {
+            final List<?> valueList = (List<?>) slotValue;
+            return valueList.isEmpty() ? null : valueList.get(0);
+        }
+        return slotValue;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.IPersonAttributes#hasAttributeValue(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public boolean hasAttributeValue(final String name, final Object value) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return false;
+        }
+
+        final Object slotValue = this.values[slot];
+        if (slotValue == NULL_VALUES) {
+            return false;
+        }
+        if (slotValue == NULL_VALUE) {
+            return value == null;
+        }
+        if (slotValue instanceof ValueList || slotValue instanceof FrontCodedStringList) {
+            return ((List<?>) slotValue).contains(value);
+        }
+        return slotValue.equals(value);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValues(java.lang.String)
+     */
+    @Override
+    public List<Object> getAttributeValues(final String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+
+        return expandValues(this.values[slot]);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributes()
+     */
+    @Override
+    public Map<String, List<Object>> getAttributes() {
+        return new AttributeMap();
+    }
+
+    /**
+     * @return The schema holding the attribute names of this person
+     */
+    public PersonAttributeSchema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * @see java.lang.Object#equals(Object)
+     */
+    @Override
+    public boolean equals(final Object object) {
+        if (object == this) {
+            return true;
+        }
+        if (!(object instanceof IPersonAttributes)) {
+            return false;
+        }
+        final IPersonAttributes rhs = (IPersonAttributes) object;
+        return new EqualsBuilder()
+                .append(this.getName(), rhs.getName())
+                .isEquals();
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("name", this.getName())
+                .append("attributes", this.getAttributes())
+                .toString();
+    }
+
+    /**
+     * Read-only view of the attributes, looking names up through the schema.
+     */
+    private final class AttributeMap extends AbstractMap<String, List<Object>> {
+        @Override
+        public int size() {
+            return CompactPersonImpl.this.values.length;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return CompactPersonImpl.this.schema.getSlot(key) >= 0;
+        }
+
+        @Override
+        public List<Object> get(final Object key) {
+            final int slot = CompactPersonImpl.this.schema.getSlot(key);
+            return slot < 0 ? null : expandValues(CompactPersonImpl.this.values[slot]);
+        }
+
+        @Override
+        public Set<Entry<String, List<Object>>> entrySet() {
+            return new AbstractSet<Entry<String, List<Object>>>() {
+                @Override
+                public int size() {
+                    return CompactPersonImpl.this.values.length;
+                }
+
+                @Override
+                public Iterator<Entry<String, List<Object>>> iterator() {
+                    return new Iterator<Entry<String, List<Object>>>() {
+                        private int slot = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.slot < CompactPersonImpl.this.values.length;
+                        }
+
+                        @Override
+                        public Entry<String, List<Object>> next() {
+                            if (!this.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final int current = this.slot++;
+                            return new SimpleImmutableEntry<>(CompactPersonImpl.this.schema.getAttributeName(current),
+                                    expandValues(CompactPersonImpl.this.values[current]));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Read-only List over the values of a multivalued attribute.
+     */
+    private static final class ValueList extends AbstractList<Object> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Object[] values;
+
+        private ValueList(final Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object get(final int index) {
+            return this.values[index];
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+    }
+
+    /**
+     * Stored in a slot in place of a null List of values or a single null value.
+     */
+    private enum Marker {
+        NULL_VALUES,
+        NULL_VALUE
+    }
+}
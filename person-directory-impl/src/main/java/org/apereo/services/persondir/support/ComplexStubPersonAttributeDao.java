@@ -25,8 +25,6 @@ import org.apereo.services.persondir.util.PatternHelper;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -41,6 +39,9 @@ import java.util.regex.Pattern;
  * Looks up the user's attribute Map in the backingMap. If using the {@link IPersonAttributeDao#getUserAttributes(Map)}
  * method the attribute value returned for the key {@link #getUsernameAttributeProvider()} will
  * be used as the key for the backingMap.
+ * <br>
+ * The backing map and the attribute names found in it are published together as one snapshot, so the
+ * backing map can be replaced while queries are running and each query sees either the old or the new map.
  *
  * <br>
  * <br>
@@ -68,8 +69,8 @@ import java.util.regex.Pattern;
 
  */
 public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeDao<String> {
-    private Map<String, Map<String, List<Object>>> backingMap = Collections.emptyMap();
-    private Set<String> possibleUserAttributeNames = Collections.emptySet();
+    private volatile BackingSnapshot backingSnapshot = new BackingSnapshot(
+            Collections.<String, Map<String, List<Object>>>emptyMap(), Collections.<String>emptySet());
     private String queryAttributeName = null;
 
     /**
@@ -111,22 +112,22 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
     }
 
     public Map<String, Map<String, List<Object>>> getBackingMap() {
-        return this.backingMap;
+        return this.backingSnapshot.backingMap;
     }
 
     /**
      * The backing Map to use for queries, the outer map is keyed on the query attribute. The inner
-     * Map is the set of user attributes to be returned for the query attribute.
+     * Map is the set of user attributes to be returned for the query attribute. The map is copied, changes to it
+     * after this call are not seen by queries.
      *
      * @param backingMap backing map
      */
     public void setBackingMap(final Map<String, Map<String, List<Object>>> backingMap) {
         if (backingMap == null) {
-            this.backingMap = new HashMap<>();
-            this.possibleUserAttributeNames = new HashSet<>();
+            this.backingSnapshot = new BackingSnapshot(new LinkedHashMap<>(), Collections.<String>emptySet());
         } else {
-            this.backingMap = new LinkedHashMap<>(backingMap);
-            this.initializePossibleAttributeNames();
+            final Map<String, Map<String, List<Object>>> backingMapCopy = new LinkedHashMap<>(backingMap);
+            this.backingSnapshot = new BackingSnapshot(backingMapCopy, this.getPossibleAttributeNames(backingMapCopy));
         }
     }
 
@@ -136,7 +137,7 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
     @Override
     @JsonIgnore
     public Set<String> getPossibleUserAttributeNames() {
-        return this.possibleUserAttributeNames;
+        return this.backingSnapshot.possibleUserAttributeNames;
     }
 
     /* (non-Javadoc)
@@ -145,13 +146,14 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
     @JsonIgnore
     @Override
     public Set<String> getAvailableQueryAttributes() {
+        if (this.queryAttributeName != null) {
+            return Collections.singleton(this.queryAttributeName);
+        }
+
         final IUsernameAttributeProvider usernameAttributeProvider = this.getUsernameAttributeProvider();
         final String usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
 
-        final Set list = new HashSet();
-        list.add(usernameAttribute);
-
-        return list;
+        return Collections.singleton(usernameAttribute);
     }
 
     /* (non-Javadoc)
@@ -183,12 +185,14 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
      */
     @Override
     protected List<IPersonAttributes> getPeopleForQuery(final String seedValue, final String queryUserName) {
+        final Map<String, Map<String, List<Object>>> backingMap = this.backingSnapshot.backingMap;
+
         if (seedValue != null && seedValue.contains(IPersonAttributeDao.WILDCARD)) {
             final Pattern seedPattern = PatternHelper.compilePattern(seedValue);
 
             final List<IPersonAttributes> results = new LinkedList<>();
 
-            for (final Map.Entry<String, Map<String, List<Object>>> attributesEntry : this.backingMap.entrySet()) {
+            for (final Map.Entry<String, Map<String, List<Object>>> attributesEntry : backingMap.entrySet()) {
                 final String attributesKey = attributesEntry.getKey();
                 final Matcher keyMatcher = seedPattern.matcher(attributesKey);
                 if (keyMatcher.matches()) {
@@ -207,7 +211,7 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
             return results;
         }
 
-        final Map<String, List<Object>> attributes = this.backingMap.get(seedValue);
+        final Map<String, List<Object>> attributes = backingMap.get(seedValue);
 
         if (attributes == null) {
             return null;
@@ -249,18 +253,30 @@ public class ComplexStubPersonAttributeDao extends AbstractQueryPersonAttributeD
 
     /**
      * Compute the set of attribute names that map to a value for at least one
-     * user in our backing map and store it as the instance variable 
-     * possibleUserAttributeNames.
+     * user in the backing map.
      */
-    private void initializePossibleAttributeNames() {
+    private Set<String> getPossibleAttributeNames(final Map<String, Map<String, List<Object>>> backingMap) {
         final Set<String> possibleAttribNames = new LinkedHashSet<>();
 
-        for (final Map<String, List<Object>> attributeMapForSomeUser : this.backingMap.values()) {
+        for (final Map<String, List<Object>> attributeMapForSomeUser : backingMap.values()) {
             final Set<String> keySet = attributeMapForSomeUser.keySet();
             possibleAttribNames.addAll(keySet);
         }
 
-        this.possibleUserAttributeNames = Collections.unmodifiableSet(possibleAttribNames);
+        return Collections.unmodifiableSet(possibleAttribNames);
+    }
+
+    /**
+     * Backing map and the attribute names it contains, replaced as a whole by {@link #setBackingMap(Map)}.
+     */
+    private static final class BackingSnapshot {
+        private final Map<String, Map<String, List<Object>>> backingMap;
+        private final Set<String> possibleUserAttributeNames;
+
+        private BackingSnapshot(final Map<String, Map<String, List<Object>>> backingMap, final Set<String> possibleUserAttributeNames) {
+            this.backingMap = backingMap;
+            this.possibleUserAttributeNames = possibleUserAttributeNames;
+        }
     }
 }
 
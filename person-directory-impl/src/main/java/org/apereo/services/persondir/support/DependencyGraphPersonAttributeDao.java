@@ -0,0 +1,489 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.merger.IPeopleMergeBuilder;
+import org.apereo.services.persondir.support.merger.MultivaluedAttributeMerger;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * A {@link IPersonAttributeDao} implementation which runs its child IPersonAttributeDaos according to the
+ * dependencies between them instead of strictly in order ({@link CascadingPersonAttributeDao}) or strictly
+ * independently ({@link MergingPersonAttributeDaoImpl}).
+ * <br>
+ * A child depends on an earlier child in the list if the earlier child's
+ * {@link IPersonAttributeDao#getPossibleUserAttributeNames()} contains a query attribute the later child lists in
+ * {@link IPersonAttributeDao#getAvailableQueryAttributes()} which is not already part of the seed. Only earlier
+ * children are considered so the graph can never contain a cycle. The inferred dependencies of a child can be
+ * replaced by an explicit list through the <code>dependencies</code> property.
+ * <br>
+ * Children without dependencies are queried with the seed. Each dependent child is queried as soon as all of its
+ * dependencies completed, once per person they found, with the seed plus the username and the person's attributes
+ * the child can query on. If a <code>queryExecutor</code> is configured independent children run concurrently on it
+ * so the total latency is that of the slowest chain of dependencies, otherwise children are run in order on the
+ * calling thread. The results of all children are merged in list order with the configured
+ * {@link org.apereo.services.persondir.support.merger.IAttributeMerger}, the default is
+ * {@link MultivaluedAttributeMerger}.
+ * <br>
+ * Fail-over with <b>stopOnSuccess</b> is inherently sequential, if it is set the children are queried in order with
+ * the seed like {@link MergingPersonAttributeDaoImpl} does.
+ *
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryExecutor</td>
+ *         <td>
+ *             The {@link ExecutorService} to run child queries on. The executor is not shut down by this class.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">dependencies</td>
+ *         <td>
+ *             A {@link Map} of child DAO to the child DAOs it depends on. Replaces the inferred dependencies for the
+ *             children listed. Dependencies must appear earlier in personAttributeDaos.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">empty</td>
+ *     </tr>
+ * </table>
+ *
+ * @since 1.8.2
+ */
+public class DependencyGraphPersonAttributeDao extends AbstractAggregatingDefaultQueryPersonAttributeDao {
+    private static final Executor CALLER_RUNS = Runnable::run;
+
+    private ExecutorService queryExecutor = null;
+    private Map<IPersonAttributeDao, List<IPersonAttributeDao>> dependencies = Collections.emptyMap();
+
+    public DependencyGraphPersonAttributeDao() {
+        this.attrMerger = new MultivaluedAttributeMerger();
+    }
+
+    @JsonIgnore
+    public ExecutorService getQueryExecutor() {
+        return this.queryExecutor;
+    }
+
+    /**
+     * The executor to run child queries on. Independent children and children whose dependencies are complete are
+     * submitted to it concurrently. If null all children are run in order on the calling thread.
+     *
+     * @param queryExecutor Executor for child queries, may be null
+     */
+    @JsonIgnore
+    public void setQueryExecutor(final ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    @JsonIgnore
+    public Map<IPersonAttributeDao, List<IPersonAttributeDao>> getDependencies() {
+        return this.dependencies;
+    }
+
+    /**
+     * Explicit dependencies between the child DAOs. Children listed as keys only depend on the listed DAOs, an empty
+     * list makes the child independent. Children that are not listed have their dependencies inferred.
+     *
+     * @param dependencies Map of child DAO to the child DAOs it depends on, null to clear
+     */
+    @JsonIgnore
+    public void setDependencies(final Map<IPersonAttributeDao, ? extends Collection<IPersonAttributeDao>> dependencies) {
+        if (dependencies == null) {
+            this.dependencies = Collections.emptyMap();
+            return;
+        }
+
+        final Map<IPersonAttributeDao, List<IPersonAttributeDao>> dependencyMap = new IdentityHashMap<>(dependencies.size());
+        for (final Map.Entry<IPersonAttributeDao, ? extends Collection<IPersonAttributeDao>> dependencyEntry : dependencies.entrySet()) {
+            final Collection<IPersonAttributeDao> daoDependencies = dependencyEntry.getValue();
+            Validate.notNull(daoDependencies, "The dependencies for '" + dependencyEntry.getKey() + "' cannot be null");
+            dependencyMap.put(dependencyEntry.getKey(), Collections.unmodifiableList(new ArrayList<>(daoDependencies)));
+        }
+        this.dependencies = Collections.unmodifiableMap(dependencyMap);
+    }
+
+    /**
+     * Builds the dependency graph for the query and runs each child as soon as its dependencies are complete. The
+     * results are merged in the order of personAttributeDaos.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#getPeopleFromChildDaos(java.util.Map)
+     */
+    @Override
+    protected Set<IPersonAttributes> getPeopleFromChildDaos(final Map<String, List<Object>> query) {
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+
+        if (this.stopOnSuccess) {
+            return super.getPeopleFromChildDaos(query);
+        }
+
+        final Map<IPersonAttributeDao, List<IPersonAttributeDao>> graph = this.buildDependencyGraph(query.keySet());
+        final Executor executor = this.queryExecutor != null ? this.queryExecutor : CALLER_RUNS;
+
+        //Children that other children depend on return all attributes so the dependent queries can be built
+        final Set<IPersonAttributeDao> dependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (RequestedAttributes.currentAttributeNames() != null) {
+            for (final List<IPersonAttributeDao> daoDependencies : graph.values()) {
+                dependencies.addAll(daoDependencies);
+            }
+        }
+
+        //Children are only allowed to depend on earlier children so list order is a valid topological order
+        final Map<IPersonAttributeDao, CompletableFuture<Set<IPersonAttributes>>> futures = new IdentityHashMap<>();
+        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+            final List<IPersonAttributeDao> daoDependencies = graph.get(currentlyConsidering);
+            final boolean allAttributes = dependencies.contains(currentlyConsidering);
+
+            final CompletableFuture<Set<IPersonAttributes>> future;
+            if (daoDependencies.isEmpty()) {
+                future = CompletableFuture.supplyAsync(QueryContext.propagate(
+                        () -> this.queryDao(currentlyConsidering, query, null, allAttributes)), executor);
+            } else {
+                final List<CompletableFuture<Set<IPersonAttributes>>> dependencyFutures = new ArrayList<>(daoDependencies.size());
+                for (final IPersonAttributeDao dependency : daoDependencies) {
+                    dependencyFutures.add(futures.get(dependency));
+                }
+
+                final Supplier<Set<IPersonAttributes>> dependentQuery = QueryContext.propagate(() -> {
+                    final Set<IPersonAttributes> dependencyResults = this.mergeAll(daoDependencies, dependencyFutures);
+                    return this.queryDao(currentlyConsidering, query, dependencyResults, allAttributes);
+                });
+                future = CompletableFuture.allOf(dependencyFutures.toArray(new CompletableFuture<?>[dependencyFutures.size()]))
+                        .thenApplyAsync(ignored -> dependentQuery.get(), executor);
+            }
+
+            futures.put(currentlyConsidering, future);
+        }
+
+        final List<CompletableFuture<Set<IPersonAttributes>>> orderedFutures = new ArrayList<>(this.personAttributeDaos.size());
+        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+            orderedFutures.add(futures.get(currentlyConsidering));
+        }
+
+        final Set<IPersonAttributes> resultPeople;
+        try {
+            resultPeople = this.mergeAll(this.personAttributeDaos, orderedFutures);
+        } finally {
+            for (final CompletableFuture<Set<IPersonAttributes>> future : orderedFutures) {
+                future.cancel(true);
+            }
+        }
+
+        if (resultPeople == null) {
+            return null;
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+        }
+
+        return Collections.unmodifiableSet(resultPeople);
+    }
+
+    /**
+     * Only used when stopOnSuccess is set, otherwise queries are run according to the dependency graph. Runs the
+     * seed against the DAO like {@link MergingPersonAttributeDaoImpl}.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery, final IPersonAttributeDao currentlyConsidering, final Set<IPersonAttributes> resultPeople) {
+        return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
+    }
+
+    /**
+     * Determines the dependencies of each child DAO for a query with the specified attributes.
+     *
+     * @param seedAttributes The attribute names in the query seed
+     * @return Map of each child DAO to the earlier child DAOs it depends on
+     */
+    protected Map<IPersonAttributeDao, List<IPersonAttributeDao>> buildDependencyGraph(final Set<String> seedAttributes) {
+        final Map<IPersonAttributeDao, List<IPersonAttributeDao>> graph = new IdentityHashMap<>(this.personAttributeDaos.size());
+        final Map<IPersonAttributeDao, Set<String>> producedAttributes = new IdentityHashMap<>(this.personAttributeDaos.size());
+
+        for (final IPersonAttributeDao currentDao : this.personAttributeDaos) {
+            final List<IPersonAttributeDao> explicitDependencies = this.dependencies.get(currentDao);
+            if (explicitDependencies != null) {
+                for (final IPersonAttributeDao dependency : explicitDependencies) {
+                    if (!graph.containsKey(dependency)) {
+                        throw new IllegalStateException("'" + currentDao + "' depends on '" + dependency
+                                + "' which is not listed before it in personAttributeDaos");
+                    }
+                }
+                graph.put(currentDao, explicitDependencies);
+            } else {
+                final Set<String> missingAttributes = new LinkedHashSet<>();
+                final Set<String> queryAttributes = this.getDaoQueryAttributes(currentDao);
+                if (queryAttributes != null) {
+                    missingAttributes.addAll(queryAttributes);
+                    missingAttributes.removeAll(seedAttributes);
+                }
+
+                final List<IPersonAttributeDao> inferredDependencies = new ArrayList<>();
+                if (!missingAttributes.isEmpty()) {
+                    for (final Map.Entry<IPersonAttributeDao, Set<String>> producedEntry : producedAttributes.entrySet()) {
+                        if (!Collections.disjoint(producedEntry.getValue(), missingAttributes)) {
+                            inferredDependencies.add(producedEntry.getKey());
+                        }
+                    }
+                }
+                graph.put(currentDao, inferredDependencies);
+            }
+
+            producedAttributes.put(currentDao, this.getDaoPossibleUserAttributeNames(currentDao));
+
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("'" + currentDao + "' depends on " + graph.get(currentDao));
+            }
+        }
+
+        //IdentityHashMap iteration order is undefined, use the personAttributeDaos order for inferred dependencies
+        for (final Map.Entry<IPersonAttributeDao, List<IPersonAttributeDao>> graphEntry : graph.entrySet()) {
+            final List<IPersonAttributeDao> daoDependencies = graphEntry.getValue();
+            if (daoDependencies.size() > 1 && !this.dependencies.containsKey(graphEntry.getKey())) {
+                final List<IPersonAttributeDao> ordered = new ArrayList<>(daoDependencies.size());
+                for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+                    if (daoDependencies.contains(dao)) {
+                        ordered.add(dao);
+                    }
+                }
+                graphEntry.setValue(ordered);
+            }
+        }
+
+        return graph;
+    }
+
+    /**
+     * Runs the query against the child DAO, with all attributes requested if allAttributes is true.
+     */
+    private Set<IPersonAttributes> queryDao(final IPersonAttributeDao currentlyConsidering, final Map<String, List<Object>> seed,
+                                            final Set<IPersonAttributes> dependencyResults, final boolean allAttributes) {
+        if (!allAttributes) {
+            return this.queryDao(currentlyConsidering, seed, dependencyResults);
+        }
+
+        final RequestedAttributes allAttributesScope = RequestedAttributes.clear();
+        try {
+            return this.queryDao(currentlyConsidering, seed, dependencyResults);
+        } finally {
+            allAttributesScope.close();
+        }
+    }
+
+    /**
+     * Runs the query against the child DAO, handling exceptions according to recoverExceptions.
+     *
+     * @param currentlyConsidering The child DAO to query
+     * @param seed The original query
+     * @param dependencyResults The merged results of the child's dependencies, null for independent children
+     * @return The results of the child, null if it could not run the query or failed
+     */
+    private Set<IPersonAttributes> queryDao(final IPersonAttributeDao currentlyConsidering, final Map<String, List<Object>> seed, final Set<IPersonAttributes> dependencyResults) {
+        if (!this.checkDeadline(currentlyConsidering)) {
+            return null;
+        }
+
+        if ((dependencyResults == null || dependencyResults.isEmpty())
+                && this.isRouteByQueryAttributes() && !this.canQueryDao(currentlyConsidering, seed.keySet())) {
+            return null;
+        }
+
+        final CircuitBreaker circuitBreaker = this.getCircuitBreaker(currentlyConsidering);
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            this.handleOpenCircuit(currentlyConsidering, circuitBreaker);
+            return null;
+        }
+
+        final long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            final Set<IPersonAttributes> currentPeople;
+            if (dependencyResults == null || dependencyResults.isEmpty()) {
+                currentPeople = currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
+            } else {
+                final Set<String> queryAttributes = this.getDaoQueryAttributes(currentlyConsidering);
+
+                final Set<Map<String, List<Object>>> childQueries = new LinkedHashSet<>();
+                for (final IPersonAttributes person : dependencyResults) {
+                    childQueries.add(this.buildChildQuery(seed, person, queryAttributes));
+                }
+
+                final IPeopleMergeBuilder mergedPeople = this.attrMerger.newPeopleMergeBuilder();
+                for (final Map<String, List<Object>> childQuery : childQueries) {
+                    final Set<IPersonAttributes> newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(childQuery);
+                    if (newResults != null) {
+                        mergedPeople.add(newResults);
+                    }
+                }
+                currentPeople = mergedPeople.hasResults() ? mergedPeople.build() : null;
+            }
+
+            failed = false;
+
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + seed
+                        + "', currentlyConsidering='" + currentlyConsidering + "'");
+            }
+
+            return currentPeople;
+        } catch (final RuntimeException rte) {
+            this.handleRuntimeException(currentlyConsidering, rte);
+            return null;
+        } finally {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordCall(System.currentTimeMillis() - start, failed);
+            }
+        }
+    }
+
+    private Map<String, List<Object>> buildChildQuery(final Map<String, List<Object>> seed, final IPersonAttributes person, final Set<String> queryAttributes) {
+        final Map<String, List<Object>> childQuery = new LinkedHashMap<>(seed);
+
+        final String userName = person.getName();
+        if (userName != null) {
+            childQuery.putAll(this.toSeedMap(userName));
+        }
+
+        final Map<String, List<Object>> personAttributes = person.getAttributes();
+        if (queryAttributes == null) {
+            childQuery.putAll(personAttributes);
+        } else {
+            for (final String queryAttribute : queryAttributes) {
+                final List<Object> values = personAttributes.get(queryAttribute);
+                if (values != null) {
+                    childQuery.put(queryAttribute, values);
+                }
+            }
+        }
+
+        return childQuery;
+    }
+
+    /**
+     * Merges the results of the child queries in order, waiting no longer than the query deadline allows.
+     */
+    private Set<IPersonAttributes> mergeAll(final List<IPersonAttributeDao> daos, final List<CompletableFuture<Set<IPersonAttributes>>> futures) {
+        final IPeopleMergeBuilder mergedPeople = this.attrMerger.newPeopleMergeBuilder();
+        for (int i = 0; i < futures.size(); i++) {
+            final IPersonAttributeDao currentlyConsidering = daos.get(i);
+            Set<IPersonAttributes> currentPeople;
+            try {
+                currentPeople = this.awaitChildResult(currentlyConsidering, futures.get(i));
+            } catch (final QueryTimeoutException e) {
+                this.handleRuntimeException(currentlyConsidering, e);
+                currentPeople = null;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for '" + currentlyConsidering + "'", e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Query against '" + currentlyConsidering + "' failed", cause);
+            }
+            if (currentPeople != null) {
+                mergedPeople.add(currentPeople);
+            }
+        }
+        return mergedPeople.hasResults() ? mergedPeople.build() : null;
+    }
+
+    /**
+     * @return The query attributes of the DAO, null if it doesn't know or uses all query attributes
+     */
+    private Set<String> getDaoQueryAttributes(final IPersonAttributeDao dao) {
+        if (this.isCircuitOpen(dao)) {
+            return null;
+        }
+
+        try {
+            final Set<String> queryAttributes = dao.getAvailableQueryAttributes();
+            if (queryAttributes == null || queryAttributes.isEmpty()) {
+                return null;
+            }
+            return queryAttributes;
+        } catch (final RuntimeException rte) {
+            this.handleRuntimeException(dao, rte);
+            return null;
+        }
+    }
+
+    /**
+     * @return The attributes the DAO may return, empty if it doesn't know
+     */
+    private Set<String> getDaoPossibleUserAttributeNames(final IPersonAttributeDao dao) {
+        if (this.isCircuitOpen(dao)) {
+            return Collections.emptySet();
+        }
+
+        try {
+            final Set<String> attributeNames = dao.getPossibleUserAttributeNames();
+            if (attributeNames == null) {
+                return Collections.emptySet();
+            }
+            return attributeNames;
+        } catch (final RuntimeException rte) {
+            this.handleRuntimeException(dao, rte);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * DAOs with an open circuit won't be queried so there is no point in asking them about their attributes.
+     */
+    private boolean isCircuitOpen(final IPersonAttributeDao dao) {
+        final CircuitBreaker circuitBreaker = this.getCircuitBreaker(dao);
+        return circuitBreaker != null && circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+    }
+}
@@ -22,6 +22,7 @@ import edu.internet2.middleware.grouperClient.api.GcGetGroups;
 import edu.internet2.middleware.grouperClient.ws.beans.WsGetGroupsResult;
 import edu.internet2.middleware.grouperClient.ws.beans.WsGroup;
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.FrontCodedStringList;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -44,6 +45,10 @@ import java.util.Set;
  * Note: All the Grouper server connection configuration for grouperClient is defined in
  * <i>grouper.client.properties</i> file and must be available
  * in client application's (CAS web application) classpath.
+ * <br>
+ * Users can be in thousands of groups. If <code>sortGroups</code> is set the groups are returned sorted in a
+ * {@link FrontCodedStringList}, which takes less memory and answers <code>hasAttributeValue</code> with a binary
+ * search. By default they are returned in the order Grouper lists them.
  *
  * @author Dmitriy Kopylenko
  */
@@ -51,13 +56,24 @@ public class GrouperPersonAttributeDao extends BasePersonAttributeDao {
 
     public static final String DEFAULT_GROUPER_ATTRIBUTES_KEY = "grouperGroups";
 
+    private boolean sortGroups = false;
+
+    public boolean isSortGroups() {
+        return this.sortGroups;
+    }
+
+    /**
+     * @param sortGroups If the groups are returned sorted in a compact {@link FrontCodedStringList} instead of in the
+     * order Grouper lists them, defaults to false
+     */
+    public void setSortGroups(final boolean sortGroups) {
+        this.sortGroups = sortGroups;
+    }
+
     @Override
     public IPersonAttributes getPerson(final String subjectId) {
         final GcGetGroups groupsClient = new GcGetGroups().addSubjectId(subjectId);
-        final Map<String, List<Object>> grouperGroupsAsAttributesMap = new HashMap<>(1);
         final List<Object> groupsList = new ArrayList<>();
-        grouperGroupsAsAttributesMap.put("grouperGroups", groupsList);
-        final IPersonAttributes personAttributes = new AttributeNamedPersonImpl(grouperGroupsAsAttributesMap);
 
         //Now retrieve and populate the attributes (groups from Grouper)
         for (final WsGetGroupsResult groupsResult : groupsClient.execute().getResults()) {
@@ -65,7 +81,10 @@ public class GrouperPersonAttributeDao extends BasePersonAttributeDao {
                 groupsList.add(group.getName());
             }
         }
-        return personAttributes;
+
+        final Map<String, List<Object>> grouperGroupsAsAttributesMap = new HashMap<>(1);
+        grouperGroupsAsAttributesMap.put("grouperGroups", this.sortGroups ? FrontCodedStringList.valueOf(groupsList) : groupsList);
+        return new AttributeNamedPersonImpl(grouperGroupsAsAttributesMap);
     }
 
     @Override
@@ -0,0 +1,443 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends each query to the first of several equivalent {@link IPersonAttributeDao}s, such as two LDAP servers or a
+ * primary and replica database, and if no answer arrives within the hedge delay sends the same query to the next
+ * one. The first successful response is returned and the other queries are cancelled. A replica that fails is
+ * replaced by the next one right away.
+ * <br>
+ * The hedge delay adapts to the recent response times of the replicas, it is the configured percentile of the
+ * latencies of the last successful queries. The number of hedged queries is capped to a fraction of all queries so
+ * hedging never adds more than that fraction of load to the replicas.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">personAttributeDaos</td>
+ *         <td>
+ *             The equivalent {@link IPersonAttributeDao}s to query, in order of preference. The first one is the
+ *             primary and also answers the attribute name queries.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">hedgeExecutor</td>
+ *         <td>
+ *             Runs the queries against the replicas. If not set no hedging is done and the replicas are only used
+ *             in order when the previous one fails.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">hedgeDelayPercentile</td>
+ *         <td>
+ *             Percentile of the recent query latencies to wait before sending a hedged query.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0.95</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">initialHedgeDelay</td>
+ *         <td>
+ *             Hedge delay in milliseconds until enough latencies have been recorded.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">50</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">minHedgeDelay</td>
+ *         <td>
+ *             Lower bound of the adaptive hedge delay in milliseconds.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">5</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">latencyWindowSize</td>
+ *         <td>
+ *             Number of recent query latencies the hedge delay is calculated from.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">100</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxHedgeRatio</td>
+ *         <td>
+ *             Maximum number of hedged queries as a fraction of all queries.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0.1</td>
+ *     </tr>
+ * </table>
+ */
+public class HedgingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+    /**
+     * Number of recorded latencies needed before the hedge delay adapts.
+     */
+    private static final int MIN_LATENCY_SAMPLES = 10;
+
+    private List<IPersonAttributeDao> personAttributeDaos = null;
+    private ExecutorService hedgeExecutor = null;
+    private double hedgeDelayPercentile = 0.95;
+    private long initialHedgeDelay = 50;
+    private long minHedgeDelay = 5;
+    private double maxHedgeRatio = 0.1;
+
+    private final Object latencyLock = new Object();
+    private long[] latencies = new long[100];
+    private int latencyCount = 0;
+    private int latencyIndex = 0;
+
+    private final Object hedgeBudgetLock = new Object();
+    private double hedgeBudget = 1.0;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hedgedQueries = new AtomicLong();
+
+    /**
+     * Queries the primary and hedges to the next replica if it doesn't answer within the hedge delay.
+     *
+     * @see IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+
+        final List<IPersonAttributeDao> daos = this.personAttributeDaos;
+        if (daos == null || daos.isEmpty()) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+
+        this.queries.incrementAndGet();
+        this.addHedgeBudget();
+
+        if (this.hedgeExecutor == null || daos.size() == 1) {
+            return this.queryInOrder(daos, query);
+        }
+
+        return this.queryHedged(daos, query);
+    }
+
+    /**
+     * Queries the replicas one after the other, moving on only if a replica fails.
+     */
+    private Set<IPersonAttributes> queryInOrder(final List<IPersonAttributeDao> daos, final Map<String, List<Object>> query) {
+        RuntimeException lastFailure = null;
+        for (final IPersonAttributeDao dao : daos) {
+            try {
+                return this.queryReplica(dao, query);
+            } catch (final RuntimeException e) {
+                this.logger.warn("Query against replica '" + dao + "' failed, trying the next replica", e);
+                lastFailure = e;
+            }
+        }
+        throw lastFailure;
+    }
+
+    private Set<IPersonAttributes> queryHedged(final List<IPersonAttributeDao> daos, final Map<String, List<Object>> query) {
+        final CompletionService<Set<IPersonAttributes>> completionService = new ExecutorCompletionService<>(this.hedgeExecutor);
+        final List<Future<Set<IPersonAttributes>>> futures = new ArrayList<>(daos.size());
+        final QueryDeadline deadline = QueryDeadline.current();
+        final long hedgeDelay = this.getHedgeDelay();
+
+        RuntimeException lastFailure = null;
+        int failures = 0;
+        try {
+            futures.add(this.submit(completionService, daos.get(0), query));
+
+            while (true) {
+                final boolean replicasLeft = futures.size() < daos.size();
+
+                long waitMillis = replicasLeft ? hedgeDelay : Long.MAX_VALUE;
+                if (deadline != null) {
+                    waitMillis = Math.min(waitMillis, deadline.getRemainingMillis());
+                }
+
+                final Future<Set<IPersonAttributes>> completed = completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (completed == null) {
+                    if (deadline != null && deadline.isExpired()) {
+                        deadline.markPartialResults();
+                        throw new QueryTimeoutException("Query deadline passed while waiting for replicas " + daos);
+                    }
+
+                    if (replicasLeft && this.tryAcquireHedge()) {
+                        final IPersonAttributeDao hedgeDao = daos.get(futures.size());
+                        this.hedgedQueries.incrementAndGet();
+                        if (this.logger.isDebugEnabled()) {
+                            this.logger.debug("No answer after " + hedgeDelay + "ms, hedging query to '" + hedgeDao + "'");
+                        }
+                        futures.add(this.submit(completionService, hedgeDao, query));
+                    }
+                    continue;
+                }
+
+                try {
+                    return completed.get();
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    lastFailure = cause instanceof RuntimeException ? (RuntimeException) cause
+                            : new IllegalStateException("Query against replica failed", cause);
+                    this.logger.warn("Query against a replica failed", cause);
+
+                    //Replace the failed query with the next replica right away
+                    failures++;
+                    if (futures.size() < daos.size()) {
+                        futures.add(this.submit(completionService, daos.get(futures.size()), query));
+                    } else if (failures == futures.size()) {
+                        throw lastFailure;
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for replicas " + daos, e);
+        } finally {
+            for (final Future<Set<IPersonAttributes>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Future<Set<IPersonAttributes>> submit(final CompletionService<Set<IPersonAttributes>> completionService,
+                                                  final IPersonAttributeDao dao, final Map<String, List<Object>> query) {
+        final Supplier<Set<IPersonAttributes>> replicaQuery = QueryContext.propagate(() -> this.queryReplica(dao, query));
+        return completionService.submit(replicaQuery::get);
+    }
+
+    private Set<IPersonAttributes> queryReplica(final IPersonAttributeDao dao, final Map<String, List<Object>> query) {
+        final long start = System.nanoTime();
+        final Set<IPersonAttributes> result = dao.getPeopleWithMultivaluedAttributes(query);
+        this.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    private void recordLatency(final long latencyMillis) {
+        synchronized (this.latencyLock) {
+            this.latencies[this.latencyIndex] = latencyMillis;
+            this.latencyIndex = (this.latencyIndex + 1) % this.latencies.length;
+            if (this.latencyCount < this.latencies.length) {
+                this.latencyCount++;
+            }
+        }
+    }
+
+    /**
+     * @return The current hedge delay in milliseconds
+     */
+    @JsonIgnore
+    public long getHedgeDelay() {
+        final long[] sortedLatencies;
+        synchronized (this.latencyLock) {
+            if (this.latencyCount < MIN_LATENCY_SAMPLES) {
+                return this.initialHedgeDelay;
+            }
+            sortedLatencies = Arrays.copyOf(this.latencies, this.latencyCount);
+        }
+
+        Arrays.sort(sortedLatencies);
+        final int index = Math.max(0, (int) Math.ceil(this.hedgeDelayPercentile * sortedLatencies.length) - 1);
+        return Math.max(this.minHedgeDelay, sortedLatencies[index]);
+    }
+
+    private void addHedgeBudget() {
+        synchronized (this.hedgeBudgetLock) {
+            this.hedgeBudget = Math.min(1.0, this.hedgeBudget + this.maxHedgeRatio);
+        }
+    }
+
+    private boolean tryAcquireHedge() {
+        synchronized (this.hedgeBudgetLock) {
+            if (this.hedgeBudget < 1.0) {
+                return false;
+            }
+            this.hedgeBudget -= 1.0;
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of queries run
+     */
+    @JsonIgnore
+    public long getQueries() {
+        return this.queries.get();
+    }
+
+    /**
+     * @return The number of hedged queries sent to replicas because the previous replica was slow
+     */
+    @JsonIgnore
+    public long getHedgedQueries() {
+        return this.hedgedQueries.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    @Override
+    @JsonIgnore
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.getPrimary().getPossibleUserAttributeNames();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    @Override
+    @JsonIgnore
+    public Set<String> getAvailableQueryAttributes() {
+        return this.getPrimary().getAvailableQueryAttributes();
+    }
+
+    private IPersonAttributeDao getPrimary() {
+        if (this.personAttributeDaos == null || this.personAttributeDaos.isEmpty()) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        return this.personAttributeDaos.get(0);
+    }
+
+    public List<IPersonAttributeDao> getPersonAttributeDaos() {
+        return this.personAttributeDaos;
+    }
+
+    /**
+     * @param personAttributeDaos The equivalent DAOs to query, the first one is the primary
+     */
+    @Required
+    public void setPersonAttributeDaos(final List<IPersonAttributeDao> personAttributeDaos) {
+        Validate.notEmpty(personAttributeDaos, "personAttributeDaos cannot be empty");
+        this.personAttributeDaos = Collections.unmodifiableList(new ArrayList<>(personAttributeDaos));
+    }
+
+    @JsonIgnore
+    public ExecutorService getHedgeExecutor() {
+        return this.hedgeExecutor;
+    }
+
+    /**
+     * @param hedgeExecutor Runs the replica queries, if null replicas are only tried in order when one fails
+     */
+    @JsonIgnore
+    public void setHedgeExecutor(final ExecutorService hedgeExecutor) {
+        this.hedgeExecutor = hedgeExecutor;
+    }
+
+    public double getHedgeDelayPercentile() {
+        return this.hedgeDelayPercentile;
+    }
+
+    /**
+     * @param hedgeDelayPercentile Percentile of recent latencies used as the hedge delay, between 0 and 1
+     */
+    public void setHedgeDelayPercentile(final double hedgeDelayPercentile) {
+        Validate.isTrue(hedgeDelayPercentile > 0 && hedgeDelayPercentile <= 1, "hedgeDelayPercentile must be in (0, 1]");
+        this.hedgeDelayPercentile = hedgeDelayPercentile;
+    }
+
+    public long getInitialHedgeDelay() {
+        return this.initialHedgeDelay;
+    }
+
+    /**
+     * @param initialHedgeDelay Hedge delay in milliseconds until enough latencies have been recorded
+     */
+    public void setInitialHedgeDelay(final long initialHedgeDelay) {
+        Validate.isTrue(initialHedgeDelay >= 0, "initialHedgeDelay must not be negative");
+        this.initialHedgeDelay = initialHedgeDelay;
+    }
+
+    public long getMinHedgeDelay() {
+        return this.minHedgeDelay;
+    }
+
+    /**
+     * @param minHedgeDelay Lower bound of the adaptive hedge delay in milliseconds
+     */
+    public void setMinHedgeDelay(final long minHedgeDelay) {
+        Validate.isTrue(minHedgeDelay >= 0, "minHedgeDelay must not be negative");
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    public int getLatencyWindowSize() {
+        synchronized (this.latencyLock) {
+            return this.latencies.length;
+        }
+    }
+
+    /**
+     * @param latencyWindowSize Number of recent latencies the hedge delay is calculated from, resets the recorded
+     *                          latencies
+     */
+    public void setLatencyWindowSize(final int latencyWindowSize) {
+        Validate.isTrue(latencyWindowSize >= MIN_LATENCY_SAMPLES, "latencyWindowSize must be at least " + MIN_LATENCY_SAMPLES);
+        synchronized (this.latencyLock) {
+            this.latencies = new long[latencyWindowSize];
+            this.latencyCount = 0;
+            this.latencyIndex = 0;
+        }
+    }
+
+    public double getMaxHedgeRatio() {
+        return this.maxHedgeRatio;
+    }
+
+    /**
+     * @param maxHedgeRatio Maximum number of hedged queries as a fraction of all queries, 0 disables hedging
+     */
+    public void setMaxHedgeRatio(final double maxHedgeRatio) {
+        Validate.isTrue(maxHedgeRatio >= 0 && maxHedgeRatio <= 1, "maxHedgeRatio must be in [0, 1]");
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+}
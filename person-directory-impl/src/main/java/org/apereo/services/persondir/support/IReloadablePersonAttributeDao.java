@@ -0,0 +1,33 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+/**
+ * Implemented by person attribute DAOs that reload their people at runtime, for example when the file they are read
+ * from changes. The attribute names of the DAO may change with each reload, DAOs that cache the attribute names of
+ * other DAOs like {@link AbstractAggregatingDefaultQueryPersonAttributeDao} read them again when the generation changes.
+ */
+public interface IReloadablePersonAttributeDao {
+    /**
+     * Checks for changes the same way a query would, so a changed source is reloaded before the generation is read.
+     *
+     * @return A number that grows each time the people were reloaded
+     */
+    public long getGeneration();
+}
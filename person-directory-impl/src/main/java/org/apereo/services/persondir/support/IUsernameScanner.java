@@ -0,0 +1,35 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import java.util.function.Consumer;
+
+/**
+ * Lists every username a person attribute source knows, used by {@link BloomFilterPersonAttributeDao} to build its
+ * membership filter.
+ */
+public interface IUsernameScanner {
+    /**
+     * Passes each username of the source to the consumer. Implementations should stream the usernames instead of
+     * collecting them first as sources can hold millions of people.
+     *
+     * @param usernames Receives the usernames
+     */
+    public void scanUsernames(Consumer<String> usernames);
+}
@@ -18,13 +18,27 @@
  */
 package org.apereo.services.persondir.support;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.BackgroundExecutor;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.core.io.Resource;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A convenient wrapper around <code>ComplexStubPersonAttributeDao</code> that reads the configuration for its <i>backingMap</i>
@@ -53,10 +67,16 @@ import java.util.Map;
  }
  * </code></pre>
  *
+ * <p>The file is read with a streaming parser straight into the backing map, a single attribute value that is not
+ * in an array is treated as a list of one value. Queries check the last modified time of the resource and a query
+ * that finds the file changed starts a reload on the {@link #setReloadExecutor(Executor)}, the shared
+ * {@link BackgroundExecutor} by default. Queries keep using the previous backing map until the new one is published. A file that fails to reload is logged and
+ * skipped until it changes again.
+ *
  * @author Dmitriy Kopylenko
  * @author Misagh Moayyed
  */
-public class JsonBackedComplexStubPersonAttributeDao extends ComplexStubPersonAttributeDao {
+public class JsonBackedComplexStubPersonAttributeDao extends ComplexStubPersonAttributeDao implements IReloadablePersonAttributeDao {
 
     /**
      * A configuration file containing JSON representation of the stub person attributes. REQUIRED.
@@ -67,10 +87,34 @@ public class JsonBackedComplexStubPersonAttributeDao extends ComplexStubPersonAt
 
     private final Object synchronizationMonitor = new Object();
 
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    private Executor reloadExecutor;
+
+    private volatile long lastModifiedTime = Long.MIN_VALUE;
+
+    //Number of loads, the attribute names may change with each one
+    private final AtomicLong generation = new AtomicLong();
+
     public JsonBackedComplexStubPersonAttributeDao(final Resource personAttributesConfigFile) {
         this.personAttributesConfigFile = personAttributesConfigFile;
     }
 
+    @JsonIgnore
+    public Executor getReloadExecutor() {
+        return this.reloadExecutor;
+    }
+
+    /**
+     * Executor to reload a changed JSON file on, queries keep using the previous backing map until the reload is
+     * done. Use {@code Runnable::run} to have the query that finds the file changed reload it.
+     *
+     * @param reloadExecutor Runs the reloads, if null they run on the shared {@link BackgroundExecutor}
+     */
+    public void setReloadExecutor(final Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+    }
+
     /**
      * Init method un-marshals JSON representation of the person attributes.
      *
@@ -82,21 +126,170 @@ public class JsonBackedComplexStubPersonAttributeDao extends ComplexStubPersonAt
          */
         try {
             unmarshalAndSetBackingMap();
-        } catch (final ClassCastException ex) {
+        } catch (final JsonParseException ex) {
             throw new BeanCreationException(String.format("The semantic structure of the person attributes"
-                    + "JSON config is not correct. Please fix it in this resource: [%s]", this.personAttributesConfigFile.getURI()));
+                    + "JSON config is not correct. Please fix it in this resource: [%s]", this.personAttributesConfigFile.getURI()), ex);
+        }
+    }
+
+    /**
+     * @return The number of times the JSON file was loaded, starting a reload first if it changed
+     */
+    @Override
+    @JsonIgnore
+    public long getGeneration() {
+        this.reloadIfModified();
+        return this.generation.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.support.ComplexStubPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    @Override
+    @JsonIgnore
+    public Set<String> getPossibleUserAttributeNames() {
+        this.reloadIfModified();
+        return super.getPossibleUserAttributeNames();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.support.ComplexStubPersonAttributeDao#getPeopleForQuery(java.lang.String, java.lang.String)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(final String seedValue, final String queryUserName) {
+        this.reloadIfModified();
+        return super.getPeopleForQuery(seedValue, queryUserName);
+    }
+
+    /**
+     * Starts a reload if the JSON file changed since it was last read and no reload is running.
+     */
+    private void reloadIfModified() {
+        final Long lastModified = this.getLastModified();
+        if (lastModified == null || lastModified <= this.lastModifiedTime) {
+            return;
+        }
+
+        //Only one reload at a time, other queries keep using the current backing map
+        try {
+            BackgroundExecutor.executeExclusively(this.reloading, this.reloadExecutor, () -> {
+                try {
+                    unmarshalAndSetBackingMap();
+                } catch (final IOException | RuntimeException e) {
+                    logger.warn("Failed to reload person attributes from " + this.personAttributesConfigFile
+                            + ", keeping the previously loaded attributes", e);
+                }
+            });
+        } catch (final RuntimeException e) {
+            logger.warn("Failed to schedule the reload of " + this.personAttributesConfigFile, e);
         }
     }
 
-    @SuppressWarnings("unchecked")
     private void unmarshalAndSetBackingMap() throws IOException {
-        logger.info("Un-marshaling person attributes from the config file " + this.personAttributesConfigFile.getFile());
-        final Map<String, Map<String, List<Object>>> backingMap = this.jacksonObjectMapper.readValue(
-                this.personAttributesConfigFile.getFile(), Map.class);
-        logger.debug("Person attributes have been successfully read into the map ");
         synchronized (this.synchronizationMonitor) {
+            //Set before reading so a file that fails to parse is only retried once it changes again
+            final Long lastModified = this.getLastModified();
+            this.lastModifiedTime = lastModified != null ? lastModified : Long.MAX_VALUE;
+
+            logger.info("Un-marshaling person attributes from the config file " + this.personAttributesConfigFile);
+            final Map<String, Map<String, List<Object>>> backingMap;
+            try (final InputStream jsonStream = this.personAttributesConfigFile.getInputStream();
+                 final JsonParser parser = this.jacksonObjectMapper.getFactory().createParser(jsonStream)) {
+                backingMap = this.readBackingMap(parser, this.getBackingMap().size());
+            }
+            logger.debug("Person attributes have been successfully read into the map ");
+
             super.setBackingMap(backingMap);
+            //Counted after the backing map is published, names read at the new generation are the new ones
+            this.generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The last modified date of the JSON file, null if it cannot be determined
+     */
+    private Long getLastModified() {
+        try {
+            return this.personAttributesConfigFile.lastModified();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param expectedSize The number of people in the previous load, used to size the map
+     */
+    private Map<String, Map<String, List<Object>>> readBackingMap(final JsonParser parser, final int expectedSize) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an object of people keyed by their query attribute");
+        }
+
+        final Map<String, Map<String, List<Object>>> backingMap = new LinkedHashMap<>(expectedSize * 4 / 3 + 1);
+        JsonToken personToken;
+        while ((personToken = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            final String key = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected an object of attributes for " + key);
+            }
+
+            final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+            JsonToken attributeToken;
+            while ((attributeToken = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                final String attributeName = parser.getCurrentName();
+                attributes.put(attributeName, this.readValues(parser, parser.nextToken()));
+            }
+            this.checkEndObject(parser, attributeToken);
+            backingMap.put(key, attributes);
         }
+        this.checkEndObject(parser, personToken);
+        return backingMap;
     }
 
+    private void checkEndObject(final JsonParser parser, final JsonToken token) throws JsonParseException {
+        if (token != JsonToken.END_OBJECT) {
+            throw new JsonParseException(parser, "Unexpected " + token + ", expected the end of an object");
+        }
+    }
+
+    private List<Object> readValues(final JsonParser parser, final JsonToken token) throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an array of values for " + parser.getCurrentName());
+        }
+        if (token != JsonToken.START_ARRAY) {
+            return new ArrayList<>(Collections.singletonList(this.readValue(parser, token)));
+        }
+
+        final List<Object> values = new ArrayList<>();
+        for (JsonToken valueToken = parser.nextToken(); valueToken != JsonToken.END_ARRAY; valueToken = parser.nextToken()) {
+            values.add(this.readValue(parser, valueToken));
+        }
+        return values;
+    }
+
+    /**
+     * Reads scalars as the types the untyped {@link ObjectMapper} binding produces, nested structures are bound by
+     * the mapper.
+     */
+    private Object readValue(final JsonParser parser, final JsonToken token) throws IOException {
+        if (token == null) {
+            throw new JsonParseException(parser, "Unexpected end of the person attributes");
+        }
+
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return this.jacksonObjectMapper.readValue(parser, Object.class);
+        }
+    }
 }
@@ -0,0 +1,353 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.CaseInsensitiveMap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link IPersonAttributes} that wraps the attributes read from the backend and only maps and canonicalizes an
+ * attribute when it is first read, returned by {@link AbstractQueryPersonAttributeDao}s with <b>lazyPersonAttributes</b>
+ * set. Callers that only read a few attributes or just the name skip the work for the others.
+ * <br>
+ * The attributes read from the backend are used as they are, neither they nor their values are copied. The attribute
+ * mapper holds a snapshot of the mapping configuration of the DAO, not the DAO itself.
+ * <br>
+ * The mapped values are remembered once read, names the person doesn't have return null without being mapped or
+ * remembered. {@link #getAttributes()} returns a read-only view that maps the attributes as they are read. People are
+ * serialized as a {@link NamedPersonImpl} with all attributes mapped.
+ */
+public final class LazyMappedPersonImpl implements IPersonAttributes {
+    private static final long serialVersionUID = 1L;
+
+    private final String sourceName;
+    private final String sourceUserNameAttribute;
+    private final Map<String, List<Object>> sourceAttributes;
+    private final AttributeMapper attributeMapper;
+
+    private volatile Set<String> attributeNames;
+    private volatile String name;
+    private volatile boolean nameMapped;
+    private final ConcurrentMap<String, List<Object>> mappedValues = new ConcurrentHashMap<>();
+
+    /**
+     * Maps the attributes read from the backend.
+     */
+    interface AttributeMapper {
+        /**
+         * @param sourceAttributes The attributes read from the backend
+         * @return The names of the mapped attributes in order
+         */
+        Set<String> getAttributeNames(Map<String, List<Object>> sourceAttributes);
+
+        /**
+         * @param sourceAttributes The attributes read from the backend
+         * @param name The name of the mapped attribute
+         * @return The mapped and canonicalized values of the attribute, null if there are none
+         */
+        List<Object> getAttributeValues(Map<String, List<Object>> sourceAttributes, String name);
+
+        /**
+         * @param sourceName The name of the person read from the backend, may be null
+         * @param mappedPerson The mapped person, to read the username attribute from
+         * @return The mapped name of the person
+         */
+        String getName(String sourceName, IPersonAttributes mappedPerson);
+    }
+
+    /**
+     * @param sourceName The name of the person read from the backend, may be null
+     * @param sourceUserNameAttribute The attribute read from the backend to take the name from if sourceName is null, may be null
+     * @param sourceAttributes The attributes read from the backend, used as they are
+     * @param caseInsensitive If attribute names are looked up in sourceAttributes ignoring case
+     * @param attributeMapper Maps the attributes read from the backend
+     */
+    LazyMappedPersonImpl(final String sourceName, final String sourceUserNameAttribute, final Map<String, List<Object>> sourceAttributes,
+                         final boolean caseInsensitive, final AttributeMapper attributeMapper) {
+        Validate.notNull(sourceAttributes, "sourceAttributes can not be null");
+        Validate.notNull(attributeMapper, "attributeMapper can not be null");
+
+        this.sourceName = sourceName;
+        this.sourceUserNameAttribute = sourceUserNameAttribute;
+        this.sourceAttributes = caseInsensitive ? new CaseInsensitiveSourceAttributes(sourceAttributes) : sourceAttributes;
+        this.attributeMapper = attributeMapper;
+    }
+
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    @Override
+    public String getName() {
+        if (!this.nameMapped) {
+            this.name = this.attributeMapper.getName(this.getSourceName(), this);
+            this.nameMapped = true;
+        }
+        return this.name;
+    }
+
+    /**
+     * The name read from the backend, the first value of the source username attribute if there is none, the same as
+     * {@link AttributeNamedPersonImpl} would.
+     */
+    private String getSourceName() {
+        if (this.sourceName != null || this.sourceUserNameAttribute == null) {
+            return this.sourceName;
+        }
+
+        final List<Object> values = this.sourceAttributes.get(this.sourceUserNameAttribute);
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return null;
+        }
+        return values.get(0).toString();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValue(java.lang.String)
+     */
+    @Override
+    public Object getAttributeValue(final String name) {
+        final List<Object> values = this.getAttributeValues(name);
+        if (values == null || values.size() == 0) {
+            return null;
+        }
+
+        return values.get(0);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValues(java.lang.String)
+     */
+    @Override
+    public List<Object> getAttributeValues(final String name) {
+        //Only attributes of the person are remembered, looking up other names doesn't grow the map
+        if (name == null || !this.getAttributeNames().contains(name)) {
+            return null;
+        }
+
+        final List<Object> values = this.mappedValues.get(name);
+        if (values != null) {
+            return values;
+        }
+
+        final List<Object> mappedValues = this.attributeMapper.getAttributeValues(this.sourceAttributes, name);
+        if (mappedValues == null) {
+            return null;
+        }
+        final List<Object> unmodifiableValues = Collections.unmodifiableList(mappedValues);
+        final List<Object> previousValues = this.mappedValues.putIfAbsent(name, unmodifiableValues);
+        return previousValues != null ? previousValues : unmodifiableValues;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributes()
+     */
+    @Override
+    public Map<String, List<Object>> getAttributes() {
+        return new AttributeMap();
+    }
+
+    private Set<String> getAttributeNames() {
+        Set<String> attributeNames = this.attributeNames;
+        if (attributeNames == null) {
+            attributeNames = Collections.unmodifiableSet(this.attributeMapper.getAttributeNames(this.sourceAttributes));
+            this.attributeNames = attributeNames;
+        }
+        return attributeNames;
+    }
+
+    /**
+     * @see java.lang.Object#equals(Object)
+     */
+    @Override
+    public boolean equals(final Object object) {
+        if (object == this) {
+            return true;
+        }
+        if (!(object instanceof IPersonAttributes)) {
+            return false;
+        }
+        final IPersonAttributes rhs = (IPersonAttributes) object;
+        return new EqualsBuilder()
+                .append(this.getName(), rhs.getName())
+                .isEquals();
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(1574945487, 827742191)
+                .append(this.getName())
+                .toHashCode();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("name", this.getName())
+                .append("attributes", this.getAttributes())
+                .toString();
+    }
+
+    /**
+     * Serializes the person with all attributes mapped, the attribute mapper belongs to the DAO.
+     */
+    private Object writeReplace() {
+        return new NamedPersonImpl(this.getName(), new LinkedHashMap<>(this.getAttributes()));
+    }
+
+    /**
+     * Looks up the attributes read from the backend ignoring the case of the name. Names are first looked up as they
+     * are, the case insensitive copy of the map is only built if that misses.
+     */
+    private static final class CaseInsensitiveSourceAttributes extends AbstractMap<String, List<Object>> {
+        private final Map<String, List<Object>> attributes;
+        private volatile Map<String, List<Object>> caseInsensitiveAttributes;
+
+        private CaseInsensitiveSourceAttributes(final Map<String, List<Object>> attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        public int size() {
+            return this.attributes.size();
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return this.attributes.containsKey(key) || (key instanceof String && this.getCaseInsensitiveAttributes().containsKey(key));
+        }
+
+        @Override
+        public List<Object> get(final Object key) {
+            final List<Object> values = this.attributes.get(key);
+            if (values != null || !(key instanceof String)) {
+                return values;
+            }
+            return this.getCaseInsensitiveAttributes().get(key);
+        }
+
+        @Override
+        public Set<String> keySet() {
+            //The names of unmapped attributes, contains looks them up ignoring case as well
+            return new AbstractSet<String>() {
+                @Override
+                public int size() {
+                    return CaseInsensitiveSourceAttributes.this.size();
+                }
+
+                @Override
+                public boolean contains(final Object o) {
+                    return CaseInsensitiveSourceAttributes.this.containsKey(o);
+                }
+
+                @Override
+                public Iterator<String> iterator() {
+                    return Collections.unmodifiableSet(CaseInsensitiveSourceAttributes.this.attributes.keySet()).iterator();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, List<Object>>> entrySet() {
+            return this.attributes.entrySet();
+        }
+
+        private Map<String, List<Object>> getCaseInsensitiveAttributes() {
+            Map<String, List<Object>> caseInsensitiveAttributes = this.caseInsensitiveAttributes;
+            if (caseInsensitiveAttributes == null) {
+                caseInsensitiveAttributes = new CaseInsensitiveMap<>(this.attributes);
+                this.caseInsensitiveAttributes = caseInsensitiveAttributes;
+            }
+            return caseInsensitiveAttributes;
+        }
+    }
+
+    /**
+     * Read-only view of the mapped attributes, mapping each attribute when it is read.
+     */
+    private final class AttributeMap extends AbstractMap<String, List<Object>> {
+        @Override
+        public int size() {
+            return LazyMappedPersonImpl.this.getAttributeNames().size();
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return LazyMappedPersonImpl.this.getAttributeNames().contains(key);
+        }
+
+        @Override
+        public List<Object> get(final Object key) {
+            return key instanceof String ? LazyMappedPersonImpl.this.getAttributeValues((String) key) : null;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return LazyMappedPersonImpl.this.getAttributeNames();
+        }
+
+        @Override
+        public Set<Entry<String, List<Object>>> entrySet() {
+            return new AbstractSet<Entry<String, List<Object>>>() {
+                @Override
+                public int size() {
+                    return LazyMappedPersonImpl.this.getAttributeNames().size();
+                }
+
+                @Override
+                public Iterator<Entry<String, List<Object>>> iterator() {
+                    final Iterator<String> names = LazyMappedPersonImpl.this.getAttributeNames().iterator();
+                    return new Iterator<Entry<String, List<Object>>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return names.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, List<Object>> next() {
+                            final String name = names.next();
+                            return new SimpleImmutableEntry<>(name, LazyMappedPersonImpl.this.getAttributeValues(name));
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -52,4 +52,14 @@ public class MergingPersonAttributeDaoImpl extends AbstractAggregatingDefaultQue
     protected Set<IPersonAttributes> getAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery, final IPersonAttributeDao currentlyConsidering, final Set<IPersonAttributes> resultPeople) {
         return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
     }
+
+    /**
+     * Every child DAO is queried with the seed so the merged results are only built once.
+     *
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDao#requiresResultPeople()
+     */
+    @Override
+    protected boolean requiresResultPeople() {
+        return false;
+    }
 }
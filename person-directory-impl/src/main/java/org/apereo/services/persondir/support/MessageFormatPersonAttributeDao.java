@@ -18,6 +18,7 @@
  */
 package org.apereo.services.persondir.support;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.collect.ImmutableSet;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -29,7 +30,6 @@ import org.apereo.services.persondir.IPersonAttributes;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -83,7 +83,7 @@ public class MessageFormatPersonAttributeDao extends AbstractDefaultAttributePer
             possibleUserAttributeNames.addAll(formatAttribute.attributeNames);
         }
 
-        this.possibleUserAttributeNames = possibleUserAttributeNames;
+        this.possibleUserAttributeNames = Collections.unmodifiableSet(possibleUserAttributeNames);
         this.formatAttributes = formatAttributes;
     }
 
@@ -152,8 +152,9 @@ public class MessageFormatPersonAttributeDao extends AbstractDefaultAttributePer
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
      */
     @Override
+    @JsonIgnore
     public Set<String> getPossibleUserAttributeNames() {
-        return new HashSet<>(this.possibleUserAttributeNames);
+        return this.possibleUserAttributeNames;
     }
 
     /**
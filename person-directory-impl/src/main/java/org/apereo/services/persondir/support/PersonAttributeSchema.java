@@ -0,0 +1,154 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ordered attribute names of a {@link CompactPersonImpl}, mapping each name to the slot its values are stored
+ * in. Schemas are interned by {@link #valueOf(Collection, boolean)} so all people with the same attribute names share
+ * one instance and the names are stored once instead of once per person.
+ */
+public final class PersonAttributeSchema implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of schemas that are interned, people with other attribute name combinations get their own schema.
+     */
+    static final int MAX_INTERNED_SCHEMAS = 4096;
+
+    private static final ConcurrentMap<List<Object>, PersonAttributeSchema> INTERNED_SCHEMAS = new ConcurrentHashMap<>();
+
+    private final String[] attributeNames;
+    private final boolean caseInsensitive;
+    private transient Map<String, Integer> slots;
+
+    private PersonAttributeSchema(final String[] attributeNames, final boolean caseInsensitive) {
+        this.attributeNames = attributeNames;
+        this.caseInsensitive = caseInsensitive;
+        this.slots = createSlots(attributeNames, caseInsensitive);
+    }
+
+    /**
+     * @param attributeNames The attribute names in slot order
+     * @param caseInsensitive If the slot of an attribute is looked up ignoring the case of its name
+     * @return The shared schema for the attribute names
+     * @throws IllegalArgumentException If a name is null or, ignoring case if set, listed more than once
+     */
+    public static PersonAttributeSchema valueOf(final Collection<String> attributeNames, final boolean caseInsensitive) {
+        Validate.notNull(attributeNames, "attributeNames can not be null");
+
+        final List<Object> key = new ArrayList<>(attributeNames.size() + 1);
+        key.addAll(attributeNames);
+        key.add(caseInsensitive);
+
+        final PersonAttributeSchema interned = INTERNED_SCHEMAS.get(key);
+        if (interned != null) {
+            return interned;
+        }
+
+        final String[] names = new String[attributeNames.size()];
+        int slot = 0;
+        for (final String attributeName : attributeNames) {
+            Validate.notNull(attributeName, "attribute names can not be null");
+            names[slot++] = attributeName.intern();
+        }
+
+        final PersonAttributeSchema schema = new PersonAttributeSchema(names, caseInsensitive);
+        if (INTERNED_SCHEMAS.size() >= MAX_INTERNED_SCHEMAS) {
+            return schema;
+        }
+
+        final PersonAttributeSchema existing = INTERNED_SCHEMAS.putIfAbsent(key, schema);
+        return existing != null ? existing : schema;
+    }
+
+    /**
+     * @return The number of attribute slots
+     */
+    public int size() {
+        return this.attributeNames.length;
+    }
+
+    /**
+     * @param slot The slot
+     * @return The attribute name of the slot
+     */
+    public String getAttributeName(final int slot) {
+        return this.attributeNames[slot];
+    }
+
+    /**
+     * @return The unmodifiable attribute names in slot order
+     */
+    public List<String> getAttributeNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.attributeNames));
+    }
+
+    /**
+     * @param attributeName The attribute name
+     * @return The slot of the attribute, -1 if the schema doesn't contain it
+     */
+    public int getSlot(final Object attributeName) {
+        if (!(attributeName instanceof String)) {
+            return -1;
+        }
+
+        final Integer slot = this.slots.get(this.caseInsensitive ? toLowerCase((String) attributeName) : attributeName);
+        return slot != null ? slot : -1;
+    }
+
+    public boolean isCaseInsensitive() {
+        return this.caseInsensitive;
+    }
+
+    private static Map<String, Integer> createSlots(final String[] attributeNames, final boolean caseInsensitive) {
+        final Map<String, Integer> slots = new HashMap<>(attributeNames.length * 4 / 3 + 1);
+        for (int slot = 0; slot < attributeNames.length; slot++) {
+            final String attributeName = caseInsensitive ? toLowerCase(attributeNames[slot]) : attributeNames[slot];
+            Validate.isTrue(slots.put(attributeName, slot) == null, "Duplicate attribute name: %s", attributeName);
+        }
+        return slots;
+    }
+
+    private static String toLowerCase(final String attributeName) {
+        return attributeName.toLowerCase(Locale.ROOT);
+    }
+
+    private Object readResolve() {
+        return valueOf(Arrays.asList(this.attributeNames), this.caseInsensitive);
+    }
+
+    @Override
+    public String toString() {
+        return "PersonAttributeSchema" + Arrays.toString(this.attributeNames);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import java.util.function.Supplier;
+
+/**
+ * The state of a query that is bound to the calling thread: the {@link QueryDeadline}, the
+ * {@link RequestedAttributes}, the {@link QueryMemoizationScope} and the flag for partial results. Each of them is
+ * started and closed through its own class, this class holds them together so a DAO that hands work to other threads
+ * carries all of them over with a single {@link #propagate(Supplier)}.
+ * <br>
+ * Every start binds a new immutable context with one part replaced and closing restores the context that was bound
+ * before, so scopes must be closed in the reverse order they were started, as try-with-resources does.
+ */
+public final class QueryContext {
+    private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<>();
+
+    private static final QueryContext EMPTY = new QueryContext(null, null, null, null);
+
+    private final QueryDeadline deadline;
+    private final RequestedAttributes requestedAttributes;
+    private final QueryMemoizationScope memoizationScope;
+    private final PartialResults partialResults;
+
+    private QueryContext(final QueryDeadline deadline, final RequestedAttributes requestedAttributes,
+                         final QueryMemoizationScope memoizationScope, final PartialResults partialResults) {
+        this.deadline = deadline;
+        this.requestedAttributes = requestedAttributes;
+        this.memoizationScope = memoizationScope;
+        this.partialResults = partialResults;
+    }
+
+    /**
+     * @return The context bound to the current thread, an empty context if there is none
+     */
+    static QueryContext current() {
+        final QueryContext context = CURRENT.get();
+        return context != null ? context : EMPTY;
+    }
+
+    /**
+     * Binds the context to the current thread.
+     *
+     * @param context The context to bind
+     */
+    static void bind(final QueryContext context) {
+        if (context == EMPTY) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+    }
+
+    QueryDeadline getDeadline() {
+        return this.deadline;
+    }
+
+    RequestedAttributes getRequestedAttributes() {
+        return this.requestedAttributes;
+    }
+
+    QueryMemoizationScope getMemoizationScope() {
+        return this.memoizationScope;
+    }
+
+    PartialResults getPartialResults() {
+        return this.partialResults;
+    }
+
+    QueryContext withDeadline(final QueryDeadline deadline) {
+        return new QueryContext(deadline, this.requestedAttributes, this.memoizationScope, this.partialResults);
+    }
+
+    QueryContext withRequestedAttributes(final RequestedAttributes requestedAttributes) {
+        return new QueryContext(this.deadline, requestedAttributes, this.memoizationScope, this.partialResults);
+    }
+
+    QueryContext withMemoizationScope(final QueryMemoizationScope memoizationScope) {
+        return new QueryContext(this.deadline, this.requestedAttributes, memoizationScope, this.partialResults);
+    }
+
+    QueryContext withPartialResults(final PartialResults partialResults) {
+        return new QueryContext(this.deadline, this.requestedAttributes, this.memoizationScope, partialResults);
+    }
+
+    /**
+     * Binds a new partial results flag to the current thread for a DAO that needs to know if the query it makes
+     * returned incomplete results, whatever DAO below it started the {@link QueryDeadline}. The flag outlives the
+     * deadlines started during the query, {@link #bind(QueryContext)} the returned context to stop tracking.
+     *
+     * @return The context that was bound to the current thread before
+     */
+    static QueryContext trackPartialResults() {
+        final QueryContext previous = current();
+        bind(previous.withPartialResults(new PartialResults(previous.partialResults)));
+        return previous;
+    }
+
+    /**
+     * @return true if the partial results flag bound to the current thread is set
+     */
+    static boolean isPartialResults() {
+        final PartialResults partialResults = current().partialResults;
+        return partialResults != null && partialResults.isSet();
+    }
+
+    /**
+     * @param supplier The task to run on another thread
+     * @param <T> The result type
+     * @return A task that binds the query context of the current thread to the thread it runs on, the supplier itself
+     * if the current thread has no context
+     */
+    public static <T> Supplier<T> propagate(final Supplier<T> supplier) {
+        final QueryContext context = current();
+        if (context == EMPTY) {
+            return supplier;
+        }
+
+        return () -> {
+            final QueryContext previous = current();
+            bind(context);
+            try {
+                return supplier.get();
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "QueryContext[deadline=" + this.deadline + ", requestedAttributes=" + this.requestedAttributes
+                + ", memoizationScope=" + this.memoizationScope + ", partialResults=" + this.partialResults + "]";
+    }
+
+    /**
+     * Flags that a query returned incomplete results. Setting the flag also sets the flags it was nested in, so
+     * every DAO up the call tree that tracks partial results sees it.
+     */
+    static final class PartialResults {
+        private final PartialResults enclosing;
+        private volatile boolean set;
+
+        PartialResults(final PartialResults enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        void set() {
+            for (PartialResults partialResults = this; partialResults != null && !partialResults.set; partialResults = partialResults.enclosing) {
+                partialResults.set = true;
+            }
+        }
+
+        boolean isSet() {
+            return this.set;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(this.set);
+        }
+    }
+}
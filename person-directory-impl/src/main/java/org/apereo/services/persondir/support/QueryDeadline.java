@@ -0,0 +1,136 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A time budget for a query that flows from the top-level call through the tree of IPersonAttributeDaos. The deadline
+ * is bound to the calling thread by {@link #start(long)} and is visible to every DAO called on that thread until it is
+ * closed. DAOs that hand work to other threads must propagate it using {@link QueryContext#propagate(Supplier)}.
+ * <br>
+ * Backend DAOs map the remaining time onto their own timeouts, JDBC query timeouts and LDAP search time limits.
+ * Aggregating DAOs stop querying children once the deadline has passed and flag the results as partial, check
+ * {@link #isPartialResults()} after the call to see if any DAO returned incomplete results.
+ * <pre>
+ * try (final QueryDeadline deadline = QueryDeadline.start(500)) {
+ *     final IPersonAttributes person = personAttributeDao.getPerson(uid);
+ *     if (deadline.isPartialResults()) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Nested deadlines never extend an enclosing deadline and share its partial results flag. The flag outlives the
+ * deadline, a DAO that wraps an aggregating DAO with its own queryTimeout, like the caching DAO, still sees that the
+ * results were partial after the aggregating DAO closed its deadline.
+ */
+public final class QueryDeadline implements AutoCloseable {
+    private final long deadlineNanos;
+    private final QueryContext.PartialResults partialResults;
+    private final QueryContext previous;
+
+    private QueryDeadline(final long deadlineNanos, final QueryContext.PartialResults partialResults, final QueryContext previous) {
+        this.deadlineNanos = deadlineNanos;
+        this.partialResults = partialResults;
+        this.previous = previous;
+    }
+
+    /**
+     * Bind a deadline to the current thread, the returned deadline must be closed to restore the previous deadline.
+     * If the current thread already has an earlier deadline that deadline is kept.
+     *
+     * @param timeoutMillis The time budget in milliseconds from now
+     * @return The deadline bound to the current thread
+     */
+    public static QueryDeadline start(final long timeoutMillis) {
+        final QueryContext context = QueryContext.current();
+        final QueryDeadline enclosing = context.getDeadline();
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (enclosing != null && enclosing.deadlineNanos - deadlineNanos < 0) {
+            deadlineNanos = enclosing.deadlineNanos;
+        }
+
+        //The flag is shared with the enclosing deadline and with any DAO tracking partial results around this one
+        QueryContext.PartialResults partialResults = context.getPartialResults();
+        if (partialResults == null) {
+            partialResults = new QueryContext.PartialResults(null);
+        }
+
+        final QueryDeadline deadline = new QueryDeadline(deadlineNanos, partialResults, context);
+        QueryContext.bind(context.withDeadline(deadline).withPartialResults(partialResults));
+        return deadline;
+    }
+
+    /**
+     * @return The deadline bound to the current thread, null if there is none
+     */
+    public static QueryDeadline current() {
+        return QueryContext.current().getDeadline();
+    }
+
+    /**
+     * @return Milliseconds until the deadline, 0 if it has passed
+     */
+    public long getRemainingMillis() {
+        final long remainingNanos = this.deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            return 0;
+        }
+
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return this.deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Flag that the results of the query are incomplete because the deadline passed.
+     */
+    public void markPartialResults() {
+        //The flag bound to the thread is nested in the flag of this deadline, setting it sets both
+        final QueryContext.PartialResults current = QueryContext.current().getPartialResults();
+        (current != null ? current : this.partialResults).set();
+    }
+
+    /**
+     * @return true if a DAO returned incomplete results because the deadline passed
+     */
+    public boolean isPartialResults() {
+        return this.partialResults.isSet();
+    }
+
+    /**
+     * Restores the deadline that was bound to the thread when this deadline was started.
+     */
+    @Override
+    public void close() {
+        QueryContext.bind(this.previous);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryDeadline[remainingMillis=" + this.getRemainingMillis() + ", partialResults=" + this.isPartialResults() + "]";
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of the backend queries run during one logical lookup, bound to the calling thread by
+ * {@link #start()} and visible to every DAO called on that thread until it is closed. DAOs that hand work to other
+ * threads must propagate it using {@link QueryContext#propagate(Supplier)}.
+ * <br>
+ * When the same DAO instance is configured under several aggregating DAOs, for example an LDAP DAO that is both a
+ * child of a {@link MergingPersonAttributeDaoImpl} and of a {@link CascadingPersonAttributeDao}, it is asked the same
+ * query more than once per lookup. Backend DAOs that extend {@link AbstractQueryPersonAttributeDao} look the query up
+ * here first, so identical queries only reach the backend once. A query that is already running on another thread is
+ * waited for instead of being run again. Results are keyed by the DAO instance, the query and the
+ * {@link RequestedAttributes} and are dropped when the scope is closed, so nothing is shared between lookups.
+ * <pre>
+ * try (final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+ *     final IPersonAttributes person = personAttributeDao.getPerson(uid);
+ * }
+ * </pre>
+ * A nested scope shares the results of the enclosing scope.
+ */
+public final class QueryMemoizationScope implements AutoCloseable {
+    private final ConcurrentMap<QueryKey, Memo> results;
+    private final AtomicLong queries;
+    private final AtomicLong hits;
+    private final boolean outermost;
+    private final QueryContext previous;
+
+    private QueryMemoizationScope(final QueryMemoizationScope enclosing, final QueryContext previous) {
+        if (enclosing != null) {
+            this.results = enclosing.results;
+            this.queries = enclosing.queries;
+            this.hits = enclosing.hits;
+        } else {
+            this.results = new ConcurrentHashMap<>();
+            this.queries = new AtomicLong();
+            this.hits = new AtomicLong();
+        }
+        this.outermost = enclosing == null;
+        this.previous = previous;
+    }
+
+    /**
+     * Bind a memoization scope to the current thread, the returned scope must be closed to restore the previous
+     * scope and release the remembered results.
+     *
+     * @return The scope bound to the current thread
+     */
+    public static QueryMemoizationScope start() {
+        final QueryContext context = QueryContext.current();
+        final QueryMemoizationScope scope = new QueryMemoizationScope(context.getMemoizationScope(), context);
+        QueryContext.bind(context.withMemoizationScope(scope));
+        return scope;
+    }
+
+    /**
+     * @return The scope bound to the current thread, null if there is none
+     */
+    public static QueryMemoizationScope current() {
+        return QueryContext.current().getMemoizationScope();
+    }
+
+    /**
+     * Returns the result of an earlier identical query in this scope or runs the query and remembers its result. A
+     * query that fails is not remembered, callers waiting for it get the same exception.
+     *
+     * @param dao The DAO that runs the query
+     * @param query The query
+     * @param backendQuery Runs the query against the backend
+     * @return The result of the query, may be null
+     * @throws QueryTimeoutException If the {@link QueryDeadline} passes while waiting for the same query on another
+     * thread
+     */
+    public Set<IPersonAttributes> memoize(final IPersonAttributeDao dao, final Map<String, List<Object>> query,
+                                          final Supplier<Set<IPersonAttributes>> backendQuery) {
+        Validate.notNull(dao, "dao cannot be null");
+        Validate.notNull(query, "query cannot be null");
+        Validate.notNull(backendQuery, "backendQuery cannot be null");
+
+        final QueryKey key = new QueryKey(dao, query, RequestedAttributes.currentAttributeNames());
+        final Memo memo = new Memo();
+        final Memo existing = this.results.putIfAbsent(key, memo);
+        if (existing == null) {
+            this.queries.incrementAndGet();
+            try {
+                final Set<IPersonAttributes> result = backendQuery.get();
+                memo.result.complete(result);
+                return result;
+            } catch (final RuntimeException | Error e) {
+                this.results.remove(key, memo);
+                memo.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        //The same thread re-entering a query it is still running can't wait for itself
+        if (existing.owner == Thread.currentThread() && !existing.result.isDone()) {
+            return backendQuery.get();
+        }
+
+        this.hits.incrementAndGet();
+        return existing.await(dao);
+    }
+
+    /**
+     * @return The number of queries that were run against a backend in this scope
+     */
+    public long getQueries() {
+        return this.queries.get();
+    }
+
+    /**
+     * @return The number of queries that were answered with the result of an identical query in this scope
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Restores the scope that was bound to the thread when this scope was started, the remembered results are
+     * released once the outermost scope is closed.
+     */
+    @Override
+    public void close() {
+        if (this.outermost) {
+            this.results.clear();
+        }
+        QueryContext.bind(this.previous);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryMemoizationScope[queries=" + this.queries + ", hits=" + this.hits + "]";
+    }
+
+    /**
+     * The result of a query, completed by the thread that runs it.
+     */
+    private static final class Memo {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<Set<IPersonAttributes>> result = new CompletableFuture<>();
+
+        private Set<IPersonAttributes> await(final IPersonAttributeDao dao) {
+            final QueryDeadline deadline = QueryDeadline.current();
+            try {
+                if (deadline == null) {
+                    return this.result.get();
+                }
+                return this.result.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                throw new QueryTimeoutException("Query deadline passed while waiting for '" + dao + "'", e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for '" + dao + "'", e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Identifies a query by the identity of the DAO, the query and the requested attribute names.
+     */
+    private static final class QueryKey {
+        private final IPersonAttributeDao dao;
+        private final Map<String, List<Object>> query;
+        private final Set<String> requestedAttributes;
+        private final int hashCode;
+
+        private QueryKey(final IPersonAttributeDao dao, final Map<String, List<Object>> query,
+                         final Set<String> requestedAttributes) {
+            this.dao = dao;
+            this.query = new LinkedHashMap<>(query);
+            this.requestedAttributes = requestedAttributes != null ? new TreeSet<>(requestedAttributes) : null;
+            this.hashCode = Objects.hash(System.identityHashCode(dao), this.query, this.requestedAttributes);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            final QueryKey other = (QueryKey) o;
+            return this.dao == other.dao
+                    && this.query.equals(other.query)
+                    && Objects.equals(this.requestedAttributes, other.requestedAttributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
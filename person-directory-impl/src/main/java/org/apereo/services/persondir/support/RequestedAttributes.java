@@ -0,0 +1,122 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The names of the attributes the caller of a query needs, bound to the calling thread by {@link #start(Collection)}
+ * and visible to every DAO called on that thread until it is closed. DAOs that hand work to other threads must
+ * propagate it using {@link QueryContext#propagate(Supplier)}.
+ * <br>
+ * Aggregating DAOs stop querying children once every person found has a value for each requested attribute and skip
+ * children that can't return any of the attributes still missing. The returned people can therefore lack attributes
+ * that were not requested.
+ * <pre>
+ * try (final RequestedAttributes requested = RequestedAttributes.start(Arrays.asList("mail", "displayName"))) {
+ *     final IPersonAttributes person = personAttributeDao.getPerson(uid);
+ * }
+ * </pre>
+ * Backend DAOs that extend {@link AbstractQueryPersonAttributeDao} only fetch and map the requested attributes and
+ * the username attribute, see {@link AbstractQueryPersonAttributeDao#getRequestedDataAttributes()}.
+ * <br>
+ * A nested scope replaces the requested attributes of the enclosing scope until it is closed, {@link #clear()} starts
+ * a scope where all attributes are needed again.
+ */
+public final class RequestedAttributes implements AutoCloseable {
+    private final Set<String> attributeNames;
+    private final QueryContext previous;
+
+    private RequestedAttributes(final Set<String> attributeNames, final QueryContext previous) {
+        this.attributeNames = attributeNames;
+        this.previous = previous;
+    }
+
+    /**
+     * Bind the requested attribute names to the current thread, the returned scope must be closed to restore the
+     * previous requested attributes.
+     *
+     * @param attributeNames The names of the attributes the caller needs
+     * @return The requested attributes bound to the current thread
+     */
+    public static RequestedAttributes start(final Collection<String> attributeNames) {
+        Validate.notNull(attributeNames, "attributeNames cannot be null");
+
+        return bind(Collections.unmodifiableSet(new LinkedHashSet<>(attributeNames)));
+    }
+
+    /**
+     * Bind a scope to the current thread where all attributes are needed, used by aggregating DAOs for children whose
+     * results are used to query other children. The returned scope must be closed to restore the previous requested
+     * attributes.
+     *
+     * @return The scope bound to the current thread
+     */
+    public static RequestedAttributes clear() {
+        return bind(null);
+    }
+
+    private static RequestedAttributes bind(final Set<String> attributeNames) {
+        final QueryContext context = QueryContext.current();
+        final RequestedAttributes requestedAttributes = new RequestedAttributes(attributeNames, context);
+        QueryContext.bind(context.withRequestedAttributes(requestedAttributes));
+        return requestedAttributes;
+    }
+
+    /**
+     * @return The requested attributes bound to the current thread, null if there are none
+     */
+    public static RequestedAttributes current() {
+        return QueryContext.current().getRequestedAttributes();
+    }
+
+    /**
+     * @return The requested attribute names bound to the current thread, null if all attributes are needed
+     */
+    public static Set<String> currentAttributeNames() {
+        final RequestedAttributes requestedAttributes = current();
+        return requestedAttributes != null ? requestedAttributes.attributeNames : null;
+    }
+
+    /**
+     * @return The unmodifiable set of requested attribute names, null if all attributes are needed
+     */
+    public Set<String> getAttributeNames() {
+        return this.attributeNames;
+    }
+
+    /**
+     * Restores the requested attributes that were bound to the thread when this scope was started.
+     */
+    @Override
+    public void close() {
+        QueryContext.bind(this.previous);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestedAttributes" + this.attributeNames;
+    }
+}
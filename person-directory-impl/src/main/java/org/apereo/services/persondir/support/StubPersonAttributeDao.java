@@ -24,7 +24,6 @@ import org.apereo.services.persondir.IPersonAttributes;
 
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -58,6 +57,7 @@ import java.util.Set;
  */
 public class StubPersonAttributeDao extends AbstractFlatteningPersonAttributeDao {
     private IPersonAttributes backingPerson = null;
+    private Set<String> possibleUserAttributeNames = Collections.emptySet();
 
     public StubPersonAttributeDao() {
     }
@@ -69,11 +69,7 @@ public class StubPersonAttributeDao extends AbstractFlatteningPersonAttributeDao
     @Override
     @JsonIgnore
     public Set<String> getPossibleUserAttributeNames() {
-        if (this.backingPerson == null) {
-            return new HashSet<>();
-        }
-
-        return ImmutableSet.copyOf(this.backingPerson.getAttributes().keySet());
+        return this.possibleUserAttributeNames;
     }
 
     @Override
@@ -126,5 +122,6 @@ public class StubPersonAttributeDao extends AbstractFlatteningPersonAttributeDao
      */
     public void setBackingMap(final Map<String, List<Object>> backingMap) {
         this.backingPerson = new AttributeNamedPersonImpl(backingMap);
+        this.possibleUserAttributeNames = ImmutableSet.copyOf(this.backingPerson.getAttributes().keySet());
     }
 }
@@ -24,17 +24,27 @@ import org.apache.commons.lang3.Validate;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.AbstractQueryPersonAttributeDao;
+import org.apereo.services.persondir.support.QueryDeadline;
 import org.apereo.services.persondir.support.QueryType;
 import org.apereo.services.persondir.util.CaseCanonicalizationMode;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 
 import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -215,30 +225,89 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
     protected List<IPersonAttributes> getPeopleForQuery(final PartialWhereClause queryBuilder, final String queryUserName) {
         //Execute the query
         final RowMapper<R> rowMapper = this.getRowMapper();
+        final String queryTemplate = this.getQueryTemplateForQuery();
 
         final List<R> results;
         if (queryBuilder != null) {
             //Merge the generated SQL with the base query template
             final StringBuilder partialSqlWhere = queryBuilder.sql;
-            final Matcher queryMatcher = WHERE_PLACEHOLDER.matcher(this.queryTemplate);
+            final Matcher queryMatcher = WHERE_PLACEHOLDER.matcher(queryTemplate);
             final String querySQL = queryMatcher.replaceAll(partialSqlWhere.toString());
 
-            results = this.simpleJdbcTemplate.query(querySQL, rowMapper, queryBuilder.arguments.toArray());
+            results = this.query(querySQL, queryBuilder.arguments.toArray(), rowMapper);
 
             if (this.logger.isDebugEnabled()) {
-                this.logger.debug("Executed '" + this.queryTemplate + "' with arguments " + queryBuilder.arguments + " and got results " + results);
+                this.logger.debug("Executed '" + querySQL + "' with arguments " + queryBuilder.arguments + " and got results " + results);
+            }
+        } else if (QueryDeadline.current() != null) {
+            results = this.query(queryTemplate, null, rowMapper);
+
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executed '" + queryTemplate + "' and got results " + results);
             }
         } else {
-            results = this.simpleJdbcTemplate.query(this.queryTemplate, rowMapper);
+            results = this.simpleJdbcTemplate.query(queryTemplate, rowMapper);
 
             if (this.logger.isDebugEnabled()) {
-                this.logger.debug("Executed '" + this.queryTemplate + "' and got results " + results);
+                this.logger.debug("Executed '" + queryTemplate + "' and got results " + results);
             }
         }
 
         return this.parseAttributeMapFromResults(results, queryUserName);
     }
 
+    /**
+     * @return The query template for the current query, subclasses can adjust it to the
+     * {@link org.apereo.services.persondir.support.RequestedAttributes} of the query
+     */
+    @JsonIgnore
+    protected String getQueryTemplateForQuery() {
+        return this.queryTemplate;
+    }
+
+    /**
+     * Runs the query with the arguments. If a {@link QueryDeadline} is bound to the current thread a query is not
+     * started once the deadline has passed, the remaining time rounded up to whole seconds is applied as the statement
+     * query timeout, never longer than the query timeout of the JdbcTemplate, and since JDBC query timeouts only have
+     * a resolution of seconds the statement is also cancelled if it is still running when the deadline passes.
+     *
+     * @param sql The SQL to run
+     * @param arguments The query arguments, may be null
+     * @param rowMapper Maps the rows of the results
+     * @return The mapped rows
+     */
+    private List<R> query(final String sql, final Object[] arguments, final RowMapper<R> rowMapper) {
+        final PreparedStatementSetter argumentSetter = new ArgumentPreparedStatementSetter(arguments);
+
+        final QueryDeadline deadline = QueryDeadline.current();
+        if (deadline == null) {
+            return this.simpleJdbcTemplate.query(sql, argumentSetter, rowMapper);
+        }
+
+        final long remainingMillis = deadline.getRemainingMillis();
+        if (remainingMillis <= 0) {
+            throw new QueryTimeoutException("Query deadline passed before running '" + sql + "'");
+        }
+
+        int queryTimeout = (int) Math.max(1, (remainingMillis + 999) / 1000);
+        final int templateQueryTimeout = this.simpleJdbcTemplate.getQueryTimeout();
+        if (templateQueryTimeout > 0) {
+            queryTimeout = Math.min(queryTimeout, templateQueryTimeout);
+        }
+
+        final int statementQueryTimeout = queryTimeout;
+        final StatementCanceller canceller = new StatementCanceller();
+        try {
+            return this.simpleJdbcTemplate.query(sql, ps -> {
+                argumentSetter.setValues(ps);
+                ps.setQueryTimeout(statementQueryTimeout);
+                canceller.cancelAfter(ps, remainingMillis);
+            }, rowMapper);
+        } finally {
+            canceller.done();
+        }
+    }
+
     public Map<String, CaseCanonicalizationMode> getCaseInsensitiveDataAttributes() {
         return caseInsensitiveDataAttributes;
     }
@@ -282,4 +351,47 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
         return dataAttributeCaseCanonicalizationFunctions;
     }
 
+    /**
+     * Cancels a statement that is still running when the query deadline passes.
+     */
+    private static final class StatementCanceller implements Runnable {
+        private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+        static {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "person-directory-jdbc-statement-canceller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+
+        private Statement statement;
+        private ScheduledFuture<?> cancelTask;
+
+        synchronized void cancelAfter(final Statement statement, final long delayMillis) {
+            this.statement = statement;
+            this.cancelTask = SCHEDULER.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void done() {
+            this.statement = null;
+            if (this.cancelTask != null) {
+                this.cancelTask.cancel(false);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (this.statement == null) {
+                return;
+            }
+
+            try {
+                this.statement.cancel();
+            } catch (final SQLException e) {
+                LoggerFactory.getLogger(AbstractJdbcPersonAttributeDao.class).debug("Failed to cancel statement at the query deadline", e);
+            }
+        }
+    }
 }
@@ -18,6 +18,7 @@
  */
 package org.apereo.services.persondir.support.jdbc;
 
+import org.apereo.services.persondir.util.CaseInsensitiveMap;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.JdbcUtils;
 
@@ -25,7 +26,6 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * JDK5 clone of {@link org.springframework.jdbc.core.ColumnMapRowMapper}
@@ -74,9 +74,8 @@ public class ColumnMapParameterizedRowMapper implements RowMapper<Map<String, Ob
      * @param columnCount the column count, to be used as initial capacity for the Map
      * @return the new Map instance
      */
-    @SuppressWarnings("unchecked")
     protected Map<String, Object> createColumnMap(final int columnCount) {
-        return new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        return new CaseInsensitiveMap<>(columnCount);
     }
 
     /**
@@ -0,0 +1,76 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.jdbc;
+
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.support.IUsernameScanner;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.function.Consumer;
+
+/**
+ * Lists the usernames of a database table with a single SQL query, for example
+ * <code>SELECT USER_NAME FROM USER_DATA</code>. The first column of each row is used as the username, rows where it
+ * is null are skipped.
+ */
+public class JdbcUsernameScanner implements IUsernameScanner {
+    private final JdbcTemplate jdbcTemplate;
+    private final String sql;
+
+    /**
+     * @param ds The DataSource to use for queries
+     * @param sql The SQL that selects the usernames
+     */
+    public JdbcUsernameScanner(final DataSource ds, final String sql) {
+        Validate.notNull(ds, "DataSource can not be null");
+        Validate.notNull(sql, "sql can not be null");
+
+        this.jdbcTemplate = new JdbcTemplate(ds);
+        this.jdbcTemplate.setFetchSize(1000);
+        this.sql = sql;
+    }
+
+    public int getFetchSize() {
+        return this.jdbcTemplate.getFetchSize();
+    }
+
+    /**
+     * @param fetchSize Number of rows the driver fetches per round trip, defaults to 1000
+     */
+    public void setFetchSize(final int fetchSize) {
+        Validate.isTrue(fetchSize > 0, "fetchSize must be positive");
+        this.jdbcTemplate.setFetchSize(fetchSize);
+    }
+
+    @Override
+    public void scanUsernames(final Consumer<String> usernames) {
+        this.jdbcTemplate.query(this.sql, rs -> {
+            final String username = rs.getString(1);
+            if (username != null) {
+                usernames.accept(username);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcUsernameScanner[" + this.sql + "]";
+    }
+}
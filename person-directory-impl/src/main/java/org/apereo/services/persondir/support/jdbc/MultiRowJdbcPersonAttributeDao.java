@@ -167,6 +167,9 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
 
         final String userNameAttribute = this.getConfiguredUserNameAttribute();
 
+        //Rows for attributes that were not requested are skipped
+        final Set<String> requestedDataAttributes = this.getRequestedDataAttributes();
+
         for (final Map<String, Object> queryResult : queryResults) {
             final String userName;  // Choose a username from the best available option
             if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
@@ -203,6 +206,9 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
                     throw new BadSqlGrammarException("No attribute key column named '" + keyColumn + "' exists in result set", this.getQueryTemplate(), null);
                 }
                 final String attrName = String.valueOf(attrNameObj);
+                if (requestedDataAttributes != null && !requestedDataAttributes.contains(attrName)) {
+                    continue;
+                }
 
                 //Get the columns containing the values and add all values to a List
                 final Set<String> valueColumns = columnMapping.getValue();
@@ -18,10 +18,9 @@
  */
 package org.apereo.services.persondir.support.jdbc;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
-import org.apereo.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.apereo.services.persondir.support.CaseInsensitiveNamedPersonImpl;
 import org.apereo.services.persondir.support.MultivaluedPersonAttributeUtils;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -30,6 +29,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * An {@link IPersonAttributeDao}
@@ -37,6 +38,11 @@ import java.util.Set;
  * to attribute names. <br>
  * You must set a Map from column names to attribute names and only column names
  * appearing as keys in that map will be used.
+ * <br>
+ * The SQL can use <code>{columns}</code> as the select list, for example
+ * <code>SELECT {columns} FROM USER_DATA WHERE {0}</code>. It is replaced by the columns of the
+ * resultAttributeMapping, only those mapped to a requested attribute or the username if
+ * {@link org.apereo.services.persondir.support.RequestedAttributes} are bound to the thread.
  *
  * <br>
  * <br>
@@ -68,6 +74,8 @@ import java.util.Set;
 public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeDao<Map<String, Object>> {
     private static final RowMapper<Map<String, Object>> MAPPER = new ColumnMapParameterizedRowMapper(true);
 
+    private static final Pattern COLUMNS_PLACEHOLDER = Pattern.compile("\\{columns\\}");
+
     public SingleRowJdbcPersonAttributeDao() {
         super();
     }
@@ -91,6 +99,31 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
     }
 
 
+    /**
+     * Replaces the <code>{columns}</code> placeholder with the columns to select, all columns of the
+     * resultAttributeMapping or only the columns of the requested attributes.
+     *
+     * @see AbstractJdbcPersonAttributeDao#getQueryTemplateForQuery()
+     */
+    @Override
+    @JsonIgnore
+    protected String getQueryTemplateForQuery() {
+        final String queryTemplate = super.getQueryTemplateForQuery();
+        final Matcher columnsMatcher = COLUMNS_PLACEHOLDER.matcher(queryTemplate);
+        if (!columnsMatcher.find()) {
+            return queryTemplate;
+        }
+
+        Set<String> columns = this.getRequestedDataAttributes();
+        if (columns == null || columns.isEmpty()) {
+            final Map<String, Set<String>> resultAttributeMapping = this.getResultAttributeMapping();
+            columns = resultAttributeMapping != null ? resultAttributeMapping.keySet() : null;
+        }
+
+        final String selectList = columns != null && !columns.isEmpty() ? String.join(", ", columns) : "*";
+        return columnsMatcher.replaceAll(Matcher.quoteReplacement(selectList));
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#parseAttributeMapFromResults(java.util.List, java.lang.String)
      */
@@ -106,18 +139,18 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
             if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
                 // Option #1:  An attribute is named explicitly in the config, 
                 // and that attribute is present in the results from JDBC;  use it
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, multivaluedQueryResult);
+                person = this.createCaseInsensitivePerson(null, userNameAttribute, multivaluedQueryResult);
             } else if (queryUserName != null) {
                 // Option #2:  Use the userName attribute provided in the query 
                 // parameters.  (NB:  I'm not entirely sure this choice is 
                 // preferable to Option #3.  Keeping it because it most closely 
                 // matches the legacy behavior there the new option -- Option #1 
                 // -- doesn't apply.  ~drewwills)
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, multivaluedQueryResult);
+                person = this.createCaseInsensitivePerson(queryUserName, userNameAttribute, multivaluedQueryResult);
             } else {
                 // Option #3:  Create the IPersonAttributes doing a best-guess 
                 // at a userName attribute
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, multivaluedQueryResult);
+                person = this.createCaseInsensitivePerson(null, userNameAttribute, multivaluedQueryResult);
             }
 
             peopleAttributes.add(person);
@@ -18,6 +18,7 @@
  */
 package org.apereo.services.persondir.support.ldap;
 
+import org.apereo.services.persondir.util.CaseInsensitiveMap;
 import org.springframework.ldap.core.AttributesMapper;
 
 import javax.naming.NamingEnumeration;
@@ -27,7 +28,6 @@ import javax.naming.directory.Attributes;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * Creates a Map for each Attributes result with attribute names as keys
@@ -80,9 +80,8 @@ class AttributeMapAttributesMapper implements AttributesMapper {
      * @param attributeCount the attribute count, to be used as initial capacity for the Map
      * @return the new Map instance
      */
-    @SuppressWarnings("unchecked")
     protected Map<String, Object> createAttributeMap(final int attributeCount) {
-        return new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        return new CaseInsensitiveMap<>(attributeCount);
     }
 
     /**
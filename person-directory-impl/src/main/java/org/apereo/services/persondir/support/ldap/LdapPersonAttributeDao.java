@@ -22,11 +22,12 @@ import org.apache.commons.lang3.StringUtils;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.AbstractQueryPersonAttributeDao;
-import org.apereo.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.apereo.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.apereo.services.persondir.support.QueryDeadline;
+import org.apereo.services.persondir.support.RequestedAttributes;
 import org.apereo.services.persondir.support.QueryType;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
@@ -207,7 +208,7 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
 
         //Execute the query
         @SuppressWarnings("unchecked")
-        final List<Map<String, List<Object>>> queryResults = this.ldapTemplate.search(this.baseDN, ldapQuery, this.searchControls, MAPPER);
+        final List<Map<String, List<Object>>> queryResults = this.ldapTemplate.search(this.baseDN, ldapQuery, this.getQuerySearchControls(), MAPPER);
 
         final List<IPersonAttributes> peopleAttributes = new ArrayList<>(queryResults.size());
         for (final Map<String, List<Object>> queryResult : queryResults) {
@@ -218,18 +219,18 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
             if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
                 // Option #1:  An attribute is named explicitly in the config, 
                 // and that attribute is present in the results from LDAP;  use it
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+                person = this.createCaseInsensitivePerson(null, userNameAttribute, queryResult);
             } else if (queryUserName != null) {
                 // Option #2:  Use the userName attribute provided in the query 
                 // parameters.  (NB:  I'm not entirely sure this choice is 
                 // preferable to Option #3.  Keeping it because it most closely 
                 // matches the legacy behavior there the new option -- Option #1 
                 // -- doesn't apply.  ~drewwills)
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, queryResult);
+                person = this.createCaseInsensitivePerson(queryUserName, userNameAttribute, queryResult);
             } else {
                 // Option #3:  Create the IPersonAttributes doing a best-guess 
                 // at a userName attribute
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+                person = this.createCaseInsensitivePerson(null, userNameAttribute, queryResult);
             }
 
             peopleAttributes.add(person);
@@ -238,6 +239,44 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
         return peopleAttributes;
     }
 
+    /**
+     * @return The search controls for a query, if a {@link QueryDeadline} or {@link RequestedAttributes} are bound to
+     * the current thread a copy of the configured search controls with the time limit lowered to the remaining time
+     * and only the requested attributes returned.
+     * @throws QueryTimeoutException If the query deadline has already passed, the search is not started
+     */
+    protected SearchControls getQuerySearchControls() {
+        int timeLimit = this.searchControls.getTimeLimit();
+        final QueryDeadline deadline = QueryDeadline.current();
+        if (deadline != null) {
+            final long remainingMillis = deadline.getRemainingMillis();
+            if (remainingMillis <= 0) {
+                throw new QueryTimeoutException("Query deadline passed before searching '" + this.baseDN + "'");
+            }
+            if (timeLimit <= 0 || timeLimit > remainingMillis) {
+                timeLimit = (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+            }
+        }
+
+        String[] returningAttributes = this.searchControls.getReturningAttributes();
+        final Set<String> requestedAttributes = this.setReturningAttributes ? this.getRequestedDataAttributes() : null;
+        if (requestedAttributes != null && !requestedAttributes.isEmpty()) {
+            returningAttributes = requestedAttributes.toArray(new String[requestedAttributes.size()]);
+        }
+
+        if (timeLimit == this.searchControls.getTimeLimit() && returningAttributes == this.searchControls.getReturningAttributes()) {
+            return this.searchControls;
+        }
+
+        return new SearchControls(
+                this.searchControls.getSearchScope(),
+                this.searchControls.getCountLimit(),
+                timeLimit,
+                returningAttributes,
+                this.searchControls.getReturningObjFlag(),
+                this.searchControls.getDerefLinkFlag());
+    }
+
     /**
      * @see javax.naming.directory.SearchControls#getTimeLimit()
      * @return time limit
@@ -21,8 +21,7 @@ package org.apereo.services.persondir.support.ldap;
 
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.AbstractQueryPersonAttributeDao;
-import org.apereo.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.apereo.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.apereo.services.persondir.support.QueryDeadline;
 import org.ldaptive.Connection;
 import org.ldaptive.ConnectionFactory;
 import org.ldaptive.LdapAttribute;
@@ -36,6 +35,7 @@ import org.ldaptive.SearchResult;
 import org.ldaptive.SearchScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.QueryTimeoutException;
 
 import javax.annotation.PostConstruct;
 import javax.naming.directory.SearchControls;
@@ -44,6 +44,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Person directory <code>IPersonAttribute</code> implementation that queries an LDAP directory
@@ -133,6 +134,9 @@ public class LdaptivePersonAttributeDao extends AbstractQueryPersonAttributeDao<
 
     @Override
     protected List<IPersonAttributes> getPeopleForQuery(final SearchFilter filter, final String userName) {
+        //Fails before a connection is opened if the query deadline has passed
+        final SearchRequest request = createRequest(filter);
+
         Connection connection = null;
         try {
             try {
@@ -143,7 +147,7 @@ public class LdaptivePersonAttributeDao extends AbstractQueryPersonAttributeDao<
             }
             final Response<SearchResult> response;
             try {
-                response = new SearchOperation(connection).execute(createRequest(filter));
+                response = new SearchOperation(connection).execute(request);
             } catch (final LdapException e) {
                 throw new RuntimeException("Failed executing LDAP query " + filter, e);
             }
@@ -154,9 +158,9 @@ public class LdaptivePersonAttributeDao extends AbstractQueryPersonAttributeDao<
                 final String userNameAttribute = this.getConfiguredUserNameAttribute();
                 final Map<String, List<Object>> attributes = convertLdapEntryToMap(entry);
                 if (attributes.containsKey(userNameAttribute)) {
-                    person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, attributes);
+                    person = this.createCaseInsensitivePerson(null, userNameAttribute, attributes);
                 } else {
-                    person = new CaseInsensitiveNamedPersonImpl(userName, attributes);
+                    person = this.createCaseInsensitivePerson(userName, userNameAttribute, attributes);
                 }
                 peopleAttributes.add(person);
             }
@@ -187,15 +191,35 @@ public class LdaptivePersonAttributeDao extends AbstractQueryPersonAttributeDao<
      * @param filter LDAP search filter.
      *
      * @return ldaptive search request.
+     * @throws QueryTimeoutException If the query deadline has already passed
      */
     private SearchRequest createRequest(final SearchFilter filter) {
         final SearchRequest request = new SearchRequest();
         request.setBaseDn(this.baseDN);
         request.setSearchFilter(filter);
-        request.setReturnAttributes(this.attributes);
+        //Only return the requested attributes if the caller requested any
+        final Set<String> requestedAttributes = this.getRequestedDataAttributes();
+        if (requestedAttributes != null && !requestedAttributes.isEmpty()) {
+            request.setReturnAttributes(requestedAttributes.toArray(new String[requestedAttributes.size()]));
+        } else {
+            request.setReturnAttributes(this.attributes);
+        }
         request.setSearchScope(this.searchScope);
         request.setSizeLimit(this.searchControls.getCountLimit());
         request.setTimeLimit(Duration.ofSeconds(searchControls.getTimeLimit()));
+
+        //Lower the time limit to what is left of the query deadline
+        final QueryDeadline deadline = QueryDeadline.current();
+        if (deadline != null) {
+            final long remainingMillis = deadline.getRemainingMillis();
+            if (remainingMillis <= 0) {
+                throw new QueryTimeoutException("Query deadline passed before searching '" + this.baseDN + "' with " + filter);
+            }
+            final Duration remaining = Duration.ofMillis(remainingMillis);
+            if (request.getTimeLimit() == null || request.getTimeLimit().isZero() || request.getTimeLimit().compareTo(remaining) > 0) {
+                request.setTimeLimit(remaining);
+            }
+        }
         return request;
     }
 
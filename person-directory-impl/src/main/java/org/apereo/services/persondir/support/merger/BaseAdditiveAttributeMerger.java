@@ -21,9 +21,11 @@ package org.apereo.services.persondir.support.merger;
 import org.apache.commons.lang3.Validate;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.apereo.services.persondir.util.AttributeValueInterner;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +39,22 @@ import java.util.Set;
  * @version $Revision$
  */
 public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
+    private AttributeValueInterner attributeValueInterner = null;
+
+    public AttributeValueInterner getAttributeValueInterner() {
+        return this.attributeValueInterner;
+    }
+
+    /**
+     * Pool the values of merged people are interned with before the merged people are built. People found by only
+     * one source are not copied and keep their values. Defaults to null, values are not interned.
+     *
+     * @param attributeValueInterner The interner to use, null to not intern values
+     */
+    public void setAttributeValueInterner(final AttributeValueInterner attributeValueInterner) {
+        this.attributeValueInterner = attributeValueInterner;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.merger.IAttributeMerger#mergeAvailableQueryAttributes(java.util.Set, java.util.Set)
      */
@@ -82,7 +100,7 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
             else {
                 final Map<String, List<Object>> toModifyAttributes = this.buildMutableAttributeMap(toModifyPerson.getAttributes());
                 final Map<String, List<Object>> mergedAttributes = this.mergePersonAttributes(toModifyAttributes, toConsiderPerson.getAttributes());
-                final NamedPersonImpl mergedPerson = new NamedPersonImpl(toConsiderName, mergedAttributes);
+                final NamedPersonImpl mergedPerson = new NamedPersonImpl(toConsiderName, this.internAttributes(mergedAttributes));
 
                 //Remove then re-add the mergedPerson entry
                 toModify.remove(mergedPerson);
@@ -93,6 +111,18 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
         return toModify;
     }
 
+    /**
+     * Accumulates people in mutable attribute maps across sources, each merged person is copied into a mutable map on
+     * the first merge and frozen into a single {@link NamedPersonImpl} by {@link IPeopleMergeBuilder#build()}. People
+     * found by only one source are returned as-is.
+     *
+     * @see IAttributeMerger#newPeopleMergeBuilder()
+     */
+    @Override
+    public IPeopleMergeBuilder newPeopleMergeBuilder() {
+        return new AdditivePeopleMergeBuilder();
+    }
+
     /**
      * Do a deep clone of an attribute Map to ensure it is completley mutable.
      *
@@ -116,6 +146,16 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
         return mutableValuesBuilder;
     }
 
+    /**
+     * Interns the values of merged attributes with the configured {@link AttributeValueInterner}, if any.
+     *
+     * @param attributes Merged attribute map
+     * @return Attribute map with interned values
+     */
+    protected Map<String, List<Object>> internAttributes(final Map<String, List<Object>> attributes) {
+        return this.attributeValueInterner != null ? this.attributeValueInterner.intern(attributes) : attributes;
+    }
+
     /**
      * Create the Map used when merging attributes
      *
@@ -147,4 +187,70 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
     public Map<String, List<Object>> mergeAttributes(final Map<String, List<Object>> toModify, final Map<String, List<Object>> toConsider) {
         return this.mergePersonAttributes(toModify, toConsider);
     }
+
+    /**
+     * Merged person state, exactly one of frozen or attributes is the current state of the person.
+     */
+    private static final class MergedPerson {
+        private IPersonAttributes frozen;
+        private Map<String, List<Object>> attributes;
+
+        private MergedPerson(final IPersonAttributes frozen) {
+            this.frozen = frozen;
+        }
+    }
+
+    private final class AdditivePeopleMergeBuilder implements IPeopleMergeBuilder {
+        private final Map<String, MergedPerson> people = new LinkedHashMap<>();
+        private boolean hasResults = false;
+
+        @Override
+        public void add(final Set<IPersonAttributes> toConsider) {
+            Validate.notNull(toConsider, "toConsider cannot be null");
+
+            //The first valid result set is used as-is, keeping the first person for a duplicate name
+            final boolean firstResults = !this.hasResults;
+            this.hasResults = true;
+
+            for (final IPersonAttributes toConsiderPerson : toConsider) {
+                final String toConsiderName = toConsiderPerson.getName();
+                final MergedPerson mergedPerson = this.people.get(toConsiderName);
+
+                if (mergedPerson == null) {
+                    this.people.put(toConsiderName, new MergedPerson(toConsiderPerson));
+                } else if (!firstResults) {
+                    Map<String, List<Object>> attributes = mergedPerson.attributes;
+                    if (attributes == null) {
+                        attributes = buildMutableAttributeMap(mergedPerson.frozen.getAttributes());
+                        mergedPerson.frozen = null;
+                    }
+                    mergedPerson.attributes = mergePersonAttributes(attributes, toConsiderPerson.getAttributes());
+                }
+            }
+        }
+
+        @Override
+        public boolean hasResults() {
+            return this.hasResults;
+        }
+
+        @Override
+        public Set<IPersonAttributes> build() {
+            final Set<IPersonAttributes> result = new LinkedHashSet<>(this.people.size());
+
+            for (final Map.Entry<String, MergedPerson> personEntry : this.people.entrySet()) {
+                final MergedPerson mergedPerson = personEntry.getValue();
+
+                //The frozen person wraps the lists of the mutable map, a later merge has to copy them again
+                if (mergedPerson.frozen == null) {
+                    mergedPerson.frozen = new NamedPersonImpl(personEntry.getKey(), internAttributes(mergedPerson.attributes));
+                    mergedPerson.attributes = null;
+                }
+
+                result.add(mergedPerson.frozen);
+            }
+
+            return result;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.merger;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Merger that retains the distinct values from both maps. If a value exists for a key in both maps the values are
+ * merged into a single {@link List} like {@link MultivaluedAttributeMerger} does, but values that are equal to a value
+ * already in the {@link List} are dropped. The order the values were first seen in is kept.
+ */
+public class DeduplicatingMultivaluedAttributeMerger extends BaseAdditiveAttributeMerger {
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.merger.BaseAdditiveAttributeMerger#mergePersonAttributes(java.util.Map, java.util.Map)
+     */
+    @Override
+    protected Map<String, List<Object>> mergePersonAttributes(final Map<String, List<Object>> toModify, final Map<String, List<Object>> toConsider) {
+        Validate.notNull(toModify, "toModify cannot be null");
+        Validate.notNull(toConsider, "toConsider cannot be null");
+
+        for (final Map.Entry<String, List<Object>> sourceEntry : toConsider.entrySet()) {
+            final String sourceKey = sourceEntry.getKey();
+            final List<Object> sourceValue = sourceEntry.getValue();
+            final List<Object> destList = toModify.get(sourceKey);
+
+            final int size = (destList == null ? 0 : destList.size()) + (sourceValue == null ? 0 : sourceValue.size());
+            final List<Object> mergedList = new ArrayList<>(size);
+            final Set<Object> seenValues = new HashSet<>(size * 4 / 3 + 1);
+            addDistinct(mergedList, seenValues, destList);
+            addDistinct(mergedList, seenValues, sourceValue);
+
+            toModify.put(sourceKey, mergedList);
+        }
+
+        return toModify;
+    }
+
+    private static void addDistinct(final List<Object> mergedList, final Set<Object> seenValues, final Collection<Object> values) {
+        if (values == null) {
+            return;
+        }
+
+        for (final Object value : values) {
+            if (seenValues.add(value)) {
+                mergedList.add(value);
+            }
+        }
+    }
+}
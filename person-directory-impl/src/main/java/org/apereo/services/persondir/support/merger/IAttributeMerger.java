@@ -40,6 +40,17 @@ public interface IAttributeMerger {
      */
     public Set<IPersonAttributes> mergeResults(Set<IPersonAttributes> toModify, Set<IPersonAttributes> toConsider);
 
+    /**
+     * Create a builder that merges the results of several sources for a single query. The default implementation
+     * calls {@link #mergeResults(Set, Set)} for each source, implementations should override this if they can avoid
+     * copying people that are merged more than once.
+     *
+     * @return A new builder, not shared between queries
+     */
+    default IPeopleMergeBuilder newPeopleMergeBuilder() {
+        return new MergeResultsPeopleBuilder(this);
+    }
+
     /**
      * Modify the "toModify" argument in consideration of the "toConsider" argument. Return the resulting Set which may
      * or may not be the same reference as the "toModify" argument.
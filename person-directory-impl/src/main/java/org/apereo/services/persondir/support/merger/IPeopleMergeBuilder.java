@@ -0,0 +1,53 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.merger;
+
+import org.apereo.services.persondir.IPersonAttributes;
+
+import java.util.Set;
+
+/**
+ * Accumulates the results of several sources for a single query and merges them using an {@link IAttributeMerger}.
+ * Implementations may keep merged people in a mutable form until {@link #build()} is called so each person is only
+ * copied once no matter how many sources are added. Instances are not thread safe and are only used for a single
+ * query.
+ *
+ * @see IAttributeMerger#newPeopleMergeBuilder()
+ */
+public interface IPeopleMergeBuilder {
+    /**
+     * Merge the people from a source into the accumulated results.
+     *
+     * @param toConsider The results of a source, this will not be modified.
+     */
+    void add(Set<IPersonAttributes> toConsider);
+
+    /**
+     * @return true if {@link #add(Set)} has been called at least once
+     */
+    boolean hasResults();
+
+    /**
+     * Freeze the accumulated people. More results can still be added after calling build, people that are not
+     * modified by later sources are not copied again.
+     *
+     * @return The merged people, a new mutable Set on each call.
+     */
+    Set<IPersonAttributes> build();
+}
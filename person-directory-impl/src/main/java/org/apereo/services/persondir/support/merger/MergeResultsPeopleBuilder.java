@@ -0,0 +1,60 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.merger;
+
+import org.apereo.services.persondir.IPersonAttributes;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Default {@link IPeopleMergeBuilder} that calls {@link IAttributeMerger#mergeResults(Set, Set)} for each source.
+ */
+class MergeResultsPeopleBuilder implements IPeopleMergeBuilder {
+    private final IAttributeMerger merger;
+    private Set<IPersonAttributes> resultPeople = null;
+
+    MergeResultsPeopleBuilder(final IAttributeMerger merger) {
+        this.merger = merger;
+    }
+
+    @Override
+    public void add(final Set<IPersonAttributes> toConsider) {
+        if (this.resultPeople == null) {
+            //If this is the first valid result set just use it.
+            this.resultPeople = new LinkedHashSet<>(toConsider);
+        } else {
+            this.resultPeople = this.merger.mergeResults(this.resultPeople, toConsider);
+        }
+    }
+
+    @Override
+    public boolean hasResults() {
+        return this.resultPeople != null;
+    }
+
+    @Override
+    public Set<IPersonAttributes> build() {
+        if (this.resultPeople == null) {
+            return new LinkedHashSet<>();
+        }
+
+        return new LinkedHashSet<>(this.resultPeople);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.snapshot;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.apereo.services.persondir.support.IReloadablePersonAttributeDao;
+import org.apereo.services.persondir.util.IndexedQueryHelper;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves people from a snapshot file written by {@link PersonSnapshotCompiler}. The file is memory mapped so opening
+ * it does not read the people, they stay in the page cache instead of the heap and only the people matching a query
+ * are decoded.
+ * <br>
+ * The username attribute and the attributes indexed when the snapshot was compiled can be queried, other query
+ * attributes are ignored. {@link #reload()} maps the snapshot file again after it has been recompiled, queries in
+ * progress finish with the snapshot they started with.
+ *
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Required</th>
+ *         <th>Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td  valign="top">snapshotResource</td>
+ *         <td>
+ *             The snapshot file to map, it must be resolvable as a file.
+ *         </td>
+ *         <td valign="top">Y</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ * </table>
+ */
+public class MappedPersonSnapshotPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao
+        implements IReloadablePersonAttributeDao, InitializingBean {
+    private Resource snapshotResource;
+
+    private volatile PersonSnapshot snapshot;
+
+    //The username attribute and the indexed attributes of the mapped snapshot
+    private volatile Set<String> availableQueryAttributes;
+
+    //Number of times the snapshot was mapped, the attribute names may change with each one
+    private final AtomicLong generation = new AtomicLong();
+
+    public Resource getSnapshotResource() {
+        return snapshotResource;
+    }
+
+    /**
+     * @param snapshotResource The snapshot file written by {@link PersonSnapshotCompiler}
+     */
+    public void setSnapshotResource(final Resource snapshotResource) {
+        this.snapshotResource = snapshotResource;
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.snapshotResource == null) {
+            throw new BeanCreationException("The 'snapshotResource' property needs to be set");
+        }
+
+        this.reload();
+    }
+
+    /**
+     * Maps the snapshot file again, call after the file has been replaced by {@link PersonSnapshotCompiler}. The
+     * previous mapping is released once no query is using it any more.
+     *
+     * @throws IOException If the snapshot file can not be mapped
+     */
+    public void reload() throws IOException {
+        final PersonSnapshot snapshot = PersonSnapshot.map(this.snapshotResource.getFile());
+
+        final Set<String> queryAttributes = new LinkedHashSet<>();
+        queryAttributes.add(this.getUsernameAttributeProvider().getUsernameAttribute());
+        queryAttributes.addAll(snapshot.getIndexedAttributes());
+        this.availableQueryAttributes = Collections.unmodifiableSet(queryAttributes);
+        this.snapshot = snapshot;
+        this.generation.incrementAndGet();
+
+        this.logger.info("Mapped {} people from {}", snapshot.getPersonCount(), this.snapshotResource);
+    }
+
+    /**
+     * @return The number of times the snapshot file was mapped
+     */
+    @Override
+    @JsonIgnore
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        //Fails like a query if the snapshot has not been mapped yet
+        this.getSnapshot();
+        return this.availableQueryAttributes;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.getSnapshot().getAttributeNames();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao#getPerson(java.lang.String)
+     */
+    @Override
+    public IPersonAttributes getPerson(final String uid) {
+        final PersonSnapshot snapshot = this.getSnapshot();
+        final int record = snapshot.findPerson(uid);
+        return record < 0 ? null : snapshot.readPerson(record);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        final PersonSnapshot snapshot = this.getSnapshot();
+        final String usernameAttribute = this.getUsernameAttributeProvider().getUsernameAttribute();
+
+        //Usernames are found with the name index, attributes that are not indexed are skipped
+        final int[] canidatePeople = IndexedQueryHelper.findPeople(query,
+                attribute -> usernameAttribute.equals(attribute) || snapshot.getIndexedAttributes().contains(attribute),
+                (attribute, values) -> snapshot.findPeople(usernameAttribute.equals(attribute) ? null : attribute, values));
+
+        if (canidatePeople == null) {
+            return new LinkedHashSet<>();
+        }
+
+        final Set<IPersonAttributes> people = new LinkedHashSet<>(canidatePeople.length * 4 / 3 + 1);
+        for (final int record : canidatePeople) {
+            people.add(snapshot.readPerson(record));
+        }
+        return people;
+    }
+
+    private PersonSnapshot getSnapshot() {
+        final PersonSnapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            throw new IllegalStateException("The snapshot has not been mapped, afterPropertiesSet must be called first");
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.snapshot;
+
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.apereo.services.persondir.util.PatternHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only view of a snapshot file written by {@link PersonSnapshotCompiler}. The file is memory mapped, lookups
+ * binary search the index tables in place and only the records of matched people are decoded.
+ * <br>
+ * File layout, all numbers are big endian ints and strings are an int length followed by UTF-8 bytes:
+ * <ul>
+ *  <li>Person records: name, attribute count and for each attribute its name, value count (-1 for null) and values,
+ *  each a type byte followed by the value</li>
+ *  <li>Indexes, one for the names and one for each indexed attribute: entries of record offset and key, sorted by
+ *  the unsigned bytes of the key, followed by a table of the entry positions</li>
+ *  <li>Directory: person count, name index table and size, attribute names, indexed attribute names with their
+ *  table and size</li>
+ *  <li>Footer: directory position, magic number and version</li>
+ * </ul>
+ */
+final class PersonSnapshot {
+    static final int MAGIC = 0x50445331;
+    static final int VERSION = 1;
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INTEGER = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_SERIALIZED = 6;
+
+    /**
+     * Classes of the attribute values stored as {@link #TYPE_SERIALIZED}, no other classes are deserialized.
+     */
+    static final Set<Class<?>> SERIALIZED_VALUE_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.<Class<?>>asList(
+            Byte.class, Short.class, Float.class, Character.class, BigInteger.class, BigDecimal.class, Date.class, byte[].class)));
+
+    private static final int FOOTER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int personCount;
+    private final Index nameIndex;
+    private final Set<String> attributeNames;
+    private final Map<String, Index> attributeIndexes;
+
+    private PersonSnapshot(final ByteBuffer buffer) {
+        this.buffer = buffer;
+
+        final int footer = buffer.limit() - FOOTER_SIZE;
+        if (footer < 0 || buffer.getInt(footer + 4) != MAGIC) {
+            throw new IllegalArgumentException("Not a person snapshot file");
+        }
+        if (buffer.getInt(footer + 8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported person snapshot version " + buffer.getInt(footer + 8));
+        }
+
+        final Reader reader = new Reader(buffer.getInt(footer));
+        this.personCount = reader.readInt();
+        this.nameIndex = new Index(reader.readInt(), reader.readInt());
+
+        final int attributeNameCount = reader.readInt();
+        final Set<String> attributeNames = new LinkedHashSet<>(attributeNameCount * 4 / 3 + 1);
+        for (int i = 0; i < attributeNameCount; i++) {
+            attributeNames.add(reader.readString());
+        }
+        this.attributeNames = Collections.unmodifiableSet(attributeNames);
+
+        final int indexCount = reader.readInt();
+        final Map<String, Index> attributeIndexes = new LinkedHashMap<>(indexCount * 4 / 3 + 1);
+        for (int i = 0; i < indexCount; i++) {
+            attributeIndexes.put(reader.readString(), new Index(reader.readInt(), reader.readInt()));
+        }
+        this.attributeIndexes = Collections.unmodifiableMap(attributeIndexes);
+    }
+
+    /**
+     * @param snapshotFile The snapshot file to map
+     * @return The mapped snapshot
+     * @throws IOException If the file can not be mapped
+     */
+    static PersonSnapshot map(final File snapshotFile) throws IOException {
+        try (final FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            //The mapping stays valid after the channel is closed
+            return new PersonSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    int getPersonCount() {
+        return this.personCount;
+    }
+
+    Set<String> getAttributeNames() {
+        return this.attributeNames;
+    }
+
+    Set<String> getIndexedAttributes() {
+        return this.attributeIndexes.keySet();
+    }
+
+    /**
+     * @param name The name of the person
+     * @return The record offset of the person, -1 if there is no person with the name
+     */
+    int findPerson(final String name) {
+        final byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        final int entry = this.nameIndex.lowerBound(key);
+        return entry < this.nameIndex.size && this.nameIndex.compareKey(entry, key, false) == 0 ? this.nameIndex.getRecord(entry) : -1;
+    }
+
+    /**
+     * @param attribute The indexed attribute, null for the person names
+     * @param queryStrings The values to match, {@link IPersonAttributeDao#WILDCARD}s match any characters
+     * @return The sorted record offsets of the people matching any of the values
+     */
+    int[] findPeople(final String attribute, final Collection<String> queryStrings) {
+        final Index index = attribute != null ? this.attributeIndexes.get(attribute) : this.nameIndex;
+        if (index == null) {
+            return new int[0];
+        }
+
+        final List<Integer> records = new ArrayList<>();
+        for (final String queryString : queryStrings) {
+            index.findRecords(queryString, records);
+        }
+
+        final int[] sortedRecords = new int[records.size()];
+        for (int i = 0; i < sortedRecords.length; i++) {
+            sortedRecords[i] = records.get(i);
+        }
+        Arrays.sort(sortedRecords);
+
+        int distinct = 0;
+        for (int i = 0; i < sortedRecords.length; i++) {
+            if (distinct == 0 || sortedRecords[distinct - 1] != sortedRecords[i]) {
+                sortedRecords[distinct++] = sortedRecords[i];
+            }
+        }
+        return distinct == sortedRecords.length ? sortedRecords : Arrays.copyOf(sortedRecords, distinct);
+    }
+
+    /**
+     * @param recordOffset The offset of the person record
+     * @return The decoded person
+     */
+    IPersonAttributes readPerson(final int recordOffset) {
+        final Reader reader = new Reader(recordOffset);
+        final String name = reader.readString();
+        final int attributeCount = reader.readInt();
+
+        final Map<String, List<Object>> attributes = new LinkedHashMap<>(attributeCount * 4 / 3 + 1);
+        for (int a = 0; a < attributeCount; a++) {
+            final String attributeName = reader.readString();
+            final int valueCount = reader.readInt();
+            if (valueCount < 0) {
+                attributes.put(attributeName, null);
+                continue;
+            }
+
+            final List<Object> values = new ArrayList<>(valueCount);
+            for (int v = 0; v < valueCount; v++) {
+                values.add(reader.readValue());
+            }
+            attributes.put(attributeName, values);
+        }
+
+        return new NamedPersonImpl(name, attributes);
+    }
+
+    /**
+     * Sorted index table, the keys are compared in place in the mapped file.
+     */
+    private final class Index {
+        private final int table;
+        private final int size;
+
+        private Index(final int table, final int size) {
+            this.table = table;
+            this.size = size;
+        }
+
+        /**
+         * Adds the records with keys matching the query string, the entries sharing the literal prefix of the query
+         * are found with a binary search and only those are tested against the query pattern.
+         */
+        private void findRecords(final String queryString, final List<Integer> records) {
+            final int firstWildcard = queryString.indexOf(IPersonAttributeDao.WILDCARD);
+            final String prefix = firstWildcard < 0 ? queryString : queryString.substring(0, firstWildcard);
+            final byte[] prefixKey = prefix.getBytes(StandardCharsets.UTF_8);
+
+            //Queries ending in their only wildcards match every key with the prefix
+            final boolean prefixOnly = firstWildcard < 0
+                    || queryString.substring(firstWildcard).replace(IPersonAttributeDao.WILDCARD, "").isEmpty();
+            final Pattern queryPattern = prefixOnly ? null : PatternHelper.compilePattern(queryString);
+
+            for (int entry = this.lowerBound(prefixKey); entry < this.size; entry++) {
+                if (this.compareKey(entry, prefixKey, firstWildcard >= 0) != 0) {
+                    break;
+                }
+                if (queryPattern == null || queryPattern.matcher(this.getKey(entry)).matches()) {
+                    records.add(this.getRecord(entry));
+                }
+            }
+        }
+
+        private int getRecord(final int entry) {
+            return PersonSnapshot.this.buffer.getInt(this.getEntryPosition(entry));
+        }
+
+        private String getKey(final int entry) {
+            return new Reader(this.getEntryPosition(entry) + 4).readString();
+        }
+
+        private int getEntryPosition(final int entry) {
+            return PersonSnapshot.this.buffer.getInt(this.table + entry * 4);
+        }
+
+        /**
+         * @return The first entry with a key not less than the key
+         */
+        private int lowerBound(final byte[] key) {
+            int low = 0;
+            int high = this.size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (this.compareKey(mid, key, false) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Compares the unsigned bytes of the key of the entry with the key, if prefix is true only the first bytes of
+         * the entry key are compared.
+         */
+        private int compareKey(final int entry, final byte[] key, final boolean prefix) {
+            final ByteBuffer buffer = PersonSnapshot.this.buffer;
+            final int position = this.getEntryPosition(entry) + 4;
+            final int length = buffer.getInt(position);
+
+            final int limit = Math.min(length, key.length);
+            for (int i = 0; i < limit; i++) {
+                final int comparison = (buffer.get(position + 4 + i) & 0xFF) - (key[i] & 0xFF);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return prefix && length >= key.length ? 0 : length - key.length;
+        }
+    }
+
+    /**
+     * Reads sequentially from a position of the mapped file with absolute gets, the buffer is shared by all threads.
+     */
+    private final class Reader {
+        private int position;
+
+        private Reader(final int position) {
+            this.position = position;
+        }
+
+        private int readInt() {
+            final int value = PersonSnapshot.this.buffer.getInt(this.position);
+            this.position += 4;
+            return value;
+        }
+
+        private byte[] readBytes() {
+            final int length = this.readInt();
+            final byte[] bytes = new byte[length];
+            final ByteBuffer view = PersonSnapshot.this.buffer.duplicate();
+            view.position(this.position);
+            view.get(bytes);
+            this.position += length;
+            return bytes;
+        }
+
+        private String readString() {
+            return new String(this.readBytes(), StandardCharsets.UTF_8);
+        }
+
+        private Object readValue() {
+            final ByteBuffer buffer = PersonSnapshot.this.buffer;
+            final byte type = buffer.get(this.position++);
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_STRING:
+                    return this.readString();
+                case TYPE_INTEGER:
+                    return this.readInt();
+                case TYPE_LONG: {
+                    final long value = buffer.getLong(this.position);
+                    this.position += 8;
+                    return value;
+                }
+                case TYPE_DOUBLE: {
+                    final double value = buffer.getDouble(this.position);
+                    this.position += 8;
+                    return value;
+                }
+                case TYPE_BOOLEAN:
+                    return buffer.get(this.position++) != 0;
+                case TYPE_SERIALIZED:
+                    try (final ObjectInputStream in = new ValueInputStream(new ByteArrayInputStream(this.readBytes()))) {
+                        return in.readObject();
+                    } catch (final IOException | ClassNotFoundException e) {
+                        throw new IllegalStateException("Failed to read serialized attribute value at " + this.position, e);
+                    }
+                default:
+                    throw new IllegalStateException("Unknown attribute value type " + type + " at " + (this.position - 1));
+            }
+        }
+    }
+
+    /**
+     * Only deserializes the {@link #SERIALIZED_VALUE_TYPES}, and {@link Number} as the superclass of most of them.
+     */
+    private static final class ValueInputStream extends ObjectInputStream {
+        private ValueInputStream(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            for (final Class<?> type : SERIALIZED_VALUE_TYPES) {
+                if (type.getName().equals(desc.getName())) {
+                    return type;
+                }
+            }
+            if (Number.class.getName().equals(desc.getName())) {
+                return Number.class;
+            }
+            throw new InvalidClassException(desc.getName(), "not an attribute value type stored in snapshots");
+        }
+    }
+}
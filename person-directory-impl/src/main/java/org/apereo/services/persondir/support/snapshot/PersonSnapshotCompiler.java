@@ -0,0 +1,311 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.snapshot;
+
+import org.apache.commons.lang3.Validate;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.IUsernameScanner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compiles people into an indexed binary snapshot file that {@link MappedPersonSnapshotPersonAttributeDao} serves
+ * lookups from without loading the people onto the heap. The people can come from any source, for example all people
+ * of an XML or JSON backed DAO or a JDBC/LDAP export through an {@link IUsernameScanner}.
+ * <br>
+ * The snapshot indexes the person names and the values of the {@link #setIndexedAttributes(Set)}. The file is written
+ * next to the target and moved in place once complete, a DAO can reload it at any time. Snapshots are limited to 2GB.
+ */
+public class PersonSnapshotCompiler {
+    private Set<String> indexedAttributes = Collections.emptySet();
+
+    public Set<String> getIndexedAttributes() {
+        return this.indexedAttributes;
+    }
+
+    /**
+     * @param indexedAttributes The attributes that can be queried in the compiled snapshot, besides the username
+     */
+    public void setIndexedAttributes(final Set<String> indexedAttributes) {
+        Validate.notNull(indexedAttributes, "indexedAttributes can not be null");
+        this.indexedAttributes = indexedAttributes;
+    }
+
+    /**
+     * Compiles the people returned by the DAO for each username found by the scanner, usernames the DAO finds no
+     * person for are skipped.
+     *
+     * @param personAttributeDao The DAO to get each person from
+     * @param usernameScanner Finds the usernames of all people to compile
+     * @param snapshotFile The file to write
+     * @return The number of people in the snapshot
+     * @throws IOException If the file can not be written
+     */
+    public int compile(final IPersonAttributeDao personAttributeDao, final IUsernameScanner usernameScanner, final File snapshotFile) throws IOException {
+        Validate.notNull(personAttributeDao, "personAttributeDao can not be null");
+        Validate.notNull(usernameScanner, "usernameScanner can not be null");
+
+        final Set<String> usernames = new LinkedHashSet<>();
+        usernameScanner.scanUsernames(usernames::add);
+
+        //People are only read from the DAO as they are written
+        return this.compile(() -> new Iterator<IPersonAttributes>() {
+            private final Iterator<String> usernameItr = usernames.iterator();
+            private IPersonAttributes next;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null && this.usernameItr.hasNext()) {
+                    this.next = personAttributeDao.getPerson(this.usernameItr.next());
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public IPersonAttributes next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final IPersonAttributes person = this.next;
+                this.next = null;
+                return person;
+            }
+        }, snapshotFile);
+    }
+
+    /**
+     * @param people The people to compile, their names have to be unique
+     * @param snapshotFile The file to write
+     * @return The number of people in the snapshot
+     * @throws IOException If the file can not be written
+     */
+    public int compile(final Iterable<? extends IPersonAttributes> people, final File snapshotFile) throws IOException {
+        Validate.notNull(people, "people can not be null");
+        Validate.notNull(snapshotFile, "snapshotFile can not be null");
+
+        final File directory = snapshotFile.getAbsoluteFile().getParentFile();
+        final File tempFile = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+        try {
+            final int personCount;
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024))) {
+                personCount = this.write(people, out);
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return personCount;
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private int write(final Iterable<? extends IPersonAttributes> people, final DataOutputStream out) throws IOException {
+        final Set<String> attributeNames = new LinkedHashSet<>();
+        final List<IndexEntry> nameEntries = new ArrayList<>();
+        final Map<String, List<IndexEntry>> attributeEntries = new LinkedHashMap<>();
+        for (final String indexedAttribute : this.indexedAttributes) {
+            attributeEntries.put(indexedAttribute, new ArrayList<>());
+        }
+
+        //Person records
+        int personCount = 0;
+        for (final IPersonAttributes person : people) {
+            final int recordOffset = position(out);
+            final String name = person.getName();
+            Validate.notNull(name, "People in a snapshot must have a name");
+            nameEntries.add(new IndexEntry(name, recordOffset));
+
+            final Map<String, List<Object>> attributes = person.getAttributes();
+            writeString(out, name);
+            out.writeInt(attributes.size());
+            for (final Map.Entry<String, List<Object>> attribute : attributes.entrySet()) {
+                final String attributeName = attribute.getKey();
+                final List<Object> values = attribute.getValue();
+                attributeNames.add(attributeName);
+                writeString(out, attributeName);
+
+                if (values == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+
+                out.writeInt(values.size());
+                final List<IndexEntry> entries = attributeEntries.get(attributeName);
+                for (final Object value : values) {
+                    writeValue(out, value);
+                    if (entries != null && value != null) {
+                        entries.add(new IndexEntry(value.toString(), recordOffset));
+                    }
+                }
+            }
+            personCount++;
+        }
+
+        //Indexes
+        final int nameIndex = writeIndex(out, nameEntries);
+        for (int i = 1; i < nameEntries.size(); i++) {
+            if (Arrays.equals(nameEntries.get(i - 1).key, nameEntries.get(i).key)) {
+                throw new IllegalArgumentException("People in a snapshot must have unique names, found "
+                        + new String(nameEntries.get(i).key, StandardCharsets.UTF_8) + " twice");
+            }
+        }
+        final Map<String, Integer> attributeIndexes = new LinkedHashMap<>();
+        for (final Map.Entry<String, List<IndexEntry>> entries : attributeEntries.entrySet()) {
+            attributeIndexes.put(entries.getKey(), writeIndex(out, entries.getValue()));
+        }
+
+        //Directory
+        final int directory = position(out);
+        out.writeInt(personCount);
+        out.writeInt(nameIndex);
+        out.writeInt(nameEntries.size());
+        out.writeInt(attributeNames.size());
+        for (final String attributeName : attributeNames) {
+            writeString(out, attributeName);
+        }
+        out.writeInt(attributeIndexes.size());
+        for (final Map.Entry<String, Integer> attributeIndex : attributeIndexes.entrySet()) {
+            writeString(out, attributeIndex.getKey());
+            out.writeInt(attributeIndex.getValue());
+            out.writeInt(attributeEntries.get(attributeIndex.getKey()).size());
+        }
+
+        //Footer
+        out.writeInt(directory);
+        out.writeInt(PersonSnapshot.MAGIC);
+        out.writeInt(PersonSnapshot.VERSION);
+        position(out);
+
+        return personCount;
+    }
+
+    /**
+     * Writes the entries sorted by key and record, followed by the table of their positions.
+     *
+     * @return The position of the table
+     */
+    private static int writeIndex(final DataOutputStream out, final List<IndexEntry> entries) throws IOException {
+        Collections.sort(entries);
+
+        final int[] entryPositions = new int[entries.size()];
+        for (int i = 0; i < entryPositions.length; i++) {
+            final IndexEntry entry = entries.get(i);
+            entryPositions[i] = position(out);
+            out.writeInt(entry.recordOffset);
+            out.writeInt(entry.key.length);
+            out.write(entry.key);
+        }
+
+        final int table = position(out);
+        for (final int entryPosition : entryPositions) {
+            out.writeInt(entryPosition);
+        }
+        return table;
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(PersonSnapshot.TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(PersonSnapshot.TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(PersonSnapshot.TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(PersonSnapshot.TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(PersonSnapshot.TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(PersonSnapshot.TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (PersonSnapshot.SERIALIZED_VALUE_TYPES.contains(value.getClass())) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (final ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(value);
+            }
+            out.writeByte(PersonSnapshot.TYPE_SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        } else {
+            throw new IllegalArgumentException("Attribute value " + value + " of " + value.getClass() + " can not be stored in a snapshot");
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int position(final DataOutputStream out) {
+        //DataOutputStream stops counting at Integer.MAX_VALUE
+        final int position = out.size();
+        if (position == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Snapshots are limited to " + Integer.MAX_VALUE + " bytes");
+        }
+        return position;
+    }
+
+    /**
+     * Indexed key of a person record, ordered by the unsigned bytes of the UTF-8 key and then the record.
+     */
+    private static final class IndexEntry implements Comparable<IndexEntry> {
+        private final byte[] key;
+        private final int recordOffset;
+
+        private IndexEntry(final String key, final int recordOffset) {
+            this.key = key.getBytes(StandardCharsets.UTF_8);
+            this.recordOffset = recordOffset;
+        }
+
+        @Override
+        public int compareTo(final IndexEntry other) {
+            final int limit = Math.min(this.key.length, other.key.length);
+            for (int i = 0; i < limit; i++) {
+                final int comparison = (this.key[i] & 0xFF) - (other.key[i] & 0xFF);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            final int comparison = this.key.length - other.key.length;
+            return comparison != 0 ? comparison : Integer.compare(this.recordOffset, other.recordOffset);
+        }
+    }
+}
@@ -18,6 +18,9 @@
  */
 package org.apereo.services.persondir.support.xml;
 
+import org.apereo.services.persondir.util.BackgroundExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 
@@ -26,26 +29,44 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Base logic for loading unmarshalling an XML document via JAXB and only reloading the cached object model when needed.
  * The class attempts to monitor the lastModified date of the {@link Resource} to determine when to reload. If that fails
  * the resource is reloaded periodically as specified by the {@link #setNoLastModifiedReloadPeriod(long)} property.
+ * <br>
+ * Only the first load blocks callers. Once an object is cached a single caller that finds the resource changed
+ * starts a reload on the {@link #setReloadExecutor(Executor)}, the shared {@link BackgroundExecutor} by default, while
+ * that caller and all others keep getting the cached object. A resource that fails to reload is logged and not
+ * reloaded again until it changes. The reloaded object is passed to the callback before it replaces the cached one, so a callback can
+ * build its own state from it and publish it before the new object is returned.
  *
  * The class determines the return type and the base package to use for the {@link JAXBContext#newInstance(String)} call
- * via the loadedType parameter provided to the constructor.
+ * via the loadedType parameter provided to the constructor. Contexts are created once per package and shared by all
+ * loaders, creating one is far more expensive than unmarshalling a small document.
  *
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class CachingJaxbLoaderImpl<T> implements CachingJaxbLoader<T> {
+    private static final ConcurrentMap<String, JAXBContext> JAXB_CONTEXTS = new ConcurrentHashMap<>();
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
     protected final Class<T> loadedType;
 
     protected long noLastModifiedReloadPeriod = 5 * 60 * 1000; //5 minute default
     protected Resource mappedXmlResource;
+    protected Executor reloadExecutor;
+
+    protected volatile T unmarshalledObject;
+    protected volatile long lastModifiedTime = Integer.MIN_VALUE;
 
-    protected T unmarshalledObject;
-    protected long lastModifiedTime = Integer.MIN_VALUE;
+    private final AtomicBoolean reloading = new AtomicBoolean();
 
     public CachingJaxbLoaderImpl(final Class<T> loadedType) {
         Assert.notNull(loadedType, "loadedType can not be null");
@@ -80,6 +101,20 @@ public class CachingJaxbLoaderImpl<T> implements CachingJaxbLoader<T> {
     }
 
 
+    public Executor getReloadExecutor() {
+        return reloadExecutor;
+    }
+
+    /**
+     * Executor to reload a changed resource on, callers keep getting the cached object until the reload is done. Use
+     * {@code Runnable::run} to have the caller that finds the resource changed reload it.
+     *
+     * @param reloadExecutor Runs the reloads, if null they run on the shared {@link BackgroundExecutor}
+     */
+    public void setReloadExecutor(final Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.xml.CachingJaxbLoader#getUnmarshalledObject()
      */
@@ -93,34 +128,79 @@ public class CachingJaxbLoaderImpl<T> implements CachingJaxbLoader<T> {
      */
     @Override
     public T getUnmarshalledObject(final UnmarshallingCallback<T> callback) {
-        //Only bother checking for a change if the object already exists
-        Long lastModified = null;
-        if (this.unmarshalledObject != null) {
-            lastModified = this.getLastModified();
+        final T cachedObject = this.unmarshalledObject;
 
-            //Return immediately if nothing has changed
-            if (this.isCacheValid(lastModified)) {
+        //The first load blocks all callers until the object exists
+        if (cachedObject == null) {
+            synchronized (this) {
+                if (this.unmarshalledObject == null) {
+                    this.reload(callback);
+                }
                 return this.unmarshalledObject;
             }
         }
 
-        final InputStream xmlInputStream = this.getXmlInputStream();
-        final JAXBContext jaxbContext = this.getJAXBContext();
-        final Unmarshaller unmarshaller = this.getUnmarshaller(jaxbContext);
-        final T unmarshalledObject = this.unmarshal(xmlInputStream, unmarshaller);
+        //Return immediately if nothing has changed
+        if (this.isCacheValid(this.getLastModified())) {
+            return cachedObject;
+        }
 
-        if (callback != null) {
-            callback.postProcessUnmarshalling(unmarshalledObject);
+        //Only one reload at a time, other callers keep using the cached object
+        try {
+            BackgroundExecutor.executeExclusively(this.reloading, this.reloadExecutor, () -> {
+                try {
+                    this.reload(callback);
+                } catch (final RuntimeException e) {
+                    this.logger.warn("Failed to reload " + this.mappedXmlResource + ", keeping the previously loaded object", e);
+                }
+            });
+        } catch (final RuntimeException e) {
+            this.logger.warn("Failed to schedule the reload of " + this.mappedXmlResource, e);
         }
+        //The reloaded object if the executor ran the reload right away
+        return this.unmarshalledObject;
+    }
 
-        this.unmarshalledObject = unmarshalledObject;
+    /**
+     * Loads the resource, passes the new object to the callback and then replaces the cached object.
+     */
+    private synchronized void reload(final UnmarshallingCallback<T> callback) {
+        //Set before loading so a resource that fails to load is only reloaded once it changes again
+        final Long lastModified = this.getLastModified();
         if (lastModified != null) {
             this.lastModifiedTime = lastModified;
         } else {
             this.lastModifiedTime = System.currentTimeMillis();
         }
 
-        return this.unmarshalledObject;
+        final T unmarshalledObject;
+        try (final InputStream xmlInputStream = this.getXmlInputStream()) {
+            unmarshalledObject = this.load(xmlInputStream, callback);
+        } catch (final IOException e) {
+            throw new RuntimeException("Failed to close InputStream for Resource: " + this.mappedXmlResource, e);
+        }
+
+        this.unmarshalledObject = unmarshalledObject;
+    }
+
+    /**
+     * Unmarshals the XML and passes the result to the callback. Subclasses can override this to parse the XML in a
+     * different way, the stream is closed by the caller.
+     *
+     * @param xmlInputStream InputStream to read the XML from
+     * @param callback Callback to pass the unmarshalled object to, may be null
+     * @return The object to cache
+     */
+    protected T load(final InputStream xmlInputStream, final UnmarshallingCallback<T> callback) {
+        final JAXBContext jaxbContext = this.getJAXBContext();
+        final Unmarshaller unmarshaller = this.getUnmarshaller(jaxbContext);
+        final T unmarshalledObject = this.unmarshal(xmlInputStream, unmarshaller);
+
+        if (callback != null) {
+            callback.postProcessUnmarshalling(unmarshalledObject);
+        }
+
+        return unmarshalledObject;
     }
 
     /**
@@ -142,7 +222,7 @@ public class CachingJaxbLoaderImpl<T> implements CachingJaxbLoader<T> {
      */
     protected boolean isCacheValid(final Long lastModified) {
         return (lastModified != null && lastModified <= this.lastModifiedTime) ||
-                (lastModified == null && (this.lastModifiedTime + this.noLastModifiedReloadPeriod) <= System.currentTimeMillis());
+                (lastModified == null && System.currentTimeMillis() < this.lastModifiedTime + this.noLastModifiedReloadPeriod);
     }
 
     /**
@@ -159,16 +239,18 @@ public class CachingJaxbLoaderImpl<T> implements CachingJaxbLoader<T> {
     }
 
     /**
-     * @return The JAXB context to parse the XML resource with
+     * @return The JAXB context to parse the XML resource with, created once for the package of the loaded type
      */
     protected JAXBContext getJAXBContext() {
         final Package loadedPackage = this.loadedType.getPackage();
         final String filterDisplayPackage = loadedPackage.getName();
-        try {
-            return JAXBContext.newInstance(filterDisplayPackage);
-        } catch (final JAXBException e) {
-            throw new RuntimeException("Failed to create " + JAXBContext.class + " to unmarshal " + this.loadedType, e);
-        }
+        return JAXB_CONTEXTS.computeIfAbsent(filterDisplayPackage, contextPath -> {
+            try {
+                return JAXBContext.newInstance(contextPath);
+            } catch (final JAXBException e) {
+                throw new RuntimeException("Failed to create " + JAXBContext.class + " to unmarshal " + this.loadedType, e);
+            }
+        });
     }
 
     /**
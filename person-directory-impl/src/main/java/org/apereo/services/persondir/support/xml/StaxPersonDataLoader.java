@@ -0,0 +1,203 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.xml;
+
+import org.apereo.services.persondir.support.xml.om.Attribute;
+import org.apereo.services.persondir.support.xml.om.Person;
+import org.apereo.services.persondir.support.xml.om.PersonData;
+
+import javax.xml.bind.annotation.adapters.CollapsedStringAdapter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads {@link PersonData} XML with a StAX parser instead of unmarshalling the whole document with JAXB. Callbacks
+ * implementing {@link PersonCallback} are passed each person as it is parsed and are then called with an empty
+ * {@link PersonData}, so the object model of the document is never held in memory. Other callbacks are passed the
+ * complete {@link PersonData} as with {@link CachingJaxbLoaderImpl}.
+ * <br>
+ * Elements other than those of the PersonData.xsd are skipped, the document is not validated.
+ */
+public class StaxPersonDataLoader extends CachingJaxbLoaderImpl<PersonData> {
+    private static final String PERSON_ELEMENT = "person";
+    private static final String ATTRIBUTE_ELEMENT = "attribute";
+    private static final String VALUE_ELEMENT = "value";
+    private static final String NAME_ATTRIBUTE = "name";
+    private static final String KEY_ATTRIBUTE = "key";
+
+    private final XMLInputFactory xmlInputFactory;
+
+    public StaxPersonDataLoader() {
+        super(PersonData.class);
+
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Callback that is passed the people of the document as they are parsed.
+     */
+    public interface PersonCallback extends UnmarshallingCallback<PersonData> {
+        /**
+         * Called before the first person of a document is parsed.
+         */
+        void startPeople();
+
+        /**
+         * Called for each person in the order of the document, before {@link #postProcessUnmarshalling(Object)} is
+         * called with an empty {@link PersonData}.
+         *
+         * @param name The name of the person
+         * @param attributes The attributes of the person in the order of the document
+         */
+        void addPerson(String name, Map<String, List<Object>> attributes);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.services.persondir.support.xml.CachingJaxbLoaderImpl#load(java.io.InputStream, org.apereo.services.persondir.support.xml.CachingJaxbLoader.UnmarshallingCallback)
+     */
+    @Override
+    protected PersonData load(final InputStream xmlInputStream, final UnmarshallingCallback<PersonData> callback) {
+        final PersonData personData = new PersonData();
+        final PersonCallback personCallback;
+        if (callback instanceof PersonCallback) {
+            personCallback = (PersonCallback) callback;
+        } else {
+            personCallback = new PersonDataBuilder(personData);
+        }
+
+        try {
+            final XMLStreamReader reader = this.xmlInputFactory.createXMLStreamReader(xmlInputStream);
+            try {
+                personCallback.startPeople();
+                this.parsePeople(reader, personCallback);
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new RuntimeException("Unexpected StAX error while parsing " + this.mappedXmlResource, e);
+        }
+
+        if (callback != null) {
+            callback.postProcessUnmarshalling(personData);
+        }
+
+        return personData;
+    }
+
+    private void parsePeople(final XMLStreamReader reader, final PersonCallback personCallback) throws XMLStreamException {
+        //Move to the document element, the person elements are its children
+        reader.nextTag();
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!PERSON_ELEMENT.equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+
+            final String name = collapse(reader.getAttributeValue(null, NAME_ATTRIBUTE));
+            final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (!ATTRIBUTE_ELEMENT.equals(reader.getLocalName())) {
+                    skipElement(reader);
+                    continue;
+                }
+
+                final String key = collapse(reader.getAttributeValue(null, KEY_ATTRIBUTE));
+                final List<Object> values = new ArrayList<>();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (VALUE_ELEMENT.equals(reader.getLocalName())) {
+                        values.add(reader.getElementText());
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+
+                attributes.put(key, values);
+            }
+
+            personCallback.addPerson(name, attributes);
+        }
+    }
+
+    /**
+     * Skips the current element and its content, leaving the reader on its end tag.
+     */
+    private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Collapses whitespace like the {@link CollapsedStringAdapter} used for the JAXB name and key attributes.
+     */
+    private static String collapse(final String value) {
+        return value != null ? new CollapsedStringAdapter().unmarshal(value) : null;
+    }
+
+    /**
+     * Builds the complete {@link PersonData} for callbacks that don't handle people as they are parsed.
+     */
+    private static final class PersonDataBuilder implements PersonCallback {
+        private final PersonData personData;
+
+        private PersonDataBuilder(final PersonData personData) {
+            this.personData = personData;
+        }
+
+        @Override
+        public void startPeople() {
+            this.personData.getPerson().clear();
+        }
+
+        @Override
+        public void addPerson(final String name, final Map<String, List<Object>> attributes) {
+            final Person person = new Person();
+            person.setName(name);
+            for (final Map.Entry<String, List<Object>> attributeEntry : attributes.entrySet()) {
+                final Attribute attribute = new Attribute();
+                attribute.setKey(attributeEntry.getKey());
+                for (final Object value : attributeEntry.getValue()) {
+                    attribute.getValue().add((String) value);
+                }
+                person.getAttribute().add(attribute);
+            }
+            this.personData.getPerson().add(person);
+        }
+
+        @Override
+        public void postProcessUnmarshalling(final PersonData unmarshalledObject) {
+        }
+    }
+}
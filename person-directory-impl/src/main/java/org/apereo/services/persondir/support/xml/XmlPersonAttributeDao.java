@@ -18,62 +18,76 @@
  */
 package org.apereo.services.persondir.support.xml;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apache.commons.lang3.StringUtils;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.support.IReloadablePersonAttributeDao;
 import org.apereo.services.persondir.support.IUsernameAttributeProvider;
 import org.apereo.services.persondir.support.xml.om.PersonData;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.apereo.services.persondir.support.NamedPersonImpl;
-import org.apereo.services.persondir.support.xml.CachingJaxbLoader.UnmarshallingCallback;
 import org.apereo.services.persondir.support.xml.om.Attribute;
 import org.apereo.services.persondir.support.xml.om.Person;
+import org.apereo.services.persondir.util.IndexedQueryHelper;
 import org.apereo.services.persondir.util.PatternHelper;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.core.io.Resource;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 
 /**
  * XML backed person attribute DAO that supports wildcard searching. The XML files provided must conform to the
  * PersonData.xsd which resides at the root of the classpath.
+ * <br>
+ * When the XML is loaded each attribute is indexed by value. Queries without wildcards are a hash lookup, queries
+ * with a leading or trailing wildcard a binary search over the values sorted by prefix or suffix. Only queries with
+ * wildcards in the middle of the value test each value of the attribute against a pattern, the people are never
+ * scanned. The results of each query attribute are intersected.
+ * <br>
+ * The caches built from a load are replaced as a whole when the XML is reloaded, queries keep using the previous
+ * caches while the XML is reloaded.
  *
  * @author Eric Dalquist
  * @version $Revision$
  */
-public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean {
+public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements IReloadablePersonAttributeDao, InitializingBean {
+    private static final int[] NO_PEOPLE = new int[0];
+
     private final AttributeLoader attributeLoader = new AttributeLoader();
 
-    //Set of all attribute names across all available IPersonAttributes 
-    private Set<String> attributesCache = null;
-    //Map from attribute name to the Set of IPersonAttributes that have that attribute
-    private Map<String, Set<IPersonAttributes>> personByAttributeCache = null;
-    //Map from person name to IPersonAttributes
-    private Map<String, IPersonAttributes> personByNameCache = null;
+    //Caches built from the last load, replaced as a whole when the XML is reloaded
+    private volatile Snapshot snapshot = null;
 
+    //Number of loads, the attribute names may change with each one
+    private final AtomicLong generation = new AtomicLong();
 
     private CachingJaxbLoader<PersonData> jaxbLoader;
     private Resource mappedXmlResource;
-
+    private Executor reloadExecutor;
+    private Set<String> caseInsensitiveAttributes = Collections.emptySet();
     public CachingJaxbLoader<PersonData> getJaxbLoader() {
         return jaxbLoader;
     }
 
     /**
      * The {@link CachingJaxbLoader} to use to load the {@link PersonData}, if set the mappedXmlResource property is
-     * ignored.
+     * ignored. Loaders like {@link StaxPersonDataLoader} that pass people to {@link StaxPersonDataLoader.PersonCallback}s
+     * as they are parsed are indexed without holding the object model of the whole document.
      *
      * @param jaxbLoader The {@link CachingJaxbLoader} to use to load the {@link PersonData}
      */
@@ -81,12 +95,41 @@ public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttribu
         this.jaxbLoader = jaxbLoader;
     }
 
+    public Executor getReloadExecutor() {
+        return reloadExecutor;
+    }
+
+    /**
+     * Executor the {@link StaxPersonDataLoader} created for the mappedXmlResource reloads a changed XML file on, see
+     * {@link CachingJaxbLoaderImpl#setReloadExecutor(Executor)}. Ignored if the jaxbLoader property is set.
+     *
+     * @param reloadExecutor Runs the reloads, if null they run on the shared background executor
+     */
+    public void setReloadExecutor(final Executor reloadExecutor) {
+        this.reloadExecutor = reloadExecutor;
+    }
+
+    public Set<String> getCaseInsensitiveAttributes() {
+        return caseInsensitiveAttributes;
+    }
+
+    /**
+     * Attributes whose values are matched ignoring case. The values are indexed in lower case when the XML is loaded,
+     * set before the XML is first loaded. Defaults to an empty set.
+     *
+     * @param caseInsensitiveAttributes The attributes to match ignoring case
+     */
+    public void setCaseInsensitiveAttributes(final Set<String> caseInsensitiveAttributes) {
+        this.caseInsensitiveAttributes = caseInsensitiveAttributes != null ? caseInsensitiveAttributes : Collections.<String>emptySet();
+    }
+
     public Resource getMappedXmlResource() {
         return mappedXmlResource;
     }
 
     /**
-     * The XML {@link Resource} to load the {@link PersonData} from, required if the jaxbLoader property is not set.
+     * The XML {@link Resource} to load the {@link PersonData} from with a {@link StaxPersonDataLoader}, required if
+     * the jaxbLoader property is not set.
      *
      * @param mappedXmlResource The XML {@link Resource} to load the {@link PersonData} from
      */
@@ -104,19 +147,30 @@ public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttribu
         }
 
         if (this.jaxbLoader == null) {
-            this.jaxbLoader = new CachingJaxbLoaderImpl<>(PersonData.class);
-            ((CachingJaxbLoaderImpl<PersonData>) this.jaxbLoader).setMappedXmlResource(this.mappedXmlResource);
+            final StaxPersonDataLoader staxPersonDataLoader = new StaxPersonDataLoader();
+            staxPersonDataLoader.setMappedXmlResource(this.mappedXmlResource);
+            staxPersonDataLoader.setReloadExecutor(this.reloadExecutor);
+            this.jaxbLoader = staxPersonDataLoader;
         }
     }
 
 
+    /**
+     * @return The number of times the XML was loaded, checking if it changed first
+     */
+    @Override
+    @JsonIgnore
+    public long getGeneration() {
+        this.getSnapshot();
+        return this.generation.get();
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
      */
     @Override
     public Set<String> getAvailableQueryAttributes() {
-        this.jaxbLoader.getUnmarshalledObject(this.attributeLoader);
-        return this.attributesCache;
+        return this.getSnapshot().attributes;
     }
 
     /* (non-Javadoc)
@@ -124,8 +178,7 @@ public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttribu
      */
     @Override
     public Set<String> getPossibleUserAttributeNames() {
-        this.jaxbLoader.getUnmarshalledObject(this.attributeLoader);
-        return this.attributesCache;
+        return this.getSnapshot().attributes;
     }
 
     /* (non-Javadoc)
@@ -133,8 +186,7 @@ public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttribu
      */
     @Override
     public IPersonAttributes getPerson(final String uid) {
-        this.jaxbLoader.getUnmarshalledObject(this.attributeLoader);
-        return this.personByNameCache.get(uid);
+        return this.getSnapshot().personByName.get(uid);
     }
 
     /* (non-Javadoc)
@@ -142,153 +194,346 @@ public class XmlPersonAttributeDao extends AbstractDefaultAttributePersonAttribu
      */
     @Override
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        final Snapshot snapshot = this.getSnapshot();
+
+        //Attributes that no people contain are skipped
+        final int[] canidatePeople = IndexedQueryHelper.findPeople(query, snapshot.attributes::contains, (attribute, values) -> {
+            //People matching any of the values of the attribute
+            final AttributeIndex attributeIndex = snapshot.attributeIndexes.get(attribute);
+            final List<int[]> attributePeople = new ArrayList<>(values.size());
+            if (attributeIndex != null) {
+                for (final String queryString : values) {
+                    attributeIndex.findPeople(queryString, attributePeople);
+                }
+            }
+            return union(attributePeople);
+        });
+
+        if (canidatePeople == null) {
+            return new LinkedHashSet<>();
+        }
+
+        final Set<IPersonAttributes> people = new LinkedHashSet<>(canidatePeople.length * 4 / 3 + 1);
+        for (final int person : canidatePeople) {
+            people.add(snapshot.people[person]);
+        }
+        return people;
+    }
+
+    /**
+     * @return The caches of the current load, loading the XML first if needed
+     */
+    private Snapshot getSnapshot() {
         this.jaxbLoader.getUnmarshalledObject(this.attributeLoader);
+        return this.snapshot;
+    }
 
-        //Tracks persons that could match the query
-        final Map<String, IPersonAttributes> canidatePersons = new LinkedHashMap<>();
+    /**
+     * @param people Sorted arrays of people indexes
+     * @return Sorted array of the people in any of the arrays
+     */
+    private static int[] union(final List<int[]> people) {
+        if (people.isEmpty()) {
+            return NO_PEOPLE;
+        }
+        if (people.size() == 1) {
+            return people.get(0);
+        }
 
-        boolean firstAttribute = true;
-        for (final Map.Entry<String, List<Object>> queryEntry : query.entrySet()) {
-            final String entryKey = queryEntry.getKey();
+        int length = 0;
+        for (final int[] p : people) {
+            length += p.length;
+        }
+        final int[] all = new int[length];
+        int offset = 0;
+        for (final int[] p : people) {
+            System.arraycopy(p, 0, all, offset, p.length);
+            offset += p.length;
+        }
+        Arrays.sort(all);
 
-            //Skip attributes that no people contain
-            if (!this.attributesCache.contains(entryKey)) {
-                continue;
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (distinct == 0 || all[distinct - 1] != all[i]) {
+                all[distinct++] = all[i];
             }
+        }
+        return distinct == all.length ? all : Arrays.copyOf(all, distinct);
+    }
 
-            //Build list of non-blank attribute values
-            final List<String> entryValues = new LinkedList<>();
-            for (final Object entryValue : queryEntry.getValue()) {
-                //Skip null and blank values
-                final String entry;
-                if (entryValue == null || StringUtils.isBlank(entry = entryValue.toString())) {
-                    continue;
-                }
+    /**
+     * Immutable caches built from one load of the XML, published together so queries never see caches from
+     * different loads.
+     */
+    private static final class Snapshot {
+        //Set of all attribute names across all available IPersonAttributes
+        private final Set<String> attributes;
+        //Map from attribute name to the index of the values of that attribute
+        private final Map<String, AttributeIndex> attributeIndexes;
+        //All IPersonAttributes in the order of the XML, indexes refer to people by their position
+        private final IPersonAttributes[] people;
+        //Map from person name to IPersonAttributes
+        private final Map<String, IPersonAttributes> personByName;
+
+        private Snapshot(final Set<String> attributes, final Map<String, AttributeIndex> attributeIndexes,
+                         final IPersonAttributes[] people, final Map<String, IPersonAttributes> personByName) {
+            this.attributes = attributes;
+            this.attributeIndexes = attributeIndexes;
+            this.people = people;
+            this.personByName = personByName;
+        }
+    }
 
-                entryValues.add(entry);
+    /**
+     * Index of the values of one attribute. People are referred to by their position in the XML, each value maps to
+     * the sorted positions of the people with that value.
+     */
+    private static final class AttributeIndex {
+        private final boolean caseInsensitive;
+        private final Map<String, int[]> peopleByValue;
+        //Distinct values sorted by prefix
+        private final String[] values;
+        //Positions in values, sorted by the reversed value
+        private final int[] valuesBySuffix;
+        //All people with a non-null value
+        private final int[] people;
+
+        private AttributeIndex(final boolean caseInsensitive, final Map<String, List<Integer>> peopleByValue, final List<Integer> people) {
+            this.caseInsensitive = caseInsensitive;
+
+            this.peopleByValue = new HashMap<>(peopleByValue.size() * 4 / 3 + 1);
+            for (final Map.Entry<String, List<Integer>> valueEntry : peopleByValue.entrySet()) {
+                this.peopleByValue.put(valueEntry.getKey(), toArray(valueEntry.getValue()));
             }
+            this.people = toArray(people);
 
-            //Skip attributes that have no non-blank values
-            if (entryValues.size() == 0) {
-                continue;
-            }
+            this.values = peopleByValue.keySet().toArray(new String[peopleByValue.size()]);
+            Arrays.sort(this.values);
 
-            //Build Set of Persons that have the current attribute
-            final Set<IPersonAttributes> personsForAttribute = this.personByAttributeCache.get(entryKey);
-            for (final Iterator<IPersonAttributes> canidateItr = canidatePersons.values().iterator(); canidateItr.hasNext(); ) {
-                final IPersonAttributes canidate = canidateItr.next();
-                if (!personsForAttribute.contains(canidate)) {
-                    canidateItr.remove();
-                }
+            final Integer[] valuesBySuffix = new Integer[this.values.length];
+            for (int i = 0; i < valuesBySuffix.length; i++) {
+                valuesBySuffix[i] = i;
             }
+            Arrays.sort(valuesBySuffix, (first, second) -> compareReversed(this.values[first], this.values[second]));
+            this.valuesBySuffix = new int[valuesBySuffix.length];
+            for (int i = 0; i < valuesBySuffix.length; i++) {
+                this.valuesBySuffix[i] = valuesBySuffix[i];
+            }
+        }
 
-            final Map<String, IPersonAttributes> attributeCanidatePersons = new LinkedHashMap<>();
-            final Set<String> attributeMissPersons = new HashSet<>();
+        private String fold(final String value) {
+            return this.caseInsensitive ? value.toLowerCase(Locale.ROOT) : value;
+        }
 
-            //Iterate over each possible value for an attribute checking for a match in the personsForAttribute 
-            for (final String queryString : entryValues) {
-                //Convert the query value into a regular expression pattern
-                final Pattern queryPattern = PatternHelper.compilePattern(queryString);
+        /**
+         * Adds the sorted people positions of each value matching the query to the List.
+         */
+        private void findPeople(final String queryString, final List<int[]> matches) {
+            final String query = this.fold(queryString);
+
+            final int firstWildcard = query.indexOf(IPersonAttributeDao.WILDCARD);
+            if (firstWildcard < 0) {
+                final int[] valuePeople = this.peopleByValue.get(query);
+                if (valuePeople != null) {
+                    matches.add(valuePeople);
+                }
+                return;
+            }
 
-                //Look for the attribute value in each potential IPersonAttributes
-                for (final IPersonAttributes person : personsForAttribute) {
-                    //If this isn't the first attribute and this person isn't a canidate skip them
-                    final String name = person.getName();
-                    if (!firstAttribute && !canidatePersons.containsKey(name)) {
-                        continue;
-                    }
+            final int lastWildcard = query.lastIndexOf(IPersonAttributeDao.WILDCARD);
+            final String prefix = query.substring(0, firstWildcard);
+            final String suffix = query.substring(lastWildcard + IPersonAttributeDao.WILDCARD.length());
+            final boolean onlyWildcards = StringUtils.containsOnly(
+                    query.substring(firstWildcard, lastWildcard + IPersonAttributeDao.WILDCARD.length()), IPersonAttributeDao.WILDCARD);
+            if (prefix.isEmpty() && suffix.isEmpty() && onlyWildcards) {
+                matches.add(this.people);
+                return;
+            }
 
-                    //Track if any of the person's attributes match
-                    boolean foundMatch = false;
-
-                    //Compare the query pattern with the person's attribute values
-                    final List<Object> personAttributeValues = person.getAttributeValues(entryKey);
-                    if (personAttributeValues != null) {
-                        for (final Object personAttributeValue : personAttributeValues) {
-                            //Skip null values
-                            if (personAttributeValue == null) {
-                                continue;
-                            }
-
-                            final String personAttributeString = personAttributeValue.toString();
-                            final Matcher personAttributeMatcher = queryPattern.matcher(personAttributeString);
-                            if (personAttributeMatcher.matches()) {
-                                //If the attribute matches put the person in the canidate map and break out of the personAttributeValues loop
-                                attributeCanidatePersons.put(name, person);
-                                attributeMissPersons.remove(name);
-                                foundMatch = true;
-                                break;
-                            }
-                        }
-                    }
+            //Values not only matching by prefix or suffix are tested against the pattern
+            final Pattern queryPattern = onlyWildcards && (prefix.isEmpty() || suffix.isEmpty()) ? null : PatternHelper.compilePattern(query);
 
-                    //No match for this attribute, remove the person from the canidate map if they are there
-                    if (!foundMatch && !attributeCanidatePersons.containsKey(name)) {
-                        attributeMissPersons.add(name);
+            if (!prefix.isEmpty()) {
+                int index = Arrays.binarySearch(this.values, prefix);
+                for (index = index < 0 ? -index - 1 : index; index < this.values.length && this.values[index].startsWith(prefix); index++) {
+                    this.addMatch(this.values[index], queryPattern, matches);
+                }
+            } else if (!suffix.isEmpty()) {
+                for (int index = this.findFirstWithSuffix(suffix); index < this.valuesBySuffix.length; index++) {
+                    final String value = this.values[this.valuesBySuffix[index]];
+                    if (!value.endsWith(suffix)) {
+                        break;
                     }
+                    this.addMatch(value, queryPattern, matches);
+                }
+            } else {
+                for (final String value : this.values) {
+                    this.addMatch(value, queryPattern, matches);
                 }
             }
+        }
 
-            canidatePersons.putAll(attributeCanidatePersons);
-            for (final String userName : attributeMissPersons) {
-                canidatePersons.remove(userName);
+        private void addMatch(final String value, final Pattern queryPattern, final List<int[]> matches) {
+            if (queryPattern == null || queryPattern.matcher(value).matches()) {
+                matches.add(this.peopleByValue.get(value));
             }
+        }
 
-            //Ran through a query entry completely
-            firstAttribute = false;
+        /**
+         * @return Position in valuesBySuffix of the first value ending with the suffix, if any
+         */
+        private int findFirstWithSuffix(final String suffix) {
+            int low = 0;
+            int high = this.valuesBySuffix.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (compareReversed(this.values[this.valuesBySuffix[mid]], suffix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
 
-            //If no potential matches are left give up since canidatePersons never grows after the first pass
-            if (canidatePersons.size() == 0) {
-                break;
+        /**
+         * Compares the Strings as if both were reversed.
+         */
+        private static int compareReversed(final String first, final String second) {
+            final int limit = Math.min(first.length(), second.length());
+            for (int i = 1; i <= limit; i++) {
+                final int comparison = first.charAt(first.length() - i) - second.charAt(second.length() - i);
+                if (comparison != 0) {
+                    return comparison;
+                }
             }
+            return first.length() - second.length();
         }
 
-        return new LinkedHashSet<>(canidatePersons.values());
+        private static int[] toArray(final List<Integer> people) {
+            final int[] array = new int[people.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = people.get(i);
+            }
+            return array;
+        }
     }
 
 
     /**
      * Internal loader that takes care of parsing out the loaded data from the XML file into some
-     * maps that are easier to search
+     * maps that are easier to search. People are either passed one at a time by a streaming loader or all at once
+     * in the {@link PersonData}.
      */
-    private class AttributeLoader implements UnmarshallingCallback<PersonData> {
+    private class AttributeLoader implements StaxPersonDataLoader.PersonCallback {
+        private IndexBuilder indexBuilder;
 
         @Override
-        public synchronized void postProcessUnmarshalling(final PersonData unmarshalledObject) {
-            final Set<String> attributeNames = new LinkedHashSet<>();
-            final Map<String, Set<IPersonAttributes>> personByAttributeCache = new LinkedHashMap<>();
-            final Map<String, IPersonAttributes> personByNameCache = new LinkedHashMap<>();
+        public synchronized void startPeople() {
+            this.indexBuilder = new IndexBuilder();
+        }
 
-            final IUsernameAttributeProvider usernameAttributeProvider = XmlPersonAttributeDao.this.getUsernameAttributeProvider();
-            final String usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
-            attributeNames.add(usernameAttribute);
+        @Override
+        public synchronized void addPerson(final String name, final Map<String, List<Object>> attributes) {
+            this.indexBuilder.addPerson(name, attributes);
+        }
+
+        @Override
+        public synchronized void postProcessUnmarshalling(final PersonData unmarshalledObject) {
+            final IndexBuilder indexBuilder = this.indexBuilder != null ? this.indexBuilder : new IndexBuilder();
+            this.indexBuilder = null;
 
             for (final Person xmlPerson : unmarshalledObject.getPerson()) {
                 final Map<String, List<Object>> attributes = new LinkedHashMap<>();
-
                 for (final Attribute xmlAttribute : xmlPerson.getAttribute()) {
-                    final String key = xmlAttribute.getKey();
-                    attributeNames.add(key);
-
-                    attributes.put(key, new ArrayList<Object>(xmlAttribute.getValue()));
+                    attributes.put(xmlAttribute.getKey(), new ArrayList<Object>(xmlAttribute.getValue()));
                 }
+                indexBuilder.addPerson(xmlPerson.getName(), attributes);
+            }
+
+            indexBuilder.build();
+        }
+    }
+
+    /**
+     * Collects the people of one load and publishes the caches in a new {@link Snapshot} once all are added.
+     */
+    private class IndexBuilder {
+        private final Set<String> attributeNames = new LinkedHashSet<>();
+        private final Map<String, Map<String, List<Integer>>> peopleByAttributeValue = new LinkedHashMap<>();
+        private final Map<String, List<Integer>> peopleByAttribute = new LinkedHashMap<>();
+        private final List<IPersonAttributes> people = new ArrayList<>();
+        private final Map<String, IPersonAttributes> personByNameCache = new LinkedHashMap<>();
+        private final Set<String> caseInsensitiveAttributes = XmlPersonAttributeDao.this.caseInsensitiveAttributes;
+        private final String usernameAttribute;
+
+        private IndexBuilder() {
+            final IUsernameAttributeProvider usernameAttributeProvider = XmlPersonAttributeDao.this.getUsernameAttributeProvider();
+            this.usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
+            this.attributeNames.add(this.usernameAttribute);
+        }
+
+        private void addPerson(final String name, final Map<String, List<Object>> attributes) {
+            this.attributeNames.addAll(attributes.keySet());
 
-                final IPersonAttributes personAttributes = new NamedPersonImpl(xmlPerson.getName(), attributes);
-                personByNameCache.put(personAttributes.getName(), personAttributes);
+            final IPersonAttributes personAttributes = new NamedPersonImpl(name, attributes);
+            this.personByNameCache.put(personAttributes.getName(), personAttributes);
+            final int person = this.people.size();
+            this.people.add(personAttributes);
 
-                for (final String key : personAttributes.getAttributes().keySet()) {
-                    Set<IPersonAttributes> personsForAttribute = personByAttributeCache.get(key);
-                    if (personsForAttribute == null) {
-                        personsForAttribute = new LinkedHashSet<>();
-                        personByAttributeCache.put(key, personsForAttribute);
+            //People without the username attribute can be found by their name
+            final Map<String, List<Object>> indexedAttributes = new LinkedHashMap<>(personAttributes.getAttributes());
+            if (!indexedAttributes.containsKey(this.usernameAttribute)) {
+                indexedAttributes.put(this.usernameAttribute, Collections.<Object>singletonList(personAttributes.getName()));
+            }
+
+            for (final Map.Entry<String, List<Object>> attribute : indexedAttributes.entrySet()) {
+                final String key = attribute.getKey();
+                final boolean caseInsensitive = this.caseInsensitiveAttributes.contains(key);
+                Map<String, List<Integer>> peopleByValue = this.peopleByAttributeValue.get(key);
+                if (peopleByValue == null) {
+                    peopleByValue = new HashMap<>();
+                    this.peopleByAttributeValue.put(key, peopleByValue);
+                    this.peopleByAttribute.put(key, new ArrayList<>());
+                }
+
+                for (final Object value : attribute.getValue()) {
+                    //Null values never match
+                    if (value == null) {
+                        continue;
                     }
-                    personsForAttribute.add(personAttributes);
+
+                    final String indexedValue = caseInsensitive ? value.toString().toLowerCase(Locale.ROOT) : value.toString();
+                    addPerson(peopleByValue.computeIfAbsent(indexedValue, v -> new ArrayList<>()), person);
+                    addPerson(this.peopleByAttribute.get(key), person);
                 }
             }
+        }
+
+        /**
+         * People are added in order, a person with a value twice is only added once.
+         */
+        private void addPerson(final List<Integer> people, final int person) {
+            if (people.isEmpty() || people.get(people.size() - 1) != person) {
+                people.add(person);
+            }
+        }
+
+        private void build() {
+            final Map<String, AttributeIndex> attributeIndexCache = new LinkedHashMap<>();
+            for (final Map.Entry<String, Map<String, List<Integer>>> attributeEntry : this.peopleByAttributeValue.entrySet()) {
+                final String key = attributeEntry.getKey();
+                attributeIndexCache.put(key, new AttributeIndex(this.caseInsensitiveAttributes.contains(key),
+                        attributeEntry.getValue(), this.peopleByAttribute.get(key)));
+            }
 
-            XmlPersonAttributeDao.this.attributesCache = Collections.unmodifiableSet(attributeNames);
-            XmlPersonAttributeDao.this.personByAttributeCache = Collections.unmodifiableMap(personByAttributeCache);
-            XmlPersonAttributeDao.this.personByNameCache = Collections.unmodifiableMap(personByNameCache);
+            XmlPersonAttributeDao.this.snapshot = new Snapshot(
+                    Collections.unmodifiableSet(this.attributeNames),
+                    Collections.unmodifiableMap(attributeIndexCache),
+                    this.people.toArray(new IPersonAttributes[this.people.size()]),
+                    Collections.unmodifiableMap(this.personByNameCache));
+            //Counted after the snapshot is published, names read at the new generation are the new ones
+            XmlPersonAttributeDao.this.generation.incrementAndGet();
         }
     }
 }
@@ -0,0 +1,202 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import org.apache.commons.lang3.Validate;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of attribute values shared by the people built from it. Values like eduPersonAffiliation=student or group DNs
+ * repeat across many people, each read as a separate String from the backing store, interning them keeps a single
+ * copy of each value on the heap.
+ * <br>
+ * Only {@link String} values are interned, other values are returned as-is. The pool is weakly referenced, values no
+ * longer used by any person are dropped, and bounded, once it holds {@link #setMaximumSize(int)} values new values
+ * are returned as-is until some are collected. One instance can be shared by the DAOs and mergers of a configuration.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1" summary="">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">internedAttributes</td>
+ *         <td>
+ *             The names of the attributes whose values are interned, best used for low cardinality attributes. If
+ *             null the values of all attributes are interned.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maximumSize</td>
+ *         <td>
+ *             The maximum number of distinct values held by the pool.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">100000</td>
+ *     </tr>
+ * </table>
+ */
+public class AttributeValueInterner {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private Set<String> internedAttributes = null;
+    private volatile int maximumSize = 100000;
+
+    public AttributeValueInterner() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    public Set<String> getInternedAttributes() {
+        return this.internedAttributes;
+    }
+
+    /**
+     * @param internedAttributes The attributes to intern the values of, null to intern the values of all attributes
+     */
+    public void setInternedAttributes(final Set<String> internedAttributes) {
+        this.internedAttributes = internedAttributes;
+    }
+
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @param maximumSize The maximum number of distinct values held by the pool
+     */
+    public void setMaximumSize(final int maximumSize) {
+        Validate.isTrue(maximumSize >= 0, "maximumSize must be 0 or more");
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return The number of values currently held by the pool
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.values.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param attributeName Name of the attribute
+     * @return If the values of the attribute are interned
+     */
+    public boolean isInterned(final String attributeName) {
+        return this.internedAttributes == null || this.internedAttributes.contains(attributeName);
+    }
+
+    /**
+     * @param value The value to intern
+     * @return The pooled value equal to the value, the value itself if it isn't a String or the pool is full
+     */
+    public Object intern(final Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+
+        final Segment segment = this.segments[(value.hashCode() >>> 16 ^ value.hashCode()) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            final WeakReference<Object> pooledRef = segment.values.get(value);
+            if (pooledRef != null) {
+                final Object pooled = pooledRef.get();
+                if (pooled != null) {
+                    return pooled;
+                }
+            }
+
+            if (segment.values.size() < this.maximumSize / SEGMENTS + 1) {
+                segment.values.put(value, new WeakReference<>(value));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @param attributeName Name of the attribute the values belong to
+     * @param values The values to intern, may be null
+     * @return The values if they are null, not interned or already pooled, otherwise a new List of the pooled values
+     */
+    public List<Object> intern(final String attributeName, final List<Object> values) {
+        if (values == null || !this.isInterned(attributeName)) {
+            return values;
+        }
+
+        List<Object> internedValues = null;
+        for (int i = 0; i < values.size(); i++) {
+            final Object value = values.get(i);
+            final Object internedValue = this.intern(value);
+
+            //Only copy the list once a value is replaced by the pooled value
+            if (internedValues == null && internedValue != value) {
+                internedValues = new ArrayList<>(values.size());
+                internedValues.addAll(values.subList(0, i));
+            }
+            if (internedValues != null) {
+                internedValues.add(internedValue);
+            }
+        }
+
+        return internedValues != null ? internedValues : values;
+    }
+
+    /**
+     * @param attributes The attributes to intern the values of
+     * @return The attributes if no values were replaced, otherwise a new Map with the interned values
+     */
+    public Map<String, List<Object>> intern(final Map<String, List<Object>> attributes) {
+        Map<String, List<Object>> internedAttributes = null;
+        for (final Map.Entry<String, List<Object>> attribute : attributes.entrySet()) {
+            final List<Object> values = attribute.getValue();
+            final List<Object> internedValues = this.intern(attribute.getKey(), values);
+            if (internedAttributes == null && internedValues != values) {
+                internedAttributes = new LinkedHashMap<>(attributes);
+            }
+            if (internedAttributes != null) {
+                internedAttributes.put(attribute.getKey(), internedValues);
+            }
+        }
+
+        return internedAttributes != null ? internedAttributes : attributes;
+    }
+
+    private static final class Segment {
+        private final Map<Object, WeakReference<Object>> values = new WeakHashMap<>();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared daemon threads for the reloads and refreshes DAOs run in the background when no executor is configured, so
+ * a query never waits for a file to be parsed or a source to be scanned. Threads are started when needed and stop
+ * after a minute without work.
+ */
+public final class BackgroundExecutor {
+    private static final Executor INSTANCE;
+
+    static {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        INSTANCE = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "person-directory-background-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private BackgroundExecutor() {
+    }
+
+    /**
+     * @return The shared executor, see {@link #executeExclusively(AtomicBoolean, Executor, Runnable)} for tasks that
+     *         must not run concurrently
+     */
+    public static Executor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs the task unless the previous task guarded by the same flag is still scheduled or running, callers keep
+     * using their current state meanwhile. The flag is cleared once the task finishes or if the executor rejects it,
+     * so the next caller starts the task again.
+     *
+     * @param running Set while a task is scheduled or running
+     * @param executor Runs the task, the shared executor if null
+     * @param task Handles its own failures, anything it throws is left to the executor
+     * @throws RuntimeException If the executor rejected the task
+     */
+    public static void executeExclusively(final AtomicBoolean running, final Executor executor, final Runnable task) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            (executor != null ? executor : INSTANCE).execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (final RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+    }
+}
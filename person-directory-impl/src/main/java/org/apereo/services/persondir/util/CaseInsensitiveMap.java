@@ -0,0 +1,417 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Map with String keys that are compared ignoring case the same way as {@link String#CASE_INSENSITIVE_ORDER}, while
+ * iteration returns the keys in insertion order with the spelling they were first put with.
+ * <br>
+ * Lookups are hashed on the case folded key and don't allocate. The folded form of each key is computed once and
+ * shared by all maps through a bounded cache, entries are kept in flat arrays instead of a node per entry. Removing a
+ * key compacts the arrays and is O(n), these maps are meant to be filled once and read many times. Null keys are not
+ * permitted, null values are. Not thread safe.
+ *
+ * @param <V> The value type
+ */
+public class CaseInsensitiveMap<V> extends AbstractMap<String, V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of folded keys shared between maps, keys beyond that are folded for each map.
+     */
+    private static final int MAX_FOLDED_KEYS = 10000;
+
+    private static final ConcurrentMap<String, String> FOLDED_KEYS = new ConcurrentHashMap<>();
+
+    private static final String[] EMPTY_KEYS = new String[0];
+    private static final Object[] EMPTY_VALUES = new Object[0];
+
+    /*
+     * Entries in insertion order
+     */
+    private String[] keys;
+    private String[] foldedKeys;
+    private Object[] values;
+    private int size;
+
+    /*
+     * Open addressing hash table of entry index + 1, 0 marks an empty slot
+     */
+    private transient int[] table;
+    private transient int modCount;
+
+    public CaseInsensitiveMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of keys the map is sized for
+     */
+    public CaseInsensitiveMap(final int expectedSize) {
+        if (expectedSize > 0) {
+            this.keys = new String[expectedSize];
+            this.foldedKeys = new String[expectedSize];
+            this.values = new Object[expectedSize];
+        } else {
+            this.keys = EMPTY_KEYS;
+            this.foldedKeys = EMPTY_KEYS;
+            this.values = EMPTY_VALUES;
+        }
+        this.table = new int[tableSize(expectedSize)];
+    }
+
+    /**
+     * @param map The entries to copy
+     */
+    public CaseInsensitiveMap(final Map<String, ? extends V> map) {
+        this(map.size());
+        this.putAll(map);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && this.indexOf((String) key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        final int index = this.indexOf((String) key);
+        return index >= 0 ? (V) this.values[index] : null;
+    }
+
+    /**
+     * Sets the value of the key. If the map already contains the key with a different case the value is replaced and
+     * the original spelling of the key is kept.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(final String key, final V value) {
+        Objects.requireNonNull(key, "key can not be null");
+
+        final int index = this.indexOf(key);
+        if (index >= 0) {
+            final V previous = (V) this.values[index];
+            this.values[index] = value;
+            return previous;
+        }
+
+        if (this.size == this.keys.length) {
+            this.grow();
+        }
+
+        final String foldedKey = foldKey(key);
+        this.keys[this.size] = key;
+        this.foldedKeys[this.size] = foldedKey;
+        this.values[this.size] = value;
+        this.insertIntoTable(foldedKey.hashCode(), this.size);
+        this.size++;
+        this.modCount++;
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        final int index = this.indexOf((String) key);
+        if (index < 0) {
+            return null;
+        }
+
+        final V previous = (V) this.values[index];
+        this.removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.size, null);
+        Arrays.fill(this.foldedKeys, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        Arrays.fill(this.table, 0);
+        this.size = 0;
+        this.modCount++;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The index of the entry for the key, -1 if there is none
+     */
+    private int indexOf(final String key) {
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        for (int slot = spread(foldedHashCode(key)) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = table[slot] - 1;
+            if (matchesFoldedKey(key, this.foldedKeys[index])) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insertIntoTable(final int hashCode, final int index) {
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        int slot = spread(hashCode) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private void removeAt(final int index) {
+        final int moved = this.size - index - 1;
+        System.arraycopy(this.keys, index + 1, this.keys, index, moved);
+        System.arraycopy(this.foldedKeys, index + 1, this.foldedKeys, index, moved);
+        System.arraycopy(this.values, index + 1, this.values, index, moved);
+        this.size--;
+        this.keys[this.size] = null;
+        this.foldedKeys[this.size] = null;
+        this.values[this.size] = null;
+        this.modCount++;
+        this.rebuildTable(this.table.length);
+    }
+
+    private void grow() {
+        final int capacity = Math.max(4, this.keys.length + (this.keys.length >> 1));
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.foldedKeys = Arrays.copyOf(this.foldedKeys, capacity);
+        this.values = Arrays.copyOf(this.values, capacity);
+
+        final int tableSize = tableSize(capacity);
+        if (tableSize > this.table.length) {
+            this.rebuildTable(tableSize);
+        }
+    }
+
+    private void rebuildTable(final int tableSize) {
+        this.table = new int[tableSize];
+        for (int index = 0; index < this.size; index++) {
+            this.insertIntoTable(this.foldedKeys[index].hashCode(), index);
+        }
+    }
+
+    /**
+     * @param capacity The number of entries
+     * @return The power of two table size that keeps the table at most half full
+     */
+    private static int tableSize(final int capacity) {
+        return Math.max(4, Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1);
+    }
+
+    private static int spread(final int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+
+    /**
+     * Folds a character the way {@link String#CASE_INSENSITIVE_ORDER} compares characters.
+     */
+    private static char fold(final char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * @return The {@link String#hashCode()} of the folded key, without creating the folded key
+     */
+    private static int foldedHashCode(final String key) {
+        int hashCode = 0;
+        for (int i = 0; i < key.length(); i++) {
+            hashCode = 31 * hashCode + fold(key.charAt(i));
+        }
+        return hashCode;
+    }
+
+    private static boolean matchesFoldedKey(final String key, final String foldedKey) {
+        if (key.length() != foldedKey.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (fold(key.charAt(i)) != foldedKey.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String foldKey(final String key) {
+        final String cached = FOLDED_KEYS.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final char[] chars = key.toCharArray();
+        boolean folded = false;
+        for (int i = 0; i < chars.length; i++) {
+            final char c = fold(chars[i]);
+            if (c != chars[i]) {
+                chars[i] = c;
+                folded = true;
+            }
+        }
+
+        final String foldedKey = folded ? new String(chars) : key;
+        if (FOLDED_KEYS.size() < MAX_FOLDED_KEYS) {
+            final String existing = FOLDED_KEYS.putIfAbsent(key, foldedKey);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return foldedKey;
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.rebuildTable(tableSize(this.keys.length));
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, V>> {
+        @Override
+        public int size() {
+            return CaseInsensitiveMap.this.size;
+        }
+
+        @Override
+        public void clear() {
+            CaseInsensitiveMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+            return new EntryIterator();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, V>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = CaseInsensitiveMap.this.modCount;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < CaseInsensitiveMap.this.size;
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            this.checkForComodification();
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next++;
+            return new MapEntry(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            this.checkForComodification();
+
+            CaseInsensitiveMap.this.removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+            this.expectedModCount = CaseInsensitiveMap.this.modCount;
+        }
+
+        private void checkForComodification() {
+            if (this.expectedModCount != CaseInsensitiveMap.this.modCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private final class MapEntry implements Entry<String, V> {
+        private final int index;
+
+        private MapEntry(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return CaseInsensitiveMap.this.keys[this.index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getValue() {
+            return (V) CaseInsensitiveMap.this.values[this.index];
+        }
+
+        @Override
+        public V setValue(final V value) {
+            final V previous = this.getValue();
+            CaseInsensitiveMap.this.values[this.index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry<?, ?> other = (Entry<?, ?>) o;
+            return Objects.equals(this.getKey(), other.getKey()) && Objects.equals(this.getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.getKey()) ^ Objects.hashCode(this.getValue());
+        }
+
+        @Override
+        public String toString() {
+            return this.getKey() + "=" + this.getValue();
+        }
+    }
+}
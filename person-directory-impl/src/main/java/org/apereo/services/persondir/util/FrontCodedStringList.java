@@ -0,0 +1,331 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Immutable sorted List of Strings for attributes with many values like group memberships. The values are stored as
+ * front coded UTF-8, in each bucket of {@link #BUCKET_SIZE} values the first value is stored in full and the following
+ * values only store the length of the prefix they share with the previous value and the rest of their bytes. Values
+ * sharing long prefixes, like group DNs, take a fraction of the memory of separate Strings.
+ * <br>
+ * {@link #contains(Object)} and {@link #indexOf(Object)} do a binary search over the first values of the buckets and
+ * decode a single bucket. {@link #get(int)} decodes the values of a bucket up to the index and creates a new String.
+ * Duplicate values are kept, the values are ordered by their UTF-8 bytes, which is the order of
+ * {@link String#compareTo(String)} except for characters outside the Basic Multilingual Plane.
+ */
+public final class FrontCodedStringList extends AbstractList<Object> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Number of values in a bucket, a lookup decodes up to this many values.
+     */
+    public static final int BUCKET_SIZE = 16;
+
+    private static final FrontCodedStringList EMPTY = new FrontCodedStringList(new byte[0], new int[0], 0);
+
+    private static final Comparator<byte[]> UTF8_ORDER = (first, second) -> compare(first, 0, first.length, second);
+
+    private final byte[] data;
+    private final int[] bucketOffsets;
+    private final int size;
+
+    private FrontCodedStringList(final byte[] data, final int[] bucketOffsets, final int size) {
+        this.data = data;
+        this.bucketOffsets = bucketOffsets;
+        this.size = size;
+    }
+
+    /**
+     * @param values The values to test
+     * @return If all values are non-null Strings, which {@link #valueOf(Collection)} can store
+     */
+    public static boolean isEncodable(final Collection<?> values) {
+        for (final Object value : values) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param values The values to store, all have to be non-null Strings
+     * @return A sorted, front coded copy of the values
+     * @throws IllegalArgumentException if a value is null or not a String
+     */
+    public static FrontCodedStringList valueOf(final Collection<?> values) {
+        Validate.notNull(values, "values can not be null");
+        if (values instanceof FrontCodedStringList) {
+            return (FrontCodedStringList) values;
+        }
+        Validate.isTrue(isEncodable(values), "values can only contain non-null Strings");
+        if (values.isEmpty()) {
+            return EMPTY;
+        }
+
+        final byte[][] sortedValues = new byte[values.size()][];
+        int encodedLength = 0;
+        int i = 0;
+        for (final Object value : values) {
+            sortedValues[i] = ((String) value).getBytes(StandardCharsets.UTF_8);
+            encodedLength += sortedValues[i].length;
+            i++;
+        }
+        Arrays.sort(sortedValues, UTF8_ORDER);
+
+        final int[] bucketOffsets = new int[(sortedValues.length + BUCKET_SIZE - 1) / BUCKET_SIZE];
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(encodedLength);
+        byte[] previous = null;
+        for (i = 0; i < sortedValues.length; i++) {
+            final byte[] value = sortedValues[i];
+            if (i % BUCKET_SIZE == 0) {
+                bucketOffsets[i / BUCKET_SIZE] = data.size();
+                writeLength(data, value.length);
+                data.write(value, 0, value.length);
+            } else {
+                final int prefix = commonPrefix(previous, value);
+                writeLength(data, prefix);
+                writeLength(data, value.length - prefix);
+                data.write(value, prefix, value.length - prefix);
+            }
+            previous = value;
+        }
+
+        return new FrontCodedStringList(data.toByteArray(), bucketOffsets, sortedValues.length);
+    }
+
+    /**
+     * @return The number of bytes holding the front coded values, excluding the bucket offsets
+     */
+    int getEncodedLength() {
+        return this.data.length;
+    }
+
+    @Override
+    public Object get(final int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+
+        final Decoder decoder = new Decoder(index / BUCKET_SIZE);
+        for (int i = index % BUCKET_SIZE; i > 0; i--) {
+            decoder.next();
+        }
+        return decoder.toString();
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return this.indexOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(final Object o) {
+        if (!(o instanceof String) || this.size == 0) {
+            return -1;
+        }
+        final byte[] value = ((String) o).getBytes(StandardCharsets.UTF_8);
+
+        //Last bucket starting with a value less than the value, duplicates may start in the previous bucket
+        int low = 0;
+        int high = this.bucketOffsets.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (this.compareBucketHead(mid, value) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        Decoder decoder = null;
+        for (int index = low * BUCKET_SIZE; index < this.size; index++) {
+            if (index % BUCKET_SIZE == 0) {
+                decoder = new Decoder(index / BUCKET_SIZE);
+            } else {
+                decoder.next();
+            }
+            final int comparison = compare(decoder.buffer, 0, decoder.length, value);
+            if (comparison == 0) {
+                return index;
+            }
+            if (comparison > 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(final Object o) {
+        int index = this.indexOf(o);
+        if (index < 0) {
+            return -1;
+        }
+        while (index + 1 < this.size && o.equals(this.get(index + 1))) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private Decoder decoder;
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < FrontCodedStringList.this.size;
+            }
+
+            @Override
+            public Object next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                if (this.index % BUCKET_SIZE == 0) {
+                    this.decoder = new Decoder(this.index / BUCKET_SIZE);
+                } else {
+                    this.decoder.next();
+                }
+                this.index++;
+                return this.decoder.toString();
+            }
+        };
+    }
+
+    private int compareBucketHead(final int bucket, final byte[] value) {
+        int offset = this.bucketOffsets[bucket];
+        final int length = readLength(this.data, offset);
+        offset += lengthBytes(length);
+        return compare(this.data, offset, length, value);
+    }
+
+    /**
+     * Compares the bytes as unsigned values, which orders UTF-8 by code point.
+     */
+    private static int compare(final byte[] data, final int offset, final int length, final byte[] value) {
+        final int limit = Math.min(length, value.length);
+        for (int i = 0; i < limit; i++) {
+            final int comparison = (data[offset + i] & 0xFF) - (value[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - value.length;
+    }
+
+    private static int commonPrefix(final byte[] first, final byte[] second) {
+        final int limit = Math.min(first.length, second.length);
+        int prefix = 0;
+        while (prefix < limit && first[prefix] == second[prefix]) {
+            prefix++;
+        }
+        return prefix;
+    }
+
+    /**
+     * Lengths are stored in 7 bit chunks, the high bit is set on all but the last byte.
+     */
+    private static void writeLength(final ByteArrayOutputStream data, int length) {
+        while (length >= 0x80) {
+            data.write(0x80 | (length & 0x7F));
+            length >>>= 7;
+        }
+        data.write(length);
+    }
+
+    private static int readLength(final byte[] data, int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static int lengthBytes(int length) {
+        int bytes = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes the values of one bucket in order into a reused buffer.
+     */
+    private final class Decoder {
+        private byte[] buffer;
+        private int length;
+        private int offset;
+
+        private Decoder(final int bucket) {
+            this.offset = FrontCodedStringList.this.bucketOffsets[bucket];
+            this.length = readLength(FrontCodedStringList.this.data, this.offset);
+            this.offset += lengthBytes(this.length);
+            this.buffer = Arrays.copyOfRange(FrontCodedStringList.this.data, this.offset, this.offset + this.length);
+            this.offset += this.length;
+        }
+
+        private void next() {
+            final byte[] data = FrontCodedStringList.this.data;
+            final int prefix = readLength(data, this.offset);
+            this.offset += lengthBytes(prefix);
+            final int suffix = readLength(data, this.offset);
+            this.offset += lengthBytes(suffix);
+
+            this.length = prefix + suffix;
+            if (this.buffer.length < this.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.length, this.buffer.length * 2));
+            }
+            System.arraycopy(data, this.offset, this.buffer, prefix, suffix);
+            this.offset += suffix;
+        }
+
+        @Override
+        public String toString() {
+            return new String(this.buffer, 0, this.length, StandardCharsets.UTF_8);
+        }
+    }
+}
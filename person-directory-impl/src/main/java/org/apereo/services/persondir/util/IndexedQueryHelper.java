@@ -0,0 +1,105 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Matches queries against attribute indexes that identify people by sorted int ids, shared by the DAOs that index
+ * their people when they are loaded.
+ */
+public final class IndexedQueryHelper {
+    private IndexedQueryHelper() {
+    }
+
+    /**
+     * Finds the people matching all indexed attributes of the query. Null and blank query values are ignored, as are
+     * attributes without other values.
+     *
+     * @param query The query to match
+     * @param indexedAttributes If an attribute can be matched, other query attributes are skipped
+     * @param attributePeople Returns the sorted ids of the people matching any of the values of an attribute
+     * @return Sorted ids of the matching people, null if no query attribute could be matched
+     */
+    public static int[] findPeople(final Map<String, List<Object>> query, final Predicate<String> indexedAttributes,
+                                   final BiFunction<String, List<String>, int[]> attributePeople) {
+        //Ids of the people matching all query attributes so far, null until an attribute is matched
+        int[] canidatePeople = null;
+
+        for (final Map.Entry<String, List<Object>> queryEntry : query.entrySet()) {
+            final String entryKey = queryEntry.getKey();
+            if (!indexedAttributes.test(entryKey)) {
+                continue;
+            }
+
+            //Build list of non-blank attribute values
+            final List<String> entryValues = new ArrayList<>();
+            for (final Object entryValue : queryEntry.getValue()) {
+                final String entry;
+                if (entryValue == null || StringUtils.isBlank(entry = entryValue.toString())) {
+                    continue;
+                }
+
+                entryValues.add(entry);
+            }
+
+            //Skip attributes that have no non-blank values
+            if (entryValues.isEmpty()) {
+                continue;
+            }
+
+            final int[] attributeCanidatePeople = attributePeople.apply(entryKey, entryValues);
+            canidatePeople = canidatePeople == null ? attributeCanidatePeople : intersect(canidatePeople, attributeCanidatePeople);
+
+            //If no potential matches are left give up since canidatePeople never grows after the first pass
+            if (canidatePeople.length == 0) {
+                break;
+            }
+        }
+
+        return canidatePeople;
+    }
+
+    /**
+     * @return Sorted array of the ids in both sorted arrays
+     */
+    private static int[] intersect(final int[] first, final int[] second) {
+        final int[] both = new int[Math.min(first.length, second.length)];
+        int length = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                both[length++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return length == both.length ? both : Arrays.copyOf(both, length);
+    }
+}
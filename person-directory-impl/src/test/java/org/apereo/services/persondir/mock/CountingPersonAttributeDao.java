@@ -0,0 +1,81 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.mock;
+
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A mock, test implementation of IPersonAttributeDao which delegates to another
+ * IPersonAttributeDao and records every query it is asked to run.
+ */
+public class CountingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+    private final IPersonAttributeDao delegate;
+    private final List<Map<String, List<Object>>> queries = Collections.synchronizedList(new ArrayList<Map<String, List<Object>>>());
+
+    public CountingPersonAttributeDao(final IPersonAttributeDao delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return The queries run against this DAO in the order they were received
+     */
+    public List<Map<String, List<Object>>> getQueries() {
+        return this.queries;
+    }
+
+    /**
+     * @return The number of queries run against this DAO
+     */
+    public int getQueryCount() {
+        return this.queries.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+        this.queries.add(query);
+        return this.delegate.getPeopleWithMultivaluedAttributes(query);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    @Override
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.delegate.getPossibleUserAttributeNames();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    @Override
+    public Set<String> getAvailableQueryAttributes() {
+        return this.delegate.getAvailableQueryAttributes();
+    }
+}
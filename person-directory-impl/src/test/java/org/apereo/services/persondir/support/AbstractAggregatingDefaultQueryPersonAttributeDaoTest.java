@@ -21,11 +21,14 @@ package org.apereo.services.persondir.support;
 import junit.framework.TestCase;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
 import org.apereo.services.persondir.mock.ThrowingPersonAttributeDao;
 import org.apereo.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.apereo.services.persondir.util.Util;
+import org.springframework.dao.QueryTimeoutException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -139,6 +142,195 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDaoTest exte
 
     }
 
+    public void testAdaptiveOrdering() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+
+        final Map<String, List<Object>> attrMap = new HashMap<>();
+        attrMap.put("username", Util.list("test"));
+        attrMap.put("key1.1", Util.list("val1.1"));
+
+        final CountingPersonAttributeDao throwingDao = new CountingPersonAttributeDao(new ThrowingPersonAttributeDao());
+        final StubPersonAttributeDao stubDao = new StubPersonAttributeDao(attrMap);
+
+        final List<IPersonAttributeDao> childDaos = new ArrayList<>(2);
+        childDaos.add(throwingDao);
+        childDaos.add(stubDao);
+        dao.setPersonAttributeDaos(childDaos);
+        dao.setStopOnSuccess(true);
+
+        //Without adaptive ordering the failing child is always queried first
+        dao.getPerson("test");
+        TestCase.assertEquals(childDaos, dao.getChildDaoQueryOrder());
+
+        dao.setAdaptiveOrdering(true);
+        for (int i = 0; i < 5; i++) {
+            final IPersonAttributes person = dao.getPerson("test");
+            TestCase.assertEquals(new AttributeNamedPersonImpl(attrMap), person);
+        }
+
+        //The failing child was measured once and then moved behind the successful one
+        TestCase.assertEquals(2, throwingDao.getQueryCount());
+        TestCase.assertEquals(Arrays.asList(stubDao, throwingDao), dao.getChildDaoQueryOrder());
+
+        //A pinned child keeps its configured position
+        dao.setPinnedPersonAttributeDaos(Collections.singleton(throwingDao));
+        TestCase.assertEquals(childDaos, dao.getChildDaoQueryOrder());
+        dao.getPerson("test");
+        TestCase.assertEquals(3, throwingDao.getQueryCount());
+    }
+
+    public void testCircuitBreaker() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+
+        final Map<String, List<Object>> attrMap = new HashMap<>();
+        attrMap.put("username", Util.list("test"));
+        attrMap.put("key1.1", Util.list("val1.1"));
+
+        final CountingPersonAttributeDao throwingDao = new CountingPersonAttributeDao(new ThrowingPersonAttributeDao());
+        final StubPersonAttributeDao stubDao = new StubPersonAttributeDao(attrMap);
+
+        final List<IPersonAttributeDao> childDaos = new ArrayList<>(2);
+        childDaos.add(throwingDao);
+        childDaos.add(stubDao);
+        dao.setPersonAttributeDaos(childDaos);
+
+        final CircuitBreakerSettings settings = new CircuitBreakerSettings();
+        settings.setSlidingWindowSize(3);
+        settings.setMinimumNumberOfCalls(3);
+        settings.setWaitDurationInOpenState(60000);
+        dao.setCircuitBreakerSettings(settings);
+
+        for (int i = 0; i < 5; i++) {
+            final IPersonAttributes person = dao.getPerson("test");
+            TestCase.assertEquals(new AttributeNamedPersonImpl(attrMap), person);
+        }
+
+        //Circuit opened after the third failure, the remaining queries skipped the throwing DAO
+        TestCase.assertEquals(3, throwingDao.getQueryCount());
+        TestCase.assertEquals(CircuitBreaker.State.OPEN, dao.getCircuitBreakerStates().get(throwingDao));
+        TestCase.assertEquals(CircuitBreaker.State.CLOSED, dao.getCircuitBreakerStates().get(stubDao));
+
+        //An open circuit fails the query when exceptions are not recovered
+        dao.setRecoverExceptions(false);
+        try {
+            dao.getPerson("test");
+            TestCase.fail("IllegalStateException should have been thrown for the open circuit");
+        } catch (final IllegalStateException ise) {
+            //expected
+        }
+        TestCase.assertEquals(3, throwingDao.getQueryCount());
+    }
+
+    public void testRouteByQueryAttributes() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+
+        final Map<String, List<Object>> attrMap = new HashMap<>();
+        attrMap.put("username", Util.list("test"));
+        attrMap.put("key1.1", Util.list("val1.1"));
+
+        final Map<String, List<Object>> mailAttrMap = new HashMap<>();
+        mailAttrMap.put("mail", Util.list("test@example.edu"));
+        mailAttrMap.put("key2.1", Util.list("val2.1"));
+
+        final StubPersonAttributeDao stubDao = new StubPersonAttributeDao(attrMap);
+        final CountingPersonAttributeDao mailDao = new CountingPersonAttributeDao(
+                new ComplexStubPersonAttributeDao("mail", Collections.singletonMap("test@example.edu", mailAttrMap)));
+
+        final List<IPersonAttributeDao> childDaos = new ArrayList<>(2);
+        childDaos.add(stubDao);
+        childDaos.add(mailDao);
+        dao.setPersonAttributeDaos(childDaos);
+
+        //Without routing every child is queried
+        TestCase.assertEquals(new AttributeNamedPersonImpl(attrMap), dao.getPerson("test"));
+        TestCase.assertEquals(1, mailDao.getQueryCount());
+        TestCase.assertEquals(0, dao.getSkippedChildQueries());
+
+        //The mail DAO can't use any of the query keys and is skipped
+        dao.setRouteByQueryAttributes(true);
+        TestCase.assertEquals(new AttributeNamedPersonImpl(attrMap), dao.getPerson("test"));
+        TestCase.assertEquals(1, mailDao.getQueryCount());
+        TestCase.assertEquals(1, dao.getSkippedChildQueries());
+        TestCase.assertTrue(dao.getRoutedChildQueries() > 0);
+    }
+
+    public void testAttributeNamesCached() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+
+        final Map<String, List<Object>> attrMap = new HashMap<>();
+        attrMap.put("username", Util.list("test"));
+        attrMap.put("key1.1", Util.list("val1.1"));
+
+        final StubPersonAttributeDao stubDao = new StubPersonAttributeDao(attrMap);
+        dao.setPersonAttributeDaos(Collections.<IPersonAttributeDao>singletonList(stubDao));
+
+        final Set<String> possibleNames = dao.getPossibleUserAttributeNames();
+        TestCase.assertEquals(attrMap.keySet(), possibleNames);
+        TestCase.assertSame(possibleNames, dao.getPossibleUserAttributeNames());
+        TestCase.assertSame(dao.getAvailableQueryAttributes(), dao.getAvailableQueryAttributes());
+
+        //Child changes are only seen after a refresh
+        final Map<String, List<Object>> newAttrMap = new HashMap<>(attrMap);
+        newAttrMap.put("key1.2", Util.list("val1.2"));
+        stubDao.setBackingMap(newAttrMap);
+        TestCase.assertEquals(attrMap.keySet(), dao.getPossibleUserAttributeNames());
+
+        dao.refreshAttributeNames();
+        TestCase.assertEquals(newAttrMap.keySet(), dao.getPossibleUserAttributeNames());
+    }
+
+    public void testQueryDeadline() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+
+        final Map<String, List<Object>> attrMap = new HashMap<>();
+        attrMap.put("username", Util.list("test"));
+        attrMap.put("key1.1", Util.list("val1.1"));
+
+        final Map<String, List<Object>> lateAttrMap = new HashMap<>();
+        lateAttrMap.put("username", Util.list("test"));
+        lateAttrMap.put("key2.1", Util.list("val2.1"));
+
+        final StubPersonAttributeDao slowDao = new StubPersonAttributeDao(attrMap) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        final CountingPersonAttributeDao lateDao = new CountingPersonAttributeDao(new StubPersonAttributeDao(lateAttrMap));
+
+        final List<IPersonAttributeDao> childDaos = new ArrayList<>(2);
+        childDaos.add(slowDao);
+        childDaos.add(lateDao);
+        dao.setPersonAttributeDaos(childDaos);
+        dao.setReturnPartialResults(true);
+
+        //The deadline passes while the first child runs, the second child is skipped
+        try (final QueryDeadline deadline = QueryDeadline.start(10)) {
+            final IPersonAttributes person = dao.getPerson("test");
+            TestCase.assertEquals(new AttributeNamedPersonImpl(attrMap), person);
+            TestCase.assertTrue(deadline.isPartialResults());
+        }
+        TestCase.assertEquals(0, lateDao.getQueryCount());
+
+        //Without partial results the skipped child is reported like a failure
+        dao.setReturnPartialResults(false);
+        dao.setRecoverExceptions(false);
+        dao.setQueryTimeout(10);
+        try {
+            dao.getPerson("test");
+            TestCase.fail("QueryTimeoutException should have been thrown");
+        } catch (final QueryTimeoutException e) {
+            //expected
+        }
+        TestCase.assertEquals(0, lateDao.getQueryCount());
+        TestCase.assertNull(QueryDeadline.current());
+    }
+
     public void testSetNullMerger() {
         final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
 
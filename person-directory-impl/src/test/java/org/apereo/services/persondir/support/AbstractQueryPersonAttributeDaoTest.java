@@ -22,9 +22,14 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.AbstractPersonAttributeDaoTest;
 import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.util.AttributeValueInterner;
 import org.apereo.services.persondir.util.CaseCanonicalizationMode;
 import org.apereo.services.persondir.util.Util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,6 +37,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -277,6 +283,172 @@ public class AbstractQueryPersonAttributeDaoTest extends AbstractPersonAttribute
         assertEquals(Util.genList("dalquist"), result.getAttributeValues("name.last"));
     }
 
+    public void testMapPersonAttributes_Lazy() throws Exception {
+        final Map<String, List<Object>> storedAttrs = new HashMap<>();
+        storedAttrs.put("username", Util.list("EDALQUIST"));
+        storedAttrs.put("name.first", Util.list("Eric"));
+        storedAttrs.put("name.last", Util.list("Dalquist"));
+        storedAttrs.put("name.nick", Util.list("Ed"));
+
+        final Map<String, Object> resultAttributeMappings = new LinkedHashMap<>();
+        resultAttributeMappings.put("username", null);
+        resultAttributeMappings.put("name.first", new LinkedHashSet<>(Arrays.asList("fname", "givenName")));
+        resultAttributeMappings.put("name.last", "lname");
+        resultAttributeMappings.put("name.nick", "givenName");
+
+        final Map<String, CaseCanonicalizationMode> caseInsensitiveAttributes = new HashMap<>();
+        caseInsensitiveAttributes.put("fname", CaseCanonicalizationMode.UPPER);
+        caseInsensitiveAttributes.put("lname", CaseCanonicalizationMode.LOWER);
+
+        final InMemoryAbstractQueryPersonAttributeDao eagerDao = new InMemoryAbstractQueryPersonAttributeDao(storedAttrs);
+        final InMemoryAbstractQueryPersonAttributeDao lazyDao = new InMemoryAbstractQueryPersonAttributeDao(storedAttrs);
+        for (final InMemoryAbstractQueryPersonAttributeDao dao : Arrays.asList(eagerDao, lazyDao)) {
+            dao.setResultAttributeMapping(resultAttributeMappings);
+            dao.setCaseInsensitiveResultAttributes(caseInsensitiveAttributes);
+            dao.setUsernameCaseCanonicalizationMode(CaseCanonicalizationMode.LOWER);
+        }
+        lazyDao.setLazyPersonAttributes(true);
+
+        final Map<String, List<Object>> seed = new HashMap<>();
+        seed.put("username", Collections.singletonList((Object) "edalquist"));
+
+        final IPersonAttributes eagerResult = eagerDao.getPeopleWithMultivaluedAttributes(seed).iterator().next();
+        final IPersonAttributes lazyResult = lazyDao.getPeopleWithMultivaluedAttributes(seed).iterator().next();
+        assertTrue(lazyResult instanceof LazyMappedPersonImpl);
+
+        assertEquals("edalquist", lazyResult.getName());
+        assertEquals(Util.list("ERIC"), lazyResult.getAttributeValues("fname"));
+        //Two data attributes are mapped to givenName, the same one has to win as for eager mapping
+        assertEquals(eagerResult.getAttributeValues("givenName"), lazyResult.getAttributeValues("givenName"));
+        assertEquals("dalquist", lazyResult.getAttributeValue("lname"));
+        assertNull(lazyResult.getAttributeValues("name.first"));
+        assertEquals(eagerResult.getAttributes(), lazyResult.getAttributes());
+        assertEquals(new ArrayList<>(eagerResult.getAttributes().keySet()), new ArrayList<>(lazyResult.getAttributes().keySet()));
+        assertEquals(eagerResult, lazyResult);
+        assertEquals(eagerResult.hashCode(), lazyResult.hashCode());
+
+        //Requested attributes are captured when the person is mapped
+        final IPersonAttributes requestedResult;
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("lname"))) {
+            requestedResult = lazyDao.getPeopleWithMultivaluedAttributes(seed).iterator().next();
+        }
+        assertEquals(new HashSet<>(Arrays.asList("username", "lname")), requestedResult.getAttributes().keySet());
+        assertNull(requestedResult.getAttributeValues("fname"));
+
+        //People are serialized with all attributes mapped
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(lazyResult);
+        }
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            final IPersonAttributes deserialized = (IPersonAttributes) in.readObject();
+            assertEquals("edalquist", deserialized.getName());
+            assertEquals(eagerResult.getAttributes(), deserialized.getAttributes());
+        }
+    }
+
+    public void testCreateCaseInsensitivePerson_Lazy() throws Exception {
+        final Map<String, List<Object>> storedAttrs = new LinkedHashMap<>();
+        storedAttrs.put("UID", Util.list("EDALQUIST"));
+        storedAttrs.put("givenName", Util.list("Eric"));
+
+        final Map<String, Object> resultAttributeMappings = new LinkedHashMap<>();
+        resultAttributeMappings.put("uid", "username");
+        resultAttributeMappings.put("GIVENNAME", "fname");
+
+        final RawAttributesQueryPersonAttributeDao dao = new RawAttributesQueryPersonAttributeDao(storedAttrs);
+        dao.setUnmappedUsernameAttribute("uid");
+        dao.setResultAttributeMapping(resultAttributeMappings);
+        dao.setUsernameCaseCanonicalizationMode(CaseCanonicalizationMode.LOWER);
+        dao.setLazyPersonAttributes(true);
+
+        final Map<String, List<Object>> seed = new HashMap<>();
+        seed.put("username", Util.list("edalquist"));
+
+        final IPersonAttributes result = dao.getPeopleWithMultivaluedAttributes(seed).iterator().next();
+        assertTrue(result instanceof LazyMappedPersonImpl);
+
+        //The mapping configured when the person was read is used, even if it is changed before the attributes are read
+        dao.setResultAttributeMapping(Collections.singletonMap("uid", "otherName"));
+        dao.setUsernameCaseCanonicalizationMode(CaseCanonicalizationMode.UPPER);
+
+        //Data attributes are looked up ignoring case
+        assertEquals("edalquist", result.getName());
+        assertEquals(Util.list("EDALQUIST"), result.getAttributeValues("username"));
+        assertEquals(Util.list("Eric"), result.getAttributeValues("fname"));
+        assertNull(result.getAttributeValues("otherName"));
+        assertEquals(new HashSet<>(Arrays.asList("username", "fname")), result.getAttributes().keySet());
+    }
+
+    public void testLazyPersonMapsAttributesOnce() throws Exception {
+        final Map<String, List<Object>> storedAttrs = new LinkedHashMap<>();
+        storedAttrs.put("uid", Util.list("edalquist"));
+        storedAttrs.put("givenName", Util.list("Eric"));
+
+        final List<String> mappedNames = new ArrayList<>();
+        final LazyMappedPersonImpl person = new LazyMappedPersonImpl(null, "UID", storedAttrs, true,
+                new LazyMappedPersonImpl.AttributeMapper() {
+                    @Override
+                    public Set<String> getAttributeNames(final Map<String, List<Object>> sourceAttributes) {
+                        return sourceAttributes.keySet();
+                    }
+
+                    @Override
+                    public List<Object> getAttributeValues(final Map<String, List<Object>> sourceAttributes, final String name) {
+                        mappedNames.add(name);
+                        return sourceAttributes.get(name);
+                    }
+
+                    @Override
+                    public String getName(final String sourceName, final IPersonAttributes mappedPerson) {
+                        return sourceName;
+                    }
+                });
+
+        assertEquals("edalquist", person.getName());
+        assertEquals(Util.list("Eric"), person.getAttributeValues("givenName"));
+        assertSame(person.getAttributeValues("givenName"), person.getAttributeValues("givenName"));
+        assertEquals(Util.list("Eric"), person.getAttributeValues("GIVENNAME"));
+
+        //Names the person doesn't have are not mapped
+        assertNull(person.getAttributeValues("mail"));
+        assertNull(person.getAttributes().get("mail"));
+        assertEquals(Arrays.asList("givenName", "GIVENNAME"), mappedNames);
+    }
+
+    public void testMapPersonAttributes_Interned() throws Exception {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setInternedAttributes(Collections.singleton("affiliation"));
+        final Object student = interner.intern(new String("student".toCharArray()));
+
+        final Map<String, List<Object>> storedAttrs = new HashMap<>();
+        storedAttrs.put("username", Util.list("edalquist"));
+        storedAttrs.put("eduPersonAffiliation", Util.list(new String("student".toCharArray())));
+        storedAttrs.put("name.first", Util.list(new String("student".toCharArray())));
+
+        final Map<String, Object> resultAttributeMappings = new LinkedHashMap<>();
+        resultAttributeMappings.put("username", null);
+        resultAttributeMappings.put("eduPersonAffiliation", "affiliation");
+        resultAttributeMappings.put("name.first", "givenName");
+
+        final Map<String, List<Object>> seed = new HashMap<>();
+        seed.put("username", Util.list("edalquist"));
+
+        for (final boolean lazy : Arrays.asList(false, true)) {
+            final InMemoryAbstractQueryPersonAttributeDao dao = new InMemoryAbstractQueryPersonAttributeDao(storedAttrs);
+            dao.setResultAttributeMapping(resultAttributeMappings);
+            dao.setLazyPersonAttributes(lazy);
+            dao.setAttributeValueInterner(interner);
+
+            final IPersonAttributes result = dao.getPeopleWithMultivaluedAttributes(seed).iterator().next();
+            assertEquals("edalquist", result.getName());
+            assertSame(student, result.getAttributeValue("affiliation"));
+            //Values are interned by mapped attribute names
+            assertEquals(student, result.getAttributeValue("givenName"));
+            assertNotSame(student, result.getAttributeValue("givenName"));
+        }
+    }
+
     @Override
     protected IPersonAttributeDao getPersonAttributeDaoInstance() {
         return testQueryPersonAttributeDao;
@@ -308,6 +480,33 @@ public class AbstractQueryPersonAttributeDaoTest extends AbstractPersonAttribute
         }
     }
 
+    /**
+     * Builds its people from the stored attributes the way the JDBC and LDAP DAOs do.
+     */
+    private static class RawAttributesQueryPersonAttributeDao extends AbstractQueryPersonAttributeDao<List<List<Object>>> {
+        private final Map<String, List<Object>> storedAttrs;
+
+        RawAttributesQueryPersonAttributeDao(final Map<String, List<Object>> storedAttrs) {
+            this.storedAttrs = storedAttrs;
+        }
+
+        @Override
+        protected List<IPersonAttributes> getPeopleForQuery(final List<List<Object>> queryBuilder, final String queryUserName) {
+            return Collections.singletonList(this.createCaseInsensitivePerson(null, this.getConfiguredUserNameAttribute(), this.storedAttrs));
+        }
+
+        @Override
+        protected List<List<Object>> appendAttributeToQuery(List<List<Object>> queryBuilder, final String dataAttribute, final List<Object> queryValues) {
+            if (queryBuilder == null) {
+                queryBuilder = new LinkedList<>();
+            }
+
+            queryBuilder.add(queryValues);
+
+            return queryBuilder;
+        }
+    }
+
     public static class TestQueryPersonAttributeDao extends AbstractQueryPersonAttributeDao<List<List<Object>>> {
         private List<List<Object>> args = null;
 
@@ -0,0 +1,182 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
+import org.apereo.services.persondir.util.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link BloomFilterPersonAttributeDao}.
+ */
+public class BloomFilterPersonAttributeDaoTest extends AbstractDefaultQueryPersonAttributeDaoTest {
+    private Map<String, Map<String, List<Object>>> backingMap;
+    private CountingPersonAttributeDao countingDao;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.backingMap = new HashMap<>();
+        this.addPerson("jdoe");
+        this.countingDao = new CountingPersonAttributeDao(new ComplexStubPersonAttributeDao(this.backingMap));
+    }
+
+    @Override
+    protected AbstractDefaultAttributePersonAttributeDao getAbstractDefaultQueryPersonAttributeDao() {
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        dao.setFilteredPersonAttributeDao(new StubPersonAttributeDao(new HashMap<>()));
+        return dao;
+    }
+
+    public void testFiltersUnknownUsernames() throws Exception {
+        final BloomFilterPersonAttributeDao dao = this.createDao();
+        assertEquals(1, dao.getScannedUsernames());
+
+        assertNull(dao.getPerson("guest"));
+        assertEquals(0, this.countingDao.getQueryCount());
+
+        final IPersonAttributes person = dao.getPerson("jdoe");
+        assertEquals(Util.list("jdoe@example.edu"), person.getAttributeValues("mail"));
+        assertEquals(1, this.countingDao.getQueryCount());
+
+        //Wildcard queries can't be checked against the filter
+        dao.getPeopleWithMultivaluedAttributes(Collections.singletonMap("username", Util.list("jd*")));
+        assertEquals(2, this.countingDao.getQueryCount());
+
+        assertEquals(3, dao.getQueries());
+        assertEquals(1, dao.getFilteredQueries());
+    }
+
+    public void testFailedScanQueriesSource() throws Exception {
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        dao.setFilteredPersonAttributeDao(this.countingDao);
+        dao.setUsernameScanner(usernames -> {
+            throw new IllegalStateException("Scan failed");
+        });
+        dao.afterPropertiesSet();
+
+        assertNull(dao.getPerson("guest"));
+        assertEquals(1, this.countingDao.getQueryCount());
+        assertEquals(0, dao.getFilteredQueries());
+    }
+
+    public void testRefresh() throws Exception {
+        final BloomFilterPersonAttributeDao dao = this.createDao();
+        dao.setRefreshInterval(1);
+        final List<Runnable> refreshTasks = new ArrayList<>();
+        dao.setRefreshExecutor(refreshTasks::add);
+
+        this.addPerson("guest");
+        Thread.sleep(5);
+
+        //The query that finds the filter out of date still uses it, the filter is rebuilt on the executor
+        assertNull(dao.getPerson("guest"));
+        assertEquals(0, this.countingDao.getQueryCount());
+        assertEquals(1, refreshTasks.size());
+        refreshTasks.get(0).run();
+        assertEquals(2, dao.getScannedUsernames());
+        dao.setRefreshInterval(0);
+
+        dao.getPerson("guest");
+        assertEquals(1, this.countingDao.getQueryCount());
+        assertEquals(1, dao.getFilteredQueries());
+    }
+
+    public void testDefaultBackgroundRefresh() throws Exception {
+        final BloomFilterPersonAttributeDao dao = this.createDao();
+        dao.setRefreshInterval(1);
+
+        this.addPerson("guest");
+        Thread.sleep(5);
+
+        //Without an executor the filter is rebuilt on the shared background threads
+        dao.getPerson("guest");
+        for (int i = 0; i < 500 && dao.getScannedUsernames() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, dao.getScannedUsernames());
+    }
+
+    public void testResizeForLargeSource() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            this.addPerson("user" + i);
+        }
+
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        dao.setExpectedUsernames(10);
+        dao.setFilteredPersonAttributeDao(this.countingDao);
+        dao.setUsernameScanner(usernames -> this.backingMap.keySet().forEach(usernames));
+        dao.afterPropertiesSet();
+        assertEquals(1001, dao.getScannedUsernames());
+
+        //The filter is rebuilt for the scanned number of usernames, keeping the false positive probability low
+        for (int i = 0; i < 1000; i++) {
+            assertNull(dao.getPerson("guest" + i));
+        }
+        assertTrue(dao.getFilteredQueries() > 950);
+    }
+
+    public void testIgnoreUsernameCase() throws Exception {
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        dao.setIgnoreUsernameCase(true);
+        dao.setFilteredPersonAttributeDao(this.countingDao);
+        dao.setUsernameScanner(usernames -> usernames.accept("JDoe"));
+        dao.afterPropertiesSet();
+
+        assertNotNull(dao.getPerson("jdoe"));
+        assertEquals(1, this.countingDao.getQueryCount());
+        assertEquals(0, dao.getFilteredQueries());
+    }
+
+    public void testMemoryBudget() {
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        assertEquals(0.01, dao.getFalsePositiveProbability(1000000));
+
+        //1,000,000 usernames at 1% need about 1.2MB
+        dao.setMaxFilterBytes(2 * 1024 * 1024);
+        assertEquals(0.01, dao.getFalsePositiveProbability(1000000));
+
+        dao.setMaxFilterBytes(500 * 1024);
+        final double fpp = dao.getFalsePositiveProbability(1000000);
+        assertTrue(fpp > 0.01);
+        assertTrue(fpp < 0.2);
+    }
+
+    private BloomFilterPersonAttributeDao createDao() throws Exception {
+        final BloomFilterPersonAttributeDao dao = new BloomFilterPersonAttributeDao();
+        dao.setFilteredPersonAttributeDao(this.countingDao);
+        dao.setUsernameScanner(usernames -> this.backingMap.keySet().forEach(usernames));
+        dao.afterPropertiesSet();
+        return dao;
+    }
+
+    private void addPerson(final String username) {
+        final Map<String, List<Object>> attributes = new HashMap<>();
+        attributes.put("username", Util.list(username));
+        attributes.put("mail", Util.list(username + "@example.edu"));
+        this.backingMap.put(username, attributes);
+    }
+}
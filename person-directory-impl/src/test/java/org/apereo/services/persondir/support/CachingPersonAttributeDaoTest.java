@@ -19,9 +19,12 @@
 package org.apereo.services.persondir.support;
 
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
+import org.apereo.services.persondir.support.merger.ReplacingAttributeAdder;
 import org.apereo.services.persondir.util.Util;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -196,6 +199,110 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
     }
 
 
+    public void testPartialResultsNotCached() throws Exception {
+        final Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<>();
+
+        final Map<String, List<Object>> user1 = this.stubDao.getBackingMap().get("edalquist");
+        final StubPersonAttributeDao slowDao = new StubPersonAttributeDao(user1) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+                try {
+                    Thread.sleep(200);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        final CountingPersonAttributeDao lateDao = new CountingPersonAttributeDao(new StubPersonAttributeDao(user1));
+
+        //The merging DAO closes its own deadline before the caching DAO gets the results
+        final MergingPersonAttributeDaoImpl mergingDao = new MergingPersonAttributeDaoImpl();
+        mergingDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        mergingDao.setPersonAttributeDaos(Arrays.asList(slowDao, lateDao));
+        mergingDao.setMerger(new ReplacingAttributeAdder());
+        mergingDao.setQueryTimeout(50);
+        mergingDao.setReturnPartialResults(true);
+
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(mergingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(cacheMap);
+        dao.afterPropertiesSet();
+
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(0, lateDao.getQueryCount());
+        assertEquals("Partial results should not be cached", 0, cacheMap.size());
+        assertNull(QueryDeadline.current());
+
+        //Complete results are cached even if the caller's own deadline was already flagged
+        mergingDao.setQueryTimeout(0);
+        try (final QueryDeadline deadline = QueryDeadline.start(60000)) {
+            deadline.markPartialResults();
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        }
+        assertEquals(1, lateDao.getQueryCount());
+        assertEquals(1, cacheMap.size());
+    }
+
+    public void testRequestedAttributesCachedSeparately() throws Exception {
+        final Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<>();
+
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(cacheMap);
+        dao.afterPropertiesSet();
+
+        //Only the requested attribute is returned
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("phone"))) {
+            final Map<String, List<Object>> result = dao.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Util.list("777-7777"), result.get("phone"));
+            assertNull(result.get("displayName"));
+        }
+        assertEquals(1, cacheMap.size());
+
+        //Results for requested attributes are not used for complete queries
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(2, cacheMap.size());
+        assertEquals(2, dao.getMisses());
+
+        //Complete results are used for requested attributes
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("displayName"))) {
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        }
+        assertEquals(2, cacheMap.size());
+        assertEquals(2, dao.getMisses());
+
+        //Removing the user removes the results for requested attributes as well
+        dao.removeUserAttributes("edalquist");
+        assertEquals(0, cacheMap.size());
+
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("phone"))) {
+            dao.getMultivaluedUserAttributes("edalquist");
+        }
+        assertEquals(1, cacheMap.size());
+        assertEquals(3, dao.getMisses());
+    }
+
+    public void testCompactCachedPeople() throws Exception {
+        final Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<>();
+
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(cacheMap);
+        dao.setCompactCachedPeople(true);
+        dao.afterPropertiesSet();
+
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        final Set<IPersonAttributes> cachedPeople = cacheMap.values().iterator().next();
+        assertTrue(cachedPeople.iterator().next() instanceof CompactPersonImpl);
+
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(1, dao.getMisses());
+    }
+
     public void testMulipleAttributeKeys() throws Exception {
         final Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<>();
 
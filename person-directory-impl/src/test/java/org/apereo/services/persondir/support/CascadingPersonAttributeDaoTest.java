@@ -19,14 +19,23 @@
 package org.apereo.services.persondir.support;
 
 import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
 import org.apereo.services.persondir.mock.ThrowingPersonAttributeDao;
 import org.apereo.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.apereo.services.persondir.util.Util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * CascadingPersonAttributeDao testcase.
@@ -196,6 +205,231 @@ public class CascadingPersonAttributeDaoTest
         assertNull(results);
     }
 
+    public void testWildcardCascadeQueriesEachPersonOnce() {
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        final List<IPersonAttributeDao> targets = new ArrayList<>();
+        targets.add(this.createNamedSource());
+        targets.add(countingSourceTwo);
+
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(targets);
+
+        final Set<IPersonAttributes> results = targetDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+
+        assertEquals(3, results.size());
+        assertEquals(3, countingSourceTwo.getQueryCount());
+        for (final IPersonAttributes person : results) {
+            assertNotNull(person.getAttributeValue("major"));
+        }
+    }
+
+    public void testWildcardCascadeRunsIdenticalChildQueriesOnce() {
+        final Map<String, Map<String, List<Object>>> backingMap = new LinkedHashMap<>();
+        for (final String username : Arrays.asList("edalquist", "EDALQUIST")) {
+            final Map<String, List<Object>> attributes = new HashMap<>();
+            attributes.put("username", Util.list(username));
+            attributes.put("studentId", Util.list("123456789"));
+            backingMap.put(username, attributes);
+        }
+        final ComplexStubPersonAttributeDao namedSource = new ComplexStubPersonAttributeDao(backingMap);
+        namedSource.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("username"));
+
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        //Usernames are case insensitive, both people produce the same child query
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao() {
+            @Override
+            protected Map<String, List<Object>> toSeedMap(final String uid) {
+                return super.toSeedMap(uid.toLowerCase());
+            }
+        };
+        targetDao.setPersonAttributeDaos(Arrays.asList(namedSource, countingSourceTwo));
+        targetDao.setQueryAttributeForwarding(Collections.singletonMap(countingSourceTwo, Collections.singleton("studentId")));
+
+        final Set<IPersonAttributes> results = targetDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+
+        assertEquals(2, results.size());
+        assertEquals(1, countingSourceTwo.getQueryCount());
+    }
+
+    public void testRoutedCascadeBuildsChildQueriesOnce() {
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+        final AtomicInteger builtChildQueries = new AtomicInteger();
+
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao() {
+            @Override
+            protected Map<String, List<Object>> buildChildQuery(final IPersonAttributeDao currentlyConsidering, final IPersonAttributes person) {
+                builtChildQueries.incrementAndGet();
+                return super.buildChildQuery(currentlyConsidering, person);
+            }
+        };
+        targetDao.setPersonAttributeDaos(Arrays.asList(this.createNamedSource(), countingSourceTwo));
+        targetDao.setRouteByQueryAttributes(true);
+
+        final Set<IPersonAttributes> results = targetDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+
+        assertEquals(3, results.size());
+        assertEquals(3, countingSourceTwo.getQueryCount());
+        assertEquals(3, builtChildQueries.get());
+    }
+
+    public void testWildcardCascadeWithExecutor() {
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        final List<IPersonAttributeDao> targets = new ArrayList<>();
+        targets.add(this.createNamedSource());
+        targets.add(countingSourceTwo);
+
+        final CascadingPersonAttributeDao sequentialDao = new CascadingPersonAttributeDao();
+        sequentialDao.setPersonAttributeDaos(targets);
+        final Set<IPersonAttributes> expected = sequentialDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CascadingPersonAttributeDao parallelDao = new CascadingPersonAttributeDao();
+            parallelDao.setPersonAttributeDaos(targets);
+            parallelDao.setChildQueryExecutor(executor);
+
+            final Set<IPersonAttributes> results = parallelDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+
+            assertEquals(expected, results);
+            for (final IPersonAttributes person : results) {
+                final IPersonAttributes expectedPerson = findPerson(expected, person.getName());
+                assertEquals(expectedPerson.getAttributes(), person.getAttributes());
+            }
+            assertEquals(6, countingSourceTwo.getQueryCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testThrowingChildDaoWithExecutor() {
+        final List<IPersonAttributeDao> targets = new ArrayList<>();
+        targets.add(this.createNamedSource());
+        targets.add(new ThrowingPersonAttributeDao());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+            targetDao.setPersonAttributeDaos(targets);
+            targetDao.setChildQueryExecutor(executor);
+            targetDao.setRecoverExceptions(false);
+
+            try {
+                targetDao.getPeople(Collections.singletonMap("username", (Object) "*"));
+                fail("RuntimeException should have been thrown by the child DAO");
+            } catch (final RuntimeException re) {
+                assertEquals("ThrowingPersonAttributeDao always throws", re.getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testForwardAvailableQueryAttributesOnly() {
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        final List<IPersonAttributeDao> targets = new ArrayList<>();
+        targets.add(this.sourceOne);
+        targets.add(countingSourceTwo);
+
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(targets);
+        targetDao.setMerger(new MultivaluedAttributeMerger());
+        targetDao.setForwardAvailableQueryAttributesOnly(true);
+
+        final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+
+        final Map<String, List<Object>> expected = new HashMap<>();
+        expected.put("username", Util.list("edalquist"));
+        expected.put("studentId", Util.list("123456789"));
+        expected.put("major", Util.list("CS"));
+        expected.put("phone", Util.list("777-7777", "777-7777x777"));
+        assertEquals(expected, results);
+
+        final Map<String, List<Object>> expectedQuery = new LinkedHashMap<>();
+        expectedQuery.put("username", Util.list("edalquist"));
+        expectedQuery.put("studentId", Util.list("123456789"));
+        assertEquals(Collections.singletonList(expectedQuery), countingSourceTwo.getQueries());
+    }
+
+    public void testExplicitQueryAttributeForwarding() {
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        final List<IPersonAttributeDao> targets = new ArrayList<>();
+        targets.add(this.sourceOne);
+        targets.add(countingSourceTwo);
+
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(targets);
+        targetDao.setQueryAttributeForwarding(Collections.singletonMap(countingSourceTwo, Collections.singleton("phone")));
+
+        final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+
+        //studentId is not forwarded so sourceTwo can't find the person
+        final Map<String, List<Object>> expected = new HashMap<>();
+        expected.put("phone", Util.list("777-7777"));
+        expected.put("studentId", Util.list("123456789"));
+        assertEquals(expected, results);
+
+        final Map<String, List<Object>> expectedQuery = new LinkedHashMap<>();
+        expectedQuery.put("username", Util.list("edalquist"));
+        expectedQuery.put("phone", Util.list("777-7777"));
+        assertEquals(Collections.singletonList(expectedQuery), countingSourceTwo.getQueries());
+    }
+
+    public void testRequestedAttributes() {
+        final CountingPersonAttributeDao countingSourceOne = new CountingPersonAttributeDao(this.sourceOne);
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(Arrays.asList(countingSourceOne, countingSourceTwo));
+
+        //sourceOne provides phone, sourceTwo is not needed
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("phone"))) {
+            final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Util.list("777-7777"), results.get("phone"));
+        }
+        assertEquals(1, countingSourceOne.getQueryCount());
+        assertEquals(0, countingSourceTwo.getQueryCount());
+        assertEquals(1, targetDao.getCompletedRequestedAttributesQueries());
+
+        //sourceOne can't provide major but sourceTwo needs its studentId to find it
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("major"))) {
+            final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Util.list("CS"), results.get("major"));
+        }
+        assertEquals(2, countingSourceOne.getQueryCount());
+        assertEquals(1, countingSourceTwo.getQueryCount());
+        assertEquals(0, targetDao.getSkippedRequestedAttributesQueries());
+    }
+
+    private static IPersonAttributes findPerson(final Set<IPersonAttributes> people, final String name) {
+        for (final IPersonAttributes person : people) {
+            if (name.equals(person.getName())) {
+                return person;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same data as sourceOne but with the username included as an attribute so wildcard results are named.
+     */
+    private ComplexStubPersonAttributeDao createNamedSource() {
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<>();
+        for (final Map.Entry<String, Map<String, List<Object>>> entry : this.sourceOne.getBackingMap().entrySet()) {
+            final Map<String, List<Object>> attributes = new HashMap<>(entry.getValue());
+            attributes.put("username", Util.list(entry.getKey()));
+            backingMap.put(entry.getKey(), attributes);
+        }
+
+        final ComplexStubPersonAttributeDao namedSource = new ComplexStubPersonAttributeDao(backingMap);
+        namedSource.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("username"));
+        return namedSource;
+    }
+
     /**
      * @see AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao()
      */
@@ -0,0 +1,150 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CircuitBreaker testcase.
+ */
+public class CircuitBreakerTest extends TestCase {
+    private CircuitBreakerSettings settings;
+    private ManualClockCircuitBreaker circuitBreaker;
+
+    @Override
+    protected void setUp() {
+        this.settings = new CircuitBreakerSettings();
+        this.settings.setSlidingWindowSize(4);
+        this.settings.setMinimumNumberOfCalls(4);
+        this.settings.setFailureRateThreshold(0.5);
+        this.settings.setWaitDurationInOpenState(1000);
+        this.settings.setRejectionLogInterval(5000);
+
+        this.circuitBreaker = new ManualClockCircuitBreaker(this.settings);
+    }
+
+    public void testOpensOnFailureRate() {
+        this.recordCalls(false, false, true);
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+
+        //Fourth call reaches minimumNumberOfCalls with 2/4 failures
+        this.recordCalls(true);
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertFalse(this.circuitBreaker.tryAcquirePermission());
+        assertEquals(1, this.circuitBreaker.getRejectedCalls());
+    }
+
+    public void testSlidingWindowDropsOldCalls() {
+        this.recordCalls(true, false, false, false, false, false);
+        assertEquals(0.0, this.circuitBreaker.getFailureRate());
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+    }
+
+    public void testOpensOnSlowCalls() {
+        this.settings.setSlowCallDurationThreshold(100);
+        this.settings.setSlowCallRateThreshold(0.75);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(this.circuitBreaker.tryAcquirePermission());
+            this.circuitBreaker.recordCall(150, false);
+        }
+        assertTrue(this.circuitBreaker.tryAcquirePermission());
+        this.circuitBreaker.recordCall(10, false);
+
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+    }
+
+    public void testHalfOpenProbe() {
+        this.recordCalls(true, true, true, true);
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+
+        this.circuitBreaker.advance(999);
+        assertFalse(this.circuitBreaker.tryAcquirePermission());
+
+        this.circuitBreaker.advance(1);
+        assertTrue(this.circuitBreaker.tryAcquirePermission());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.circuitBreaker.getState());
+
+        //Only one probe at a time
+        assertFalse(this.circuitBreaker.tryAcquirePermission());
+
+        //Failed probe opens the circuit again
+        this.circuitBreaker.recordCall(0, true);
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+
+        this.circuitBreaker.advance(1000);
+        assertTrue(this.circuitBreaker.tryAcquirePermission());
+        this.circuitBreaker.recordCall(0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertEquals(0.0, this.circuitBreaker.getFailureRate());
+    }
+
+    public void testRejectionLogRateLimit() {
+        this.recordCalls(true, true, true, true);
+
+        assertEquals(1, this.circuitBreaker.shouldLogRejection());
+        assertEquals(0, this.circuitBreaker.shouldLogRejection());
+        assertEquals(0, this.circuitBreaker.shouldLogRejection());
+
+        this.circuitBreaker.advance(5000);
+        assertEquals(3, this.circuitBreaker.shouldLogRejection());
+    }
+
+    public void testInvalidSettings() {
+        try {
+            this.settings.setFailureRateThreshold(0);
+            fail("IllegalArgumentException should have been thrown for a 0 failureRateThreshold");
+        } catch (final IllegalArgumentException iae) {
+            //expected
+        }
+
+        try {
+            this.settings.setSlidingWindowSize(0);
+            fail("IllegalArgumentException should have been thrown for a 0 slidingWindowSize");
+        } catch (final IllegalArgumentException iae) {
+            //expected
+        }
+    }
+
+    private void recordCalls(final boolean... failures) {
+        for (final boolean failed : failures) {
+            assertTrue(this.circuitBreaker.tryAcquirePermission());
+            this.circuitBreaker.recordCall(0, failed);
+        }
+    }
+
+    private static class ManualClockCircuitBreaker extends CircuitBreaker {
+        private long now = 0;
+
+        public ManualClockCircuitBreaker(final CircuitBreakerSettings settings) {
+            super(settings);
+        }
+
+        public void advance(final long millis) {
+            this.now += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        protected long now() {
+            return this.now;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.FrontCodedStringList;
+import org.apereo.services.persondir.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * CompactPersonImpl testcase, including a comparison of the heap used by cached people.
+ */
+public class CompactPersonImplTest extends TestCase {
+    private static final int BENCHMARK_PEOPLE = 20000;
+    private static final int BENCHMARK_ATTRIBUTES = 12;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private Map<String, List<Object>> attributes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.attributes = new LinkedHashMap<>();
+        this.attributes.put("username", Util.list("jdoe"));
+        this.attributes.put("mail", Util.list("jdoe@example.edu"));
+        this.attributes.put("eduPersonAffiliation", Util.list("student", "member"));
+        this.attributes.put("middleName", Util.list((Object) null));
+        this.attributes.put("nickName", new ArrayList<>());
+        this.attributes.put("title", null);
+    }
+
+    public void testAttributes() {
+        final CompactPersonImpl person = new CompactPersonImpl("jdoe", this.attributes);
+        final NamedPersonImpl namedPerson = new NamedPersonImpl("jdoe", this.attributes);
+
+        assertEquals("jdoe", person.getName());
+        assertEquals(namedPerson.getAttributes(), person.getAttributes());
+        assertEquals(new ArrayList<>(this.attributes.keySet()), new ArrayList<>(person.getAttributes().keySet()));
+
+        for (final String name : this.attributes.keySet()) {
+            assertEquals(name, namedPerson.getAttributeValue(name), person.getAttributeValue(name));
+            assertEquals(name, namedPerson.getAttributeValues(name), person.getAttributeValues(name));
+            assertTrue(person.getAttributes().containsKey(name));
+        }
+
+        assertNull(person.getAttributeValue("MAIL"));
+        assertNull(person.getAttributeValues("unknown"));
+        assertFalse(person.getAttributes().containsKey("unknown"));
+
+        try {
+            person.getAttributeValues("eduPersonAffiliation").add("faculty");
+            fail("UnsupportedOperationException expected");
+        } catch (final UnsupportedOperationException e) {
+            //expected
+        }
+    }
+
+    public void testHasAttributeValue() {
+        final CompactPersonImpl person = new CompactPersonImpl("jdoe", this.attributes);
+        final NamedPersonImpl namedPerson = new NamedPersonImpl("jdoe", this.attributes);
+
+        for (final String name : Arrays.asList("username", "eduPersonAffiliation", "middleName", "nickName", "title", "unknown")) {
+            for (final Object value : Arrays.asList("jdoe", "member", "staff", null)) {
+                assertEquals(name + "=" + value, namedPerson.hasAttributeValue(name, value), person.hasAttributeValue(name, value));
+            }
+        }
+        assertTrue(person.hasAttributeValue("eduPersonAffiliation", "member"));
+        assertTrue(person.hasAttributeValue("middleName", null));
+    }
+
+    public void testSortedValues() {
+        final List<Object> groups = new ArrayList<>();
+        for (int i = 100; i > 0; i--) {
+            groups.add("cn=group" + i + ",ou=groups,dc=example,dc=edu");
+        }
+        this.attributes.put("memberOf", groups);
+
+        final CompactPersonImpl person = new CompactPersonImpl("jdoe", this.attributes, false, 50);
+        assertTrue(person.getAttributeValues("memberOf") instanceof FrontCodedStringList);
+        assertEquals(new HashSet<>(groups), new HashSet<>(person.getAttributeValues("memberOf")));
+        assertEquals("cn=group1,ou=groups,dc=example,dc=edu", person.getAttributeValue("memberOf"));
+        assertTrue(person.hasAttributeValue("memberOf", "cn=group42,ou=groups,dc=example,dc=edu"));
+        assertFalse(person.hasAttributeValue("memberOf", "cn=group101,ou=groups,dc=example,dc=edu"));
+
+        //Attributes with fewer values keep their order
+        assertEquals(Util.list("student", "member"), person.getAttributeValues("eduPersonAffiliation"));
+        assertEquals(groups, new CompactPersonImpl("jdoe", this.attributes, false, 101).getAttributeValues("memberOf"));
+    }
+
+    public void testCaseInsensitiveNames() {
+        final CompactPersonImpl person = CompactPersonImpl.valueOf(new CaseInsensitiveNamedPersonImpl("jdoe", this.attributes));
+
+        assertEquals("jdoe@example.edu", person.getAttributeValue("MAIL"));
+        assertEquals(Util.list("student", "member"), person.getAttributes().get("edupersonaffiliation"));
+        assertTrue(person.getSchema().isCaseInsensitive());
+    }
+
+    public void testSharedSchema() {
+        final CompactPersonImpl first = new CompactPersonImpl("jdoe", this.attributes);
+        final CompactPersonImpl second = CompactPersonImpl.valueOf(new AttributeNamedPersonImpl(this.attributes));
+
+        assertSame(first.getSchema(), second.getSchema());
+        assertSame(second, CompactPersonImpl.valueOf(second));
+        assertNotSame(first.getSchema(), new CompactPersonImpl("jdoe", this.attributes, true).getSchema());
+    }
+
+    public void testEqualsAndHashCode() {
+        final CompactPersonImpl person = new CompactPersonImpl("jdoe", this.attributes);
+        final NamedPersonImpl namedPerson = new NamedPersonImpl("jdoe", Collections.<String, List<Object>>emptyMap());
+
+        assertEquals(namedPerson, person);
+        assertEquals(person, namedPerson);
+        assertEquals(namedPerson.hashCode(), person.hashCode());
+
+        final Set<IPersonAttributes> people = new HashSet<>();
+        people.add(namedPerson);
+        assertTrue(people.contains(person));
+    }
+
+    public void testSerialization() throws Exception {
+        final CompactPersonImpl person = new CompactPersonImpl("jdoe", this.attributes);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(person);
+        }
+
+        final CompactPersonImpl deserialized;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = (CompactPersonImpl) in.readObject();
+        }
+
+        assertEquals(person.getAttributes(), deserialized.getAttributes());
+        assertNull(deserialized.getAttributeValues("title"));
+        assertSame(person.getSchema(), deserialized.getSchema());
+        assertEquals(person.hashCode(), deserialized.hashCode());
+    }
+
+    public void testPeopleShareSchema() {
+        final List<Map<String, List<Object>>> peopleAttributes = createPeopleAttributes(100);
+
+        //People with the same attribute names share one schema and keep the values they were built with
+        final PersonAttributeSchema schema = new CompactPersonImpl("user", peopleAttributes.get(0), true).getSchema();
+        for (final Map<String, List<Object>> personAttributes : peopleAttributes) {
+            final CompactPersonImpl person = new CompactPersonImpl("user", personAttributes, true);
+            assertSame(schema, person.getSchema());
+            assertSame(personAttributes.get("attribute0").get(0), person.getAttributeValue("attribute0"));
+        }
+    }
+
+    /**
+     * Logs the heap used by people cached as {@link CaseInsensitiveNamedPersonImpl} and as
+     * {@link CompactPersonImpl}, the attribute values are the same objects for both. Only run if
+     * {@link Util#isBenchmarkEnabled()}.
+     */
+    public void testMemoryFootprint() {
+        if (!Util.isBenchmarkEnabled()) {
+            return;
+        }
+
+        final List<Map<String, List<Object>>> peopleAttributes = createPeopleAttributes(BENCHMARK_PEOPLE);
+
+        final long mapBytes = this.measureBytesPerPerson(peopleAttributes,
+                personAttributes -> new CaseInsensitiveNamedPersonImpl("user", personAttributes));
+        final long compactBytes = this.measureBytesPerPerson(peopleAttributes,
+                personAttributes -> new CompactPersonImpl("user", personAttributes, true));
+
+        this.logger.info("Bytes per cached person with " + (BENCHMARK_ATTRIBUTES + 1) + " attributes, excluding values: "
+                + "CaseInsensitiveNamedPersonImpl=" + mapBytes + ", CompactPersonImpl=" + compactBytes);
+    }
+
+    private static List<Map<String, List<Object>>> createPeopleAttributes(final int count) {
+        final List<Map<String, List<Object>>> peopleAttributes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Map<String, List<Object>> personAttributes = new LinkedHashMap<>();
+            for (int a = 0; a < BENCHMARK_ATTRIBUTES; a++) {
+                personAttributes.put("attribute" + a, Util.list("value" + i + "-" + a));
+            }
+            personAttributes.put("memberOf", Util.list("group" + (i % 10), "group" + (i % 7)));
+            peopleAttributes.add(personAttributes);
+        }
+        return peopleAttributes;
+    }
+
+    private long measureBytesPerPerson(final List<Map<String, List<Object>>> peopleAttributes,
+                                       final Function<Map<String, List<Object>>, IPersonAttributes> personFactory) {
+        final long before = Util.usedMemory();
+        final List<IPersonAttributes> people = new ArrayList<>(peopleAttributes.size());
+        for (final Map<String, List<Object>> personAttributes : peopleAttributes) {
+            people.add(personFactory.apply(personAttributes));
+        }
+        final long after = Util.usedMemory();
+
+        assertEquals(peopleAttributes.size(), people.size());
+        return (after - before) / people.size();
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
+import org.apereo.services.persondir.mock.ThrowingPersonAttributeDao;
+import org.apereo.services.persondir.util.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DependencyGraphPersonAttributeDao testcase.
+ */
+public class DependencyGraphPersonAttributeDaoTest
+        extends AbstractAggregatingDefaultQueryPersonAttributeDaoTest {
+
+    private ComplexStubPersonAttributeDao ldapSource;
+    private ComplexStubPersonAttributeDao groupSource;
+    private ComplexStubPersonAttributeDao employeeSource;
+
+    @Override
+    protected void setUp() {
+        final IUsernameAttributeProvider usernameAttributeProvider = new SimpleUsernameAttributeProvider("username");
+
+        final Map<String, List<Object>> ldapUser = new HashMap<>();
+        ldapUser.put("employeeNumber", Util.list("1234"));
+        ldapUser.put("mail", Util.list("edalquist@example.com"));
+        this.ldapSource = new ComplexStubPersonAttributeDao(Collections.singletonMap("edalquist", ldapUser));
+        this.ldapSource.setUsernameAttributeProvider(usernameAttributeProvider);
+
+        final Map<String, List<Object>> groupUser = new HashMap<>();
+        groupUser.put("groups", Util.list("staff", "developers"));
+        this.groupSource = new ComplexStubPersonAttributeDao(Collections.singletonMap("edalquist", groupUser));
+        this.groupSource.setUsernameAttributeProvider(usernameAttributeProvider);
+
+        final Map<String, List<Object>> employee = new HashMap<>();
+        employee.put("department", Util.list("CS"));
+        this.employeeSource = new ComplexStubPersonAttributeDao("employeeNumber", Collections.singletonMap("1234", employee));
+        this.employeeSource.setUsernameAttributeProvider(usernameAttributeProvider);
+    }
+
+    public void testInferredDependencies() {
+        final DependencyGraphPersonAttributeDao targetDao = new DependencyGraphPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.ldapSource, this.groupSource, this.employeeSource));
+
+        final Map<IPersonAttributeDao, List<IPersonAttributeDao>> graph = targetDao.buildDependencyGraph(Collections.singleton("username"));
+        assertEquals(Collections.emptyList(), graph.get(this.ldapSource));
+        assertEquals(Collections.emptyList(), graph.get(this.groupSource));
+        assertEquals(Collections.singletonList(this.ldapSource), graph.get(this.employeeSource));
+
+        //employeeNumber in the seed means the employee source doesn't need to wait
+        final Map<IPersonAttributeDao, List<IPersonAttributeDao>> seededGraph =
+                targetDao.buildDependencyGraph(new HashSet<>(Arrays.asList("username", "employeeNumber")));
+        assertEquals(Collections.emptyList(), seededGraph.get(this.employeeSource));
+    }
+
+    public void testDependentQuery() {
+        final CountingPersonAttributeDao countingEmployeeSource = new CountingPersonAttributeDao(this.employeeSource);
+
+        final DependencyGraphPersonAttributeDao targetDao = new DependencyGraphPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.ldapSource, this.groupSource, countingEmployeeSource));
+
+        final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+
+        final Map<String, List<Object>> expected = new HashMap<>();
+        expected.put("employeeNumber", Util.list("1234"));
+        expected.put("mail", Util.list("edalquist@example.com"));
+        expected.put("groups", Util.list("staff", "developers"));
+        expected.put("department", Util.list("CS"));
+        assertEquals(expected, results);
+
+        assertEquals(1, countingEmployeeSource.getQueryCount());
+        final Map<String, List<Object>> employeeQuery = countingEmployeeSource.getQueries().get(0);
+        assertEquals(Util.list("edalquist"), employeeQuery.get("username"));
+        assertEquals(Util.list("1234"), employeeQuery.get("employeeNumber"));
+        assertFalse(employeeQuery.containsKey("mail"));
+    }
+
+    public void testIndependentChildrenRunConcurrently() {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final Map<String, List<Object>> attrMap1 = new HashMap<>();
+        attrMap1.put("username", Util.list("edalquist"));
+        attrMap1.put("key1", Util.list("val1"));
+        final Map<String, List<Object>> attrMap2 = new HashMap<>();
+        attrMap2.put("username", Util.list("edalquist"));
+        attrMap2.put("key2", Util.list("val2"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final DependencyGraphPersonAttributeDao targetDao = new DependencyGraphPersonAttributeDao();
+            targetDao.setQueryExecutor(executor);
+            targetDao.setRecoverExceptions(false);
+            targetDao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(
+                    new LatchedPersonAttributeDao(latch, attrMap1), new LatchedPersonAttributeDao(latch, attrMap2)));
+
+            final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+
+            assertEquals(Util.list("val1"), results.get("key1"));
+            assertEquals(Util.list("val2"), results.get("key2"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testExplicitDependencies() {
+        final CountingPersonAttributeDao countingGroupSource = new CountingPersonAttributeDao(this.groupSource);
+
+        final DependencyGraphPersonAttributeDao targetDao = new DependencyGraphPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.ldapSource, countingGroupSource));
+        targetDao.setDependencies(Collections.singletonMap(countingGroupSource, Collections.<IPersonAttributeDao>singletonList(this.ldapSource)));
+
+        final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("edalquist");
+        assertEquals(Util.list("staff", "developers"), results.get("groups"));
+
+        //Dependent queries include the attributes the child can query on
+        assertEquals(1, countingGroupSource.getQueryCount());
+        assertEquals(Util.list("edalquist"), countingGroupSource.getQueries().get(0).get("username"));
+
+        targetDao.setDependencies(Collections.singletonMap(this.ldapSource, Collections.<IPersonAttributeDao>singletonList(countingGroupSource)));
+        try {
+            targetDao.getMultivaluedUserAttributes("edalquist");
+            fail("IllegalStateException should have been thrown for a dependency on a later DAO");
+        } catch (final IllegalStateException ise) {
+            //expected
+        }
+    }
+
+    public void testThrowingChildDao() {
+        final DependencyGraphPersonAttributeDao targetDao = new DependencyGraphPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(new ThrowingPersonAttributeDao(), this.groupSource));
+
+        final Set<IPersonAttributes> results = targetDao.getPeople(Collections.singletonMap("username", (Object) "edalquist"));
+        assertEquals(1, results.size());
+        assertEquals(Util.list("staff", "developers"), results.iterator().next().getAttributeValues("groups"));
+
+        targetDao.setRecoverExceptions(false);
+        try {
+            targetDao.getPeople(Collections.singletonMap("username", (Object) "edalquist"));
+            fail("RuntimeException should have been thrown by the child DAO");
+        } catch (final RuntimeException re) {
+            //expected
+        }
+    }
+
+    /**
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        final List<IPersonAttributeDao> attributeSources = new ArrayList<>();
+
+        attributeSources.add(this.ldapSource);
+        attributeSources.add(this.employeeSource);
+
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        impl.setPersonAttributeDaos(attributeSources);
+
+        return impl;
+    }
+
+    /**
+     * @see AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new DependencyGraphPersonAttributeDao();
+    }
+
+    /**
+     * Waits until every DAO sharing the latch has been called before returning its attributes.
+     */
+    private static class LatchedPersonAttributeDao extends StubPersonAttributeDao {
+        private final CountDownLatch latch;
+
+        public LatchedPersonAttributeDao(final CountDownLatch latch, final Map<String, List<Object>> backingMap) {
+            super(backingMap);
+            this.latch = latch;
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+            this.latch.countDown();
+            try {
+                if (!this.latch.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Child DAOs were not queried concurrently");
+                }
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return super.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.util.Util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link HedgingPersonAttributeDao}.
+ */
+public class HedgingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAttributeDaoTest {
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+        super.tearDown();
+    }
+
+    @Override
+    protected AbstractDefaultAttributePersonAttributeDao getAbstractDefaultQueryPersonAttributeDao() {
+        final HedgingPersonAttributeDao dao = new HedgingPersonAttributeDao();
+        dao.setPersonAttributeDaos(Collections.singletonList(new StubPersonAttributeDao(new HashMap<>())));
+        return dao;
+    }
+
+    public void testHedgeToFastReplica() {
+        final HedgingPersonAttributeDao dao = new HedgingPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.asList(this.createReplica("primary", 5000), this.createReplica("replica", 0)));
+        dao.setHedgeExecutor(this.executor);
+        dao.setInitialHedgeDelay(10);
+        dao.setMaxHedgeRatio(1);
+
+        final long start = System.currentTimeMillis();
+        final IPersonAttributes person = dao.getPerson("jdoe");
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        assertEquals(Util.list("replica"), person.getAttributeValues("server"));
+        assertEquals(1, dao.getQueries());
+        assertEquals(1, dao.getHedgedQueries());
+    }
+
+    public void testNoHedgeForFastPrimary() {
+        final HedgingPersonAttributeDao dao = new HedgingPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.asList(this.createReplica("primary", 0), this.createReplica("replica", 0)));
+        dao.setHedgeExecutor(this.executor);
+        dao.setInitialHedgeDelay(1000);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Util.list("primary"), dao.getPerson("jdoe").getAttributeValues("server"));
+        }
+        assertEquals(20, dao.getQueries());
+        assertEquals(0, dao.getHedgedQueries());
+        assertEquals(dao.getMinHedgeDelay(), dao.getHedgeDelay());
+    }
+
+    public void testHedgeBudget() {
+        final HedgingPersonAttributeDao dao = new HedgingPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.asList(this.createReplica("primary", 50), this.createReplica("replica", 0)));
+        dao.setHedgeExecutor(this.executor);
+        dao.setInitialHedgeDelay(1);
+        dao.setMaxHedgeRatio(0.25);
+
+        for (int i = 0; i < 8; i++) {
+            dao.getPerson("jdoe");
+        }
+        assertEquals(8, dao.getQueries());
+        assertTrue("Hedged " + dao.getHedgedQueries() + " of 8 queries", dao.getHedgedQueries() <= 3);
+    }
+
+    public void testFailover() {
+        final StubPersonAttributeDao failing = new StubPersonAttributeDao() {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+                throw new RuntimeException("primary down");
+            }
+        };
+
+        final HedgingPersonAttributeDao dao = new HedgingPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.asList(failing, this.createReplica("replica", 0)));
+        assertEquals(Util.list("replica"), dao.getPerson("jdoe").getAttributeValues("server"));
+
+        dao.setHedgeExecutor(this.executor);
+        dao.setInitialHedgeDelay(5000);
+        assertEquals(Util.list("replica"), dao.getPerson("jdoe").getAttributeValues("server"));
+        assertEquals(0, dao.getHedgedQueries());
+
+        dao.setPersonAttributeDaos(Arrays.asList(failing, failing));
+        try {
+            dao.getPerson("jdoe");
+            fail("Expected the failure of the last replica");
+        } catch (final RuntimeException e) {
+            assertEquals("primary down", e.getMessage());
+        }
+    }
+
+    private IPersonAttributeDao createReplica(final String server, final long latency) {
+        final Map<String, List<Object>> attributes = new HashMap<>();
+        attributes.put("server", Util.list(server));
+
+        final StubPersonAttributeDao replica = new StubPersonAttributeDao(attributes) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+                if (latency > 0) {
+                    try {
+                        Thread.sleep(latency);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        return replica;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+public class JsonBackedComplexStubPersonAttributeDaoTest extends TestCase {
+    private File jsonFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.jsonFile = File.createTempFile("people", ".json");
+        this.writeJson("{\"u1\":{\"firstName\":[\"Json1\"],\"eduPersonAffiliation\":[\"alumni\",\"staff\"]},"
+                + "\"u2\":{\"firstName\":\"Json2\",\"age\":[42,12345678901],\"score\":[0.5],\"active\":[true,null],"
+                + "\"nested\":[{\"a\":[1]}]}}", 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.jsonFile.delete();
+    }
+
+    public void testStreamingParse() throws Exception {
+        final JsonBackedComplexStubPersonAttributeDao dao = this.createDao();
+
+        final IPersonAttributes u1 = dao.getPerson("u1");
+        assertEquals(Arrays.asList("Json1"), u1.getAttributeValues("firstName"));
+        assertEquals(Arrays.asList("alumni", "staff"), u1.getAttributeValues("eduPersonAffiliation"));
+
+        final Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("a", Arrays.asList(1));
+
+        final IPersonAttributes u2 = dao.getPerson("u2");
+        assertEquals(Arrays.asList("Json2"), u2.getAttributeValues("firstName"));
+        assertEquals(Arrays.asList(42, 12345678901L), u2.getAttributeValues("age"));
+        assertEquals(Arrays.asList(0.5d), u2.getAttributeValues("score"));
+        assertEquals(Arrays.asList(true, null), u2.getAttributeValues("active"));
+        assertEquals(Arrays.asList(nested), u2.getAttributeValues("nested"));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("firstName", "eduPersonAffiliation", "age", "score", "active", "nested")),
+                dao.getPossibleUserAttributeNames());
+    }
+
+    public void testInvalidStructure() throws Exception {
+        for (final String json : Arrays.asList("[]", "{\"u1\":[]}", "{\"u1\":{\"firstName\":{}}}", "{\"u1\":{\"firstName\":[\"a\"]")) {
+            this.writeJson(json, 0);
+            try {
+                this.createDao();
+                fail("BeanCreationException expected for " + json);
+            } catch (final BeanCreationException e) {
+                //expected
+            }
+        }
+    }
+
+    public void testReloadOnChange() throws Exception {
+        final JsonBackedComplexStubPersonAttributeDao dao = new JsonBackedComplexStubPersonAttributeDao(new FileSystemResource(this.jsonFile));
+        dao.setReloadExecutor(Runnable::run);
+        dao.init();
+        assertNotNull(dao.getPerson("u1"));
+
+        this.writeJson("{\"u3\":{\"firstName\":[\"Json3\"]}}", 2000);
+        assertNull(dao.getPerson("u1"));
+        assertEquals(Arrays.asList("Json3"), dao.getPerson("u3").getAttributeValues("firstName"));
+
+        //A broken file keeps the previous attributes
+        this.writeJson("{\"u4\":", 4000);
+        assertNotNull(dao.getPerson("u3"));
+        assertNull(dao.getPerson("u4"));
+    }
+
+    public void testBackgroundReload() throws Exception {
+        final List<Runnable> reloads = new ArrayList<>();
+        final JsonBackedComplexStubPersonAttributeDao dao = new JsonBackedComplexStubPersonAttributeDao(new FileSystemResource(this.jsonFile));
+        dao.setReloadExecutor(reloads::add);
+        dao.init();
+
+        this.writeJson("{\"u3\":{\"firstName\":[\"Json3\"]}}", 2000);
+
+        //Queries keep using the loaded attributes and only one reload is started
+        assertNotNull(dao.getPerson("u1"));
+        assertNotNull(dao.getPerson("u1"));
+        assertEquals(1, reloads.size());
+
+        reloads.get(0).run();
+        assertNull(dao.getPerson("u1"));
+        assertNotNull(dao.getPerson("u3"));
+        assertEquals(1, reloads.size());
+    }
+
+    public void testDefaultBackgroundReload() throws Exception {
+        final JsonBackedComplexStubPersonAttributeDao dao = this.createDao();
+        assertNotNull(dao.getPerson("u1"));
+
+        this.writeJson("{\"u3\":{\"firstName\":[\"Json3\"]}}", 2000);
+
+        //Without a reload executor the file is reloaded in the background
+        final long timeout = System.currentTimeMillis() + 10000;
+        while (dao.getPerson("u3") == null) {
+            assertTrue("The changed file was not reloaded", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        assertNull(dao.getPerson("u1"));
+    }
+
+    private JsonBackedComplexStubPersonAttributeDao createDao() throws IOException {
+        final JsonBackedComplexStubPersonAttributeDao dao = new JsonBackedComplexStubPersonAttributeDao(new FileSystemResource(this.jsonFile));
+        dao.init();
+        return dao;
+    }
+
+    private void writeJson(final String json, final long lastModifiedOffset) throws IOException {
+        final long lastModified = this.jsonFile.lastModified();
+        Files.write(this.jsonFile.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        this.jsonFile.setLastModified(lastModified + lastModifiedOffset);
+    }
+}
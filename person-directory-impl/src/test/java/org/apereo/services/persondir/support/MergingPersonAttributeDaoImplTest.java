@@ -21,10 +21,15 @@ package org.apereo.services.persondir.support;
 import org.apereo.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.apereo.services.persondir.IPersonAttributeDao;
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.mock.CountingPersonAttributeDao;
 import org.apereo.services.persondir.mock.ThrowingPersonAttributeDao;
 import org.apereo.services.persondir.support.merger.NoncollidingAttributeAdder;
 import org.apereo.services.persondir.util.Util;
+import org.springframework.core.io.FileSystemResource;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -33,6 +38,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * MergingPersonAttributeDaoImpl testcase.
@@ -225,6 +234,44 @@ public class MergingPersonAttributeDaoImplTest
      * Test ability to override the default merging strategy.
      *
      */
+    public void testRequestedAttributes() {
+        final CountingPersonAttributeDao countingSourceOne = new CountingPersonAttributeDao(this.sourceOne);
+        final CountingPersonAttributeDao countingSourceTwo = new CountingPersonAttributeDao(this.sourceTwo);
+        final CountingPersonAttributeDao countingCollidesWithOne = new CountingPersonAttributeDao(this.collidesWithOne);
+
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.asList(countingSourceOne, countingSourceTwo, countingCollidesWithOne));
+
+        final Map<String, List<Object>> queryMap = new HashMap<>();
+        queryMap.put(queryAttr, Util.list("awp9"));
+
+        //shirtColor is complete after sourceOne so the other sources are not queried
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("shirtColor"))) {
+            final Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(Util.list("blue"), result.get("shirtColor"));
+        }
+        assertEquals(1, countingSourceOne.getQueryCount());
+        assertEquals(0, countingSourceTwo.getQueryCount());
+        assertEquals(0, countingCollidesWithOne.getQueryCount());
+        assertEquals(1, impl.getCompletedRequestedAttributesQueries());
+
+        //Only sourceTwo can provide tieColor
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("tieColor"))) {
+            final Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(Util.list("black"), result.get("tieColor"));
+        }
+        assertEquals(1, countingSourceOne.getQueryCount());
+        assertEquals(1, countingSourceTwo.getQueryCount());
+        assertEquals(0, countingCollidesWithOne.getQueryCount());
+        assertEquals(1, impl.getSkippedRequestedAttributesQueries());
+        assertEquals(2, impl.getCompletedRequestedAttributesQueries());
+
+        //Without requested attributes all sources are queried
+        final Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+        assertEquals(this.oneAndTwoAndThree, result);
+        assertEquals(2, countingSourceOne.getQueryCount());
+    }
+
     public void testAlternativeMerging() {
         final List<IPersonAttributeDao> attributeSources = new ArrayList<>();
 
@@ -255,10 +302,79 @@ public class MergingPersonAttributeDaoImplTest
         }
     }
 
+    public void testQueryTimeoutExecutor() {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final StubPersonAttributeDao slowDao = new StubPersonAttributeDao(this.oneAndTwo) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query) {
+                try {
+                    Thread.sleep(2000);
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.asList(this.sourceOne, slowDao));
+        impl.setQueryTimeout(50);
+        impl.setReturnPartialResults(true);
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            impl.setQueryTimeoutExecutor(executor);
+
+            //The slow child is given up on at the deadline instead of being waited for
+            final long start = System.nanoTime();
+            final IPersonAttributes result = impl.getPerson("awp9");
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(Util.list("blue"), result.getAttributeValues("shirtColor"));
+            assertNull(result.getAttributeValues("tieColor"));
+            assertTrue("Query took " + elapsedMillis + "ms", elapsedMillis < 1000);
+            assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        } catch (final InterruptedException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Test handling of underlying sources which return null on 
      * getPossibleUserAttributeNames().
      */
+    public void testReloadedChildAttributeNames() throws Exception {
+        final File jsonFile = File.createTempFile("people", ".json");
+        try {
+            Files.write(jsonFile.toPath(), "{\"u1\":{\"firstName\":[\"Json1\"]}}".getBytes(StandardCharsets.UTF_8));
+            final JsonBackedComplexStubPersonAttributeDao jsonDao = new JsonBackedComplexStubPersonAttributeDao(new FileSystemResource(jsonFile));
+            jsonDao.setReloadExecutor(Runnable::run);
+            jsonDao.init();
+
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.asList(this.sourceNull, jsonDao));
+            impl.setRouteByQueryAttributes(true);
+
+            final Set<String> attributeNames = impl.getPossibleUserAttributeNames();
+            assertTrue(attributeNames.contains("firstName"));
+            assertFalse(attributeNames.contains("lastName"));
+            assertSame(attributeNames, impl.getPossibleUserAttributeNames());
+
+            final long lastModified = jsonFile.lastModified();
+            Files.write(jsonFile.toPath(), "{\"u1\":{\"firstName\":[\"Json1\"],\"lastName\":[\"One\"]}}".getBytes(StandardCharsets.UTF_8));
+            assertTrue(jsonFile.setLastModified(lastModified + 2000));
+
+            //The cached names are read again once the child reloaded
+            assertTrue(impl.getPossibleUserAttributeNames().contains("lastName"));
+            assertTrue(impl.getAvailableQueryAttributes().contains("username"));
+            assertEquals(Util.list("One"), impl.getPerson("u1").getAttributeValues("lastName"));
+        } finally {
+            assertTrue(jsonFile.delete());
+        }
+    }
+
     public void testUsernameWildcardQuery() {
         final List<IPersonAttributeDao> attributeSources = new ArrayList<>();
 
@@ -0,0 +1,73 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * QueryContext testcase.
+ */
+public class QueryContextTest extends TestCase {
+
+    public void testPropagateAll() throws Exception {
+        final Supplier<Object[]> currentContext = () -> new Object[] {
+                QueryDeadline.current(), RequestedAttributes.current(), QueryMemoizationScope.current()};
+        assertSame(currentContext, QueryContext.propagate(currentContext));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final QueryDeadline deadline = QueryDeadline.start(60000);
+             final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("mail"));
+             final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+            final Supplier<Object[]> task = QueryContext.propagate(currentContext);
+            assertEquals(Arrays.asList(deadline, requested, scope), Arrays.asList(executor.submit(task::get).get()));
+
+            //The context is removed from the worker thread once the task completes
+            assertEquals(Arrays.asList(null, null, null), Arrays.asList(executor.submit(currentContext::get).get()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testCloseRestoresEnclosingParts() {
+        try (final QueryDeadline deadline = QueryDeadline.start(60000)) {
+            try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("mail"))) {
+                try (final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+                    assertSame(deadline, QueryDeadline.current());
+                    assertSame(requested, RequestedAttributes.current());
+                    assertSame(scope, QueryMemoizationScope.current());
+                }
+
+                assertNull(QueryMemoizationScope.current());
+                assertSame(deadline, QueryDeadline.current());
+                assertSame(requested, RequestedAttributes.current());
+            }
+
+            assertNull(RequestedAttributes.current());
+            assertSame(deadline, QueryDeadline.current());
+        }
+
+        assertNull(QueryDeadline.current());
+    }
+}
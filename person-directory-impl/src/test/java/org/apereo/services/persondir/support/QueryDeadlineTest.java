@@ -0,0 +1,80 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * QueryDeadline testcase.
+ */
+public class QueryDeadlineTest extends TestCase {
+
+    public void testStartAndClose() {
+        assertNull(QueryDeadline.current());
+
+        try (final QueryDeadline deadline = QueryDeadline.start(60000)) {
+            assertSame(deadline, QueryDeadline.current());
+            assertFalse(deadline.isExpired());
+            assertTrue(deadline.getRemainingMillis() > 0);
+            assertTrue(deadline.getRemainingMillis() <= 60000);
+        }
+
+        assertNull(QueryDeadline.current());
+    }
+
+    public void testNestedDeadlineNeverExtends() {
+        try (final QueryDeadline outer = QueryDeadline.start(0)) {
+            assertTrue(outer.isExpired());
+            assertEquals(0, outer.getRemainingMillis());
+
+            try (final QueryDeadline inner = QueryDeadline.start(60000)) {
+                assertSame(inner, QueryDeadline.current());
+                assertTrue(inner.isExpired());
+
+                //The partial results flag is shared with the enclosing deadline
+                inner.markPartialResults();
+            }
+
+            assertSame(outer, QueryDeadline.current());
+            assertTrue(outer.isPartialResults());
+        }
+
+        assertNull(QueryDeadline.current());
+    }
+
+    public void testPropagate() throws Exception {
+        final Supplier<QueryDeadline> currentDeadline = QueryDeadline::current;
+        assertSame(currentDeadline, QueryContext.propagate(currentDeadline));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final QueryDeadline deadline = QueryDeadline.start(60000)) {
+            final Supplier<QueryDeadline> task = QueryContext.propagate(currentDeadline);
+            assertSame(deadline, executor.submit(task::get).get());
+
+            //The deadline is removed from the worker thread once the task completes
+            assertNull(executor.submit(currentDeadline::get).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributeDao;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.merger.ReplacingAttributeAdder;
+import org.apereo.services.persondir.util.Util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * QueryMemoizationScope testcase.
+ */
+public class QueryMemoizationScopeTest extends TestCase {
+    private CountingComplexStubPersonAttributeDao sharedDao;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final Map<String, List<Object>> attributes = new HashMap<>();
+        attributes.put("mail", Util.list("jdoe@example.edu"));
+        attributes.put("displayName", Util.list("John Doe"));
+        this.sharedDao = new CountingComplexStubPersonAttributeDao(Collections.singletonMap("jdoe", attributes));
+    }
+
+    public void testMemoize() {
+        final Map<String, List<Object>> query = Collections.singletonMap("username", Util.list("jdoe"));
+        final Map<String, List<Object>> otherQuery = Collections.singletonMap("username", Util.list("nobody"));
+
+        try (final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+            assertSame(scope, QueryMemoizationScope.current());
+
+            final Set<IPersonAttributes> first = this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+            assertSame(first, this.sharedDao.getPeopleWithMultivaluedAttributes(new HashMap<>(query)));
+            assertEquals(1, this.sharedDao.queries);
+
+            //Null results are remembered as well
+            assertNull(this.sharedDao.getPeopleWithMultivaluedAttributes(otherQuery));
+            assertNull(this.sharedDao.getPeopleWithMultivaluedAttributes(otherQuery));
+            assertEquals(2, this.sharedDao.queries);
+
+            //The requested attributes are part of the key
+            try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("mail"))) {
+                this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+            }
+            assertEquals(3, this.sharedDao.queries);
+
+            assertEquals(3, scope.getQueries());
+            assertEquals(2, scope.getHits());
+        }
+
+        assertNull(QueryMemoizationScope.current());
+
+        //Nothing is remembered outside of a scope
+        this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+        this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+        assertEquals(5, this.sharedDao.queries);
+    }
+
+    public void testNestedScopeSharesResults() {
+        final Map<String, List<Object>> query = Collections.singletonMap("username", Util.list("jdoe"));
+
+        try (final QueryMemoizationScope outer = QueryMemoizationScope.start()) {
+            this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+
+            try (final QueryMemoizationScope inner = QueryMemoizationScope.start()) {
+                assertSame(inner, QueryMemoizationScope.current());
+                this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+            }
+
+            assertSame(outer, QueryMemoizationScope.current());
+            this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+            assertEquals(1, this.sharedDao.queries);
+            assertEquals(2, outer.getHits());
+        }
+    }
+
+    public void testFailuresAreNotRemembered() {
+        final Map<String, List<Object>> query = Collections.singletonMap("username", Util.list("jdoe"));
+
+        try (final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+            this.sharedDao.fail = true;
+            try {
+                this.sharedDao.getPeopleWithMultivaluedAttributes(query);
+                fail("IllegalStateException expected");
+            } catch (final IllegalStateException e) {
+                //expected
+            }
+
+            this.sharedDao.fail = false;
+            assertNotNull(this.sharedDao.getPeopleWithMultivaluedAttributes(query));
+            assertEquals(2, this.sharedDao.queries);
+            assertEquals(0, scope.getHits());
+        }
+    }
+
+    public void testSharedDaoUnderAggregators() {
+        final CascadingPersonAttributeDao cascading = new CascadingPersonAttributeDao();
+        cascading.setPersonAttributeDaos(Collections.<IPersonAttributeDao>singletonList(this.sharedDao));
+
+        final MergingPersonAttributeDaoImpl merging = new MergingPersonAttributeDaoImpl();
+        merging.setMerger(new ReplacingAttributeAdder());
+        merging.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sharedDao, cascading));
+
+        //Both the merging DAO and the cascading DAO query the shared DAO with the seed
+        merging.getPerson("jdoe");
+        assertEquals(2, this.sharedDao.queries);
+
+        merging.setMemoizeQueries(true);
+        final IPersonAttributes person = merging.getPerson("jdoe");
+        assertEquals(Util.list("jdoe@example.edu"), person.getAttributeValues("mail"));
+        assertEquals(3, this.sharedDao.queries);
+        assertNull(QueryMemoizationScope.current());
+
+        //Every lookup starts with an empty scope
+        merging.getPerson("jdoe");
+        assertEquals(4, this.sharedDao.queries);
+    }
+
+    public void testPropagate() throws Exception {
+        final Supplier<QueryMemoizationScope> currentScope = QueryMemoizationScope::current;
+        assertSame(currentScope, QueryContext.propagate(currentScope));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final QueryMemoizationScope scope = QueryMemoizationScope.start()) {
+            final Supplier<QueryMemoizationScope> task = QueryContext.propagate(currentScope);
+            assertSame(scope, executor.submit(task::get).get());
+
+            //The scope is removed from the worker thread once the task completes
+            assertNull(executor.submit(currentScope::get).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class CountingComplexStubPersonAttributeDao extends ComplexStubPersonAttributeDao {
+        private int queries = 0;
+        private boolean fail = false;
+
+        CountingComplexStubPersonAttributeDao(final Map<String, Map<String, List<Object>>> backingMap) {
+            super(backingMap);
+        }
+
+        @Override
+        protected List<IPersonAttributes> getPeopleForQuery(final String seedValue, final String queryUserName) {
+            this.queries++;
+            if (this.fail) {
+                throw new IllegalStateException("Backend failure");
+            }
+            return super.getPeopleForQuery(seedValue, queryUserName);
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.apereo.services.persondir.support.jdbc;
 import com.google.common.collect.ImmutableMap;
 import junit.framework.TestCase;
 import org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.apereo.services.persondir.support.RequestedAttributes;
 import org.apereo.services.persondir.support.SimpleUsernameAttributeProvider;
 import org.apereo.services.persondir.util.CaseCanonicalizationMode;
 import org.apereo.services.persondir.util.Util;
@@ -261,6 +262,25 @@ public class MultiRowJdbcPersonAttributeDaoTest
         TestCase.assertEquals(Util.list("Andrew"), attribs.get("firstName"));
     }
 
+    public void testRequestedAttributes() {
+        final MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+
+        final Map<String, Object> columnsToAttributes = new LinkedHashMap<>();
+        columnsToAttributes.put("name", "firstName");
+        columnsToAttributes.put("email", "email");
+        columnsToAttributes.put("shirt_color", "dressShirtColor");
+        impl.setResultAttributeMapping(columnsToAttributes);
+        impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("firstName"))) {
+            final Map<String, List<Object>> attribs = impl.getMultivaluedUserAttributes("awp9");
+            TestCase.assertEquals(Collections.singletonMap("firstName", Util.list("Andrew")), attribs);
+        }
+    }
+
     /**
      * Test for a query with a single attribute
      */
@@ -18,6 +18,7 @@
  */
 package org.apereo.services.persondir.support.jdbc;
 
+import org.apereo.services.persondir.support.RequestedAttributes;
 import org.apereo.services.persondir.support.SimpleUsernameAttributeProvider;
 import org.apereo.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.apereo.services.persondir.util.Util;
@@ -26,6 +27,7 @@ import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -123,6 +125,37 @@ public class SingleRowJdbcPersonAttributeDaoTest
         assertEquals(Util.list("Andrew"), attribs.get("firstName"));
     }
 
+    public void testRequestedAttributesSelectList() {
+        final SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT {columns} FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+
+        final Map<String, Object> columnsToAttributes = new LinkedHashMap<>();
+        columnsToAttributes.put("netid", "uid");
+        columnsToAttributes.put("name", "firstName");
+        columnsToAttributes.put("email", "email");
+        columnsToAttributes.put("shirt_color", "dressShirtColor");
+        impl.setResultAttributeMapping(columnsToAttributes);
+
+        assertEquals(new HashSet<>(Arrays.asList("netid", "name", "email", "shirt_color")), getSelectedColumns(impl));
+        assertEquals(Util.list("andrew.petro@yale.edu"), impl.getMultivaluedUserAttributes("awp9").get("email"));
+
+        try (final RequestedAttributes requested = RequestedAttributes.start(Collections.singleton("firstName"))) {
+            assertEquals(new HashSet<>(Arrays.asList("netid", "name")), getSelectedColumns(impl));
+
+            final Map<String, List<Object>> attribs = impl.getMultivaluedUserAttributes("awp9");
+            assertEquals(Util.list("Andrew"), attribs.get("firstName"));
+            assertEquals(Util.list("awp9"), attribs.get("uid"));
+            assertNull(attribs.get("email"));
+        }
+    }
+
+    private static Set<String> getSelectedColumns(final SingleRowJdbcPersonAttributeDao impl) {
+        final String sql = impl.getQueryTemplateForQuery();
+        final String selectList = sql.substring("SELECT ".length(), sql.indexOf(" FROM "));
+        return new HashSet<>(Arrays.asList(selectList.split(", ")));
+    }
+
     /**
      * Test that the implementation properly reports the attribute names it
      * expects to map.
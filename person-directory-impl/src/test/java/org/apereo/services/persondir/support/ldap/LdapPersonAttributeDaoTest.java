@@ -18,11 +18,13 @@
  */
 package org.apereo.services.persondir.support.ldap;
 
+import org.apereo.services.persondir.support.QueryDeadline;
 import org.apereo.services.persondir.util.Util;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.ldap.test.AbstractDirContextTest;
 
 import java.util.Collections;
@@ -323,6 +325,25 @@ public class LdapPersonAttributeDaoTest extends AbstractDirContextTest {
         assertEquals(Collections.singleton("email"), impl.getPossibleUserAttributeNames());
     }
 
+    public void testQueryDeadline() throws Exception {
+        final LdapPersonAttributeDao impl = new LdapPersonAttributeDao();
+        impl.setContextSource(this.getContextSource());
+        impl.afterPropertiesSet();
+
+        try (final QueryDeadline deadline = QueryDeadline.start(60000)) {
+            final int timeLimit = impl.getQuerySearchControls().getTimeLimit();
+            assertTrue(String.valueOf(timeLimit), timeLimit > 0 && timeLimit <= 60000);
+        }
+
+        //The search is not started once the deadline has passed
+        try (final QueryDeadline deadline = QueryDeadline.start(0)) {
+            impl.getQuerySearchControls();
+            fail("QueryTimeoutException should have been thrown");
+        } catch (final QueryTimeoutException e) {
+            //expected
+        }
+    }
+
     /**
      * Test proper reporting of declared attribute names.
      */
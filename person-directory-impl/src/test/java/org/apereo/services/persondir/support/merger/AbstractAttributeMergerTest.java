@@ -19,9 +19,17 @@
 package org.apereo.services.persondir.support.merger;
 
 import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.apereo.services.persondir.util.Util;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Abstract test for the IAttributeMerger interface.
@@ -58,6 +66,62 @@ public abstract class AbstractAttributeMergerTest extends TestCase {
         fail("Should have thrown IAE on null argument.");
     }
 
+    /**
+     * Test that the people merge builder produces the same people as repeated calls to mergeResults and only copies
+     * people found by more than one source.
+     */
+    public void testPeopleMergeBuilder() {
+        final IAttributeMerger merger = getAttributeMerger();
+
+        final List<Set<IPersonAttributes>> sources = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Map<String, List<Object>> sharedAttributes = new HashMap<>();
+            sharedAttributes.put("shared", Util.list("value" + i));
+            sharedAttributes.put("source" + i, Util.list("value" + i));
+
+            final Set<IPersonAttributes> people = new LinkedHashSet<>();
+            people.add(new NamedPersonImpl("shared", sharedAttributes));
+            people.add(new NamedPersonImpl("person" + i, Collections.singletonMap("source" + i, Util.list("value" + i))));
+            sources.add(people);
+        }
+
+        Set<IPersonAttributes> expected = new LinkedHashSet<>(sources.get(0));
+        for (final Set<IPersonAttributes> source : sources.subList(1, sources.size())) {
+            expected = merger.mergeResults(expected, new LinkedHashSet<>(source));
+        }
+
+        final IPeopleMergeBuilder builder = merger.newPeopleMergeBuilder();
+        assertFalse(builder.hasResults());
+        for (final Set<IPersonAttributes> source : sources) {
+            builder.add(source);
+        }
+        assertTrue(builder.hasResults());
+        final Set<IPersonAttributes> merged = builder.build();
+
+        assertEquals(expected.size(), merged.size());
+        for (final IPersonAttributes expectedPerson : expected) {
+            final IPersonAttributes mergedPerson = find(merged, expectedPerson.getName());
+            assertNotNull(mergedPerson);
+            assertEquals(expectedPerson.getAttributes(), mergedPerson.getAttributes());
+        }
+
+        //People only found by one source are not copied
+        for (final IPersonAttributes person : sources.get(1)) {
+            if ("person1".equals(person.getName())) {
+                assertSame(person, find(merged, "person1"));
+            }
+        }
+    }
+
+    private static IPersonAttributes find(final Set<IPersonAttributes> people, final String name) {
+        for (final IPersonAttributes person : people) {
+            if (name.equals(person.getName())) {
+                return person;
+            }
+        }
+        return null;
+    }
+
     protected abstract IAttributeMerger getAttributeMerger();
 
 }
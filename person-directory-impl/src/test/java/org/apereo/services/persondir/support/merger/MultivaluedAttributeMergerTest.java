@@ -18,8 +18,12 @@
  */
 package org.apereo.services.persondir.support.merger;
 
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.apereo.services.persondir.util.AttributeValueInterner;
 import org.apereo.services.persondir.util.Util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -130,6 +134,29 @@ public class MultivaluedAttributeMergerTest extends AbstractAttributeMergerTest
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.merger.AbstractAttributeMergerTest#getAttributeMerger()
      */
+    /**
+     * Test that the values of merged people are interned.
+     */
+    public void testInternMergedValues() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        final Object student = interner.intern(new String("student".toCharArray()));
+        final MultivaluedAttributeMerger merger = new MultivaluedAttributeMerger();
+        merger.setAttributeValueInterner(interner);
+
+        final Map<String, List<Object>> someAttributes = new HashMap<>();
+        someAttributes.put("affiliation", Util.list(new String("member".toCharArray())));
+        final Map<String, List<Object>> otherAttributes = new HashMap<>();
+        otherAttributes.put("affiliation", Util.list(new String("student".toCharArray())));
+
+        final IPeopleMergeBuilder builder = merger.newPeopleMergeBuilder();
+        builder.add(Collections.singleton((IPersonAttributes) new NamedPersonImpl("user", someAttributes)));
+        builder.add(Collections.singleton((IPersonAttributes) new NamedPersonImpl("user", otherAttributes)));
+
+        final IPersonAttributes merged = builder.build().iterator().next();
+        assertEquals(Util.list("member", "student"), merged.getAttributeValues("affiliation"));
+        assertSame(student, merged.getAttributeValues("affiliation").get(1));
+    }
+
     @Override
     protected IAttributeMerger getAttributeMerger() {
         return new MultivaluedAttributeMerger();
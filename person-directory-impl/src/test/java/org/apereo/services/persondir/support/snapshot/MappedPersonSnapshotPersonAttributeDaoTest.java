@@ -0,0 +1,185 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.snapshot;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.apereo.services.persondir.support.xml.XmlPersonAttributeDao;
+import org.apereo.services.persondir.util.Util;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+public class MappedPersonSnapshotPersonAttributeDaoTest extends TestCase {
+    private XmlPersonAttributeDao xmlPersonAttributeDao;
+    private File snapshotFile;
+    private MappedPersonSnapshotPersonAttributeDao snapshotDao;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.xmlPersonAttributeDao = new XmlPersonAttributeDao();
+        this.xmlPersonAttributeDao.setMappedXmlResource(new ClassPathResource("/PersonData.xml"));
+        this.xmlPersonAttributeDao.afterPropertiesSet();
+
+        final PersonSnapshotCompiler compiler = new PersonSnapshotCompiler();
+        compiler.setIndexedAttributes(new LinkedHashSet<>(Arrays.asList("email", "emplid")));
+
+        this.snapshotFile = File.createTempFile("people", ".snapshot");
+        final int personCount = compiler.compile(this.xmlPersonAttributeDao, usernames -> {
+            final Map<String, List<Object>> query = Collections.singletonMap("username", Util.list("*"));
+            for (final IPersonAttributes person : this.xmlPersonAttributeDao.getPeopleWithMultivaluedAttributes(query)) {
+                usernames.accept(person.getName());
+            }
+        }, this.snapshotFile);
+        assertEquals(4, personCount);
+
+        this.snapshotDao = new MappedPersonSnapshotPersonAttributeDao();
+        this.snapshotDao.setSnapshotResource(new FileSystemResource(this.snapshotFile));
+        this.snapshotDao.afterPropertiesSet();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.snapshotDao = null;
+        this.snapshotFile.delete();
+    }
+
+    public void testAvailableAttributes() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("username", "email", "emplid")), this.snapshotDao.getAvailableQueryAttributes());
+        assertSame(this.snapshotDao.getAvailableQueryAttributes(), this.snapshotDao.getAvailableQueryAttributes());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("givenName", "familyName", "email", "sisID", "portalId", "emplid")),
+                this.snapshotDao.getPossibleUserAttributeNames());
+    }
+
+    public void testQueryByUsername() {
+        for (final String name : Arrays.asList("jstudent", "mstaff", "dfaculty", "iboring")) {
+            final IPersonAttributes expected = this.xmlPersonAttributeDao.getPerson(name);
+            final IPersonAttributes person = this.snapshotDao.getPerson(name);
+            assertEquals(name, person.getName());
+            assertEquals(expected.getAttributes(), person.getAttributes());
+        }
+
+        assertNull(this.snapshotDao.getPerson("doesntexist"));
+        assertNull(this.snapshotDao.getPerson("mstaf"));
+    }
+
+    public void testAttributeSearch() {
+        this.assertSameResults(Collections.singletonMap("email", Util.list("*@example.edu", "*@faculty.org")));
+        this.assertSameResults(Collections.singletonMap("email", Util.list("*@example.edu", "j*")));
+        this.assertSameResults(Collections.singletonMap("email", Util.list("jstudent@example.edu")));
+        this.assertSameResults(Collections.singletonMap("email", Util.list("*student*")));
+        this.assertSameResults(Collections.singletonMap("username", Util.list("*")));
+        this.assertSameResults(Collections.singletonMap("username", Util.list("m*f")));
+
+        final Map<String, List<Object>> query = new LinkedHashMap<>();
+        query.put("email", Util.list("*@example.edu", "*@faculty.org"));
+        query.put("emplid", Util.list("*"));
+        this.assertSameResults(query);
+
+        query.put("username", Util.list("d*"));
+        this.assertSameResults(query);
+
+        assertEquals(Collections.emptySet(), this.snapshotDao.getPeopleWithMultivaluedAttributes(
+                Collections.singletonMap("email", Util.list("nobody@example.edu"))));
+        assertEquals(Collections.emptySet(), this.snapshotDao.getPeopleWithMultivaluedAttributes(
+                Collections.singletonMap("givenName", Util.list("Joe"))));
+    }
+
+    public void testValueTypes() throws Exception {
+        final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+        attributes.put("string", Util.list("\u00e9t\u00e9", ""));
+        attributes.put("integer", Util.list(42, -1));
+        attributes.put("long", Util.list(Long.MAX_VALUE));
+        attributes.put("double", Util.list(0.5d));
+        attributes.put("boolean", Util.list(true, false));
+        attributes.put("date", Util.list(new Date(0)));
+        attributes.put("decimal", Util.list(new BigDecimal("12345678901234567890.5")));
+        attributes.put("nullValue", Util.list((Object) null));
+        attributes.put("nullList", null);
+
+        final PersonSnapshotCompiler compiler = new PersonSnapshotCompiler();
+        compiler.setIndexedAttributes(Collections.singleton("integer"));
+        compiler.compile(Collections.singletonList(new NamedPersonImpl("\u00fcser", attributes)), this.snapshotFile);
+        this.snapshotDao.reload();
+
+        final IPersonAttributes person = this.snapshotDao.getPerson("\u00fcser");
+        assertEquals(attributes, person.getAttributes());
+        assertEquals(Collections.singleton(person), this.snapshotDao.getPeopleWithMultivaluedAttributes(
+                Collections.singletonMap("integer", Util.list("4*"))));
+        assertNull(this.snapshotDao.getPerson("jstudent"));
+    }
+
+    public void testDuplicateNames() throws IOException {
+        final List<IPersonAttributes> people = new ArrayList<>();
+        people.add(new NamedPersonImpl("jstudent", Collections.<String, List<Object>>emptyMap()));
+        people.add(new NamedPersonImpl("jstudent", Collections.<String, List<Object>>emptyMap()));
+
+        final long length = this.snapshotFile.length();
+        try {
+            new PersonSnapshotCompiler().compile(people, this.snapshotFile);
+            fail("IllegalArgumentException expected for duplicate names");
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("jstudent"));
+        }
+
+        //The existing snapshot is left in place
+        assertEquals(length, this.snapshotFile.length());
+    }
+
+    public void testUnsupportedValueType() throws IOException {
+        final Map<String, List<Object>> attributes = Collections.singletonMap("id", Util.list(UUID.randomUUID()));
+
+        //Only value types that are deserialized when the snapshot is read can be stored
+        try {
+            new PersonSnapshotCompiler().compile(Collections.singletonList(new NamedPersonImpl("jstudent", attributes)), this.snapshotFile);
+            fail("IllegalArgumentException expected for a value type that is not supported");
+        } catch (final IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    private void assertSameResults(final Map<String, List<Object>> query) {
+        final Set<String> expected = new LinkedHashSet<>();
+        for (final IPersonAttributes person : this.xmlPersonAttributeDao.getPeopleWithMultivaluedAttributes(query)) {
+            expected.add(person.getName());
+        }
+
+        final Set<String> names = new LinkedHashSet<>();
+        for (final IPersonAttributes person : this.snapshotDao.getPeopleWithMultivaluedAttributes(query)) {
+            names.add(person.getName());
+            assertEquals(this.xmlPersonAttributeDao.getPerson(person.getName()).getAttributes(), person.getAttributes());
+        }
+
+        assertEquals(query.toString(), expected, names);
+    }
+}
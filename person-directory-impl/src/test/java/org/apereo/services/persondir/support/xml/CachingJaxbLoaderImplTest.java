@@ -0,0 +1,196 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.xml;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.support.xml.om.PersonData;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CachingJaxbLoaderImpl testcase for reloading changed resources.
+ */
+public class CachingJaxbLoaderImplTest extends TestCase {
+    private File xmlFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.xmlFile = File.createTempFile("PersonData", ".xml");
+        this.writePeople("jstudent");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assertTrue(this.xmlFile.delete());
+        super.tearDown();
+    }
+
+    public void testBackgroundReload() throws Exception {
+        final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final XmlPersonAttributeDao dao = new XmlPersonAttributeDao();
+            dao.setMappedXmlResource(new FileSystemResource(this.xmlFile));
+            dao.setReloadExecutor(reloadExecutor);
+            dao.afterPropertiesSet();
+
+            assertNotNull(dao.getPerson("jstudent"));
+            assertNull(dao.getPerson("mstaff"));
+
+            this.writePeople("mstaff");
+
+            //The query finding the file changed gets the previous people while the reload runs in the background
+            assertNotNull(dao.getPerson("jstudent"));
+            reloadExecutor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+
+            assertNull(dao.getPerson("jstudent"));
+            assertNotNull(dao.getPerson("mstaff"));
+        } finally {
+            reloadExecutor.shutdownNow();
+        }
+    }
+
+    public void testSingleReload() throws Exception {
+        final CountDownLatch reloadStarted = new CountDownLatch(1);
+        final CountDownLatch finishReload = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final StaxPersonDataLoader loader = new StaxPersonDataLoader() {
+            @Override
+            protected PersonData load(final InputStream xmlInputStream, final UnmarshallingCallback<PersonData> callback) {
+                if (loads.incrementAndGet() > 1) {
+                    reloadStarted.countDown();
+                    try {
+                        finishReload.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.load(xmlInputStream, callback);
+            }
+        };
+        loader.setMappedXmlResource(new FileSystemResource(this.xmlFile));
+
+        final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor();
+        loader.setReloadExecutor(reloadExecutor);
+        try {
+            final PersonData first = loader.getUnmarshalledObject();
+            assertEquals(1, first.getPerson().size());
+            assertSame(first, loader.getUnmarshalledObject());
+
+            this.writePeople("mstaff", "dfaculty");
+
+            //Callers don't wait for the reload that is in progress and don't start another one
+            assertSame(first, loader.getUnmarshalledObject());
+            assertTrue(reloadStarted.await(10, TimeUnit.SECONDS));
+            final List<PersonData> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(loader.getUnmarshalledObject());
+            }
+            for (final PersonData result : results) {
+                assertSame(first, result);
+            }
+            assertEquals(2, loads.get());
+
+            finishReload.countDown();
+            reloadExecutor.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            assertEquals(2, loader.getUnmarshalledObject().getPerson().size());
+            assertEquals(2, loads.get());
+        } finally {
+            finishReload.countDown();
+            reloadExecutor.shutdownNow();
+        }
+    }
+
+    public void testDefaultBackgroundReload() throws Exception {
+        final XmlPersonAttributeDao dao = new XmlPersonAttributeDao();
+        dao.setMappedXmlResource(new FileSystemResource(this.xmlFile));
+        dao.afterPropertiesSet();
+
+        assertNotNull(dao.getPerson("jstudent"));
+
+        this.writePeople("mstaff");
+
+        //Without a reload executor the file is reloaded in the background too
+        final long timeout = System.currentTimeMillis() + 10000;
+        while (dao.getPerson("mstaff") == null) {
+            assertTrue("The changed file was not reloaded", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        assertNull(dao.getPerson("jstudent"));
+    }
+
+    public void testFailedReloadNotRetried() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final StaxPersonDataLoader loader = new StaxPersonDataLoader() {
+            @Override
+            protected PersonData load(final InputStream xmlInputStream, final UnmarshallingCallback<PersonData> callback) {
+                loads.incrementAndGet();
+                return super.load(xmlInputStream, callback);
+            }
+        };
+        loader.setMappedXmlResource(new FileSystemResource(this.xmlFile));
+        loader.setReloadExecutor(Runnable::run);
+
+        final PersonData first = loader.getUnmarshalledObject();
+        assertEquals(1, loads.get());
+
+        this.writeXml("<person-data><person");
+
+        //The caller that finds the file changed reloads it, a file that fails to load is not loaded again until it changes
+        assertSame(first, loader.getUnmarshalledObject());
+        assertSame(first, loader.getUnmarshalledObject());
+        assertEquals(2, loads.get());
+
+        this.writePeople("mstaff", "dfaculty");
+
+        assertEquals(2, loader.getUnmarshalledObject().getPerson().size());
+        assertEquals(3, loads.get());
+    }
+
+    private void writePeople(final String... names) throws Exception {
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<person-data>\n");
+        for (final String name : names) {
+            xml.append("  <person name=\"").append(name).append("\"/>\n");
+        }
+        xml.append("</person-data>\n");
+        this.writeXml(xml.toString());
+    }
+
+    private void writeXml(final String xml) throws Exception {
+        final long previousLastModified = this.xmlFile.lastModified();
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(this.xmlFile), StandardCharsets.UTF_8)) {
+            writer.write(xml);
+        }
+        //File systems may only store the modification time in seconds
+        assertTrue(this.xmlFile.setLastModified(Math.max(System.currentTimeMillis(), previousLastModified + 2000)));
+    }
+}
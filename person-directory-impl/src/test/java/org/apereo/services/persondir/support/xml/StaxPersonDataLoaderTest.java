@@ -0,0 +1,159 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.support.xml;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.xml.om.Attribute;
+import org.apereo.services.persondir.support.xml.om.Person;
+import org.apereo.services.persondir.support.xml.om.PersonData;
+import org.apereo.services.persondir.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StaxPersonDataLoader testcase, comparing the parsed people with those unmarshalled by JAXB.
+ */
+public class StaxPersonDataLoaderTest extends TestCase {
+    private static final int BENCHMARK_PEOPLE = 20000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public void testLoadPersonData() {
+        final CachingJaxbLoaderImpl<PersonData> jaxbLoader = new CachingJaxbLoaderImpl<>(PersonData.class);
+        jaxbLoader.setMappedXmlResource(new ClassPathResource("/PersonData.xml"));
+        final StaxPersonDataLoader staxLoader = new StaxPersonDataLoader();
+        staxLoader.setMappedXmlResource(new ClassPathResource("/PersonData.xml"));
+
+        final List<String> expected = toStrings(jaxbLoader.getUnmarshalledObject());
+        assertEquals(4, expected.size());
+        assertEquals(expected, toStrings(staxLoader.getUnmarshalledObject()));
+    }
+
+    public void testPersonCallback() {
+        final StaxPersonDataLoader staxLoader = new StaxPersonDataLoader();
+        staxLoader.setMappedXmlResource(new ClassPathResource("/PersonData.xml"));
+
+        final Map<String, Map<String, List<Object>>> people = new LinkedHashMap<>();
+        final List<PersonData> processed = new ArrayList<>();
+        final PersonData personData = staxLoader.getUnmarshalledObject(new StaxPersonDataLoader.PersonCallback() {
+            @Override
+            public void startPeople() {
+                people.clear();
+            }
+
+            @Override
+            public void addPerson(final String name, final Map<String, List<Object>> attributes) {
+                people.put(name, attributes);
+            }
+
+            @Override
+            public void postProcessUnmarshalling(final PersonData unmarshalledObject) {
+                processed.add(unmarshalledObject);
+            }
+        });
+
+        //People are only passed to the callback
+        assertTrue(personData.getPerson().isEmpty());
+        assertEquals(1, processed.size());
+        assertSame(personData, processed.get(0));
+
+        assertEquals(Util.genList("jstudent", "mstaff", "dfaculty", "iboring"), new ArrayList<>(people.keySet()));
+        assertEquals(Util.list("joe.student@example.com", "jstudent@example.edu"), people.get("jstudent").get("email"));
+        assertEquals(Util.list(), people.get("jstudent").get("portalId"));
+        assertEquals(Util.list("*(%*%#$%^$"), people.get("dfaculty").get("portalId"));
+        assertTrue(people.get("iboring").isEmpty());
+    }
+
+    public void testJaxbContextIsShared() {
+        final CachingJaxbLoaderImpl<PersonData> first = new CachingJaxbLoaderImpl<>(PersonData.class);
+        final CachingJaxbLoaderImpl<PersonData> second = new CachingJaxbLoaderImpl<>(PersonData.class);
+        assertSame(first.getJAXBContext(), second.getJAXBContext());
+    }
+
+    public void testLoadLargeFile() throws Exception {
+        final File xmlFile = File.createTempFile("PersonData", ".xml");
+        try {
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(xmlFile), StandardCharsets.UTF_8)) {
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<person-data>\n");
+                for (int p = 0; p < BENCHMARK_PEOPLE; p++) {
+                    writer.write("  <person name=\"user" + p + "\">\n");
+                    writer.write("    <attribute key=\"mail\"><value>user" + p + "@example.edu</value></attribute>\n");
+                    writer.write("    <attribute key=\"memberOf\"><value>cn=group" + (p % 100) + ",dc=example</value>"
+                            + "<value>cn=all &amp; everyone,dc=example</value></attribute>\n");
+                    writer.write("  </person>\n");
+                }
+                writer.write("</person-data>\n");
+            }
+
+            final CachingJaxbLoaderImpl<PersonData> jaxbLoader = new CachingJaxbLoaderImpl<>(PersonData.class);
+            jaxbLoader.setMappedXmlResource(new FileSystemResource(xmlFile));
+            final XmlPersonAttributeDao jaxbDao = new XmlPersonAttributeDao();
+            jaxbDao.setJaxbLoader(jaxbLoader);
+            jaxbDao.afterPropertiesSet();
+
+            final XmlPersonAttributeDao staxDao = new XmlPersonAttributeDao();
+            staxDao.setMappedXmlResource(new FileSystemResource(xmlFile));
+            staxDao.afterPropertiesSet();
+
+            long start = System.nanoTime();
+            final IPersonAttributes jaxbPerson = jaxbDao.getPerson("user42");
+            final long jaxbMillis = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            final IPersonAttributes staxPerson = staxDao.getPerson("user42");
+            final long staxMillis = (System.nanoTime() - start) / 1000000;
+
+            this.logger.info("Loading " + BENCHMARK_PEOPLE + " people: JAXB=" + jaxbMillis + "ms, StAX=" + staxMillis + "ms");
+            assertEquals(jaxbPerson.getAttributes(), staxPerson.getAttributes());
+            assertEquals(Util.list("cn=group42,dc=example", "cn=all & everyone,dc=example"), staxPerson.getAttributeValues("memberOf"));
+
+            final Map<String, List<Object>> query = new LinkedHashMap<>();
+            query.put("memberOf", Util.list("cn=group7,*"));
+            assertEquals(BENCHMARK_PEOPLE / 100, staxDao.getPeopleWithMultivaluedAttributes(query).size());
+            assertEquals(jaxbDao.getPeopleWithMultivaluedAttributes(query), staxDao.getPeopleWithMultivaluedAttributes(query));
+        } finally {
+            assertTrue(xmlFile.delete());
+        }
+    }
+
+    private static List<String> toStrings(final PersonData personData) {
+        final List<String> people = new ArrayList<>();
+        for (final Person person : personData.getPerson()) {
+            final StringBuilder builder = new StringBuilder(person.getName());
+            for (final Attribute attribute : person.getAttribute()) {
+                builder.append(' ').append(attribute.getKey()).append('=').append(attribute.getValue());
+            }
+            people.add(builder.toString());
+        }
+        return people;
+    }
+}
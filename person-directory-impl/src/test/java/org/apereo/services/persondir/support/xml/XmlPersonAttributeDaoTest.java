@@ -20,16 +20,23 @@ package org.apereo.services.persondir.support.xml;
 
 import junit.framework.TestCase;
 import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.xml.om.Attribute;
+import org.apereo.services.persondir.support.xml.om.Person;
+import org.apereo.services.persondir.support.xml.om.PersonData;
+import org.apereo.services.persondir.util.PatternHelper;
 import org.apereo.services.persondir.util.Util;
 import org.springframework.core.io.ClassPathResource;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * @author Eric Dalquist
@@ -128,4 +135,132 @@ public class XmlPersonAttributeDaoTest extends TestCase {
         assertEquals(3, results.size());
     }
 
+    public void testAttributeSearchWildcards() {
+        assertEquals(names("jstudent"), this.search("email", "jstudent@example.edu"));
+        assertEquals(names("jstudent"), this.search("email", "*student*"));
+        assertEquals(names("jstudent"), this.search("email", "j*@example.*"));
+        assertEquals(names("jstudent", "mstaff"), this.search("email", "*@example.edu"));
+        assertEquals(names("dfaculty"), this.search("email", "don*"));
+        assertEquals(names(), this.search("email", "*@FACULTY.org"));
+        assertEquals(names(), this.search("email", "jstudent@example"));
+        assertEquals(names("dfaculty"), this.search("portalId", "**(%*"));
+    }
+
+    public void testAttributeSearchByUsername() {
+        assertEquals(names("mstaff"), this.search("username", "mstaff"));
+        assertEquals(names("iboring", "jstudent"), this.search("username", "*i*g", "j*"));
+    }
+
+    public void testCaseInsensitiveAttributes() throws Exception {
+        final XmlPersonAttributeDao dao = new XmlPersonAttributeDao();
+        dao.setMappedXmlResource(new ClassPathResource("/PersonData.xml"));
+        dao.setCaseInsensitiveAttributes(Collections.singleton("email"));
+        dao.afterPropertiesSet();
+
+        final Map<String, List<Object>> query = new LinkedHashMap<>();
+        query.put("email", Util.list("*@FACULTY.ORG", "JStudent@Example.edu"));
+        assertEquals(names("jstudent", "dfaculty"), toNames(dao.getPeopleWithMultivaluedAttributes(query)));
+
+        query.put("familyName", Util.list("faculty"));
+        assertEquals(names(), toNames(dao.getPeopleWithMultivaluedAttributes(query)));
+    }
+
+    public void testIndexMatchesPatterns() {
+        final Random random = new Random(42);
+        final PersonData personData = new PersonData();
+        for (int p = 0; p < 2000; p++) {
+            final Person person = new Person();
+            person.setName("user" + p);
+            final Attribute affiliation = new Attribute();
+            affiliation.setKey("affiliation");
+            affiliation.getValue().add(Arrays.asList("student", "staff", "faculty", "alum").get(random.nextInt(4)));
+            person.getAttribute().add(affiliation);
+            final Attribute memberOf = new Attribute();
+            memberOf.setKey("memberOf");
+            for (int g = random.nextInt(4); g > 0; g--) {
+                memberOf.getValue().add("cn=group" + random.nextInt(50) + ",ou=" + random.nextInt(5) + ",dc=example");
+            }
+            person.getAttribute().add(memberOf);
+            personData.getPerson().add(person);
+        }
+
+        final XmlPersonAttributeDao dao = new XmlPersonAttributeDao();
+        dao.setJaxbLoader(new PersonDataLoader(personData));
+
+        final List<String> queries = Arrays.asList("student", "st*", "*f", "*a*", "s*f", "*", "cn=group1,*", "*,ou=3,dc=example",
+                "cn=group2*,ou=1*", "*group4*ou=2*", "cn=group7,ou=0,dc=example", "nothing*");
+        for (final String affiliationQuery : queries) {
+            for (final String memberOfQuery : queries) {
+                final Map<String, List<Object>> query = new LinkedHashMap<>();
+                query.put("affiliation", Util.list(affiliationQuery));
+                query.put("memberOf", Util.list(memberOfQuery, "cn=group3,ou=4,dc=example"));
+
+                final List<String> expected = new ArrayList<>();
+                for (final Person person : personData.getPerson()) {
+                    if (matches(person, "affiliation", query.get("affiliation")) && matches(person, "memberOf", query.get("memberOf"))) {
+                        expected.add(person.getName());
+                    }
+                }
+                assertEquals(query.toString(), expected, new ArrayList<>(toNames(dao.getPeopleWithMultivaluedAttributes(query))));
+            }
+        }
+    }
+
+    private Set<String> search(final String attribute, final Object... values) {
+        final Map<String, List<Object>> query = new LinkedHashMap<>();
+        query.put(attribute, Util.list(values));
+        return toNames(this.xmlPersonAttributeDao.getPeopleWithMultivaluedAttributes(query));
+    }
+
+    private static Set<String> names(final String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+
+    private static Set<String> toNames(final Set<IPersonAttributes> people) {
+        final Set<String> names = new LinkedHashSet<>();
+        for (final IPersonAttributes person : people) {
+            names.add(person.getName());
+        }
+        return names;
+    }
+
+    private static boolean matches(final Person person, final String key, final List<Object> queryValues) {
+        for (final Attribute attribute : person.getAttribute()) {
+            if (!attribute.getKey().equals(key)) {
+                continue;
+            }
+            for (final Object queryValue : queryValues) {
+                final Pattern pattern = PatternHelper.compilePattern(queryValue.toString());
+                for (final String value : attribute.getValue()) {
+                    if (pattern.matcher(value).matches()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class PersonDataLoader implements CachingJaxbLoader<PersonData> {
+        private final PersonData personData;
+        private boolean loaded = false;
+
+        PersonDataLoader(final PersonData personData) {
+            this.personData = personData;
+        }
+
+        @Override
+        public synchronized PersonData getUnmarshalledObject(final UnmarshallingCallback<PersonData> callback) {
+            if (!this.loaded) {
+                callback.postProcessUnmarshalling(this.personData);
+                this.loaded = true;
+            }
+            return this.personData;
+        }
+
+        @Override
+        public PersonData getUnmarshalledObject() {
+            return this.personData;
+        }
+    }
 }
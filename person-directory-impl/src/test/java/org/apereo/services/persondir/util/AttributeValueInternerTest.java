@@ -0,0 +1,201 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import junit.framework.TestCase;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AttributeValueInterner testcase, including the heap used by people with and without interned values.
+ */
+public class AttributeValueInternerTest extends TestCase {
+    private static final int BENCHMARK_PEOPLE = 20000;
+    private static final List<String> AFFILIATIONS = Arrays.asList("student", "faculty", "staff", "member", "alum");
+    private static final List<String> DEPARTMENTS = Arrays.asList("Engineering", "Mathematics", "Physics", "History");
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public void testIntern() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+
+        final String student = copy("student");
+        assertSame(student, interner.intern(student));
+        assertSame(student, interner.intern(copy("student")));
+        assertEquals(1, interner.size());
+
+        final Long number = 1234567L;
+        assertSame(number, interner.intern(number));
+        assertNull(interner.intern((Object) null));
+        assertEquals(1, interner.size());
+    }
+
+    public void testInternValues() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setInternedAttributes(new HashSet<>(Arrays.asList("eduPersonAffiliation", "ou")));
+        final String student = (String) interner.intern(copy("student"));
+
+        final List<Object> values = Util.list(copy("student"), copy("member"));
+        final List<Object> internedValues = interner.intern("eduPersonAffiliation", values);
+        assertEquals(values, internedValues);
+        assertSame(student, internedValues.get(0));
+
+        //Already interned values are returned as-is
+        assertSame(internedValues, interner.intern("eduPersonAffiliation", internedValues));
+
+        //Values of other attributes are not interned
+        final List<Object> uid = Util.list(copy("student"));
+        assertSame(uid, interner.intern("uid", uid));
+        assertNotSame(student, uid.get(0));
+        assertNull(interner.intern("ou", (List<Object>) null));
+
+        final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+        attributes.put("uid", uid);
+        attributes.put("eduPersonAffiliation", Util.list(copy("student")));
+        attributes.put("ou", null);
+        final Map<String, List<Object>> internedAttributes = interner.intern(attributes);
+        assertEquals(attributes, internedAttributes);
+        assertEquals(new ArrayList<>(attributes.keySet()), new ArrayList<>(internedAttributes.keySet()));
+        assertSame(student, internedAttributes.get("eduPersonAffiliation").get(0));
+        assertSame(internedAttributes, interner.intern(internedAttributes));
+    }
+
+    public void testMaximumSize() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setMaximumSize(0);
+
+        final String value = copy("group");
+        assertSame(value, interner.intern(value));
+        assertTrue(interner.size() <= 16);
+
+        for (int i = 0; i < 1000; i++) {
+            interner.intern("value" + i);
+        }
+        assertTrue("size " + interner.size(), interner.size() <= 16);
+    }
+
+    public void testPoolIsWeak() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        for (int i = 0; i < 100; i++) {
+            interner.intern("value" + i);
+        }
+        assertEquals(100, interner.size());
+
+        for (int i = 0; i < 10 && interner.size() > 0; i++) {
+            System.gc();
+        }
+        assertEquals(0, interner.size());
+    }
+
+    /**
+     * People read with interning hold one instance of each distinct value of the interned attributes.
+     */
+    public void testInternedPeopleShareValues() {
+        final List<IPersonAttributes> plainPeople = createPeople(1000, null);
+        final List<IPersonAttributes> internedPeople = createPeople(1000, createInterner());
+
+        //5 affiliations including "member", 4 departments and 20 groups
+        assertEquals(29, countValueInstances(internedPeople));
+        assertEquals(1000 * 7, countValueInstances(plainPeople));
+
+        final IPersonAttributes first = internedPeople.get(0);
+        final IPersonAttributes sameAffiliation = internedPeople.get(AFFILIATIONS.size());
+        assertSame(first.getAttributeValue("eduPersonAffiliation"), sameAffiliation.getAttributeValue("eduPersonAffiliation"));
+        assertSame(first.getAttributeValues("eduPersonAffiliation").get(1),
+                internedPeople.get(1).getAttributeValues("eduPersonAffiliation").get(1));
+    }
+
+    /**
+     * Logs the heap used by people with and without interning, it depends on the JVM so it is not asserted. Only run
+     * if {@link Util#isBenchmarkEnabled()}.
+     */
+    public void testMemoryFootprint() {
+        if (!Util.isBenchmarkEnabled()) {
+            return;
+        }
+
+        final long plainBytes = measureBytesPerPerson(null);
+        final long internedBytes = measureBytesPerPerson(createInterner());
+
+        this.logger.info("Bytes per person with 3 low cardinality attributes: plain=" + plainBytes
+                + ", interned=" + internedBytes);
+    }
+
+    private static AttributeValueInterner createInterner() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setInternedAttributes(new HashSet<>(Arrays.asList("eduPersonAffiliation", "ou", "memberOf")));
+        return interner;
+    }
+
+    private static long measureBytesPerPerson(final AttributeValueInterner interner) {
+        final long before = Util.usedMemory();
+        final List<IPersonAttributes> people = createPeople(BENCHMARK_PEOPLE, interner);
+        final long after = Util.usedMemory();
+
+        assertEquals(BENCHMARK_PEOPLE, people.size());
+        return (after - before) / people.size();
+    }
+
+    private static List<IPersonAttributes> createPeople(final int count, final AttributeValueInterner interner) {
+        final List<IPersonAttributes> people = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            //Each value is a new String, as read from a backing store
+            Map<String, List<Object>> attributes = new LinkedHashMap<>();
+            attributes.put("eduPersonAffiliation", Util.list(copy(AFFILIATIONS.get(i % AFFILIATIONS.size())), copy("member")));
+            attributes.put("ou", Util.list(copy(DEPARTMENTS.get(i % DEPARTMENTS.size()))));
+            final List<Object> groups = new ArrayList<>();
+            for (int g = 0; g < 4; g++) {
+                groups.add(copy("cn=group" + ((i + g) % 20) + ",ou=groups,dc=example,dc=edu"));
+            }
+            attributes.put("memberOf", groups);
+
+            if (interner != null) {
+                attributes = interner.intern(attributes);
+            }
+            people.add(new NamedPersonImpl("user" + i, attributes));
+        }
+        return people;
+    }
+
+    private static int countValueInstances(final List<IPersonAttributes> people) {
+        final Set<Object> values = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final IPersonAttributes person : people) {
+            for (final List<Object> attributeValues : person.getAttributes().values()) {
+                values.addAll(attributeValues);
+            }
+        }
+        return values.size();
+    }
+
+    private static String copy(final String value) {
+        return new String(value.toCharArray());
+    }
+}
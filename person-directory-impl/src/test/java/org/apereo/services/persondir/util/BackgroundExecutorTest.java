@@ -0,0 +1,77 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BackgroundExecutor testcase.
+ */
+public class BackgroundExecutorTest extends TestCase {
+
+    public void testExecuteExclusively() {
+        final AtomicBoolean running = new AtomicBoolean();
+        final AtomicInteger runs = new AtomicInteger();
+        final List<Runnable> scheduled = new ArrayList<>();
+
+        //A second task is dropped while the first one is scheduled
+        BackgroundExecutor.executeExclusively(running, scheduled::add, runs::incrementAndGet);
+        BackgroundExecutor.executeExclusively(running, scheduled::add, runs::incrementAndGet);
+        assertEquals(1, scheduled.size());
+        assertTrue(running.get());
+
+        scheduled.get(0).run();
+        assertEquals(1, runs.get());
+        assertFalse(running.get());
+
+        BackgroundExecutor.executeExclusively(running, Runnable::run, runs::incrementAndGet);
+        assertEquals(2, runs.get());
+        assertFalse(running.get());
+    }
+
+    public void testExecuteExclusivelyFailures() {
+        final AtomicBoolean running = new AtomicBoolean();
+
+        try {
+            BackgroundExecutor.executeExclusively(running, Runnable::run, () -> {
+                throw new IllegalStateException();
+            });
+            fail("IllegalStateException should have been thrown");
+        } catch (final IllegalStateException e) {
+            //expected
+        }
+        assertFalse(running.get());
+
+        try {
+            BackgroundExecutor.executeExclusively(running, task -> {
+                throw new RejectedExecutionException();
+            }, () -> fail("Rejected task should not run"));
+            fail("RejectedExecutionException should have been thrown");
+        } catch (final RejectedExecutionException e) {
+            //expected
+        }
+        assertFalse(running.get());
+    }
+}
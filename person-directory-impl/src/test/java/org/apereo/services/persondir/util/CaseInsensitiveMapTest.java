@@ -0,0 +1,218 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * CaseInsensitiveMap testcase, including a comparison with TreeMap(String.CASE_INSENSITIVE_ORDER).
+ */
+public class CaseInsensitiveMapTest extends TestCase {
+    private static final List<String> ATTRIBUTE_NAMES = Arrays.asList("uid", "cn", "sn", "givenName", "displayName",
+            "mail", "telephoneNumber", "eduPersonAffiliation", "eduPersonPrincipalName", "memberOf", "title",
+            "departmentNumber", "employeeNumber", "postalAddress", "Ou", "ST");
+
+    private static final int BENCHMARK_MAPS = 20000;
+    private static final int BENCHMARK_LOOKUPS = 2000000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public void testCaseInsensitiveLookups() {
+        final Map<String, Object> map = new CaseInsensitiveMap<>();
+        assertNull(map.put("eduPersonAffiliation", "student"));
+        assertNull(map.put("MAIL", "jdoe@example.edu"));
+        assertNull(map.put("title", null));
+
+        assertEquals(3, map.size());
+        assertEquals("student", map.get("edupersonaffiliation"));
+        assertEquals("student", map.get("EDUPERSONAFFILIATION"));
+        assertEquals("jdoe@example.edu", map.get("mail"));
+        assertTrue(map.containsKey("Title"));
+        assertNull(map.get("Title"));
+        assertFalse(map.containsKey("cn"));
+        assertNull(map.get(null));
+        assertNull(map.get(1));
+
+        //Replacing a value keeps the original spelling of the key
+        assertEquals("jdoe@example.edu", map.put("Mail", "john.doe@example.edu"));
+        assertEquals(Arrays.asList("eduPersonAffiliation", "MAIL", "title"), new ArrayList<>(map.keySet()));
+        assertEquals("john.doe@example.edu", map.get("mail"));
+
+        try {
+            map.put(null, "value");
+            fail("NullPointerException expected");
+        } catch (final NullPointerException e) {
+            //expected
+        }
+    }
+
+    public void testMatchesTreeMap() {
+        final Map<String, Object> map = new CaseInsensitiveMap<>(2);
+        final Map<String, Object> treeMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (final String name : ATTRIBUTE_NAMES) {
+            map.put(name, name.length());
+            treeMap.put(name, name.length());
+        }
+
+        assertEquals(treeMap, map);
+        assertEquals(map, treeMap);
+        assertEquals(treeMap.hashCode(), map.hashCode());
+        for (final String name : ATTRIBUTE_NAMES) {
+            assertEquals(treeMap.get(name.toUpperCase()), map.get(name.toUpperCase()));
+            assertEquals(treeMap.get(name.toLowerCase()), map.get(name.toLowerCase()));
+        }
+    }
+
+    public void testRemove() {
+        final Map<String, Object> map = new CaseInsensitiveMap<>();
+        for (final String name : ATTRIBUTE_NAMES) {
+            map.put(name, name);
+        }
+
+        assertEquals("givenName", map.remove("GIVENNAME"));
+        assertNull(map.remove("givenName"));
+        assertFalse(map.containsKey("givenname"));
+        assertEquals(ATTRIBUTE_NAMES.size() - 1, map.size());
+        assertEquals("mail", map.get("Mail"));
+
+        final Iterator<Map.Entry<String, Object>> entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getKey().startsWith("edu")) {
+                entries.remove();
+            }
+        }
+        assertEquals(ATTRIBUTE_NAMES.size() - 3, map.size());
+        assertFalse(map.containsKey("EDUPERSONAFFILIATION"));
+        assertEquals("memberOf", map.get("memberof"));
+
+        final Iterator<String> keys = map.keySet().iterator();
+        keys.next();
+        map.put("newAttribute", "value");
+        try {
+            keys.next();
+            fail("ConcurrentModificationException expected");
+        } catch (final ConcurrentModificationException e) {
+            //expected
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("mail"));
+    }
+
+    public void testSerialization() throws Exception {
+        final Map<String, Object> map = new CaseInsensitiveMap<>();
+        map.put("eduPersonAffiliation", "student");
+        map.put("mail", "jdoe@example.edu");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(map);
+        }
+
+        final Map<?, ?> deserialized;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = (Map<?, ?>) in.readObject();
+        }
+
+        assertEquals(map, deserialized);
+        assertEquals("student", deserialized.get("EDUPERSONAFFILIATION"));
+    }
+
+    /**
+     * Logs the heap used by attribute maps and the lookup throughput compared to
+     * TreeMap(String.CASE_INSENSITIVE_ORDER), both depend on the JVM and the machine so neither is asserted. Only run
+     * if {@link Util#isBenchmarkEnabled()}, {@link #testMatchesTreeMap()} covers the lookups.
+     */
+    public void testFootprintAndLookupThroughput() {
+        if (!Util.isBenchmarkEnabled()) {
+            return;
+        }
+
+        final long treeMapBytes = measureBytesPerMap(() -> new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+        final long caseInsensitiveMapBytes = measureBytesPerMap(() -> new CaseInsensitiveMap<>(ATTRIBUTE_NAMES.size()));
+
+        final long treeMapNanos = measureLookupNanos(new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+        final long caseInsensitiveMapNanos = measureLookupNanos(new CaseInsensitiveMap<>());
+
+        this.logger.info("Bytes per map of " + ATTRIBUTE_NAMES.size() + " attributes: TreeMap=" + treeMapBytes
+                + ", CaseInsensitiveMap=" + caseInsensitiveMapBytes);
+        this.logger.info("Nanoseconds per lookup: TreeMap=" + (double) treeMapNanos / BENCHMARK_LOOKUPS
+                + ", CaseInsensitiveMap=" + (double) caseInsensitiveMapNanos / BENCHMARK_LOOKUPS);
+    }
+
+    private static long measureBytesPerMap(final Supplier<Map<String, Object>> mapFactory) {
+        final long before = Util.usedMemory();
+        final List<Map<String, Object>> maps = new ArrayList<>(BENCHMARK_MAPS);
+        for (int i = 0; i < BENCHMARK_MAPS; i++) {
+            final Map<String, Object> map = mapFactory.get();
+            for (final String name : ATTRIBUTE_NAMES) {
+                map.put(name, name);
+            }
+            maps.add(map);
+        }
+        final long after = Util.usedMemory();
+
+        assertEquals(BENCHMARK_MAPS, maps.size());
+        return (after - before) / maps.size();
+    }
+
+    private static long measureLookupNanos(final Map<String, Object> map) {
+        final List<String> lookupNames = new ArrayList<>();
+        for (final String name : ATTRIBUTE_NAMES) {
+            map.put(name, name);
+            lookupNames.add(name);
+            lookupNames.add(name.toLowerCase());
+        }
+
+        //Warm up before timing
+        int found = lookup(map, lookupNames, BENCHMARK_LOOKUPS);
+        final long start = System.nanoTime();
+        found += lookup(map, lookupNames, BENCHMARK_LOOKUPS);
+        final long nanos = System.nanoTime() - start;
+
+        assertEquals(2 * BENCHMARK_LOOKUPS, found);
+        return nanos;
+    }
+
+    private static int lookup(final Map<String, Object> map, final List<String> names, final int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (map.get(names.get(i % names.size())) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apereo.services.persondir.util;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * FrontCodedStringList testcase, including a comparison with an ArrayList of Strings.
+ */
+public class FrontCodedStringListTest extends TestCase {
+    private static final int BENCHMARK_USERS = 200;
+    private static final int BENCHMARK_GROUPS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public void testSortedValues() {
+        final List<String> values = new ArrayList<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            values.add("cn=group" + random.nextInt(700) + ",ou=groups,dc=example,dc=edu");
+        }
+        values.add("");
+        values.add("cn=group1");
+        values.add(new String(new char[70000]).replace('\0', 'x'));
+
+        final List<Object> list = FrontCodedStringList.valueOf(values);
+        final List<String> expected = new ArrayList<>(values);
+        Collections.sort(expected);
+
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected, list);
+        assertEquals(expected.hashCode(), list.hashCode());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), list.get(i));
+        }
+
+        //Duplicate values may span buckets
+        for (final String value : expected) {
+            assertTrue(value, list.contains(value));
+            assertEquals(expected.indexOf(value), list.indexOf(value));
+            assertEquals(expected.lastIndexOf(value), list.lastIndexOf(value));
+        }
+        for (final String value : Arrays.asList("a", "cn=group", "cn=group1,", "cn=group999,ou=groups,dc=example,dc=edu", "zzz")) {
+            assertFalse(value, list.contains(value));
+            assertEquals(-1, list.indexOf(value));
+        }
+        assertFalse(list.contains(null));
+        assertFalse(list.contains(1));
+
+        try {
+            list.get(list.size());
+            fail("IndexOutOfBoundsException should have been thrown");
+        } catch (final IndexOutOfBoundsException e) {
+            //expected
+        }
+        try {
+            list.add("value");
+            fail("UnsupportedOperationException should have been thrown");
+        } catch (final UnsupportedOperationException e) {
+            //expected
+        }
+    }
+
+    public void testNonAsciiValues() {
+        final List<String> values = Arrays.asList("zurich", "z\u00FCrich", "\u65E5\u672C", "\uFF21", "\uD83D\uDE00", "z\u00FCrich-west");
+        final List<Object> list = FrontCodedStringList.valueOf(values);
+
+        //Values are ordered by code point, characters outside the BMP sort after the rest
+        assertEquals(Arrays.asList("zurich", "z\u00FCrich", "z\u00FCrich-west", "\u65E5\u672C", "\uFF21", "\uD83D\uDE00"), list);
+        for (final String value : values) {
+            assertTrue(value, list.contains(value));
+        }
+        assertFalse(list.contains("z\u00FC"));
+        assertFalse(list.contains("\uD83D\uDE01"));
+    }
+
+    public void testValueOf() {
+        final List<Object> empty = FrontCodedStringList.valueOf(Collections.emptyList());
+        assertTrue(empty.isEmpty());
+        assertFalse(empty.contains("value"));
+        assertEquals(Collections.emptyList(), empty);
+
+        final FrontCodedStringList list = FrontCodedStringList.valueOf(Arrays.asList("b", "a"));
+        assertEquals(Arrays.asList("a", "b"), list);
+        assertSame(list, FrontCodedStringList.valueOf(list));
+
+        assertFalse(FrontCodedStringList.isEncodable(Arrays.asList("a", null)));
+        assertFalse(FrontCodedStringList.isEncodable(Arrays.asList("a", 1)));
+        try {
+            FrontCodedStringList.valueOf(Arrays.asList("a", null));
+            fail("IllegalArgumentException should have been thrown");
+        } catch (final IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    public void testSerialization() throws Exception {
+        final List<Object> list = FrontCodedStringList.valueOf(Arrays.asList("cn=staff,ou=groups", "cn=students,ou=groups"));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(list);
+        }
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            final Object deserialized = in.readObject();
+            assertEquals(list, deserialized);
+            assertTrue(((List<?>) deserialized).contains("cn=students,ou=groups"));
+        }
+    }
+
+    public void testEncodedLength() {
+        final List<String> groups = createGroups(0);
+        final FrontCodedStringList list = FrontCodedStringList.valueOf(groups);
+
+        int rawLength = 0;
+        for (final String group : groups) {
+            rawLength += group.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        //Sorted values in a bucket share a prefix, only the first value of a bucket is stored in full
+        assertEquals(groups.size(), list.size());
+        assertTrue(list.getEncodedLength() + " < " + rawLength, list.getEncodedLength() < rawLength);
+    }
+
+    /**
+     * Logs the heap used by group lists as ArrayLists and as FrontCodedStringLists, it depends on the JVM and its
+     * String representation so it is not asserted. Only run if {@link Util#isBenchmarkEnabled()}.
+     */
+    public void testMemoryFootprint() {
+        if (!Util.isBenchmarkEnabled()) {
+            return;
+        }
+
+        final long before = Util.usedMemory();
+        final List<List<Object>> lists = new ArrayList<>(BENCHMARK_USERS);
+        for (int u = 0; u < BENCHMARK_USERS; u++) {
+            lists.add(new ArrayList<>(createGroups(u)));
+        }
+        final long listBytes = (Util.usedMemory() - before) / BENCHMARK_USERS;
+
+        final List<List<Object>> frontCodedLists = new ArrayList<>(BENCHMARK_USERS);
+        final List<String> groups = new ArrayList<>(BENCHMARK_USERS);
+        for (final List<Object> userGroups : lists) {
+            frontCodedLists.add(FrontCodedStringList.valueOf(userGroups));
+            groups.add((String) userGroups.get(userGroups.size() / 2));
+        }
+        lists.clear();
+        final long frontCodedBytes = (Util.usedMemory() - before) / BENCHMARK_USERS;
+
+        final long start = System.nanoTime();
+        for (int u = 0; u < BENCHMARK_USERS; u++) {
+            assertTrue(frontCodedLists.get(u).contains(groups.get(u)));
+        }
+        final long containsNanos = (System.nanoTime() - start) / BENCHMARK_USERS;
+
+        this.logger.info("Bytes per user with " + BENCHMARK_GROUPS + " groups: ArrayList=" + listBytes
+                + ", FrontCodedStringList=" + frontCodedBytes + ", contains=" + containsNanos + "ns");
+    }
+
+    private static List<String> createGroups(final int user) {
+        final List<String> groups = new ArrayList<>(BENCHMARK_GROUPS);
+        for (int g = 0; g < BENCHMARK_GROUPS; g++) {
+            groups.add("cn=app:" + (g % 50) + ":role" + (g + user) + ",ou=groups,dc=example,dc=edu");
+        }
+        return groups;
+    }
+}
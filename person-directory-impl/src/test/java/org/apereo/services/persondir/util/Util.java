@@ -26,6 +26,12 @@ import java.util.List;
  * @version $Revision$
  */
 public class Util {
+    /**
+     * System property that enables the tests measuring heap use and timings. They force collections and only log their
+     * numbers, so they are skipped unless run with -Dpersondir.benchmarks=true
+     */
+    public static final String BENCHMARKS_PROPERTY = "persondir.benchmarks";
+
     /**
      * Utility for making a mutable list of objects
      */
@@ -63,4 +69,23 @@ public class Util {
 
         return list;
     }
+
+    /**
+     * @return If the benchmarks enabled by {@link #BENCHMARKS_PROPERTY} should run
+     */
+    public static boolean isBenchmarkEnabled() {
+        return Boolean.getBoolean(BENCHMARKS_PROPERTY);
+    }
+
+    /**
+     * Heap in use after a few collections, for benchmarks that log the memory used by a data structure. The numbers
+     * depend on the JVM, its collector and object layout, so they are logged and never asserted.
+     */
+    public static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }